@@ -0,0 +1,389 @@
+package network.artic.clusterfunk;
+
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Runs a fixed workload of commands (parse, annotate, reconstruct, cluster, context, divide and conquer) on a
+ * synthetic tree and metadata table and compares the time and memory allocated by each phase against a stored
+ * baseline, failing if any phase is worse by more than the tolerance. This is the ant benchmark target; with
+ * --update it writes the baseline instead.
+ *
+ * The commands are run in this process with one thread and one output writer so all the allocation is on this
+ * thread (and can be counted exactly) and the times don't depend on the number of processors. Each phase is
+ * run a number of times and the quickest is taken, the first runs warming up the JIT.
+ */
+public final class Benchmark {
+    private final static double MB = 1024 * 1024;
+
+    private final static int DEFAULT_TIP_COUNT = 250000;
+    private final static int DEFAULT_REPEATS = 3;
+    private final static double DEFAULT_TIME_TOLERANCE = 0.25;
+    private final static double DEFAULT_ALLOCATION_TOLERANCE = 0.10;
+    // phase times within this of the baseline are never regressions (timer and scheduling noise)
+    private final static long DEFAULT_TIME_SLACK = 250;
+
+    private final static int COUNTRY_COUNT = 20;
+    private final static int TARGET_COUNT = 250;
+
+    private final static String[] PHASES = { "parse", "annotate", "reconstruct", "cluster", "context", "divide", "conquer" };
+
+    private Benchmark(int tipCount, long seed, int repeats, Path workPath) {
+        this.tipCount = tipCount;
+        this.seed = seed;
+        this.repeats = repeats;
+        this.workPath = workPath;
+        this.treeFile = workPath.resolve("tree_" + tipCount + "_" + seed + ".nwk");
+        this.metadataFile = workPath.resolve("metadata_" + tipCount + "_" + seed + ".csv");
+        this.targetsFile = workPath.resolve("targets_" + tipCount + "_" + seed + ".csv");
+        this.outputPath = workPath.resolve("output");
+    }
+
+    /**
+     * Writes the synthetic inputs unless they are already there
+     */
+    private void createInputs() throws IOException {
+        Files.createDirectories(workPath);
+        if (Files.exists(treeFile) && Files.exists(metadataFile) && Files.exists(targetsFile)) {
+            return;
+        }
+
+        System.out.println("Creating a synthetic tree of " + tipCount + " tips...");
+        Random random = new Random(seed);
+        String[] countries = new String[tipCount];
+        String[] lineages = new String[tipCount];
+
+        try (Writer writer = new BufferedWriter(new FileWriter(treeFile.toFile()), 1 << 16)) {
+            writeNode(writer, random, 0, tipCount, "c00", "L1", countries, lineages);
+            writer.write(";\n");
+        }
+
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(metadataFile.toFile()), 1 << 16))) {
+            writer.println("name,country,lineage");
+            for (int i = 0; i < tipCount; i++) {
+                writer.println(getTipName(i) + "," + countries[i] + "," + lineages[i]);
+            }
+        }
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(targetsFile.toFile()))) {
+            writer.println("name");
+            for (int i = 0; i < TARGET_COUNT; i++) {
+                writer.println(getTipName((int) ((long) i * tipCount / TARGET_COUNT)));
+            }
+        }
+    }
+
+    /**
+     * Writes a random clade of tips first to first + count - 1. The country and lineage are inherited down the
+     * tree and occasionally change so they are phylogenetically structured. About a third of the tips have zero
+     * length branches so there is something for context to collapse.
+     * recursive version
+     */
+    private void writeNode(Writer writer, Random random, int first, int count, String country, String lineage,
+                           String[] countries, String[] lineages) throws IOException {
+        if (random.nextDouble() < 0.02) {
+            country = String.format("c%02d", random.nextInt(COUNTRY_COUNT));
+        }
+        if (random.nextDouble() < 0.01) {
+            lineage = lineage + "." + (random.nextInt(9) + 1);
+        }
+
+        if (count == 1) {
+            countries[first] = country;
+            lineages[first] = lineage;
+            writer.write(getTipName(first));
+            writer.write(":");
+            writer.write(random.nextDouble() < 0.3 ? "0.0" : formatLength(random, 0.0003));
+            return;
+        }
+
+        int split = 1 + random.nextInt(count - 1);
+        writer.write("(");
+        writeNode(writer, random, first, split, country, lineage, countries, lineages);
+        writer.write(",");
+        writeNode(writer, random, first + split, count - split, country, lineage, countries, lineages);
+        writer.write("):");
+        writer.write(formatLength(random, 0.0005));
+    }
+
+    private static String formatLength(Random random, double mean) {
+        return String.format("%.6f", -Math.log(1.0 - random.nextDouble()) * mean);
+    }
+
+    private static String getTipName(int index) {
+        return String.format("tip%07d", index);
+    }
+
+    /**
+     * @return the command line for each phase
+     */
+    private Map<String, String[]> getPhaseCommands() {
+        String tree = treeFile.toString();
+        String metadata = metadataFile.toString();
+        String output = outputPath.toString() + File.separator;
+
+        Map<String, String[]> commands = new LinkedHashMap<>();
+        commands.put("parse", new String[] { "convert", "-i", tree, "-f", "nexus", "-o", output + "parsed.nexus" });
+        commands.put("annotate", new String[] { "annotate", "-i", tree, "-m", metadata, "-c", "name",
+                "--tip-attributes", "country", "lineage", "-o", output + "annotated.nexus" });
+        commands.put("reconstruct", new String[] { "reconstruct", "-i", output + "annotated.nexus", "-a", "country",
+                "--out-attribute", "country", "--root-value", "c00", "--algorithm", "deltran",
+                "-o", output + "reconstructed.nexus" });
+        commands.put("cluster", new String[] { "cluster", "-i", output + "reconstructed.nexus", "-a", "country",
+                "--value", "c00", "--cluster-name", "cluster", "-o", output + "clustered.nexus" });
+        commands.put("context", new String[] { "context", "-i", output + "annotated.nexus", "--taxon-file", targetsFile.toString(),
+                "-m", metadata, "-c", "name", "--collapse-by", "country", "--max-parent", "2",
+                "-o", output + "context", "-p", "context_", "--writers", "1" });
+        commands.put("divide", new String[] { "divide", "-i", tree, "--max-count", "50",
+                "-o", output + "divide", "-p", "", "--writers", "1" });
+        commands.put("conquer", new String[] { "conquer", "-i", output + "divide", "-o", output + "conquered.nexus" });
+        return commands;
+    }
+
+    /**
+     * Runs each phase the given number of times
+     * @return the quickest time (in ms) and the least allocation (in bytes) for each phase
+     */
+    private Map<String, long[]> run() throws IOException {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        Map<String, long[]> results = new LinkedHashMap<>();
+        for (int repeat = 0; repeat < repeats; repeat++) {
+            deleteDirectory(outputPath);
+            Files.createDirectories(outputPath.resolve("context"));
+            Files.createDirectories(outputPath.resolve("divide"));
+
+            for (Map.Entry<String, String[]> phase : getPhaseCommands().entrySet()) {
+                List<String> args = new ArrayList<>(Arrays.asList(phase.getValue()));
+                args.addAll(Arrays.asList("--threads", "1"));
+
+                System.gc();
+                long allocated = threadBean.getThreadAllocatedBytes(threadId);
+                long startTime = System.nanoTime();
+
+                ClusterFunk.run(args.toArray(new String[0]));
+
+                long time = (System.nanoTime() - startTime) / 1000000;
+                allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+
+                System.out.println(String.format("  %-12s run %d: %6d ms %10.1f MB", phase.getKey(), repeat + 1, time, allocated / MB));
+
+                long[] result = results.get(phase.getKey());
+                if (result == null) {
+                    results.put(phase.getKey(), new long[] { time, allocated });
+                } else {
+                    result[0] = Math.min(result[0], time);
+                    result[1] = Math.min(result[1], allocated);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Compares the results with the baseline, printing a report
+     * @return the regressions (empty if there are none)
+     */
+    private List<String> compare(Map<String, long[]> results, Baseline baseline) {
+        List<String> regressions = new ArrayList<>();
+
+        System.out.println();
+        System.out.println(String.format("%-12s %10s %10s %8s %12s %12s %8s",
+                "phase", "time (ms)", "baseline", "change", "alloc (MB)", "baseline", "change"));
+        for (String phase : PHASES) {
+            long[] result = results.get(phase);
+            double[] expected = baseline.phases.get(phase);
+            if (expected == null) {
+                System.out.println(String.format("%-12s %10d %10s %8s %12.1f %12s %8s",
+                        phase, result[0], "-", "-", result[1] / MB, "-", "-"));
+                regressions.add(phase + ": not in baseline");
+                continue;
+            }
+
+            double timeChange = (result[0] - expected[0]) / expected[0];
+            double allocationChange = (result[1] / MB - expected[1]) / expected[1];
+            System.out.println(String.format("%-12s %10d %10.0f %+7.1f%% %12.1f %12.1f %+7.1f%%",
+                    phase, result[0], expected[0], timeChange * 100, result[1] / MB, expected[1], allocationChange * 100));
+
+            if (timeChange > baseline.timeTolerance && result[0] - expected[0] > baseline.timeSlack) {
+                regressions.add(String.format("%s: time %+.1f%% (%d ms against %.0f ms, tolerance %.0f%%)",
+                        phase, timeChange * 100, result[0], expected[0], baseline.timeTolerance * 100));
+            }
+            if (allocationChange > baseline.allocationTolerance) {
+                regressions.add(String.format("%s: allocation %+.1f%% (%.1f MB against %.1f MB, tolerance %.0f%%)",
+                        phase, allocationChange * 100, result[1] / MB, expected[1], baseline.allocationTolerance * 100));
+            }
+        }
+        System.out.println();
+
+        return regressions;
+    }
+
+    private void writeBaseline(Map<String, long[]> results, Baseline previous, String fileName) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(fileName))) {
+            writer.println("{");
+            writer.println("  \"tips\": " + tipCount + ",");
+            writer.println("  \"seed\": " + seed + ",");
+            writer.println("  \"time_tolerance\": " + previous.timeTolerance + ",");
+            writer.println("  \"time_slack_ms\": " + previous.timeSlack + ",");
+            writer.println("  \"alloc_tolerance\": " + previous.allocationTolerance + ",");
+            writer.println("  \"phases\": {");
+            int i = 0;
+            for (String phase : PHASES) {
+                long[] result = results.get(phase);
+                writer.print(String.format("    \"%s\": { \"time_ms\": %d, \"alloc_mb\": %.1f }", phase, result[0], result[1] / MB));
+                writer.println(++i < PHASES.length ? "," : "");
+            }
+            writer.println("  }");
+            writer.println("}");
+        }
+    }
+
+    private static void deleteDirectory(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            List<Path> list = new ArrayList<>();
+            paths.forEach(list::add);
+            Collections.reverse(list);
+            for (Path file : list) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * The stored results. The file is the simple JSON written by writeBaseline so is read with patterns
+     * rather than a JSON library.
+     */
+    private static final class Baseline {
+        static Baseline read(String fileName) throws IOException {
+            Baseline baseline = new Baseline();
+            if (!Files.exists(Paths.get(fileName))) {
+                return baseline;
+            }
+
+            String json = new String(Files.readAllBytes(Paths.get(fileName)), "UTF-8");
+            baseline.tipCount = (int) getNumber(json, "tips", 0);
+            baseline.seed = (long) getNumber(json, "seed", 0);
+            baseline.timeTolerance = getNumber(json, "time_tolerance", DEFAULT_TIME_TOLERANCE);
+            baseline.timeSlack = (long) getNumber(json, "time_slack_ms", DEFAULT_TIME_SLACK);
+            baseline.allocationTolerance = getNumber(json, "alloc_tolerance", DEFAULT_ALLOCATION_TOLERANCE);
+
+            Matcher matcher = Pattern.compile(
+                    "\"(\\w+)\"\\s*:\\s*\\{\\s*\"time_ms\"\\s*:\\s*([0-9.]+)\\s*,\\s*\"alloc_mb\"\\s*:\\s*([0-9.]+)\\s*}")
+                    .matcher(json);
+            while (matcher.find()) {
+                baseline.phases.put(matcher.group(1),
+                        new double[] { Double.parseDouble(matcher.group(2)), Double.parseDouble(matcher.group(3)) });
+            }
+            return baseline;
+        }
+
+        private static double getNumber(String json, String key, double defaultValue) {
+            Matcher matcher = Pattern.compile("\"" + key + "\"\\s*:\\s*([0-9.]+)").matcher(json);
+            return matcher.find() ? Double.parseDouble(matcher.group(1)) : defaultValue;
+        }
+
+        int tipCount = 0;
+        long seed = 0;
+        double timeTolerance = DEFAULT_TIME_TOLERANCE;
+        long timeSlack = DEFAULT_TIME_SLACK;
+        double allocationTolerance = DEFAULT_ALLOCATION_TOLERANCE;
+        final Map<String, double[]> phases = new HashMap<>();
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder().longOpt("baseline").argName("file").hasArg().required()
+                .desc("the baseline results (JSON)").build());
+        options.addOption(Option.builder().longOpt("work-dir").argName("path").hasArg().required()
+                .desc("directory for the synthetic inputs and the outputs").build());
+        options.addOption(Option.builder().longOpt("tips").argName("count").hasArg()
+                .desc("number of tips in the synthetic tree (default = the baseline's or " + DEFAULT_TIP_COUNT + ")").build());
+        options.addOption(Option.builder().longOpt("seed").argName("seed").hasArg()
+                .desc("random seed for the synthetic inputs (default = the baseline's or 1)").build());
+        options.addOption(Option.builder().longOpt("repeats").argName("count").hasArg()
+                .desc("number of times to run each phase (default = " + DEFAULT_REPEATS + ")").build());
+        options.addOption(Option.builder().longOpt("update")
+                .desc("write the results as the new baseline rather than comparing").build());
+
+        CommandLine commandLine = null;
+        try {
+            commandLine = new DefaultParser().parse(options, args);
+        } catch (ParseException pe) {
+            System.out.println(pe.getMessage());
+            new HelpFormatter().printHelp("Benchmark", options, true);
+            System.exit(1);
+        }
+
+        String baselineFileName = commandLine.getOptionValue("baseline");
+        boolean update = commandLine.hasOption("update");
+
+        try {
+            Baseline baseline = Baseline.read(baselineFileName);
+            if (!update && baseline.phases.isEmpty()) {
+                System.err.println("No baseline results in: " + baselineFileName + " (run with --update to create them)");
+                System.exit(1);
+            }
+
+            int tipCount = Integer.parseInt(commandLine.getOptionValue("tips",
+                    Integer.toString(baseline.tipCount > 0 ? baseline.tipCount : DEFAULT_TIP_COUNT)));
+            long seed = Long.parseLong(commandLine.getOptionValue("seed",
+                    Long.toString(baseline.seed > 0 ? baseline.seed : 1)));
+            int repeats = Integer.parseInt(commandLine.getOptionValue("repeats", Integer.toString(DEFAULT_REPEATS)));
+
+            if (!update && (tipCount != baseline.tipCount || seed != baseline.seed)) {
+                System.err.println("The baseline was made with " + baseline.tipCount + " tips and seed " + baseline.seed +
+                        " (run with --update to replace it)");
+                System.exit(1);
+            }
+
+            Benchmark benchmark = new Benchmark(tipCount, seed, repeats, Paths.get(commandLine.getOptionValue("work-dir")));
+            benchmark.createInputs();
+            Map<String, long[]> results = benchmark.run();
+
+            if (update) {
+                benchmark.writeBaseline(results, baseline, baselineFileName);
+                System.out.println("Baseline written to: " + baselineFileName);
+                return;
+            }
+
+            List<String> regressions = benchmark.compare(results, baseline);
+            if (!regressions.isEmpty()) {
+                System.out.println("Performance regressions:");
+                for (String regression : regressions) {
+                    System.out.println("  " + regression);
+                }
+                System.exit(1);
+            }
+            System.out.println("No performance regressions");
+        } catch (IOException ioe) {
+            System.err.println("Error running benchmark: " + ioe.getMessage());
+            System.exit(1);
+        } catch (NumberFormatException nfe) {
+            System.err.println("Bad number: " + nfe.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private final int tipCount;
+    private final long seed;
+    private final int repeats;
+    private final Path workPath;
+    private final Path treeFile;
+    private final Path metadataFile;
+    private final Path targetsFile;
+    private final Path outputPath;
+}
@@ -4,6 +4,7 @@ import network.artic.clusterfunk.ClusterFunkOptions.Command;
 import network.artic.clusterfunk.commands.*;
 import org.apache.commons.cli.*;
 
+import java.io.IOException;
 import java.util.Arrays;
 
 import static network.artic.clusterfunk.ClusterFunkOptions.*;
@@ -44,7 +45,333 @@ class ClusterFunk {
 
     }
 
+    /**
+     * Adds the general options and the options for a command
+     * @param command
+     * @param options
+     */
+    static void addCommandOptions(Command command, Options options) {
+        // some options are shared but only required by some commands so reset them in case another
+        // command has been set up before in this process (i.e., by watch)
+        METADATA.setRequired(true);
+        OUTPUT_FILE.setRequired(true);
+        BRANCH_THRESHOLD.setRequired(true);
+        CACHE_DIR.setRequired(false);
+        ARCHIVE.setRequired(false);
+
+        options.addOption("v","verbose", false, "write analysis details to console");
+        options.addOption(OFF_HEAP);
+        options.addOption(SCRATCH_DIR);
+        options.addOption(THREADS);
+        options.addOption(CACHE_DIR);
+        options.addOption(CACHE_SIZE);
+        options.addOption(DRY_RUN);
+        options.addOption(PROGRESS);
+
+        switch (command) {
+            case ANNOTATE:
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(METADATA);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                options.addOption(LABEL_FIELDS);
+                options.addOption(TIP_ATTRIBUTES);
+                options.addOption(REPLACE);
+                options.addOption(IGNORE_MISSING);
+                break;
+            case ASSIGN:
+                options.addOption(INPUT);
+                options.addOption(METADATA);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(OUTPUT_METADATA);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                options.addOption(ATTRIBUTE);
+                options.addOption(OUT_ATTRIBUTE);
+                break;
+            case CACHE:
+                CACHE_DIR.setRequired(true);
+                options.addOption(CLEAR);
+                options.addOption(PRUNE);
+                break;
+            case CLUSTER:
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(OUTPUT_METADATA);
+                options.addOption(ATTRIBUTE);
+                options.addOption(VALUE);
+                options.addOption(CLUSTER_NAME);
+                options.addOption(CLUSTER_PREFIX);
+                options.addOption(BURNIN);
+                options.addOption(THIN);
+                options.addOption(TREE_NAMES);
+                options.addOption(CHECKPOINT);
+                options.addOption(RESUME);
+                options.addOption(SHARD);
+                break;
+            case COLLAPSE:
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(BRANCH_THRESHOLD);
+                break;
+            case CONQUER:
+                options.addOption(INPUT_PATH);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                break;
+            case CONTEXT:
+                options.addOption(INPUT);
+                options.addOption(TAXON_FILE);
+                options.addOption(TAXA);
+                METADATA.setRequired(false);
+                options.addOption(METADATA);
+                options.addOption(OUTPUT_PATH);
+                options.addOption(OUTPUT_PREFIX);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(OUTPUT_TAXA);
+                options.addOption(ARCHIVE);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                options.addOption(MRCA);
+                options.addOption(MAX_PARENT_LEVEL);
+                options.addOption(MAX_CHILD_LEVEL);
+                options.addOption(MAX_SIBLING);
+                options.addOption(COLLAPSE_BY);
+                options.addOption(IGNORE_MISSING);
+                options.addOption(SUCCINCT);
+                options.addOption(SNP_LENGTHS);
+                options.addOption(WRITERS);
+                options.addOption(MEMORY_BUDGET);
+                break;
+            case CONVERT:
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                break;
+            case DIFF:
+                options.addOption(INPUT);
+                options.addOption(REFERENCE);
+                OUTPUT_FILE.setRequired(false);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(OUTPUT_REPORT);
+                break;
+            case DIVIDE:
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_PATH);
+                options.addOption(OUTPUT_PREFIX);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(ARCHIVE);
+                OptionGroup divideGroup = new OptionGroup();
+                divideGroup.addOption(MAX_SUBTREE_COUNT);
+                divideGroup.addOption(MIN_SUBTREE_SIZE);
+                options.addOptionGroup(divideGroup);
+                options.addOption(REQUIRE_OUTGROUP);
+                options.addOption(WRITERS);
+                break;
+            case GATHER:
+                options.addOption(INPUT_FILES);
+                options.addOption(OUTPUT_FILE);
+                break;
+            case EXTRACT:
+                options.addOption(INPUT);
+                options.addOption(TAXON_FILE);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                options.addOption(TIP_ATTRIBUTES);
+                options.addOption(IGNORE_MISSING);
+                options.addOption(SUCCINCT);
+                break;
+            case INSERT:
+                options.addOption(INPUT);
+                options.addOption(METADATA);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                options.addOption(DESTINATION_COLUMN);
+                options.addOption(UNIQUE_ONLY);
+                options.addOption(IGNORE_MISSING);
+                break;
+            case MERGE:
+                options.addOption(INPUT);
+                options.addOption(METADATA);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(ADD_COLUMNS);
+                options.addOption(EXTRACT);
+                options.addOption(OVERWRITE);
+                break;
+            case PRUNE:
+                options.addOption(INPUT);
+                options.addOption(TAXON_FILE);
+                options.addOption(TAXA);
+                METADATA.setRequired(false);
+                options.addOption(METADATA);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(OUTPUT_METADATA);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                options.addOption(KEEP_TAXA);
+                options.addOption(IGNORE_MISSING);
+                break;
+            case RECONSTRUCT:
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(ATTRIBUTE);
+                options.addOption(OUT_ATTRIBUTE);
+                options.addOption(ROOT_VALUE);
+                options.addOption(ALGORITHM);
+                break;
+            case REORDER:
+                options.addOption(INPUT);
+                METADATA.setRequired(false);
+                options.addOption(METADATA);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                OptionGroup orderGroup = new OptionGroup();
+                orderGroup.addOption(INCREASING);
+                orderGroup.addOption(DECREASING);
+                orderGroup.addOption(SORT_COLUMNS);
+                options.addOptionGroup(orderGroup);
+                break;
+            case REROOT:
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                OptionGroup orderGroup2= new OptionGroup();
+                orderGroup2.addOption(OUTGROUPS);
+                orderGroup2.addOption(MIDPOINT);
+                options.addOption(ROOT_LOCATION);
+                options.addOptionGroup(orderGroup2);
+                break;
+            case SAMPLE:
+                options.addOption(INPUT);
+                options.addOption(METADATA);
+                options.addOption(TAXA);
+                options.addOption(OUTPUT_PATH);
+                options.addOption(OUTPUT_PREFIX);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                options.addOption(COLLAPSE_BY);
+                options.addOption(CLUMP_BY);
+                options.addOption(MIN_COLLAPSED_SIZE);
+                options.addOption(MIN_CLUMPED_SIZE);
+                options.addOption(MAX_SOFT);
+                options.addOption(ID_REGISTRY);
+                options.addOption(IGNORE_MISSING);
+                options.addOption(SNP_LENGTHS);
+                if (command == Command.SAMPLE) {
+                    options.addOption(ID_WIDTH);
+                }
+                break;
+            case SCALE:
+                BRANCH_THRESHOLD.setRequired(false);
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                OptionGroup scaleGroup = new OptionGroup();
+                scaleGroup.addOption(SCALE_FACTOR);
+                scaleGroup.addOption(ROOT_HEIGHT);
+                options.addOptionGroup(scaleGroup);
+                options.addOption(BRANCH_THRESHOLD);
+                break;
+            case SPLIT:
+                options.addOption(INPUT);
+                METADATA.setRequired(false);
+                options.addOption(METADATA);
+                options.addOption(OUTPUT_PATH);
+                options.addOption(OUTPUT_PREFIX);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(OUTPUT_METADATA);
+                options.addOption(ARCHIVE);
+                options.addOption(ATTRIBUTE);
+                options.addOption(WRITERS);
+                break;
+            case STATISTICS:
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(STATISTICS);
+                options.addOption(BURNIN);
+                options.addOption(THIN);
+                options.addOption(TREE_NAMES);
+                options.addOption(SUCCINCT);
+                break;
+            case SUBCLUSTER:
+                options.addOption(INPUT);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(OUTPUT_FORMAT);
+                options.addOption(OUTPUT_METADATA);
+                options.addOption(ATTRIBUTE);
+                options.addOption(CLUSTER_PREFIX);
+                options.addOption(MIN_CLUSTER_SIZE);
+                break;
+            case TMRCA:
+                options.addOption(INPUT);
+                options.addOption(TAXON_FILE);
+                options.addOption(OUTPUT_FILE);
+                options.addOption(INDEX_COLUMN);
+                options.addOption(INDEX_FIELD);
+                options.addOption(HEADER_DELIMITER);
+                options.addOption(STEM);
+                options.addOption(BURNIN);
+                options.addOption(THIN);
+                options.addOption(TREE_NAMES);
+                options.addOption(CHECKPOINT);
+                options.addOption(RESUME);
+                options.addOption(SHARD);
+                break;
+            case UNPACK:
+                ARCHIVE.setRequired(true);
+                options.addOption(ARCHIVE);
+                options.addOption(ENTRIES);
+                options.addOption(LIST);
+                options.addOption(OUTPUT_PATH);
+                break;
+            case WATCH:
+                options.addOption(JOBS);
+                options.addOption(ONCE);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown enum value, " + command);
+        }
+    }
+
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (CommandFailedException cfe) {
+            System.exit(cfe.getStatus());
+        }
+    }
+
+    /**
+     * Parses the command line and runs the command
+     * @param args
+     */
+    static void run(String[] args) {
+        Settings settings = new Settings();
 
         Command command = Command.NONE;
 
@@ -60,237 +387,7 @@ class ClusterFunk {
             try {
                 command = Command.getCommand(args[0]);
 
-                options.addOption("v","verbose", false, "write analysis details to console");
-
-                switch (command) {
-                    case ANNOTATE:
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(METADATA);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        options.addOption(LABEL_FIELDS);
-                        options.addOption(TIP_ATTRIBUTES);
-                        options.addOption(REPLACE);
-                        options.addOption(IGNORE_MISSING);
-                        break;
-                    case ASSIGN:
-                        options.addOption(INPUT);
-                        options.addOption(METADATA);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(OUTPUT_METADATA);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        options.addOption(ATTRIBUTE);
-                        options.addOption(OUT_ATTRIBUTE);
-                        break;
-                    case CLUSTER:
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(OUTPUT_METADATA);
-                        options.addOption(ATTRIBUTE);
-                        options.addOption(VALUE);
-                        options.addOption(CLUSTER_NAME);
-                        options.addOption(CLUSTER_PREFIX);
-                        break;
-                    case COLLAPSE:
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(BRANCH_THRESHOLD);
-                        break;
-                    case CONQUER:
-                        options.addOption(INPUT_PATH);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        break;
-                    case CONTEXT:
-                        options.addOption(INPUT);
-                        options.addOption(TAXON_FILE);
-                        options.addOption(TAXA);
-                        METADATA.setRequired(false);
-                        options.addOption(METADATA);
-                        options.addOption(OUTPUT_PATH);
-                        options.addOption(OUTPUT_PREFIX);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(OUTPUT_TAXA);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        options.addOption(MRCA);
-                        options.addOption(MAX_PARENT_LEVEL);
-                        options.addOption(MAX_CHILD_LEVEL);
-                        options.addOption(MAX_SIBLING);
-                        options.addOption(COLLAPSE_BY);
-                        options.addOption(IGNORE_MISSING);
-                        break;
-                    case CONVERT:
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        break;
-                    case DIVIDE:
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_PATH);
-                        options.addOption(OUTPUT_PREFIX);
-                        options.addOption(OUTPUT_FORMAT);
-                        OptionGroup divideGroup = new OptionGroup();
-                        divideGroup.addOption(MAX_SUBTREE_COUNT);
-                        divideGroup.addOption(MIN_SUBTREE_SIZE);
-                        options.addOptionGroup(divideGroup);
-                        options.addOption(REQUIRE_OUTGROUP);
-                        break;
-                    case EXTRACT:
-                        options.addOption(INPUT);
-                        options.addOption(TAXON_FILE);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        options.addOption(TIP_ATTRIBUTES);
-                        options.addOption(IGNORE_MISSING);
-                        break;
-                    case INSERT:
-                        options.addOption(INPUT);
-                        options.addOption(METADATA);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        options.addOption(DESTINATION_COLUMN);
-                        options.addOption(UNIQUE_ONLY);
-                        options.addOption(IGNORE_MISSING);
-                        break;
-                    case MERGE:
-                        options.addOption(INPUT);
-                        options.addOption(METADATA);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(ADD_COLUMNS);
-                        options.addOption(EXTRACT);
-                        options.addOption(OVERWRITE);
-                        break;
-                    case PRUNE:
-                        options.addOption(INPUT);
-                        options.addOption(TAXON_FILE);
-                        options.addOption(TAXA);
-                        METADATA.setRequired(false);
-                        options.addOption(METADATA);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(OUTPUT_METADATA);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        options.addOption(KEEP_TAXA);
-                        options.addOption(IGNORE_MISSING);
-                        break;
-                    case RECONSTRUCT:
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(ATTRIBUTE);
-                        options.addOption(OUT_ATTRIBUTE);
-                        options.addOption(ROOT_VALUE);
-                        options.addOption(ALGORITHM);
-                        break;
-                    case REORDER:
-                        options.addOption(INPUT);
-                        METADATA.setRequired(false);
-                        options.addOption(METADATA);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        OptionGroup orderGroup = new OptionGroup();
-                        orderGroup.addOption(INCREASING);
-                        orderGroup.addOption(DECREASING);
-                        orderGroup.addOption(SORT_COLUMNS);
-                        options.addOptionGroup(orderGroup);
-                        break;
-                    case REROOT:
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        OptionGroup orderGroup2= new OptionGroup();
-                        orderGroup2.addOption(OUTGROUPS);
-                        orderGroup2.addOption(MIDPOINT);
-                        options.addOption(ROOT_LOCATION);
-                        options.addOptionGroup(orderGroup2);
-                        break;
-                    case SAMPLE:
-                        options.addOption(INPUT);
-                        options.addOption(METADATA);
-                        options.addOption(TAXA);
-                        options.addOption(OUTPUT_PATH);
-                        options.addOption(OUTPUT_PREFIX);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        options.addOption(COLLAPSE_BY);
-                        options.addOption(CLUMP_BY);
-                        options.addOption(MIN_COLLAPSED_SIZE);
-                        options.addOption(MIN_CLUMPED_SIZE);
-                        options.addOption(MAX_SOFT);
-                        options.addOption(IGNORE_MISSING);
-                        break;
-                    case SCALE:
-                        BRANCH_THRESHOLD.setRequired(false);
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        OptionGroup scaleGroup = new OptionGroup();
-                        scaleGroup.addOption(SCALE_FACTOR);
-                        scaleGroup.addOption(ROOT_HEIGHT);
-                        options.addOptionGroup(scaleGroup);
-                        options.addOption(BRANCH_THRESHOLD);
-                        break;
-                    case SPLIT:
-                        options.addOption(INPUT);
-                        METADATA.setRequired(false);
-                        options.addOption(METADATA);
-                        options.addOption(OUTPUT_PATH);
-                        options.addOption(OUTPUT_PREFIX);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(OUTPUT_METADATA);
-                        options.addOption(ATTRIBUTE);
-                        break;
-                    case STATISTICS:
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(STATISTICS);
-                        break;
-                    case SUBCLUSTER:
-                        options.addOption(INPUT);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(OUTPUT_FORMAT);
-                        options.addOption(OUTPUT_METADATA);
-                        options.addOption(ATTRIBUTE);
-                        options.addOption(CLUSTER_PREFIX);
-                        options.addOption(MIN_CLUSTER_SIZE);
-                        break;
-                    case TMRCA:
-                        options.addOption(INPUT);
-                        options.addOption(TAXON_FILE);
-                        options.addOption(OUTPUT_FILE);
-                        options.addOption(INDEX_COLUMN);
-                        options.addOption(INDEX_FIELD);
-                        options.addOption(HEADER_DELIMITER);
-                        options.addOption(STEM);
-                        break;
-                    default:
-                        throw new IllegalArgumentException("Unknown enum value, " + command);
-                }
+                addCommandOptions(command, options);
 
                 commandLine = parser.parse( options, Arrays.copyOfRange(args, 1, args.length));
 
@@ -344,10 +441,138 @@ class ClusterFunk {
             }
         }
 
+        if (commandLine.hasOption("off-heap")) {
+            settings.setTreeStorage(StorageType.OFF_HEAP, commandLine.getOptionValue("scratch-dir", null));
+        }
+        if (commandLine.hasOption("succinct")) {
+            if (commandLine.hasOption("off-heap")) {
+                System.out.println("Bad storage: --succinct and --off-heap can't be used together\n");
+                printHelp(command, options);
+                return;
+            }
+            settings.setTreeStorage(StorageType.SUCCINCT, null);
+        }
+        if (commandLine.hasOption("snp-lengths")) {
+            try {
+                settings.setGenomeLength(Integer.parseInt(commandLine.getOptionValue("snp-lengths", "" + Settings.DEFAULT_GENOME_LENGTH)));
+            } catch (IllegalArgumentException iae) {
+                System.out.println("Bad genome length: " + commandLine.getOptionValue("snp-lengths") + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+        if (commandLine.hasOption("cache-dir")) {
+            settings.setCachePath(commandLine.getOptionValue("cache-dir"));
+        }
+        long cacheSize = Settings.DEFAULT_CACHE_SIZE;
+        if (commandLine.hasOption("cache-size")) {
+            try {
+                cacheSize = Long.parseLong(commandLine.getOptionValue("cache-size")) * 1024 * 1024;
+                settings.setCacheSize(cacheSize);
+            } catch (NumberFormatException nfe) {
+                System.out.println("Bad cache size: " + commandLine.getOptionValue("cache-size") + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+        if (commandLine.hasOption("memory-budget")) {
+            try {
+                long memoryBudget = (long)(Double.parseDouble(commandLine.getOptionValue("memory-budget")) * 1024 * 1024);
+                settings.setMemoryBudget(memoryBudget, commandLine.getOptionValue("scratch-dir", null));
+            } catch (NumberFormatException nfe) {
+                System.out.println("Bad memory budget: " + commandLine.getOptionValue("memory-budget") + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+        if (commandLine.hasOption("id-width")) {
+            try {
+                settings.setIdWidth(Integer.parseInt(commandLine.getOptionValue("id-width")));
+            } catch (IllegalArgumentException iae) {
+                System.out.println("Bad code width: " + iae.getMessage() + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+        if (commandLine.hasOption("burnin") || commandLine.hasOption("thin") || commandLine.hasOption("tree-names")) {
+            try {
+                settings.setTreeSelection(
+                        Integer.parseInt(commandLine.getOptionValue("burnin", "0")),
+                        Integer.parseInt(commandLine.getOptionValue("thin", "1")),
+                        commandLine.hasOption("tree-names") ? Arrays.asList(commandLine.getOptionValues("tree-names")) : null);
+            } catch (IllegalArgumentException iae) {
+                System.out.println("Bad tree selection: " + iae.getMessage() + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+        if (commandLine.hasOption("checkpoint") || commandLine.hasOption("resume")) {
+            try {
+                int interval = Integer.parseInt(commandLine.getOptionValue("checkpoint", "" + Settings.DEFAULT_CHECKPOINT_INTERVAL));
+                settings.setCheckpoints(Math.max(interval, 1) * 1000L, commandLine.hasOption("resume"));
+            } catch (NumberFormatException nfe) {
+                System.out.println("Bad checkpoint interval: " + commandLine.getOptionValue("checkpoint") + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+        if (commandLine.hasOption("shard")) {
+            try {
+                String[] shard = commandLine.getOptionValue("shard").split("/");
+                if (shard.length != 2) {
+                    throw new IllegalArgumentException("Shard must be i/N");
+                }
+                settings.setShard(Integer.parseInt(shard[0].trim()), Integer.parseInt(shard[1].trim()));
+            } catch (IllegalArgumentException iae) {
+                System.out.println("Bad shard: " + commandLine.getOptionValue("shard") + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+        if (commandLine.hasOption("threads")) {
+            try {
+                settings.setThreads(Integer.parseInt(commandLine.getOptionValue("threads")));
+            } catch (NumberFormatException nfe) {
+                System.out.println("Bad thread count: " + commandLine.getOptionValue("threads") + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+
+        if (commandLine.hasOption("writers")) {
+            try {
+                settings.setWriters(Integer.parseInt(commandLine.getOptionValue("writers")));
+            } catch (NumberFormatException nfe) {
+                System.out.println("Bad writer count: " + commandLine.getOptionValue("writers") + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+
+        if (commandLine.hasOption("dry-run")) {
+            try {
+                MemoryEstimator.estimate(command, commandLine).print(System.out);
+            } catch (IOException ioe) {
+                System.out.println("Error reading input file: " + ioe.getMessage());
+            }
+            return;
+        }
+
         if (isVerbose) {
             System.out.println("Command: " + command);
         }
 
+        if (commandLine.hasOption("progress") && command != Command.WATCH) {
+            try {
+                int interval = Integer.parseInt(commandLine.getOptionValue("progress", "10"));
+                Progress.start(Math.max(interval, 1) * 1000L);
+            } catch (NumberFormatException nfe) {
+                System.out.println("Bad progress interval: " + commandLine.getOptionValue("progress") + "\n");
+                printHelp(command, options);
+                return;
+            }
+        }
+
         long startTime = System.currentTimeMillis();
 
         switch (command) {
@@ -364,6 +589,7 @@ class ClusterFunk {
                         commandLine.getOptionValues("tip-attributes"),
                         commandLine.hasOption("replace"),
                         commandLine.hasOption("ignore-missing"),
+                        settings,
                         isVerbose);
                 break;
             case ASSIGN:
@@ -380,6 +606,16 @@ class ClusterFunk {
                         commandLine.getOptionValue("out-attribute"),
                         true,
                         commandLine.hasOption("ignore-missing"),
+                        settings,
+                        isVerbose);
+                break;
+            case CACHE:
+                new Cache(
+                        commandLine.getOptionValue("cache-dir"),
+                        commandLine.hasOption("clear"),
+                        commandLine.hasOption("prune"),
+                        cacheSize,
+                        settings,
                         isVerbose);
                 break;
             case CLUSTER:
@@ -393,6 +629,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("cluster-name"),
                         commandLine.getOptionValue("cluster-prefix"),
                         0,
+                        settings,
                         isVerbose);
                 break;
             case COLLAPSE:
@@ -401,6 +638,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("output"),
                         format,
                         Double.parseDouble(commandLine.getOptionValue("threshold", "0.0")),
+                        settings,
                         isVerbose);
                 break;
             case CONTEXT:
@@ -413,6 +651,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("prefix"),
                         format,
                         commandLine.hasOption("output-taxa"),
+                        commandLine.getOptionValue("archive"),
                         commandLine.getOptionValue("id-column", null),
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
@@ -423,6 +662,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("collapse-by", null),
                         Integer.parseInt(commandLine.getOptionValue("tip-budget", "0")),
                         commandLine.hasOption("ignore-missing"),
+                        settings,
                         isVerbose);
                 break;
             case CONVERT:
@@ -436,6 +676,17 @@ class ClusterFunk {
                         null,
                         OrderType.UNCHANGED,
                         null,
+                        settings,
+                        isVerbose);
+                break;
+            case DIFF:
+                new Diff(
+                        commandLine.getOptionValue("input"),
+                        commandLine.getOptionValue("reference"),
+                        commandLine.getOptionValue("output"),
+                        format,
+                        commandLine.getOptionValue("report"),
+                        settings,
                         isVerbose);
                 break;
             case DIVIDE:
@@ -444,9 +695,11 @@ class ClusterFunk {
                         commandLine.getOptionValue("output"),
                         commandLine.getOptionValue("prefix"),
                         format,
+                        commandLine.getOptionValue("archive"),
                         Integer.parseInt(commandLine.getOptionValue("max-count", "0")),
                         Integer.parseInt(commandLine.getOptionValue("min-size", "0")),
                         commandLine.hasOption("require-outgroup"),
+                        settings,
                         isVerbose);
                 break;
             case CONQUER:
@@ -454,6 +707,14 @@ class ClusterFunk {
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("output"),
                         format,
+                        settings,
+                        isVerbose);
+                break;
+            case GATHER:
+                new Gather(
+                        commandLine.getOptionValues("input"),
+                        commandLine.getOptionValue("output"),
+                        settings,
                         isVerbose);
                 break;
             case EXTRACT:
@@ -468,6 +729,7 @@ class ClusterFunk {
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
                         commandLine.hasOption("ignore-missing"),
+                        settings,
                         isVerbose);
                 break;
             case INSERT:
@@ -482,6 +744,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
                         commandLine.hasOption("unique-only"),
                         commandLine.hasOption("ignore-missing"),
+                        settings,
                         isVerbose);
                 break;
             case MERGE:
@@ -493,6 +756,7 @@ class ClusterFunk {
                         commandLine.getOptionValues("columns"),
                         commandLine.hasOption("overwrite"),
                         commandLine.hasOption("extract"),
+                        settings,
                         isVerbose);
                 break;
             case PRUNE:
@@ -509,6 +773,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
                         commandLine.hasOption("keep-taxa"),
                         commandLine.hasOption("ignore-missing"),
+                        settings,
                         isVerbose);
                 break;
             case RECONSTRUCT:
@@ -520,6 +785,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("out-attribute"),
                         commandLine.getOptionValue("root-value"),
                         commandLine.getOptionValue("algorithm").startsWith("del"),
+                        settings,
                         isVerbose);
                 break;
             case REORDER:
@@ -536,6 +802,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
                         orderType,
                         commandLine.getOptionValues("sort-by"),
+                        settings,
                         isVerbose);
                 break;
             case REROOT:
@@ -550,6 +817,7 @@ class ClusterFunk {
                         rootType,
                         rootLocation,
                         commandLine.getOptionValues("outgroups"),
+                        settings,
                         isVerbose);
                 break;
             case SAMPLE:
@@ -571,7 +839,9 @@ class ClusterFunk {
                         Integer.parseInt(commandLine.getOptionValue("min-collapsed", "5")),
                         Integer.parseInt(commandLine.getOptionValue("min-clumped", "5")),
                         Integer.parseInt(commandLine.getOptionValue("max-soft", "100")),
+                        commandLine.getOptionValue("id-registry"),
                         commandLine.hasOption("ignore-missing"),
+                        settings,
                         isVerbose);
                 break;
             case SCALE:
@@ -588,6 +858,7 @@ class ClusterFunk {
                         Double.parseDouble(commandLine.getOptionValue("threshold", "-1.0")),
                         commandLine.hasOption("height"),
                         Double.parseDouble(commandLine.getOptionValue("height", "1.0")),
+                        settings,
                         isVerbose);
                 break;
             case SPLIT:
@@ -598,10 +869,12 @@ class ClusterFunk {
                         commandLine.getOptionValue("prefix"),
                         format,
                         commandLine.getOptionValue("output-metadata"),
+                        commandLine.getOptionValue("archive"),
                         commandLine.getOptionValue("id-column", null),
                         Integer.parseInt(commandLine.getOptionValue("id-field", "0")),
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
                         commandLine.getOptionValue("attribute"),
+                        settings,
                         isVerbose);
                 break;
             case STATISTICS:
@@ -609,6 +882,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("input"),
                         commandLine.getOptionValue("output"),
                         commandLine.getOptionValues("stats"),
+                        settings,
                         isVerbose);
                 break;
             case SUBCLUSTER:
@@ -620,6 +894,7 @@ class ClusterFunk {
                         commandLine.getOptionValue("cluster-prefix"),
                         commandLine.getOptionValue("attribute"),
                         Integer.parseInt(commandLine.getOptionValue("min-size", "10")),
+                        settings,
                         isVerbose);
                 break;
             case TMRCA:
@@ -633,12 +908,31 @@ class ClusterFunk {
                         commandLine.getOptionValue("field-delimeter", DEFAULT_DELIMITER),
                         commandLine.hasOption("stem"),
                         commandLine.hasOption("ignore-missing"),
+                        settings,
+                        isVerbose);
+                break;
+            case UNPACK:
+                new Unpack(
+                        commandLine.getOptionValue("archive"),
+                        commandLine.getOptionValues("entries"),
+                        commandLine.hasOption("list"),
+                        commandLine.getOptionValue("output"),
+                        settings,
                         isVerbose);
                 break;
+            case WATCH:
+                new Watch(
+                        commandLine.getOptionValue("jobs"),
+                        commandLine.getOptionValue("cache-dir"),
+                        commandLine.hasOption("once"),
+                        isVerbose).run();
+                break;
             default:
                 throw new IllegalArgumentException("Unknown enum value, " + command);
         }
 
+        Progress.stop();
+
         long timeTaken = (System.currentTimeMillis() - startTime) / 1000;
 
         if (isVerbose) {
@@ -14,6 +14,7 @@ class ClusterFunkOptions {
         NONE("", ""),
         ANNOTATE("annotate", "Annotate tips and nodes from a metadata table."),
         //ASSIGN("assign", "Clean and assign lineage annotations."),
+        CACHE("cache", "List, prune or clear the cache of parsed input files."),
         CLUSTER("cluster", "Label clusters by number based on node attributes."),
         COLLAPSE("collapse", "Collapse branch lengths below a threshold into polytomies."),
         EXTRACT("extract", "Extract tip annotations as a metadata csv."),
@@ -21,7 +22,9 @@ class ClusterFunkOptions {
         CONQUER("conquer", "Join up previously divided subtrees."),
         CONTEXT("context", "Extract trees of the neighbourhoods or contexts of a set of tips."),
         CONVERT("convert", "Convert tree from one format to another."),
+        DIFF("diff", "Compare a tree with a reference tree and report the differences."),
         DIVIDE("divide", "Divide tree into approximately equal sized subtrees."),
+        GATHER("gather", "Join the outputs of the shards of a run in order."),
         INSERT("insert", "Insert tips into the tree."),
         MERGE("merge", "Merge two metadata tables"),
         PRUNE("prune", "Prune out taxa from a list or based on metadata."),
@@ -32,7 +35,9 @@ class ClusterFunkOptions {
         SCALE("scale", "Scale all the branch lengths in a tree by a factor."),
         SPLIT("split", "Split out subtrees based on tip annotations."),
         STATISTICS("statistics", "Extract statistics and information from trees."),
-        TMRCA("tmrca", "Extract a TMRCA for a set of taxa from a list of trees.");
+        TMRCA("tmrca", "Extract a TMRCA for a set of taxa from a list of trees."),
+        UNPACK("unpack", "Extract files from an archive written with --archive."),
+        WATCH("watch", "Re-run a list of commands whenever their input files change.");
 
         Command(final String name, final String description) {
             this.name = name;
@@ -81,6 +86,22 @@ class ClusterFunkOptions {
             .desc("input path")
             .type(String.class).build();
 
+    final static Option INPUT_FILES = Option.builder("i")
+            .longOpt("input")
+            .argName("files")
+            .hasArgs()
+            .required(true)
+            .desc("input files (in order)")
+            .type(String.class).build();
+
+    final static Option REFERENCE = Option.builder()
+            .longOpt("reference")
+            .argName("file")
+            .hasArg()
+            .required(true)
+            .desc("reference tree file to compare against")
+            .type(String.class).build();
+
     final static Option METADATA = Option.builder("m")
             .longOpt("metadata")
             .argName("file")
@@ -163,10 +184,10 @@ class ClusterFunkOptions {
 
     final static Option OUTPUT_FORMAT = Option.builder("f")
             .longOpt("format")
-            .argName("nexus|newick")
+            .argName("nexus|newick|auspice")
             .hasArg()
             .required(false)
-            .desc("output file format (nexus or newick)")
+            .desc("output file format (nexus, newick or auspice)")
             .type(String.class).build();
 
     final static Option OUTPUT_METADATA = Option.builder("d")
@@ -177,12 +198,42 @@ class ClusterFunkOptions {
             .desc("output a metadata file to match the output tree")
             .type(String.class).build();
 
+    final static Option OUTPUT_REPORT = Option.builder()
+            .longOpt("report")
+            .argName("file")
+            .hasArg()
+            .required(false)
+            .desc("output a csv report of the differences")
+            .type(String.class).build();
+
     final static Option OUTPUT_TAXA = Option.builder()
             .longOpt("output-taxa")
             .required(false)
             .desc("output a text file of taxon names to match each output tree")
             .type(String.class).build();
 
+    final static Option ARCHIVE = Option.builder()
+            .longOpt("archive")
+            .argName("file")
+            .hasArg()
+            .required(false)
+            .desc("write the output files into a single zip archive rather than separately")
+            .type(String.class).build();
+
+    final static Option ENTRIES = Option.builder("e")
+            .longOpt("entries")
+            .argName("names")
+            .hasArgs()
+            .required(false)
+            .desc("the names of the files to extract from the archive (default all)")
+            .type(String.class).build();
+
+    final static Option LIST = Option.builder()
+            .longOpt("list")
+            .required(false)
+            .desc("list the files in the archive rather than extracting them")
+            .build();
+
     final static Option ATTRIBUTE = Option.builder("a")
             .longOpt("attribute")
             .argName("attribute_name")
@@ -445,6 +496,14 @@ class ClusterFunkOptions {
             .desc("a list of statistics to include in the output (see docs for details)")
             .type(String.class).build();
 
+    final static Option ID_REGISTRY = Option.builder()
+            .longOpt("id-registry")
+            .argName("file")
+            .hasArg()
+            .required(false)
+            .desc("a csv file of clade fingerprints and names to keep names stable across runs (created if missing)")
+            .type(String.class).build();
+
     final static Option IGNORE_MISSING = Option.builder()
             .longOpt("ignore-missing")
             .required(false)
@@ -483,5 +542,170 @@ class ClusterFunkOptions {
             .desc("minimum number of tips in a subcluster (default = 10)")
             .type(Integer.class).build();
 
+    final static Option OFF_HEAP = Option.builder()
+            .longOpt("off-heap")
+            .required(false)
+            .desc("store trees outside of the Java heap in memory mapped scratch files (default false)")
+            .type(String.class).build();
+
+    final static Option SUCCINCT = Option.builder()
+            .longOpt("succinct")
+            .required(false)
+            .desc("store the tree in a compact read-only form (balanced parentheses, quantized branch lengths and front-coded taxon names) for very large trees (default false)")
+            .type(String.class).build();
+
+    final static Option SCRATCH_DIR = Option.builder()
+            .longOpt("scratch-dir")
+            .argName("path")
+            .hasArg()
+            .required(false)
+            .desc("the directory for off-heap and spill scratch files (default = system temporary directory)")
+            .type(String.class).build();
+
+    final static Option SNP_LENGTHS = Option.builder()
+            .longOpt("snp-lengths")
+            .argName("genome_length")
+            .hasArg()
+            .optionalArg(true)
+            .required(false)
+            .desc("count branch lengths as whole numbers of substitutions for a genome of this length and treat branches with none as zero length (default = 29903)")
+            .type(Integer.class).build();
+
+    final static Option THREADS = Option.builder()
+            .longOpt("threads")
+            .argName("count")
+            .hasArg()
+            .required(false)
+            .desc("number of threads to use for large trees (default = 1)")
+            .type(Integer.class).build();
+
+    final static Option WRITERS = Option.builder()
+            .longOpt("writers")
+            .argName("count")
+            .hasArg()
+            .required(false)
+            .desc("number of output files to write at once (default = 4)")
+            .type(Integer.class).build();
+
+    final static Option CACHE_DIR = Option.builder()
+            .longOpt("cache-dir")
+            .argName("path")
+            .hasArg()
+            .required(false)
+            .desc("a directory to cache parsed input files in to speed up subsequent commands")
+            .type(String.class).build();
+
+    final static Option CACHE_SIZE = Option.builder()
+            .longOpt("cache-size")
+            .argName("megabytes")
+            .hasArg()
+            .required(false)
+            .desc("maximum size of the cache directory, least recently used files are removed (default = 8192)")
+            .type(Long.class).build();
+
+    final static Option MEMORY_BUDGET = Option.builder()
+            .longOpt("memory-budget")
+            .argName("megabytes")
+            .hasArg()
+            .required(false)
+            .desc("memory to use for the contents of collapsed nodes before spilling them to scratch files (default = no limit)")
+            .type(Double.class).build();
+
+    final static Option ID_WIDTH = Option.builder()
+            .longOpt("id-width")
+            .argName("digits")
+            .hasArg()
+            .required(false)
+            .desc("number of hex digits in the names of collapsed subtrees, increase for very large runs (default = 6)")
+            .type(Integer.class).build();
+
+    final static Option BURNIN = Option.builder()
+            .longOpt("burnin")
+            .argName("count")
+            .hasArg()
+            .required(false)
+            .desc("number of trees to skip at the start of a multi-tree file (default = 0)")
+            .type(Integer.class).build();
+
+    final static Option THIN = Option.builder()
+            .longOpt("thin")
+            .argName("n")
+            .hasArg()
+            .required(false)
+            .desc("use every nth tree of a multi-tree file after the burn-in (default = 1)")
+            .type(Integer.class).build();
+
+    final static Option TREE_NAMES = Option.builder()
+            .longOpt("tree-names")
+            .argName("names")
+            .hasArgs()
+            .required(false)
+            .desc("use only the named trees of a NEXUS file")
+            .type(String.class).build();
+
+    final static Option DRY_RUN = Option.builder()
+            .longOpt("dry-run")
+            .required(false)
+            .desc("print an estimate of the memory the command needs and the Java options to use, without running it")
+            .build();
+
+    final static Option PROGRESS = Option.builder()
+            .longOpt("progress")
+            .argName("secs")
+            .hasArg()
+            .optionalArg(true)
+            .required(false)
+            .desc("report progress and throughput to stderr every few seconds (default = 10)")
+            .type(Integer.class).build();
+
+    final static Option CHECKPOINT = Option.builder()
+            .longOpt("checkpoint")
+            .argName("secs")
+            .hasArg()
+            .optionalArg(true)
+            .required(false)
+            .desc("write a checkpoint every few seconds to resume from if the run stops (default = 60)")
+            .type(Integer.class).build();
+
+    final static Option RESUME = Option.builder()
+            .longOpt("resume")
+            .required(false)
+            .desc("resume from the last checkpoint, if there is one, and append to the outputs (default false)")
+            .build();
+
+    final static Option SHARD = Option.builder()
+            .longOpt("shard")
+            .argName("i/N")
+            .hasArg()
+            .required(false)
+            .desc("divide the trees into N contiguous blocks and process only the i-th (from 1)")
+            .type(String.class).build();
+
+    final static Option JOBS = Option.builder()
+            .longOpt("jobs")
+            .argName("file")
+            .hasArg()
+            .required(true)
+            .desc("a file of commands to run, one per line, as they would be given to jclusterfunk")
+            .type(String.class).build();
+
+    final static Option ONCE = Option.builder()
+            .longOpt("once")
+            .required(false)
+            .desc("run the commands once and exit rather than watching their inputs (default false)")
+            .build();
+
+    final static Option CLEAR = Option.builder()
+            .longOpt("clear")
+            .required(false)
+            .desc("remove all the files in the cache (default false)")
+            .type(String.class).build();
+
+    final static Option PRUNE = Option.builder()
+            .longOpt("prune")
+            .required(false)
+            .desc("remove the least recently used files to bring the cache within the maximum size (default false)")
+            .type(String.class).build();
+
 }
 
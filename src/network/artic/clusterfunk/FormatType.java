@@ -2,5 +2,6 @@ package network.artic.clusterfunk;
 
 public enum FormatType {
     NEXUS,
-    NEWICK
+    NEWICK,
+    AUSPICE
 }
@@ -0,0 +1,635 @@
+package network.artic.clusterfunk;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.io.ImportException;
+import jebl.evolution.io.NewickImporter;
+import jebl.evolution.io.NexusImporter;
+import jebl.evolution.io.TreeImporter;
+import jebl.evolution.trees.RootedTree;
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Runs each case of the golden corpus (a command line on the small inputs in golden/inputs) and compares the
+ * files it writes with the stored golden outputs. The comparison is semantic so a faster implementation that
+ * writes the same trees and tables differently still passes:
+ *
+ * Tree files are compared by topology (each node is identified by the set of tips below it so the order of
+ * children doesn't matter), branch lengths and node attributes, with numbers equal to within a relative
+ * tolerance. Tables and other text files are compared by header and then by rows in any order, again with
+ * numbers to within the tolerance. A case marked --ordered-rows in the cases file has its rows compared in
+ * order instead (for commands whose row order is meant to be stable). The entries of zip archives are
+ * compared in the same way. Checkpoint files are not compared as they hold absolute paths and times.
+ *
+ * A case marked --same-as with the name of an earlier case is compared with that case's golden outputs
+ * rather than having its own. These are the same command run with options that should only change how it is
+ * run (e.g., --off-heap, --threads or a cache directory). Paths in what a command prints are written back
+ * as the placeholders of the cases file so the printed output is the same on any machine.
+ *
+ * Each case is run in its own JVM so a command that exits is reported as a failed case. This is the ant golden
+ * target; with --update it stores the outputs as the new golden outputs instead.
+ */
+public final class GoldenCorpus {
+    private final static double TOLERANCE = 1E-6;
+    private final static int MAX_DIFFERENCES = 5;
+    private final static String STDOUT_FILE_NAME = "stdout.txt";
+    private final static String ORDERED_ROWS = "--ordered-rows";
+    private final static String SAME_AS = "--same-as";
+    private final static String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final static Set<String> TREE_EXTENSIONS = new HashSet<>(Arrays.asList("nexus", "nex", "nwk", "newick", "tree", "tre"));
+
+    private GoldenCorpus(Path corpusPath, Path workPath) {
+        this.inputPath = corpusPath.resolve("inputs");
+        this.expectedPath = corpusPath.resolve("expected");
+        this.casesFile = corpusPath.resolve("cases.txt");
+        this.workPath = workPath;
+        this.scratchPath = workPath.resolve(".scratch");
+    }
+
+    /**
+     * Reads the cases file - one case per line, its name, optionally --ordered-rows and --same-as with the name
+     * of an earlier case, then the command line. In the command line {in} is the inputs directory, {out} the
+     * case's output directory, {out:name} that of an earlier case, {scratch} a directory that is emptied at the
+     * start of each run of the corpus (e.g., for a cache directory shared by cases) and {file:name} a copy of
+     * the input file name with these placeholders in it expanded (e.g., a jobs file for watch).
+     */
+    private Map<String, String> readCases() throws IOException {
+        Map<String, String> cases = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(casesFile)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                throw new IOException("Bad case: " + line);
+            }
+            String name = line.substring(0, space);
+            String commandLine = line.substring(space + 1).trim();
+            while (true) {
+                if (commandLine.startsWith(ORDERED_ROWS + " ")) {
+                    orderedCases.add(name);
+                    commandLine = commandLine.substring(ORDERED_ROWS.length()).trim();
+                } else if (commandLine.startsWith(SAME_AS + " ")) {
+                    commandLine = commandLine.substring(SAME_AS.length()).trim();
+                    space = commandLine.indexOf(' ');
+                    if (space < 0 || !cases.containsKey(commandLine.substring(0, space))) {
+                        throw new IOException("Bad case, the --same-as case must be an earlier one: " + line);
+                    }
+                    sameAsCases.put(name, commandLine.substring(0, space));
+                    commandLine = commandLine.substring(space + 1).trim();
+                } else {
+                    break;
+                }
+            }
+            cases.put(name, commandLine);
+        }
+        return cases;
+    }
+
+    /**
+     * Runs a case in a new JVM
+     * @return the error output if the command failed, otherwise null
+     */
+    private String runCase(String name, String commandLine) throws IOException, InterruptedException {
+        Path outputPath = workPath.resolve(name);
+        deleteDirectory(outputPath);
+        Files.createDirectories(outputPath);
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ClusterFunk.class.getName());
+        for (String arg : splitArguments(commandLine)) {
+            command.add(expand(arg, outputPath));
+        }
+
+        // what the command prints (e.g., statistics) is one of its outputs
+        Path stdoutFile = outputPath.resolve(STDOUT_FILE_NAME);
+        Path logFile = workPath.resolve(name + ".log");
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(stdoutFile.toFile())
+                .redirectError(logFile.toFile()).start();
+        int status = process.waitFor();
+        if (Files.size(stdoutFile) == 0) {
+            Files.delete(stdoutFile);
+        } else {
+            String text = new String(Files.readAllBytes(stdoutFile), StandardCharsets.UTF_8);
+            Files.write(stdoutFile, replacePaths(text, outputPath).getBytes(StandardCharsets.UTF_8));
+        }
+        if (status == 0 && Files.exists(stdoutFile) && new String(Files.readAllBytes(stdoutFile)).contains("usage: ")) {
+            // bad arguments print the usage but don't set the exit status
+            return "bad arguments: " + Files.readAllLines(stdoutFile).get(0);
+        }
+        if (status != 0) {
+            List<String> log = Files.readAllLines(logFile);
+            if (log.isEmpty() && Files.exists(stdoutFile)) {
+                log = Files.readAllLines(stdoutFile);
+            }
+            return "exit status " + status + ": " + String.join(" / ", log.subList(Math.max(log.size() - 3, 0), log.size()));
+        }
+        return null;
+    }
+
+    private String expand(String arg, Path outputPath) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        int open;
+        while ((open = arg.indexOf('{', start)) >= 0) {
+            int close = arg.indexOf('}', open);
+            if (close < 0) {
+                break;
+            }
+            String key = arg.substring(open + 1, close);
+            sb.append(arg, start, open);
+            if (key.equals("in")) {
+                sb.append(inputPath);
+            } else if (key.equals("out")) {
+                sb.append(outputPath);
+            } else if (key.startsWith("out:")) {
+                sb.append(workPath.resolve(key.substring(4)));
+            } else if (key.equals("scratch")) {
+                sb.append(scratchPath);
+            } else if (key.startsWith("file:")) {
+                sb.append(expandFile(key.substring(5), outputPath));
+            } else {
+                sb.append(arg, open, close + 1);
+            }
+            start = close + 1;
+        }
+        return sb.append(arg.substring(start)).toString();
+    }
+
+    /**
+     * Writes a copy of an input file with the placeholders in it expanded
+     * @return the copy (in the work directory)
+     */
+    private Path expandFile(String fileName, Path outputPath) throws IOException {
+        Path file = workPath.resolve(outputPath.getFileName() + "-" + fileName);
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(inputPath.resolve(fileName))) {
+            lines.add(expand(line, outputPath));
+        }
+        Files.write(file, lines);
+        return file;
+    }
+
+    /**
+     * Replaces the paths of the directories given in place of the placeholders with the placeholders
+     */
+    private String replacePaths(String text, Path outputPath) {
+        text = text.replace(outputPath.toString(), "{out}");
+        text = text.replace(scratchPath.toString(), "{scratch}");
+        // the longest first so a case isn't taken for one whose name is a prefix of its name
+        List<String> names = new ArrayList<>(caseNames);
+        names.sort(Comparator.comparing(String::length).reversed());
+        for (String name : names) {
+            text = text.replace(workPath.resolve(name).toString(), "{out:" + name + "}");
+        }
+        return text.replace(inputPath.toString(), "{in}");
+    }
+
+    /**
+     * Compares the files written by a case with the golden outputs (those of the case it is the same as if
+     * it is marked --same-as)
+     * @return the differences (empty if there are none)
+     */
+    private List<String> compareCase(String name) throws IOException {
+        List<String> differences = new ArrayList<>();
+        Path expectedCasePath = expectedPath.resolve(sameAsCases.getOrDefault(name, name));
+        Path actualCasePath = workPath.resolve(name);
+
+        if (!Files.isDirectory(expectedCasePath)) {
+            differences.add("no golden outputs (run with --update to create them)");
+            return differences;
+        }
+
+        Set<String> expectedFiles = listFiles(expectedCasePath);
+        Set<String> actualFiles = listFiles(actualCasePath);
+        for (String file : expectedFiles) {
+            if (!actualFiles.contains(file)) {
+                differences.add(file + ": not written");
+            }
+        }
+        for (String file : actualFiles) {
+            if (!expectedFiles.contains(file)) {
+                differences.add(file + ": not in the golden outputs");
+            }
+        }
+        boolean orderedRows = orderedCases.contains(name);
+        for (String file : expectedFiles) {
+            if (actualFiles.contains(file)) {
+                compareFile(file, Files.readAllBytes(expectedCasePath.resolve(file)),
+                        Files.readAllBytes(actualCasePath.resolve(file)), orderedRows, differences);
+            }
+        }
+        return differences;
+    }
+
+    private void compareFile(String fileName, byte[] expected, byte[] actual, boolean orderedRows, List<String> differences) throws IOException {
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+
+        if (extension.equals("zip")) {
+            Map<String, byte[]> expectedEntries = readZip(expected);
+            Map<String, byte[]> actualEntries = readZip(actual);
+            if (!expectedEntries.keySet().equals(actualEntries.keySet())) {
+                differences.add(fileName + ": entries differ, expected " + new TreeSet<>(expectedEntries.keySet()) +
+                        " but found " + new TreeSet<>(actualEntries.keySet()));
+                return;
+            }
+            for (String entry : new TreeSet<>(expectedEntries.keySet())) {
+                compareFile(fileName + "!" + entry, expectedEntries.get(entry), actualEntries.get(entry), orderedRows, differences);
+            }
+            return;
+        }
+
+        String expectedText = new String(expected, StandardCharsets.UTF_8);
+        String actualText = new String(actual, StandardCharsets.UTF_8);
+        if (expectedText.equals(actualText)) {
+            return;
+        }
+
+        if (TREE_EXTENSIONS.contains(extension) || expectedText.startsWith("#NEXUS")) {
+            compareTrees(fileName, expectedText, actualText, orderedRows, differences);
+        } else {
+            compareLines(fileName, expectedText, actualText, orderedRows, differences);
+        }
+    }
+
+    private void compareTrees(String fileName, String expectedText, String actualText, boolean orderedRows, List<String> differences) {
+        List<RootedTree> expectedTrees;
+        List<RootedTree> actualTrees;
+        try {
+            expectedTrees = readTrees(expectedText);
+        } catch (IOException | ImportException e) {
+            // not a tree file after all
+            compareLines(fileName, expectedText, actualText, orderedRows, differences);
+            return;
+        }
+        try {
+            actualTrees = readTrees(actualText);
+        } catch (IOException | ImportException e) {
+            differences.add(fileName + ": unable to read trees: " + e.getMessage());
+            return;
+        }
+
+        if (expectedTrees.size() != actualTrees.size()) {
+            differences.add(fileName + ": expected " + expectedTrees.size() + " trees but found " + actualTrees.size());
+            return;
+        }
+
+        for (int i = 0; i < expectedTrees.size(); i++) {
+            String prefix = fileName + (expectedTrees.size() > 1 ? " tree " + (i + 1) : "") + ": ";
+            Map<String, List<String>> expectedClades = getClades(expectedTrees.get(i));
+            Map<String, List<String>> actualClades = getClades(actualTrees.get(i));
+
+            for (String clade : expectedClades.keySet()) {
+                if (!actualClades.containsKey(clade)) {
+                    differences.add(prefix + "missing clade " + abbreviate(clade));
+                }
+            }
+            for (String clade : actualClades.keySet()) {
+                if (!expectedClades.containsKey(clade)) {
+                    differences.add(prefix + "unexpected clade " + abbreviate(clade));
+                }
+            }
+            for (String clade : expectedClades.keySet()) {
+                List<String> expectedNodes = expectedClades.get(clade);
+                List<String> actualNodes = actualClades.get(clade);
+                if (actualNodes == null) {
+                    continue;
+                }
+                if (expectedNodes.size() != actualNodes.size()) {
+                    differences.add(prefix + "clade " + abbreviate(clade) + " has " + actualNodes.size() +
+                            " nodes, expected " + expectedNodes.size());
+                    continue;
+                }
+                for (int j = 0; j < expectedNodes.size(); j++) {
+                    if (!valuesEqual(expectedNodes.get(j), actualNodes.get(j))) {
+                        differences.add(prefix + "clade " + abbreviate(clade) + " expected " + expectedNodes.get(j) +
+                                " but found " + actualNodes.get(j));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Describes each node (its branch length and attributes) by the clade of tips below it. Nodes with a single
+     * child share their clade so each clade has a list, sorted so the order of the nodes doesn't matter.
+     */
+    private static Map<String, List<String>> getClades(RootedTree tree) {
+        Map<String, List<String>> clades = new HashMap<>();
+        getClade(tree, tree.getRootNode(), clades);
+        for (List<String> nodes : clades.values()) {
+            Collections.sort(nodes);
+        }
+        return clades;
+    }
+
+    /**
+     * recursive version
+     * @return the names of the tips below the node
+     */
+    private static List<String> getClade(RootedTree tree, Node node, Map<String, List<String>> clades) {
+        List<String> tips = new ArrayList<>();
+        if (tree.isExternal(node)) {
+            tips.add(tree.getTaxon(node).getName());
+        } else {
+            for (Node child : tree.getChildren(node)) {
+                tips.addAll(getClade(tree, child, clades));
+            }
+        }
+        Collections.sort(tips);
+
+        StringBuilder sb = new StringBuilder();
+        if (tree.hasLengths() && !tree.isRoot(node)) {
+            sb.append(tree.getLength(node));
+        }
+        for (String name : new TreeSet<>(node.getAttributeNames())) {
+            sb.append(" ").append(name).append("=").append(formatValue(node.getAttribute(name)));
+        }
+        clades.computeIfAbsent(String.join(",", tips), k -> new ArrayList<>()).add(sb.toString().trim());
+
+        return tips;
+    }
+
+    private static String formatValue(Object value) {
+        if (value instanceof Object[]) {
+            return Arrays.stream((Object[]) value).map(GoldenCorpus::formatValue).collect(Collectors.joining(",", "{", "}"));
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).stream().map(GoldenCorpus::formatValue).sorted().collect(Collectors.joining(",", "{", "}"));
+        }
+        return String.valueOf(value);
+    }
+
+    private static List<RootedTree> readTrees(String text) throws IOException, ImportException {
+        TreeImporter importer = text.startsWith("#NEXUS") ?
+                new NexusImporter(new StringReader(text)) :
+                new NewickImporter(new StringReader(text), false);
+        List<RootedTree> trees = new ArrayList<>();
+        while (importer.hasTree()) {
+            trees.add((RootedTree) importer.importNextTree());
+        }
+        if (trees.isEmpty()) {
+            throw new ImportException("no trees");
+        }
+        return trees;
+    }
+
+    /**
+     * Compares the first lines (headers) then the other lines, in any order unless orderedRows is set
+     */
+    private static void compareLines(String fileName, String expectedText, String actualText, boolean orderedRows,
+                                     List<String> differences) {
+        List<String> expectedLines = new ArrayList<>(Arrays.asList(expectedText.split("\r?\n")));
+        List<String> actualLines = new ArrayList<>(Arrays.asList(actualText.split("\r?\n")));
+
+        if (!valuesEqual(expectedLines.get(0), actualLines.get(0))) {
+            differences.add(fileName + ": expected first line '" + expectedLines.get(0) + "' but found '" + actualLines.get(0) + "'");
+            return;
+        }
+        if (expectedLines.size() != actualLines.size()) {
+            differences.add(fileName + ": expected " + expectedLines.size() + " lines but found " + actualLines.size());
+            return;
+        }
+
+        List<String> expectedRows = expectedLines.subList(1, expectedLines.size());
+        List<String> actualRows = actualLines.subList(1, actualLines.size());
+        if (!orderedRows) {
+            Collections.sort(expectedRows);
+            Collections.sort(actualRows);
+        }
+        for (int i = 0; i < expectedRows.size(); i++) {
+            if (!valuesEqual(expectedRows.get(i), actualRows.get(i))) {
+                differences.add(fileName + ": expected line '" + expectedRows.get(i) + "' but found '" + actualRows.get(i) + "'");
+            }
+        }
+    }
+
+    /**
+     * Compares two strings token by token, allowing numbers to differ by the tolerance
+     */
+    private static boolean valuesEqual(String expected, String actual) {
+        if (expected.equals(actual)) {
+            return true;
+        }
+        String[] expectedTokens = expected.split("(?<=[,\\t =:{}])|(?=[,\\t =:{}])");
+        String[] actualTokens = actual.split("(?<=[,\\t =:{}])|(?=[,\\t =:{}])");
+        if (expectedTokens.length != actualTokens.length) {
+            return false;
+        }
+        for (int i = 0; i < expectedTokens.length; i++) {
+            if (!expectedTokens[i].equals(actualTokens[i])) {
+                try {
+                    double x = Double.parseDouble(expectedTokens[i]);
+                    double y = Double.parseDouble(actualTokens[i]);
+                    if (Math.abs(x - y) > TOLERANCE * Math.max(Math.max(Math.abs(x), Math.abs(y)), 1E-3)) {
+                        return false;
+                    }
+                } catch (NumberFormatException nfe) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String abbreviate(String clade) {
+        return "{" + (clade.length() > 80 ? clade.substring(0, 77) + "..." : clade) + "}";
+    }
+
+    private static Map<String, byte[]> readZip(byte[] bytes) throws IOException {
+        Map<String, byte[]> entries = new HashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes))) {
+            ZipEntry entry;
+            byte[] buffer = new byte[8192];
+            while ((entry = in.getNextEntry()) != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+                entries.put(entry.getName(), out.toByteArray());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Copies the outputs of a case to be its golden outputs
+     */
+    private void updateCase(String name) throws IOException {
+        Path expectedCasePath = expectedPath.resolve(name);
+        deleteDirectory(expectedCasePath);
+        Files.createDirectories(expectedCasePath);
+        for (String file : listFiles(workPath.resolve(name))) {
+            Path target = expectedCasePath.resolve(file);
+            Files.createDirectories(target.getParent());
+            Files.copy(workPath.resolve(name).resolve(file), target);
+        }
+    }
+
+    private static Set<String> listFiles(Path path) throws IOException {
+        Set<String> files = new TreeSet<>();
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                paths.filter(Files::isRegularFile)
+                        .filter(file -> !file.toString().endsWith(CHECKPOINT_SUFFIX))
+                        .forEach(file -> files.add(path.relativize(file).toString()));
+            }
+        }
+        return files;
+    }
+
+    private static void deleteDirectory(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            List<Path> list = paths.collect(Collectors.toList());
+            Collections.reverse(list);
+            for (Path file : list) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Splits a command line into arguments, allowing single or double quotes around arguments with spaces
+     */
+    private static List<String> splitArguments(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (char c : line.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    arg.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (inArg) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder().longOpt("corpus").argName("path").hasArg().required()
+                .desc("the corpus directory (with cases.txt, inputs and expected)").build());
+        options.addOption(Option.builder().longOpt("work-dir").argName("path").hasArg().required()
+                .desc("directory for the outputs of the cases").build());
+        options.addOption(Option.builder().longOpt("cases").argName("names").hasArgs()
+                .desc("run only the named cases (default all)").build());
+        options.addOption(Option.builder().longOpt("update")
+                .desc("store the outputs as the golden outputs rather than comparing").build());
+
+        CommandLine commandLine = null;
+        try {
+            commandLine = new DefaultParser().parse(options, args);
+        } catch (ParseException pe) {
+            System.out.println(pe.getMessage());
+            new HelpFormatter().printHelp("GoldenCorpus", options, true);
+            System.exit(1);
+        }
+
+        GoldenCorpus corpus = new GoldenCorpus(Paths.get(commandLine.getOptionValue("corpus")),
+                Paths.get(commandLine.getOptionValue("work-dir")).toAbsolutePath());
+        boolean update = commandLine.hasOption("update");
+        Set<String> selected = commandLine.hasOption("cases") ?
+                new HashSet<>(Arrays.asList(commandLine.getOptionValues("cases"))) : null;
+
+        int failed = 0;
+        int count = 0;
+        try {
+            Files.createDirectories(corpus.workPath);
+            deleteDirectory(corpus.scratchPath);
+            Files.createDirectories(corpus.scratchPath);
+            Map<String, String> cases = corpus.readCases();
+            corpus.caseNames.addAll(cases.keySet());
+            for (Map.Entry<String, String> entry : cases.entrySet()) {
+                String name = entry.getKey();
+                // cases that others depend on are always run
+                boolean isSelected = selected == null || selected.contains(name);
+
+                String error = corpus.runCase(name, entry.getValue());
+                if (!isSelected) {
+                    continue;
+                }
+                count++;
+
+                if (error != null) {
+                    System.out.println("FAIL " + name + ": " + error);
+                    failed++;
+                } else if (update && !corpus.sameAsCases.containsKey(name)) {
+                    corpus.updateCase(name);
+                    System.out.println("UPDATED " + name);
+                } else {
+                    List<String> differences = corpus.compareCase(name);
+                    if (differences.isEmpty()) {
+                        System.out.println("PASS " + name);
+                    } else {
+                        System.out.println("FAIL " + name);
+                        for (String difference : differences.subList(0, Math.min(differences.size(), MAX_DIFFERENCES))) {
+                            System.out.println("    " + difference);
+                        }
+                        if (differences.size() > MAX_DIFFERENCES) {
+                            System.out.println("    ... and " + (differences.size() - MAX_DIFFERENCES) + " more");
+                        }
+                        failed++;
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Error running golden corpus: " + ioe.getMessage());
+            System.exit(1);
+        } catch (InterruptedException ie) {
+            System.exit(1);
+        }
+
+        System.out.println();
+        System.out.println((count - failed) + " of " + count + " cases passed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private final Path inputPath;
+    private final Path expectedPath;
+    private final Path casesFile;
+    private final Path workPath;
+    private final Path scratchPath;
+    private final Set<String> caseNames = new HashSet<>();
+    private final Set<String> orderedCases = new HashSet<>();
+    private final Map<String, String> sameAsCases = new HashMap<>();
+}
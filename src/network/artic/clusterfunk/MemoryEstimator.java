@@ -0,0 +1,340 @@
+package network.artic.clusterfunk;
+
+import network.artic.clusterfunk.ClusterFunkOptions.Command;
+import org.apache.commons.cli.CommandLine;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Estimates the peak memory a command will need from a quick scan of its input files (the number of tips
+ * and annotations in the first tree of each tree file and the rows and columns of each table) and picks a
+ * heap size and garbage collector for it. Used by --dry-run and by the launcher script to size the heap
+ * before running the command.
+ *
+ * The sizes per tip, annotation and table cell were measured from jebl trees and commons-csv records.
+ * With --off-heap or --succinct each input tree is still parsed into a jebl tree before it is moved into
+ * the compact storage, so one parsed copy is counted for the peak but not the copy that would be kept.
+ */
+final class MemoryEstimator {
+    private final static long MB = 1024 * 1024;
+
+    private final static long BASE_BYTES = 32 * MB;
+    private final static long BYTES_PER_TIP = 500; // a tip and its internal node
+    private final static long BYTES_PER_ATTRIBUTE = 240;
+    private final static long BYTES_PER_ROW = 80;
+    private final static long BYTES_PER_CELL = 55;
+    // what an off-heap or succinct tree still holds on the heap once its nodes have been visited
+    private final static long STORED_BYTES_PER_TIP = 200;
+
+    // the heap is this multiple of the estimated peak to leave room for the garbage collector
+    private final static int HEAP_HEADROOM = 2;
+    private final static long MIN_HEAP_SIZE = 128 * MB;
+    // above this a parallel collector is used, below it a serial one (which has a smaller footprint)
+    private final static long SERIAL_GC_LIMIT = 1024 * MB;
+
+    MemoryEstimator(Command command, boolean isCompactStorage) {
+        this.command = command;
+        this.isCompactStorage = isCompactStorage;
+    }
+
+    /**
+     * Adds the input files named in a command line
+     * @param command
+     * @param commandLine
+     * @return the estimator
+     */
+    static MemoryEstimator estimate(Command command, CommandLine commandLine) throws IOException {
+        MemoryEstimator estimator = new MemoryEstimator(command,
+                commandLine.hasOption("off-heap") || commandLine.hasOption("succinct"));
+
+        String input = commandLine.getOptionValue("input");
+        if (input != null && new File(input).isDirectory()) {
+            estimator.addTreeDirectory(input);
+        } else if (input != null) {
+            estimator.addTreeFile(input);
+        }
+
+        if (commandLine.hasOption("reference")) {
+            estimator.addTreeFile(commandLine.getOptionValue("reference"));
+        }
+        for (String option : new String[] { "metadata", "metadata-file", "taxon-file", "id-registry" }) {
+            String fileName = commandLine.getOptionValue(option);
+            if (fileName != null && new File(fileName).isFile()) {
+                if (isTreeFile(fileName)) {
+                    estimator.addTreeFile(fileName);
+                } else {
+                    estimator.addTableFile(fileName);
+                }
+            }
+        }
+
+        return estimator;
+    }
+
+    /**
+     * Adds a tree file - only the first tree is counted as the multi-tree commands read a tree at a time.
+     * @param fileName
+     */
+    void addTreeFile(String fileName) throws IOException {
+        long[] counts = scanTree(fileName);
+
+        inputs.add(String.format("      Tree file: %s (%s, %d tips, %d annotations)",
+                fileName, formatSize(Files.size(Paths.get(fileName))), counts[0], counts[1]));
+        treeTips += counts[0];
+        treeBytes += counts[0] * BYTES_PER_TIP + counts[1] * BYTES_PER_ATTRIBUTE;
+    }
+
+    /**
+     * Adds all the tree files in a directory (i.e., the subtrees for conquer)
+     * @param path
+     */
+    void addTreeDirectory(String path) throws IOException {
+        int fileCount = 0;
+        long size = 0;
+        long tips = 0;
+        long attributes = 0;
+
+        File[] files = new File(path).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && isTreeFile(file.getPath())) {
+                    long[] counts = scanTree(file.getPath());
+                    fileCount++;
+                    size += file.length();
+                    tips += counts[0];
+                    attributes += counts[1];
+                }
+            }
+        }
+
+        inputs.add(String.format("     Tree files: %s (%d files, %s, %d tips, %d annotations)",
+                path, fileCount, formatSize(size), tips, attributes));
+        treeTips += tips;
+        treeBytes += tips * BYTES_PER_TIP + attributes * BYTES_PER_ATTRIBUTE;
+    }
+
+    /**
+     * Counts the tips and annotations in the first tree of a file without parsing it
+     * @return the number of tips and of annotations
+     */
+    private static long[] scanTree(String fileName) throws IOException {
+        long tips = 0;
+        long attributes = 0;
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(fileName), 1 << 16)) {
+            boolean isNexus = isNexus(fileName);
+            boolean inTree = !isNexus;
+            boolean atStatementStart = true;
+            StringBuilder firstWord = new StringBuilder();
+            int quote = 0;
+            boolean inComment = false;
+            boolean isAnnotation = false;
+            int previous = 0;
+
+            int c;
+            while ((c = in.read()) != -1) {
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (inComment) {
+                    if (c == ']') {
+                        inComment = false;
+                    } else if (isAnnotation && c == '=' && inTree) {
+                        attributes++;
+                    } else if (previous == '[' && c == '&') {
+                        isAnnotation = true;
+                    }
+                } else if (c == '[') {
+                    inComment = true;
+                    isAnnotation = false;
+                } else if (c == '\'' || c == '"') {
+                    quote = c;
+                } else if (c == ';') {
+                    if (inTree) {
+                        break;
+                    }
+                    atStatementStart = true;
+                    firstWord.setLength(0);
+                } else if (!inTree) {
+                    // look for the first NEXUS tree statement
+                    if (Character.isLetter(c) && atStatementStart) {
+                        firstWord.append((char) Character.toLowerCase(c));
+                    } else if (firstWord.length() > 0 || !Character.isWhitespace(c)) {
+                        String word = firstWord.toString();
+                        inTree = word.equals("tree") || word.equals("utree");
+                        atStatementStart = false;
+                        firstWord.setLength(0);
+                    }
+                } else if (c == ',') {
+                    tips++;
+                }
+                previous = c;
+            }
+            if (inTree) {
+                // each tip after the first is preceded by a comma
+                tips++;
+            }
+        }
+        return new long[] { tips, attributes };
+    }
+
+    /**
+     * Adds a metadata table (CSV or tab delimited)
+     * @param fileName
+     */
+    void addTableFile(String fileName) throws IOException {
+        long rows = 0;
+        int columns = 0;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName), 1 << 16)) {
+            String header = reader.readLine();
+            if (header != null) {
+                columns = Math.max(header.split(",", -1).length, header.split("\t", -1).length);
+                while (reader.readLine() != null) {
+                    rows++;
+                }
+            }
+        }
+
+        inputs.add(String.format("          Table: %s (%s, %d rows, %d columns)",
+                fileName, formatSize(Files.size(Paths.get(fileName))), rows, columns));
+        tableBytes += rows * (BYTES_PER_ROW + columns * BYTES_PER_CELL);
+    }
+
+    /**
+     * @return the estimated peak memory use in bytes
+     */
+    long getEstimate() {
+        int copies = getTreeCopies(command);
+        if (isCompactStorage && copies > 0) {
+            // the parsed tree is dropped once it is stored so it is only counted once, alongside the stored
+            // tree, even if the command then builds a new tree on the heap
+            return BASE_BYTES + treeTips * STORED_BYTES_PER_TIP + treeBytes * Math.max(copies - 1, 1) + tableBytes;
+        }
+        return BASE_BYTES + treeBytes * copies + tableBytes;
+    }
+
+    /**
+     * @return the heap size to use in bytes (a multiple of 64MB), limited by the physical memory
+     */
+    long getHeapSize() {
+        long heapSize = Math.max(getEstimate() * HEAP_HEADROOM, MIN_HEAP_SIZE);
+        heapSize = ((heapSize + 64 * MB - 1) / (64 * MB)) * 64 * MB;
+        long maxHeapSize = getMaxHeapSize();
+        if (maxHeapSize > 0 && heapSize > maxHeapSize) {
+            heapSize = Math.max(maxHeapSize / (64 * MB), 1) * 64 * MB;
+        }
+        return heapSize;
+    }
+
+    /**
+     * @return the options for the java command
+     */
+    String getJavaOptions() {
+        long heapSize = getHeapSize();
+        return "-Xms64m -Xmx" + (heapSize / MB) + "m " +
+                (heapSize <= SERIAL_GC_LIMIT ? "-XX:+UseSerialGC" : "-XX:+UseParallelGC");
+    }
+
+    void print(PrintStream out) {
+        out.println("Memory estimate for: " + command + (isCompactStorage ? " (compact tree storage)" : ""));
+        for (String input : inputs) {
+            out.println(input);
+        }
+        out.println(" Estimated peak: " + formatSize(getEstimate()));
+        out.println("      Heap size: " + formatSize(getHeapSize()));
+        if (getEstimate() > getHeapSize()) {
+            out.println("        Warning: the estimate is more than the memory available - " +
+                    (isCompactStorage ? "consider --memory-budget" : "consider --off-heap or --memory-budget"));
+        }
+        out.println("   Java options: " + getJavaOptions());
+    }
+
+    /**
+     * The number of copies of the trees held at the peak. Commands that build a new tree from the input
+     * tree hold both.
+     */
+    private static int getTreeCopies(Command command) {
+        switch (command) {
+            case CACHE:
+            case GATHER:
+            case MERGE:
+                return 0;
+            case COLLAPSE:
+            case CONQUER:
+            case CONTEXT:
+            case DIVIDE:
+            case INSERT:
+            case PRUNE:
+            case REROOT:
+            case SAMPLE:
+            case SCALE:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * @return three quarters of the physical memory or 0 if it is not known
+     */
+    private static long getMaxHeapSize() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (!(bean instanceof com.sun.management.OperatingSystemMXBean)) {
+            return 0;
+        }
+        // getTotalPhysicalMemorySize is deprecated from Java 14 in favour of getTotalMemorySize, which Java 8
+        // doesn't have - so call whichever there is by name
+        for (String name : new String[] { "getTotalMemorySize", "getTotalPhysicalMemorySize" }) {
+            try {
+                Method method = com.sun.management.OperatingSystemMXBean.class.getMethod(name);
+                return ((Long) method.invoke(bean) / 4) * 3;
+            } catch (ReflectiveOperationException roe) {
+                // try the next
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isTreeFile(String fileName) throws IOException {
+        String head = readHead(fileName);
+        return head.startsWith("#NEXUS") || head.startsWith("(");
+    }
+
+    private static boolean isNexus(String fileName) throws IOException {
+        return readHead(fileName).startsWith("#NEXUS");
+    }
+
+    private static String readHead(String fileName) throws IOException {
+        char[] head = new char[1024];
+        try (Reader reader = new FileReader(fileName)) {
+            int charsRead = reader.read(head, 0, head.length);
+            return charsRead > 0 ? new String(head, 0, charsRead).trim().toUpperCase() : "";
+        }
+    }
+
+    private static String formatSize(long bytes) {
+        if (bytes >= 10 * 1024 * MB) {
+            return (bytes / (1024 * MB)) + " GB";
+        }
+        if (bytes >= MB) {
+            return (bytes / MB) + " MB";
+        }
+        return ((bytes + 1023) / 1024) + " KB";
+    }
+
+    private final Command command;
+    private final boolean isCompactStorage;
+    private final List<String> inputs = new ArrayList<>();
+    private long treeTips = 0;
+    private long treeBytes = 0;
+    private long tableBytes = 0;
+}
@@ -0,0 +1,7 @@
+package network.artic.clusterfunk;
+
+public enum StorageType {
+    HEAP,
+    OFF_HEAP,
+    SUCCINCT
+}
@@ -0,0 +1,333 @@
+package network.artic.clusterfunk;
+
+import network.artic.clusterfunk.ClusterFunkOptions.Command;
+import network.artic.clusterfunk.commands.CommandFailedException;
+import network.artic.clusterfunk.commands.MemoryCache;
+import network.artic.clusterfunk.commands.Progress;
+import org.apache.commons.cli.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Runs a list of commands (jobs) and then watches their input files, re-running just the jobs whose inputs have
+ * changed. The jobs are run in this process in the order they are listed so a job that reads the output of an
+ * earlier job is re-run after it in the same pass. Parsed metadata tables and tree snapshots are held in memory
+ * between runs (see MemoryCache) so unchanged inputs are not parsed again. Each job uses the cache directory
+ * for its tree snapshots (a temporary one if none is given, which is deleted when watch is stopped).
+ *
+ * With once set the jobs are just run, in the same way, and watch exits (with a status of 1 if any failed).
+ *
+ * A command that fails throws CommandFailedException (rather than exiting) so this is reported as a failed job
+ * and watching continues.
+ */
+final class Watch {
+    private final static String[] INPUT_OPTIONS = { "input", "reference", "metadata", "metadata-file", "taxon-file", "id-registry" };
+
+    // changes are collected until there has been none for this long so files being written are finished
+    private final static long QUIET_PERIOD = 1000;
+
+    /**
+     * @param jobsFileName a file of jobs, one command line per line (blank lines and lines starting with '#' are skipped)
+     * @param cachePath the cache directory for the jobs that don't give one (null for a temporary one)
+     * @param once run the jobs once rather than watching their inputs
+     * @param isVerbose
+     */
+    Watch(String jobsFileName, String cachePath, boolean once, boolean isVerbose) {
+        this.once = once;
+        this.isVerbose = isVerbose;
+
+        String path = cachePath;
+        if (path == null) {
+            try {
+                Path tempPath = Files.createTempDirectory("jclusterfunk-watch");
+                // watch runs until it is interrupted so the temporary directory is deleted on shutdown
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteDirectory(tempPath)));
+                path = tempPath.toString();
+            } catch (IOException ioe) {
+                System.err.println("Unable to create cache directory: " + ioe.getMessage());
+                System.exit(1);
+            }
+        }
+        this.cachePath = path;
+
+        readJobs(jobsFileName);
+    }
+
+    /**
+     * Runs the jobs and then re-runs them as their inputs change. Doesn't return unless watching fails (or the
+     * jobs are only to be run once).
+     */
+    void run() {
+        if (once) {
+            MemoryCache.setEnabled(true);
+            boolean isSuccess = runChangedJobs();
+            MemoryCache.setEnabled(false);
+            if (!isSuccess) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            for (Path path : getWatchedPaths()) {
+                path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            }
+        } catch (IOException ioe) {
+            System.err.println("Unable to watch input files: " + ioe.getMessage());
+            System.exit(1);
+        }
+
+        if (isVerbose) {
+            System.out.println("Watching " + jobs.size() + " jobs");
+            System.out.println();
+        }
+
+        MemoryCache.setEnabled(true);
+        try {
+            runChangedJobs();
+
+            while (true) {
+                WatchKey key = watchService.take();
+                do {
+                    key.pollEvents();
+                    key.reset();
+                    key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                runChangedJobs();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stop watching
+        } finally {
+            MemoryCache.setEnabled(false);
+        }
+    }
+
+    /**
+     * Runs each job whose inputs have changed since it was last run
+     * @return false if any of the jobs failed
+     */
+    private boolean runChangedJobs() {
+        boolean isSuccess = true;
+        for (Job job : jobs) {
+            // the stamps are taken as each job is reached so outputs of earlier jobs are seen
+            Map<Path, String> stamps = getStamps(job.inputs);
+            if (stamps.equals(job.stamps)) {
+                continue;
+            }
+            job.stamps = stamps;
+
+            System.out.println("Running: " + job.line);
+            long startTime = System.currentTimeMillis();
+            try {
+                ClusterFunk.run(job.args);
+                if (isVerbose) {
+                    System.out.println("Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " secs");
+                }
+            } catch (CommandFailedException cfe) {
+                Progress.stop();
+                System.out.println("Failed: " + job.line + " (exit status " + cfe.getStatus() + ")");
+                isSuccess = false;
+            } catch (RuntimeException re) {
+                Progress.stop();
+                System.out.println("Failed: " + job.line + " (" + re + ")");
+                isSuccess = false;
+            }
+        }
+        return isSuccess;
+    }
+
+    private void readJobs(String jobsFileName) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(jobsFileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                jobs.add(createJob(line));
+            }
+        } catch (IOException ioe) {
+            System.err.println("Error reading jobs file: " + ioe.getMessage());
+            System.exit(1);
+        }
+
+        if (jobs.isEmpty()) {
+            System.err.println("No jobs in jobs file: " + jobsFileName);
+            System.exit(1);
+        }
+    }
+
+    private Job createJob(String line) {
+        List<String> args = splitArguments(line);
+        if (args.get(0).equals("jclusterfunk")) {
+            args.remove(0);
+        }
+
+        Command command = null;
+        try {
+            command = Command.getCommand(args.get(0));
+        } catch (IllegalArgumentException iae) {
+            System.err.println("Unrecognised command in job: " + line);
+            System.exit(1);
+        }
+        if (command == Command.WATCH || command == Command.NONE) {
+            System.err.println("Job can't be run by watch: " + line);
+            System.exit(1);
+        }
+
+        Options options = new Options();
+        ClusterFunk.addCommandOptions(command, options);
+        CommandLine commandLine = null;
+        try {
+            commandLine = new DefaultParser().parse(options, args.subList(1, args.size()).toArray(new String[0]));
+        } catch (ParseException pe) {
+            System.err.println("Error in job, " + line + ": " + pe.getMessage());
+            System.exit(1);
+        }
+
+        if (!commandLine.hasOption("cache-dir")) {
+            args.add("--cache-dir");
+            args.add(cachePath);
+        }
+
+        List<Path> inputs = new ArrayList<>();
+        for (String option : INPUT_OPTIONS) {
+            if (commandLine.hasOption(option)) {
+                // some inputs (e.g., gather's) take a list of files
+                for (String value : commandLine.getOptionValues(option)) {
+                    inputs.add(Paths.get(value).toAbsolutePath().normalize());
+                }
+            }
+        }
+
+        return new Job(line, args.toArray(new String[0]), inputs);
+    }
+
+    /**
+     * @return the directories containing the inputs (and any inputs that are directories)
+     */
+    private Set<Path> getWatchedPaths() {
+        Set<Path> paths = new LinkedHashSet<>();
+        for (Job job : jobs) {
+            for (Path input : job.inputs) {
+                if (Files.isDirectory(input)) {
+                    paths.add(input);
+                }
+                if (input.getParent() != null) {
+                    paths.add(input.getParent());
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Gets the size and modification time of each input (of the files within it for a directory)
+     */
+    private static Map<Path, String> getStamps(List<Path> inputs) {
+        Map<Path, String> stamps = new HashMap<>();
+        for (Path input : inputs) {
+            File file = input.toFile();
+            if (file.isDirectory()) {
+                StringBuilder stamp = new StringBuilder();
+                File[] files = file.listFiles();
+                if (files != null) {
+                    Arrays.sort(files);
+                    for (File child : files) {
+                        stamp.append(child.getName()).append(':').append(getStamp(child)).append(';');
+                    }
+                }
+                stamps.put(input, stamp.toString());
+            } else {
+                stamps.put(input, getStamp(file));
+            }
+        }
+        return stamps;
+    }
+
+    private static String getStamp(File file) {
+        try {
+            return file.length() + ":" + Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException ioe) {
+            return "missing";
+        }
+    }
+
+    private static void deleteDirectory(Path path) {
+        try (Stream<Path> paths = Files.walk(path)) {
+            List<Path> list = paths.collect(Collectors.toList());
+            Collections.reverse(list);
+            for (Path file : list) {
+                Files.delete(file);
+            }
+        } catch (IOException ioe) {
+            System.err.println("Unable to delete cache directory: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Splits a command line into arguments, allowing single or double quotes around arguments with spaces
+     */
+    private static List<String> splitArguments(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (char c : line.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    arg.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (inArg) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+    private static final class Job {
+        Job(String line, String[] args, List<Path> inputs) {
+            this.line = line;
+            this.args = args;
+            this.inputs = inputs;
+        }
+
+        final String line;
+        final String[] args;
+        final List<Path> inputs;
+        Map<Path, String> stamps = null;
+    }
+
+    private final boolean once;
+    private final boolean isVerbose;
+    private final String cachePath;
+    private final List<Job> jobs = new ArrayList<>();
+}
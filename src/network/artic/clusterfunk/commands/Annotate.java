@@ -4,7 +4,6 @@ import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
-import org.apache.commons.csv.CSVRecord;
 
 import java.util.*;
 
@@ -24,18 +23,19 @@ public class Annotate extends Command {
                     String[] annotationColumns,
                     boolean replace,
                     boolean ignoreMissing,
+                    Settings settings,
                     boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
         Map<Taxon, String> taxonMap = getTaxonMap(tree);
 
         if (annotationColumns != null && annotationColumns.length > 0) {
-            if (outputFormat != FormatType.NEXUS) {
-                errorStream.println("Tip annotations are only compatible with NEXUS output format");
-                System.exit(1);
+            if (outputFormat != FormatType.NEXUS && outputFormat != FormatType.AUSPICE) {
+                errorStream.println("Tip annotations are only compatible with NEXUS or AUSPICE output format");
+                exit(1);
             }
 
             if (isVerbose) {
@@ -72,7 +72,7 @@ public class Annotate extends Command {
      */
     private void annotateTips(RootedTree tree,
                               Map<Taxon, String> taxonMap,
-                              Map<String, CSVRecord> metadata,
+                              Map<String, MetadataRecord> metadata,
                               String[] columnNames,
                               boolean replace,
                               boolean ignoreMissing) {
@@ -82,11 +82,11 @@ public class Annotate extends Command {
 
         for (Node tip : tree.getExternalNodes()) {
             String key = taxonMap.get(tree.getTaxon(tip));
-            CSVRecord record = metadata.get(key);
+            MetadataRecord record = metadata.get(key);
             if (record == null) {
                 if (!ignoreMissing) {
                     errorStream.println("Tip index, " + key + ", not found in metadata table");
-                    System.exit(1);
+                    exit(1);
                 }
             } else {
                 for (String name : columnNames) {
@@ -108,18 +108,18 @@ public class Annotate extends Command {
      */
     private void relabelTips(RootedTree tree,
                              Map<Taxon, String> taxonMap,
-                             Map<String, CSVRecord> metadata,
+                             Map<String, MetadataRecord> metadata,
                              String[] columnNames,
                              String headerDelimiter,
                              boolean replace,
                              boolean ignoreMissing) {
         for (Node tip : tree.getExternalNodes()) {
             String key = taxonMap.get(tree.getTaxon(tip));
-            CSVRecord record = metadata.get(key);
+            MetadataRecord record = metadata.get(key);
             if (record == null) {
                 if (!ignoreMissing) {
                     errorStream.println("Tip index, " + key + ", not found in metadata table");
-                    System.exit(1);
+                    exit(1);
                 }
             } else {
                 StringBuilder tipLabel = new StringBuilder();
@@ -136,7 +136,7 @@ public class Annotate extends Command {
                     }
                     tipLabel.append(record.get(name));
                 }
-                tree.renameTaxa(tree.getTaxon(tip), Taxon.getTaxon(tipLabel.toString()));
+                tree.renameTaxa(tree.getTaxon(tip), taxonRegistry.getTaxon(tipLabel.toString()));
             }
         }
     }
@@ -12,6 +12,7 @@ import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -32,9 +33,10 @@ public class Assign extends Command {
                   String outputLineageName,
                   boolean cleanSublineages,
                   boolean ignoreMissing,
+                  Settings settings,
                   boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
@@ -42,7 +44,7 @@ public class Assign extends Command {
 
         annotateTips(tree, taxonMap, lineageName, ignoreMissing);
 
-        assignNodeLineages(tree, tree.getRootNode(), lineageName);
+        new TreeExecutor(tree, settings.getThreads()).postOrder((Node node, List<Map<String, Integer>> childContents) -> assignNodeLineages(node, childContents, lineageName));
 
         assignLineages(tree, tree.getRootNode(), lineageName, null, outputLineageName);
         
@@ -64,15 +66,15 @@ public class Assign extends Command {
                 writer.close();
             } catch (IOException e) {
                 errorStream.println("Error writing metadata file: " + e.getMessage());
-                System.exit(1);
+                exit(1);
             }
         }
 
 
     }
 
-    private Map<String, Integer> assignNodeLineages(RootedTree tree, Node node, String lineageName) {
-        if (tree.isExternal(node)) {
+    private Map<String, Integer> assignNodeLineages(Node node, List<Map<String, Integer>> childContents, String lineageName) {
+        if (childContents.isEmpty()) {
             Object value = node.getAttribute(lineageName);
             if (value != null) {
                 return Collections.singletonMap((String) value, 1);
@@ -82,8 +84,7 @@ public class Assign extends Command {
         }
 
         Map<String, Integer> contentsMap = new HashMap<>();
-        for (Node child : tree.getChildren(node)) {
-            Map<String, Integer> contents = assignNodeLineages(tree, child, lineageName);
+        for (Map<String, Integer> contents : childContents) {
             for (String key: contents.keySet()) {
                 contentsMap.put(key, contentsMap.getOrDefault(key, 0) + contents.get(key));
             }
@@ -0,0 +1,334 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.io.TreeExporter;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Writes trees in Nextstrain Auspice v2 JSON format. Node attributes become node_attrs and are listed as
+ * colorings, except those starting with '!' which are FigTree display settings (e.g., !collapse) or working
+ * state of the commands rather than data. The JSON is written as the tree is traversed so memory use doesn't
+ * grow with the tree - the tree goes before the meta section so the colorings can be collected on the way. The
+ * file is completed by close(). Divergence (div) is the sum of branch lengths from the root and num_date is
+ * taken from a decimal date or a date attribute (yyyy-mm-dd, yyyy-mm or yyyy) where one is present.
+ */
+final class AuspiceExporter implements TreeExporter {
+    final static String DATE_ATTRIBUTE = "date";
+    final static String NUM_DATE_ATTRIBUTE = "num_date";
+    final static String DIVERGENCE_ATTRIBUTE = "div";
+
+    AuspiceExporter(Writer writer) {
+        this.writer = new BufferedWriter(writer, 1 << 16);
+    }
+
+    /**
+     * Adds a tree to the file. A single tree is written as the tree object and more than one as an array of
+     * them so the first tree is held back until it is known whether another follows.
+     * @param tree
+     */
+    @Override
+    public void exportTree(Tree tree) {
+        if (!(tree instanceof RootedTree)) {
+            throw new IllegalArgumentException("Auspice format requires rooted trees");
+        }
+        try {
+            if (treeCount == 0) {
+                pendingTree = (RootedTree)tree;
+            } else {
+                if (pendingTree != null) {
+                    writer.write("{\"version\":\"v2\",\"tree\":[");
+                    writeTree(pendingTree);
+                    pendingTree = null;
+                }
+                writer.write(",");
+                writeTree((RootedTree)tree);
+            }
+            treeCount += 1;
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error writing Auspice JSON: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    @Override
+    public void exportTrees(Collection<? extends Tree> trees) {
+        for (Tree tree : trees) {
+            exportTree(tree);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (treeCount == 0) {
+                writer.write("{\"version\":\"v2\",\"tree\":[]");
+            } else if (pendingTree != null) {
+                writer.write("{\"version\":\"v2\",\"tree\":");
+                writeTree(pendingTree);
+                pendingTree = null;
+            } else {
+                writer.write("]");
+            }
+            writer.write(",\"meta\":");
+            writeMeta();
+            writer.write("}\n");
+            writer.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error writing Auspice JSON: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private void writeTree(RootedTree tree) throws IOException {
+        if (title == null && tree.getAttribute("name") != null) {
+            title = tree.getAttribute("name").toString();
+        }
+        writeNode(tree, tree.getRootNode(), 0.0);
+    }
+
+    /**
+     * Writes a node and its descendents
+     * recursive version
+     * @param tree
+     * @param node
+     * @param divergence the sum of the branch lengths from the root to this node
+     */
+    private void writeNode(RootedTree tree, Node node, double divergence) throws IOException {
+        writer.write("{\"name\":");
+        if (tree.isExternal(node)) {
+            writeString(tree.getTaxon(node).getName());
+        } else {
+            internalNodeCount += 1;
+            writeString(String.format("NODE_%07d", internalNodeCount));
+        }
+
+        writer.write(",\"node_attrs\":{\"" + DIVERGENCE_ATTRIBUTE + "\":");
+        writeNumber(divergence);
+
+        Double numDate = getNumDate(node);
+        if (numDate != null) {
+            hasNumDate = true;
+            writer.write(",\"" + NUM_DATE_ATTRIBUTE + "\":{\"value\":");
+            writeNumber(numDate);
+            writer.write("}");
+        }
+
+        for (Map.Entry<String, Object> entry : node.getAttributeMap().entrySet()) {
+            String name = entry.getKey();
+            Object value = entry.getValue();
+            if (value == null || name.startsWith("!") ||
+                    name.equals(DIVERGENCE_ATTRIBUTE) || name.equals(NUM_DATE_ATTRIBUTE)) {
+                continue;
+            }
+            writer.write(",");
+            writeString(name);
+            writer.write(":{\"value\":");
+            writeValue(value);
+            writer.write("}");
+            addColoring(name, value);
+        }
+        writer.write("}");
+
+        if (!tree.isExternal(node)) {
+            writer.write(",\"children\":[");
+            boolean first = true;
+            for (Node child : tree.getChildren(node)) {
+                if (!first) {
+                    writer.write(",");
+                }
+                double length = tree.hasLengths() ? tree.getLength(child) : 0.0;
+                writeNode(tree, child, divergence + length);
+                first = false;
+            }
+            writer.write("]");
+        }
+        writer.write("}");
+    }
+
+    private void writeMeta() throws IOException {
+        writer.write("{\"title\":");
+        writeString(title != null ? title : "jclusterfunk");
+        writer.write(",\"updated\":");
+        writeString(new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
+        writer.write(",\"panels\":[\"tree\"]");
+
+        writer.write(",\"colorings\":[");
+        boolean first = true;
+        if (hasNumDate) {
+            writer.write("{\"key\":\"" + NUM_DATE_ATTRIBUTE + "\",\"title\":\"Sampling date\",\"type\":\"continuous\"}");
+            first = false;
+        }
+        for (Map.Entry<String, String> entry : colorings.entrySet()) {
+            if (!first) {
+                writer.write(",");
+            }
+            writer.write("{\"key\":");
+            writeString(entry.getKey());
+            writer.write(",\"title\":");
+            writeString(entry.getKey());
+            writer.write(",\"type\":");
+            writeString(entry.getValue());
+            writer.write("}");
+            first = false;
+        }
+        writer.write("]");
+
+        writer.write(",\"filters\":[");
+        first = true;
+        for (Map.Entry<String, String> entry : colorings.entrySet()) {
+            if (entry.getValue().equals("categorical")) {
+                if (!first) {
+                    writer.write(",");
+                }
+                writeString(entry.getKey());
+                first = false;
+            }
+        }
+        writer.write("]");
+
+        writer.write(",\"display_defaults\":{\"distance_measure\":");
+        writeString(hasNumDate ? NUM_DATE_ATTRIBUTE : DIVERGENCE_ATTRIBUTE);
+        writer.write("}}");
+    }
+
+    /**
+     * Keeps track of the attribute names and whether all their values have been numbers or booleans.
+     */
+    private void addColoring(String name, Object value) {
+        String type = (value instanceof Number ? "continuous" : (value instanceof Boolean ? "boolean" : "categorical"));
+        String existing = colorings.get(name);
+        if (existing == null) {
+            colorings.put(name, type);
+        } else if (!existing.equals(type)) {
+            colorings.put(name, "categorical");
+        }
+    }
+
+    /**
+     * Gets the decimal date of a node from a num_date attribute or by converting a date attribute
+     * @param node
+     * @return the decimal date or null if the node has none
+     */
+    private static Double getNumDate(Node node) {
+        Object numDate = node.getAttribute(NUM_DATE_ATTRIBUTE);
+        if (numDate instanceof Number) {
+            return ((Number)numDate).doubleValue();
+        }
+        Object date = node.getAttribute(DATE_ATTRIBUTE);
+        if (date != null) {
+            return getDecimalDate(date.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Converts a date string to a decimal year (the middle of the month or year if these are not given)
+     * @param date
+     * @return the decimal date or null if it is not a recognised date
+     */
+    static Double getDecimalDate(String date) {
+        String[] fields = date.trim().split("-");
+        try {
+            int year = Integer.parseInt(fields[0]);
+            if (fields.length == 1) {
+                return year + 0.5;
+            }
+            int month = Integer.parseInt(fields[1]);
+            if (month < 1 || month > 12) {
+                return null;
+            }
+            Calendar calendar = new GregorianCalendar(year, month - 1, 1);
+            int daysInMonth = calendar.getActualMaximum(Calendar.DAY_OF_MONTH);
+            double day;
+            if (fields.length == 2) {
+                day = (daysInMonth - 1) / 2.0;
+            } else {
+                day = Integer.parseInt(fields[2]) - 1;
+                if (day < 0 || day >= daysInMonth) {
+                    return null;
+                }
+            }
+            int daysInYear = calendar.getActualMaximum(Calendar.DAY_OF_YEAR);
+            double dayOfYear = calendar.get(Calendar.DAY_OF_YEAR) - 1 + day + 0.5;
+            return year + dayOfYear / daysInYear;
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value instanceof Number) {
+            writeNumber(((Number)value).doubleValue());
+        } else if (value instanceof Boolean) {
+            writer.write(value.toString());
+        } else if (value instanceof Object[]) {
+            writeString(String.join(",", toStrings(Arrays.asList((Object[])value))));
+        } else if (value instanceof Collection) {
+            writeString(String.join(",", toStrings((Collection<?>)value)));
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private static List<String> toStrings(Collection<?> values) {
+        List<String> strings = new ArrayList<>();
+        for (Object value : values) {
+            strings.add(String.valueOf(value));
+        }
+        return strings;
+    }
+
+    private void writeNumber(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writer.write("null");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1E15) {
+            writer.write(Long.toString((long)value));
+        } else {
+            writer.write(Double.toString(value));
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int)c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    private final Writer writer;
+    private final Map<String, String> colorings = new LinkedHashMap<>();
+    private boolean hasNumDate = false;
+    private int internalNodeCount = 0;
+    private String title = null;
+    private RootedTree pendingTree = null;
+    private int treeCount = 0;
+}
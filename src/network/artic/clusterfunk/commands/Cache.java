@@ -0,0 +1,77 @@
+package network.artic.clusterfunk.commands;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Lists, prunes or clears the cache directory of parsed metadata tables, tree snapshots and tree file indices.
+ */
+public class Cache extends Command {
+    public Cache(String cachePath,
+                 boolean clear,
+                 boolean prune,
+                 long maxSize,
+                 Settings settings,
+                 boolean isVerbose) {
+
+        super(settings, isVerbose);
+
+        try {
+            if (clear) {
+                int count = CacheDirectory.clear(cachePath);
+                outStream.println("Removed " + count + " cache files from " + cachePath);
+                return;
+            }
+
+            if (prune) {
+                int count = CacheDirectory.prune(cachePath, maxSize);
+                outStream.println("Removed " + count + " least recently used cache files from " + cachePath);
+            }
+
+            List<Path> files = CacheDirectory.list(cachePath);
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+            long totalSize = 0;
+            outStream.println("type\tsize\tlast_used\tsource\tfile");
+            for (Path file : files) {
+                String type;
+                String source;
+                try {
+                    if (file.toString().endsWith(CacheDirectory.TREE_SUFFIX)) {
+                        type = "tree";
+                        source = TreeCache.getSource(file);
+                    } else if (file.toString().endsWith(CacheDirectory.INDEX_SUFFIX)) {
+                        type = "index";
+                        source = TreeSource.getSource(file);
+                    } else {
+                        type = "metadata";
+                        source = MetadataCache.getSource(file);
+                    }
+                } catch (IOException ioe) {
+                    type = "unknown";
+                    source = "";
+                }
+                long size = CacheDirectory.getSize(file);
+                totalSize += size;
+
+                outStream.println(type + "\t" + size + "\t" +
+                        dateFormat.format(new Date(CacheDirectory.getLastUsed(file))) + "\t" +
+                        source + "\t" + file.getFileName());
+            }
+
+            if (isVerbose) {
+                outStream.println();
+                outStream.println("     Files: " + files.size());
+                outStream.println("Total size: " + totalSize);
+                outStream.println("  Max size: " + maxSize);
+                outStream.println();
+            }
+        } catch (IOException ioe) {
+            errorStream.println("Error reading cache directory: " + ioe.getMessage());
+            exit(1);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package network.artic.clusterfunk.commands;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Housekeeping for the cache directory shared by the metadata and tree caches. The modification time of each
+ * cache file is its last use so the least recently used entries can be evicted to keep the directory under a
+ * size limit.
+ */
+final class CacheDirectory {
+    final static String METADATA_SUFFIX = ".cache";
+    final static String TREE_SUFFIX = ".snapshot";
+    final static String INDEX_SUFFIX = ".index";
+
+    private CacheDirectory() {
+    }
+
+    /**
+     * Lists the cache files, least recently used first
+     * @param cachePath
+     * @return the files
+     */
+    static List<Path> list(String cachePath) throws IOException {
+        Path directory = Paths.get(cachePath);
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths
+                    .filter(path -> path.toString().endsWith(METADATA_SUFFIX) || path.toString().endsWith(TREE_SUFFIX) ||
+                            path.toString().endsWith(INDEX_SUFFIX))
+                    .sorted(Comparator.comparing(CacheDirectory::getLastUsed))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Marks a cache file as just used
+     * @param file
+     */
+    static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ioe) {
+            // only affects the eviction order
+        }
+    }
+
+    static long getLastUsed(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException ioe) {
+            return 0L;
+        }
+    }
+
+    static long getSize(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ioe) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Deletes the least recently used cache files until the total size is within the limit
+     * @param cachePath
+     * @param maxSize the limit in bytes
+     * @return the number of files deleted
+     */
+    static int prune(String cachePath, long maxSize) throws IOException {
+        List<Path> files = list(cachePath);
+        long totalSize = 0;
+        for (Path file : files) {
+            totalSize += getSize(file);
+        }
+
+        int count = 0;
+        Iterator<Path> iterator = files.iterator();
+        while (totalSize > maxSize && iterator.hasNext()) {
+            Path file = iterator.next();
+            totalSize -= getSize(file);
+            Files.deleteIfExists(file);
+            count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * Deletes all the cache files
+     * @param cachePath
+     * @return the number of files deleted
+     */
+    static int clear(String cachePath) throws IOException {
+        return prune(cachePath, -1L);
+    }
+}
@@ -0,0 +1,283 @@
+package network.artic.clusterfunk.commands;
+
+import network.artic.clusterfunk.FormatType;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Periodic checkpoints of a command that processes the trees of a file one at a time (such as cluster or
+ * tmrca over a posterior sample) so it can be resumed after a crash. A checkpoint records the trees processed
+ * so far, the byte offset in the input file after the last of them and the length of each output file at
+ * that point. The outputs are flushed to disk before the checkpoint is written, and it is written to a
+ * temporary file and moved into place, so a checkpoint never refers to output that may have been lost.
+ *
+ * To resume, each output file is cut back to its length at the checkpoint and appended to, and the trees
+ * already processed are skipped without being parsed. When a NEXUS tree file is appended to, the header
+ * (taxa and translate blocks) the new exporter writes is dropped as the file already has it. Auspice output
+ * is a single JSON object so can't be resumed.
+ */
+final class Checkpoint {
+    private final static String FILE_SUFFIX = ".checkpoint";
+
+    /**
+     * Gets a checkpoint for a command that writes the output file given
+     * @param outputFileName the main output file - the checkpoint file is kept next to it
+     * @param interval the time between checkpoints in milliseconds
+     * @param resume resume from the last checkpoint if there is one
+     * @return the checkpoint
+     */
+    static Checkpoint open(String outputFileName, long interval, boolean resume) throws IOException {
+        Checkpoint checkpoint = new Checkpoint(Paths.get(outputFileName + FILE_SUFFIX), interval);
+        if (resume && Files.exists(checkpoint.file)) {
+            checkpoint.read();
+        }
+        return checkpoint;
+    }
+
+    private Checkpoint(Path file, long interval) {
+        this.file = file;
+        this.interval = interval;
+    }
+
+    /**
+     * @return true if resuming from an earlier checkpoint
+     */
+    boolean isResumed() {
+        return state != null;
+    }
+
+    /**
+     * @return true if resuming a run that had finished (so there is nothing to do)
+     */
+    boolean isComplete() {
+        return state != null && Boolean.parseBoolean(state.getProperty("complete"));
+    }
+
+    /**
+     * @return the number of trees already processed (0 if not resuming)
+     */
+    int getTreeCount() {
+        return state != null ? Integer.parseInt(state.getProperty("trees")) : 0;
+    }
+
+    /**
+     * Records the input file, checking that it is the one the checkpoint was made from when resuming
+     * @param treeFileName
+     * @param offset the byte offset after the last tree processed (when resuming)
+     */
+    void setInput(String treeFileName, long offset) throws IOException {
+        File treeFile = new File(treeFileName);
+        if (state != null && (
+                !treeFile.getCanonicalPath().equals(state.getProperty("input")) ||
+                treeFile.length() != Long.parseLong(state.getProperty("input.size")) ||
+                treeFile.lastModified() != Long.parseLong(state.getProperty("input.modified")) ||
+                offset != Long.parseLong(state.getProperty("input.offset")))) {
+            throw new IOException("the input file, " + treeFileName + ", is not the one the checkpoint was made from");
+        }
+        this.treeFile = treeFile;
+        this.treeCount = getTreeCount();
+        this.offset = offset;
+        this.lastTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Opens a text output file - when resuming it is cut back to its length at the checkpoint and appended to.
+     * @param fileName
+     * @return the writer
+     */
+    Writer openOutput(String fileName) throws IOException {
+        return openOutput(fileName, 0);
+    }
+
+    /**
+     * Opens a tree output file - when resuming it is cut back to its length at the checkpoint and appended to.
+     * @param fileName
+     * @param format
+     * @return the writer for the exporter
+     */
+    Writer openTreeOutput(String fileName, FormatType format) throws IOException {
+        if (format == FormatType.AUSPICE) {
+            throw new IOException("checkpoints can't be used with auspice output");
+        }
+        long headerLength = 0;
+        if (state != null && format == FormatType.NEXUS) {
+            headerLength = getNexusHeaderLength(fileName);
+        }
+        return openOutput(fileName, headerLength);
+    }
+
+    private Writer openOutput(String fileName, long skipLength) throws IOException {
+        int index = outputs.size();
+        FileOutputStream stream;
+        if (state != null) {
+            String position = state.getProperty("output." + index);
+            if (position == null || !new File(fileName).getCanonicalPath().equals(state.getProperty("output." + index + ".file"))) {
+                throw new IOException("the output file, " + fileName + ", is not one the checkpoint was made with");
+            }
+            long length = Long.parseLong(position);
+            stream = new FileOutputStream(fileName, true);
+            if (stream.getChannel().size() < length) {
+                stream.close();
+                throw new IOException("the output file, " + fileName + ", is shorter than at the checkpoint");
+            }
+            stream.getChannel().truncate(length);
+        } else {
+            stream = new FileOutputStream(fileName);
+        }
+
+        Output output = new Output(fileName, stream,
+                new BufferedWriter(new OutputStreamWriter(new SkipOutputStream(stream, skipLength))));
+        outputs.add(output);
+        return output.writer;
+    }
+
+    /**
+     * Writes a checkpoint if the interval has passed since the last one
+     * @param treeCount the number of trees processed
+     * @param offset the byte offset in the input file after the last tree processed
+     */
+    void update(int treeCount, long offset) throws IOException {
+        this.treeCount = treeCount;
+        this.offset = offset;
+        long time = System.currentTimeMillis();
+        if (time - lastTime >= interval) {
+            write(false);
+            lastTime = time;
+        }
+    }
+
+    /**
+     * Records that all the trees have been processed. Called once the outputs have been closed.
+     */
+    void complete() throws IOException {
+        write(true);
+    }
+
+    private void write(boolean isComplete) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("input", treeFile.getCanonicalPath());
+        properties.setProperty("input.size", Long.toString(treeFile.length()));
+        properties.setProperty("input.modified", Long.toString(treeFile.lastModified()));
+        properties.setProperty("input.offset", Long.toString(offset));
+        properties.setProperty("trees", Integer.toString(treeCount));
+        properties.setProperty("complete", Boolean.toString(isComplete));
+        for (int i = 0; i < outputs.size(); i++) {
+            Output output = outputs.get(i);
+            if (!isComplete) {
+                output.writer.flush();
+                output.stream.getFD().sync();
+            }
+            properties.setProperty("output." + i + ".file", new File(output.fileName).getCanonicalPath());
+            properties.setProperty("output." + i, Long.toString(new File(output.fileName).length()));
+        }
+
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmpFile = Files.createTempFile(parent, "checkpoint", ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmpFile.toFile())) {
+                properties.store(out, "jclusterfunk checkpoint");
+                out.getFD().sync();
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private void read() throws IOException {
+        state = new Properties();
+        try (InputStream in = new FileInputStream(file.toFile())) {
+            state.load(in);
+        }
+        if (state.getProperty("trees") == null || state.getProperty("input.offset") == null) {
+            throw new IOException("bad checkpoint file, " + file);
+        }
+    }
+
+    /**
+     * Finds the length of the header of a NEXUS file written by NexusExporter - everything before the line
+     * of the first tree statement.
+     */
+    private static long getNexusHeaderLength(String fileName) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(fileName))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long lineStart = 0;
+            long position = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b == '\n') {
+                    String text = new String(line.toByteArray(), StandardCharsets.UTF_8).trim().toLowerCase();
+                    if (text.startsWith("tree ") || text.startsWith("utree ")) {
+                        return lineStart;
+                    }
+                    line.reset();
+                    lineStart = position;
+                } else if (line.size() < 16) {
+                    line.write(b);
+                }
+            }
+        }
+        throw new IOException("no trees found in the output file, " + fileName);
+    }
+
+    /**
+     * Discards the first bytes written to it
+     */
+    private static final class SkipOutputStream extends FilterOutputStream {
+        SkipOutputStream(OutputStream out, long skipLength) {
+            super(out);
+            this.skipLength = skipLength;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (skipLength > 0) {
+                skipLength--;
+            } else {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int skip = (int)Math.min(skipLength, len);
+            skipLength -= skip;
+            if (len > skip) {
+                out.write(b, off + skip, len - skip);
+            }
+        }
+
+        private long skipLength;
+    }
+
+    private static final class Output {
+        Output(String fileName, FileOutputStream stream, Writer writer) {
+            this.fileName = fileName;
+            this.stream = stream;
+            this.writer = writer;
+        }
+
+        final String fileName;
+        final FileOutputStream stream;
+        final Writer writer;
+    }
+
+    private final Path file;
+    private final long interval;
+    private final List<Output> outputs = new ArrayList<>();
+
+    private Properties state = null;
+    private File treeFile = null;
+    private int treeCount = 0;
+    private long offset = 0;
+    private long lastTime;
+}
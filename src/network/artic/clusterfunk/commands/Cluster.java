@@ -8,8 +8,10 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Finds and annotates monophyletic clusters of taxa have the specified annotation value. The cluster number
@@ -25,13 +27,14 @@ public class Cluster extends Command {
                    String clusterName,
                    String clusterPrefix,
                    final int maxChildLevel,
+                   Settings settings,
                    boolean isVerbose) {
 
-        super(null, null, null, 0, null, isVerbose);
+        super(null, null, null, 0, null, settings, isVerbose);
 
-        if (outputFormat != FormatType.NEXUS) {
-            errorStream.println("Tree annotations are only compatible with NEXUS output format");
-            System.exit(1);
+        if (outputFormat != FormatType.NEXUS && outputFormat != FormatType.AUSPICE) {
+            errorStream.println("Tree annotations are only compatible with NEXUS or AUSPICE output format");
+            exit(1);
         }
 
         if (isVerbose) {
@@ -39,19 +42,26 @@ public class Cluster extends Command {
             outStream.println();
         }
 
+        Checkpoint checkpoint = openCheckpoint(outputFileName);
+        if (checkpoint != null && checkpoint.isComplete()) {
+            return;
+        }
+
         PrintWriter tmpWriter = null;
         if (outputMetadataFileName != null) {
             try {
-                tmpWriter = new PrintWriter(Files.newBufferedWriter(Paths.get(outputMetadataFileName)));
+                tmpWriter = new PrintWriter(checkpoint != null ?
+                        checkpoint.openOutput(outputMetadataFileName) :
+                        Files.newBufferedWriter(Paths.get(outputMetadataFileName)));
             } catch (IOException ioe) {
                 errorStream.println("Error opening output file: " + ioe.getMessage());
-                System.exit(1);
+                exit(1);
             }
         }
 
         final PrintWriter outputMetadataWriter = tmpWriter;
 
-        if (outputMetadataWriter != null) {
+        if (outputMetadataWriter != null && (checkpoint == null || !checkpoint.isResumed())) {
             outputMetadataWriter.print("tree");
             outputMetadataWriter.print("\t");
             outputMetadataWriter.print("tip");
@@ -63,7 +73,7 @@ public class Cluster extends Command {
 
         }
 
-        processTrees(treeFileName, outputFileName, outputFormat, tree -> {
+        processTrees(treeFileName, outputFileName, outputFormat, checkpoint, tree -> {
             Map<Object, Double> tmrcaMap = annotateClusters(tree, annotationName, annotationValue, clusterName, clusterPrefix, maxChildLevel);
 
             if (outputMetadataWriter != null) {
@@ -71,7 +81,7 @@ public class Cluster extends Command {
                     Object value = tip.getAttribute(annotationName);
                     if (value == null) {
                         errorStream.println("Tip, " + tree.getTaxon(tip).getName() + ", missing '" + annotationName + "' attribute");
-                        System.exit(1);
+                        exit(1);
                     }
 
 
@@ -79,13 +89,13 @@ public class Cluster extends Command {
                         Object cluster = tip.getAttribute(clusterName);
                         if (cluster == null) {
                             errorStream.println("Tip, " + tree.getTaxon(tip).getName() + ", missing cluster ('" + clusterName + "') attribute");
-                            System.exit(1);
+                            exit(1);
                         }
 
                         Double tmrca = tmrcaMap.get(cluster);
                         if (tmrca == null) {
                             errorStream.println("TMRCA missing for cluster ('" + cluster + "')");
-                            System.exit(1);
+                            exit(1);
                         }
 
                         outputMetadataWriter.print(tree.getAttribute("name"));
@@ -106,66 +116,137 @@ public class Cluster extends Command {
             outputMetadataWriter.close();
         }
 
+        if (checkpoint != null) {
+            completeCheckpoint(checkpoint);
+        }
     }
 
     /**
      * When ever a change in the value of a given attribute occurs at a node, creates a new cluster number and annotates
      * descendents with that cluster number.
+     *
+     * Done in two passes so subtrees can be done in parallel: a post-order pass counts the cluster starts in each
+     * subtree and then a pre-order pass numbers them, offsetting each child by the starts in its earlier siblings, so
+     * the numbers are the same as a single pre-order pass.
      * @param tree
      * @param attributeName
      */
     Map<Object, Double> annotateClusters(RootedTree tree, String attributeName, Object attributeValue, String clusterAttributeName,
                                          String clusterPrefix, int maxChildLevel) {
 
-        Map<Object, Double> tmrcaMap = new HashMap<Object, Double>();
-        annotateClusters(tree, tree.getRootNode(), attributeName, attributeValue, null,
-                clusterAttributeName, clusterPrefix, null, maxChildLevel,
-                new HashMap<Object, Integer>(),
-                tmrcaMap);
+        Map<Object, Double> tmrcaMap = new ConcurrentHashMap<Object, Double>();
+
+        TreeExecutor executor = new TreeExecutor(tree, settings.getThreads());
+
+        executor.postOrder((Node node, List<Integer> childCounts) -> countClusterStarts(tree, node, childCounts, attributeName, attributeValue));
+
+        executor.preOrder(new ClusterState(null, null, 1), (node, state, children) ->
+                annotateClusters(tree, node, state, children, attributeName, attributeValue, clusterAttributeName, clusterPrefix, tmrcaMap));
+
         return tmrcaMap;
     }
 
     /**
-     * recursive version
+     * Counts the nodes below this one that start a cluster and stores it in the node.
      * @param tree
      * @param node
+     * @param childCounts
      * @param attributeName
-     * @param parentValue
+     * @param attributeValue
+     * @return the count
      */
-    private void annotateClusters(RootedTree tree, Node node, String attributeName, Object attributeValue, Object parentValue,
-                                  String clusterAttributeName, String clusterPrefix, String currentClusterName, int maxChildLevel,
-                                  Map<Object, Integer> countMap, Map<Object, Double> tmrcaMap) {
+    private Integer countClusterStarts(RootedTree tree, Node node, List<Integer> childCounts, String attributeName, Object attributeValue) {
+        Object value = getClusterAttribute(node, attributeName);
 
-        Object value = node.getAttribute(attributeName);
-        if (value == null) {
-            errorStream.println("Node in tree is missing '" + attributeName + "' attribute");
-            System.exit(1);
+        int count = 0;
+        if (!childCounts.isEmpty()) {
+            int i = 0;
+            for (Node child : tree.getChildren(node)) {
+                count += childCounts.get(i);
+                if (isClusterStart(getClusterAttribute(child, attributeName), value, attributeValue)) {
+                    count += 1;
+                }
+                i++;
+            }
+            node.setAttribute(CLUSTER_STARTS, count);
         }
 
-        if (attributeValue.equals(value)) {
-            if (!value.equals(parentValue)) {
+        return count;
+    }
 
-                Integer count = countMap.getOrDefault(value, 0);
-                count += 1;
+    /**
+     * Annotates the node with the cluster name and gives the state for each child.
+     * @param tree
+     * @param node
+     * @param state
+     * @param children
+     * @return the child states
+     */
+    private List<ClusterState> annotateClusters(RootedTree tree, Node node, ClusterState state, List<Node> children,
+                                                String attributeName, Object attributeValue, String clusterAttributeName,
+                                                String clusterPrefix, Map<Object, Double> tmrcaMap) {
+        Object value = getClusterAttribute(node, attributeName);
+
+        String currentClusterName = state.clusterName;
+        int nextNumber = state.nextNumber;
+
+        if (attributeValue.equals(value)) {
+            if (!value.equals(state.parentValue)) {
                 if (clusterPrefix != null) {
-                    currentClusterName = clusterPrefix + count;
+                    currentClusterName = clusterPrefix + nextNumber;
                 } else {
-                    currentClusterName = "" + count;
+                    currentClusterName = "" + nextNumber;
                 }
+                nextNumber += 1;
 
-                countMap.put(value, count);
                 tmrcaMap.put(currentClusterName, tree.getHeight(node));
             }
 
             node.setAttribute(clusterAttributeName, currentClusterName);
         }
 
-        if (!tree.isExternal(node)) {
-            for (Node child : tree.getChildren(node)) {
-                annotateClusters(tree, child, attributeName, attributeValue, value, clusterAttributeName, clusterPrefix, currentClusterName, maxChildLevel, countMap, tmrcaMap);
+        List<ClusterState> childStates = new ArrayList<>();
+        for (Node child : children) {
+            childStates.add(new ClusterState(value, currentClusterName, nextNumber));
+            if (isClusterStart(getClusterAttribute(child, attributeName), value, attributeValue)) {
+                nextNumber += 1;
+            }
+            Object count = child.getAttribute(CLUSTER_STARTS);
+            if (count != null) {
+                nextNumber += (Integer)count;
             }
         }
+        node.removeAttribute(CLUSTER_STARTS);
+
+        return childStates;
+    }
+
+    private static boolean isClusterStart(Object value, Object parentValue, Object attributeValue) {
+        return attributeValue.equals(value) && !value.equals(parentValue);
     }
 
+    private Object getClusterAttribute(Node node, String attributeName) {
+        Object value = node.getAttribute(attributeName);
+        if (value == null) {
+            errorStream.println("Node in tree is missing '" + attributeName + "' attribute");
+            exit(1);
+        }
+        return value;
+    }
+
+    private static class ClusterState {
+        ClusterState(Object parentValue, String clusterName, int nextNumber) {
+            this.parentValue = parentValue;
+            this.clusterName = clusterName;
+            this.nextNumber = nextNumber;
+        }
+
+        final Object parentValue;
+        final String clusterName;
+        final int nextNumber;
+    }
+
+    private final static String CLUSTER_STARTS = "!cluster_starts";
+
 }
 
@@ -1,7 +1,6 @@
 package network.artic.clusterfunk.commands;
 
 import jebl.evolution.graphs.Node;
-import jebl.evolution.trees.MutableRootedTree;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
 
@@ -13,28 +12,25 @@ public class Collapse extends Command {
                     String outputPath,
                     FormatType outputFormat,
                     double branchThreshold,
+                    Settings settings,
                     boolean isVerbose) {
 
-        super(isVerbose);
+        super(settings, isVerbose);
 
         if (branchThreshold <= 0.0) {
             errorStream.println("Branch length threshold value should be > 0.0");
-            System.exit(1);
+            exit(1);
         }
 
         RootedTree tree = readTree(treeFileName);
 
-        MutableRootedTree outTree = new MutableRootedTree(tree);
+        LinkedRootedTree outTree = new LinkedRootedTree(tree);
 
         int count = 0;
         for (Node node : outTree.getInternalNodes()) {
             if (outTree.getLength(node) < branchThreshold) {
-                Node parent = outTree.getParent(node);
-                if (parent != null) {
-                    outTree.removeChild(node, parent);
-                    for (Node child : outTree.getChildren(node)) {
-                        outTree.addChild(child, parent);
-                    }
+                if (!outTree.isRoot(node)) {
+                    outTree.collapseNode(node);
                     count += 1;
                 }
 
@@ -14,8 +14,8 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.SecureRandom;
 import java.util.*;
+import java.util.function.Consumer;
 
 import static java.util.stream.Collectors.toMap;
 
@@ -24,6 +24,7 @@ import static java.util.stream.Collectors.toMap;
  */
 abstract class Command {
     final boolean isVerbose;
+    final Settings settings;
     final static PrintStream errorStream = System.err;
     final static PrintStream outStream = System.out;
 
@@ -31,16 +32,20 @@ abstract class Command {
     final int indexHeader;
     final String headerDelimiter;
 
-    Map<String, CSVRecord> metadata = null;
-    CSVRecord headerRecord = null;
+    Map<String, MetadataRecord> metadata = null;
+    MetadataRecord headerRecord = null;
     Set<String> taxa = null;
 
+    // the taxa created by this command (rather than by the tree importers)
+    final TaxonRegistry taxonRegistry = new TaxonRegistry();
+
     /**
      * Simple constructor
+     * @param settings
      * @param isVerbose
      */
-    public Command(boolean isVerbose) {
-        this(null, null, null, 0, null, isVerbose);
+    public Command(Settings settings, boolean isVerbose) {
+        this(null, null, null, 0, null, settings, isVerbose);
     }
 
     /**
@@ -50,9 +55,10 @@ abstract class Command {
      * @param indexColumn
      * @param indexHeader
      * @param headerDelimiter
+     * @param settings
      * @param isVerbose
      */
-    Command(String metadataFileName, String taxaFileName, String indexColumn, int indexHeader, String headerDelimiter, boolean isVerbose) {
+    Command(String metadataFileName, String taxaFileName, String indexColumn, int indexHeader, String headerDelimiter, Settings settings, boolean isVerbose) {
         this.indexColumn = indexColumn;
         this.indexHeader = indexHeader;
         if ("|".equals(headerDelimiter)) {
@@ -62,6 +68,7 @@ abstract class Command {
         }
 
         this.isVerbose = isVerbose;
+        this.settings = settings;
 
         if (metadataFileName != null) {
             readMetadataTable(metadataFileName, indexColumn);
@@ -72,6 +79,15 @@ abstract class Command {
         }
     }
 
+    /**
+     * Stops the command (the reason should have been written to errorStream). Throws rather than exiting the
+     * process - see CommandFailedException.
+     * @param status the exit status
+     */
+    static void exit(int status) {
+        throw new CommandFailedException(status);
+    }
+
     private void readMetadataTable(String metadataFileName, String indexColumn) {
         metadata = readCSV(metadataFileName, indexColumn);
         taxa = metadata.keySet();
@@ -79,7 +95,7 @@ abstract class Command {
         if (isVerbose) {
             outStream.println("Read metadata table: " + metadataFileName);
             outStream.println("               Rows: " + metadata.size());
-            outStream.println("       Index column: " + (indexColumn == null ? headerRecord.getParser().getHeaderNames().get(0) : indexColumn));
+            outStream.println("       Index column: " + (indexColumn == null ? headerRecord.getHeaderNames().get(0) : indexColumn));
             outStream.println();
         }
     }
@@ -100,18 +116,30 @@ abstract class Command {
             }
 
             if (importer != null) {
-                RootedTree tree = (RootedTree) importer.importNextTree();
-                taxa = new HashSet<>(getTaxonMap(tree).values());
+                List<String> taxonNames = null;
+                Path snapshotFile = getTreeSnapshotFile(taxaFileName, false);
+                if (snapshotFile != null) {
+                    taxonNames = TreeCache.readTaxa(snapshotFile);
+                    if (taxonNames == null) {
+                        taxonNames = TreeCache.readTaxa(getTreeSnapshotFile(taxaFileName, true));
+                    }
+                }
+                if (taxonNames != null) {
+                    taxa = new HashSet<>(getTaxonMap(taxonNames).values());
+                } else {
+                    RootedTree tree = (RootedTree) importer.importNextTree();
+                    taxa = new HashSet<>(getTaxonMap(tree).values());
+                }
             } else {
                 taxa = readCSV(taxaFileName, indexColumn).keySet();
             }
 
         } catch (IOException ioe) {
             errorStream.println("Error reading taxon file, " + taxaFileName + ": " + ioe.getMessage());
-            System.exit(1);
+            exit(1);
         } catch (ImportException ie) {
             errorStream.println("Error parsing taxon file, " + taxaFileName + ": " + ie.getMessage());
-            System.exit(1);
+            exit(1);
         }
 
 
@@ -122,8 +150,141 @@ abstract class Command {
         }
     }
 
+    /**
+     * Gets the cache snapshot file for a tree file from its content hash
+     * @param treeFileName
+     * @param isFirstTree get the snapshot of just the first tree
+     * @return the snapshot file or null if there is no cache directory
+     */
+    private Path getTreeSnapshotFile(String treeFileName, boolean isFirstTree) {
+        String cachePath = settings.getCachePath();
+        if (cachePath == null) {
+            return null;
+        }
+        try {
+            String contentHash = TreeCache.getContentHash(treeFileName);
+            return isFirstTree ?
+                    TreeCache.getFirstTreeSnapshotFile(cachePath, contentHash) :
+                    TreeCache.getSnapshotFile(cachePath, contentHash);
+        } catch (IOException ioe) {
+            errorStream.println("Error reading tree file, " + treeFileName + ": " + ioe.getMessage());
+            exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the first tree from a tree file (or the first selected tree if a burn-in, thinning or tree names
+     * have been set). Only that tree is parsed. If the file is being cached the tree is taken from a snapshot
+     * of the file if there is one, otherwise a snapshot of just the first tree is read or made.
+     * @param treeFileName
+     * @return the tree
+     */
     final RootedTree readTree(String treeFileName) {
-        return readTrees(treeFileName).get(0);
+        if (isVerbose) {
+            outStream.println("Reading treefile: " + treeFileName);
+        }
+
+        RootedTree tree = null;
+        Path snapshotFile = null;
+        if (!settings.isTreeSelection()) {
+            snapshotFile = getTreeSnapshotFile(treeFileName, true);
+        }
+        if (snapshotFile != null) {
+            // a snapshot of the whole file, if another command has made one, has the first tree too
+            Path cachedFile = getTreeSnapshotFile(treeFileName, false);
+            tree = TreeCache.readFirstTree(cachedFile, taxonRegistry);
+            if (tree == null) {
+                cachedFile = snapshotFile;
+                tree = TreeCache.readFirstTree(cachedFile, taxonRegistry);
+            }
+            if (tree != null && isVerbose) {
+                outStream.println("   Read from cache: " + cachedFile.getFileName());
+            }
+        }
+
+        if (tree == null) {
+            try {
+                FormatType format = getTreeFileType(treeFileName);
+
+                if (settings.isTreeSelection()) {
+                    try (TreeSource source = new TreeSource(treeFileName, format, settings.getCachePath())) {
+                        List<Integer> selected = selectTrees(source, format);
+                        tree = source.getTree(selected.get(0));
+                    }
+                } else {
+                    TreeImporter importer = format == FormatType.NEXUS ?
+                            new NexusImporter(Progress.openReader(treeFileName)) :
+                            new NewickImporter(Progress.openReader(treeFileName), false);
+                    tree = (RootedTree) importer.importNextTree();
+                }
+            } catch (IOException ioe) {
+                errorStream.println("Error reading tree file, " + treeFileName + ": " + ioe.getMessage());
+                exit(1);
+            } catch (ImportException ie) {
+                errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
+                exit(1);
+            }
+
+            if (snapshotFile != null) {
+                writeFirstTreeSnapshot(tree, snapshotFile, treeFileName);
+            }
+        }
+
+        tree = storeTree(tree);
+
+        if (isVerbose) {
+            outStream.println("  Number of tips: " + tree.getExternalNodes().size());
+            outStream.println();
+        }
+
+        return tree;
+    }
+
+    private void writeFirstTreeSnapshot(RootedTree tree, Path snapshotFile, String treeFileName) {
+        try (TreeCache.SnapshotWriter snapshotWriter = new TreeCache.SnapshotWriter(snapshotFile, treeFileName)) {
+            snapshotWriter.add(tree);
+        } catch (IOException ioe) {
+            errorStream.println("Unable to write tree cache for: " + treeFileName);
+        }
+        try {
+            CacheDirectory.prune(settings.getCachePath(), settings.getCacheSize());
+        } catch (IOException ioe) {
+            errorStream.println("Unable to prune cache directory: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Moves a tree that has been read into the storage set for trees (see Settings.setTreeStorage). If a genome
+     * length has been set the succinct tree keeps the number of substitutions on each branch as well as the
+     * lengths; the other storage keeps just the lengths and they are rounded when compared (see getSnps).
+     * @param tree
+     * @return the stored tree
+     */
+    private RootedTree storeTree(RootedTree tree) {
+        switch (settings.getTreeStorage()) {
+            case OFF_HEAP:
+                return new OffHeapRootedTree(tree, settings.getTreeScratchPath());
+            case SUCCINCT:
+                return new SuccinctRootedTree(tree, settings.getGenomeLength());
+            default:
+                return tree;
+        }
+    }
+
+    /**
+     * Gets the length of a node's branch as a whole number of substitutions (see Settings.setGenomeLength). A
+     * succinct tree keeps these counts, otherwise it is the length multiplied by the genome length and rounded.
+     * The tree's lengths are left as they are.
+     * @param tree
+     * @param node
+     * @return the number of substitutions
+     */
+    int getSnps(RootedTree tree, Node node) {
+        if (tree instanceof SuccinctRootedTree && ((SuccinctRootedTree)tree).hasSnps()) {
+            return ((SuccinctRootedTree)tree).getBranchSnps(node);
+        }
+        return (int)Math.round(tree.getLength(node) * settings.getGenomeLength());
     }
 
     final List<RootedTree> readTrees(String treeFileName) {
@@ -133,30 +294,69 @@ abstract class Command {
             outStream.println("Reading treefile: " + treeFileName);
         }
 
-        try {
-            TreeImporter importer = null;
+        Path snapshotFile = getTreeSnapshotFile(treeFileName, false);
+        if (snapshotFile != null) {
+            List<RootedTree> cachedTrees = TreeCache.readTrees(snapshotFile, taxonRegistry);
+            if (cachedTrees != null) {
+                if (isVerbose) {
+                    outStream.println("   Read from cache: " + snapshotFile.getFileName());
+                }
+                for (RootedTree tree : cachedTrees) {
+                    trees.add(storeTree(tree));
+                }
+            }
+        }
 
-            FormatType format = getTreeFileType(new FileReader(treeFileName));
+        if (trees.isEmpty()) {
+            TreeCache.SnapshotWriter snapshotWriter = null;
+            try {
+                TreeImporter importer = null;
 
-            if (format == FormatType.NEXUS) {
-                importer = new NexusImporter(new FileReader(treeFileName));
-            } else if (format == FormatType.NEWICK) {
-                importer = new NewickImporter(new FileReader(treeFileName), false);
-            } else {
-                errorStream.println("Unrecognised tree format in file, " + treeFileName);
-                System.exit(1);
-            }
+                FormatType format = getTreeFileType(new FileReader(treeFileName));
 
-            while (importer.hasTree()) {
-                trees.add((RootedTree) importer.importNextTree());
+                if (format == FormatType.NEXUS) {
+                    importer = new NexusImporter(Progress.openReader(treeFileName));
+                } else if (format == FormatType.NEWICK) {
+                    importer = new NewickImporter(Progress.openReader(treeFileName), false);
+                } else {
+                    errorStream.println("Unrecognised tree format in file, " + treeFileName);
+                    exit(1);
+                }
+
+                if (snapshotFile != null) {
+                    snapshotWriter = new TreeCache.SnapshotWriter(snapshotFile, treeFileName);
+                }
+
+                while (importer.hasTree()) {
+                    RootedTree tree = (RootedTree) importer.importNextTree();
+                    if (snapshotWriter != null) {
+                        snapshotWriter.add(tree);
+                    }
+                    // move each tree to its storage as it is read so only one is on the heap at a time
+                    trees.add(storeTree(tree));
+                    Progress.addTreeProcessed();
+                }
+
+            } catch (IOException ioe) {
+                errorStream.println("Error reading tree file, " + treeFileName + ": " + ioe.getMessage());
+                exit(1);
+            } catch (ImportException ie) {
+                errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
+                exit(1);
             }
 
-        } catch (IOException ioe) {
-            errorStream.println("Error reading tree file, " + treeFileName + ": " + ioe.getMessage());
-            System.exit(1);
-        } catch (ImportException ie) {
-            errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
-            System.exit(1);
+            if (snapshotWriter != null) {
+                try {
+                    snapshotWriter.close();
+                } catch (IOException ioe) {
+                    errorStream.println("Unable to write tree cache for: " + treeFileName);
+                }
+                try {
+                    CacheDirectory.prune(settings.getCachePath(), settings.getCacheSize());
+                } catch (IOException ioe) {
+                    errorStream.println("Unable to prune cache directory: " + ioe.getMessage());
+                }
+            }
         }
 
         if (isVerbose) {
@@ -175,6 +375,18 @@ abstract class Command {
     }
 
     final void processTrees(String treeFileName, String outputFileName, FormatType outputFormat, TreeFunction function) {
+        processTrees(treeFileName, outputFileName, outputFormat, null, function);
+    }
+
+    /**
+     * Passes each (selected) tree of a file to the function and writes the trees it returns to the output file
+     * @param treeFileName
+     * @param outputFileName the output tree file (null for none)
+     * @param outputFormat
+     * @param checkpoint writes checkpoints as the trees are processed and resumes from the last (null for none)
+     * @param function
+     */
+    final void processTrees(String treeFileName, String outputFileName, FormatType outputFormat, Checkpoint checkpoint, TreeFunction function) {
 
         if (isVerbose) {
             outStream.println("  Reading treefile: " + treeFileName);
@@ -182,32 +394,41 @@ abstract class Command {
 
         TreeImporter importer = null;
         TreeExporter exporter = null;
+        TreeSource source = null;
+        List<Integer> selected = null;
 
         try {
 
-            FormatType format = getTreeFileType(new FileReader(treeFileName));
+            FormatType format = getTreeFileType(treeFileName);
 
-            if (format == FormatType.NEXUS) {
-                importer = new NexusImporter(new FileReader(treeFileName));
-            } else if (format == FormatType.NEWICK) {
-                importer = new NewickImporter(new FileReader(treeFileName), false);
+            if (settings.isTreeSelection() || settings.isSharded() || checkpoint != null) {
+                // only the selected trees are passed to the importer
+                source = new TreeSource(treeFileName, format, settings.getCachePath());
+                selected = selectTrees(source, format);
+                if (checkpoint != null) {
+                    selected = resumeTrees(source, selected, treeFileName, checkpoint);
+                }
+                importer = source.getImporter(selected);
+            } else if (format == FormatType.NEXUS) {
+                importer = new NexusImporter(Progress.openReader(treeFileName));
             } else {
-                errorStream.println("Unrecognised tree format in file, " + treeFileName);
-                System.exit(1);
+                importer = new NewickImporter(Progress.openReader(treeFileName), false);
             }
         } catch (IOException ioe) {
             errorStream.println("Error reading tree file: " + ioe.getMessage());
-            System.exit(1);
+            exit(1);
         }
 
-        FileWriter writer = null;
+        Writer writer = null;
 
         if (outputFileName != null) {
             try {
                 if (isVerbose) {
                     outStream.println("  Writing treefile: " + outputFileName);
                 }
-                writer = new FileWriter(outputFileName);
+                writer = checkpoint != null ?
+                        checkpoint.openTreeOutput(outputFileName, outputFormat) :
+                        new FileWriter(outputFileName);
 
                 switch (outputFormat) {
                     case NEXUS:
@@ -216,13 +437,16 @@ abstract class Command {
                     case NEWICK:
                         exporter = new NewickExporter(writer);
                         break;
+                    case AUSPICE:
+                        exporter = new AuspiceExporter(writer);
+                        break;
                     default:
                         throw new IllegalArgumentException("Unknown format: " + outputFormat);
                 }
 
             } catch (IOException ioe) {
                 errorStream.println("Error writing tree file: " + ioe.getMessage());
-                System.exit(1);
+                exit(1);
             }
         }
 
@@ -234,7 +458,11 @@ abstract class Command {
                 if (exporter != null) {
                     exporter.exportTree(tree);
                 }
+                Progress.addTreeProcessed();
                 count++;
+                if (checkpoint != null) {
+                    checkpoint.update(checkpoint.getTreeCount() + count, source.getEnd(selected.get(count - 1)));
+                }
                 if (isVerbose && count % 100 == 0) {
                     outStream.println("Number of trees processed: " + count);
                 }
@@ -243,6 +471,9 @@ abstract class Command {
             if (exporter != null) {
                 exporter.close();
             }
+            if (source != null) {
+                source.close();
+            }
 
             if (isVerbose) {
                 outStream.println("Total trees processed: " + count);
@@ -251,17 +482,213 @@ abstract class Command {
 
         } catch (ImportException ie) {
             errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
-            System.exit(1);
+            exit(1);
         } catch (IOException ioe) {
             errorStream.println("Error processing tree file: " + ioe.getMessage());
-            System.exit(1);
+            exit(1);
+        }
+
+    }
+
+    /**
+     * Passes each (selected) tree of a file to the function as a TipTreeReader rather than a jebl tree. For
+     * commands that only need the topology and heights of many trees.
+     * @param treeFileName
+     * @param function
+     */
+    final void processTipTrees(String treeFileName, Consumer<TipTreeReader> function) {
+        processTipTrees(treeFileName, null, function);
+    }
+
+    /**
+     * Passes each (selected) tree of a file to the function as a TipTreeReader
+     * @param treeFileName
+     * @param checkpoint writes checkpoints as the trees are processed and resumes from the last (null for none)
+     * @param function
+     */
+    final void processTipTrees(String treeFileName, Checkpoint checkpoint, Consumer<TipTreeReader> function) {
+
+        if (isVerbose) {
+            outStream.println("  Reading treefile: " + treeFileName);
+        }
+
+        try {
+            FormatType format = getTreeFileType(treeFileName);
+
+            try (TreeSource source = new TreeSource(treeFileName, format, settings.getCachePath())) {
+                List<Integer> selected;
+                if (settings.isTreeSelection() || settings.isSharded()) {
+                    selected = selectTrees(source, format);
+                } else {
+                    selected = source.select(0, 1, null);
+                }
+                if (checkpoint != null) {
+                    selected = resumeTrees(source, selected, treeFileName, checkpoint);
+                }
+
+                TipTreeReader reader = new TipTreeReader(source);
+                int count = 0;
+                for (int index : selected) {
+                    reader.read(index);
+                    function.accept(reader);
+                    Progress.addNodesVisited(reader.getNodeCount());
+                    Progress.addTreeProcessed();
+
+                    count++;
+                    if (checkpoint != null) {
+                        checkpoint.update(checkpoint.getTreeCount() + count, source.getEnd(index));
+                    }
+                    if (isVerbose && count % 100 == 0) {
+                        outStream.println("Number of trees processed: " + count);
+                    }
+                }
+
+                if (isVerbose) {
+                    outStream.println("Total trees processed: " + count);
+                    outStream.println();
+                }
+            }
+        } catch (ImportException ie) {
+            errorStream.println("Error parsing tree file, " + treeFileName + ": " + ie.getMessage());
+            exit(1);
+        } catch (IOException ioe) {
+            errorStream.println("Error reading tree file: " + ioe.getMessage());
+            exit(1);
+        }
+    }
+
+    /**
+     * Gets the checkpoint for a command that processes the trees of a file, if checkpoints have been asked for.
+     * If resuming a run that finished, the command has nothing to do (see Checkpoint.isComplete).
+     * @param outputFileName the command's main output file (the checkpoint is written next to it)
+     * @return the checkpoint or null
+     */
+    final Checkpoint openCheckpoint(String outputFileName) {
+        if (settings.getCheckpointInterval() == 0) {
+            return null;
+        }
+        if (outputFileName == null) {
+            errorStream.println("Checkpoints need an output file");
+            exit(1);
+        }
+        try {
+            Checkpoint checkpoint = Checkpoint.open(outputFileName, settings.getCheckpointInterval(), settings.isResume());
+            if (checkpoint.isComplete()) {
+                outStream.println("Already complete: " + outputFileName);
+            }
+            return checkpoint;
+        } catch (IOException ioe) {
+            errorStream.println("Error reading checkpoint: " + ioe.getMessage());
+            exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Records that a command has finished, once its output files are closed
+     * @param checkpoint
+     */
+    final void completeCheckpoint(Checkpoint checkpoint) {
+        try {
+            checkpoint.complete();
+        } catch (IOException ioe) {
+            errorStream.println("Error writing checkpoint: " + ioe.getMessage());
+            exit(1);
         }
+    }
 
+    /**
+     * Skips the trees processed before the checkpoint
+     * @return the selected trees still to be processed
+     */
+    private List<Integer> resumeTrees(TreeSource source, List<Integer> selected, String treeFileName, Checkpoint checkpoint) throws IOException {
+        int treeCount = checkpoint.getTreeCount();
+        if (treeCount > selected.size()) {
+            errorStream.println("Unable to resume: the checkpoint is after the last of the trees selected");
+            exit(1);
+        }
+        try {
+            checkpoint.setInput(treeFileName, treeCount > 0 ? source.getEnd(selected.get(treeCount - 1)) : 0);
+        } catch (IOException ioe) {
+            errorStream.println("Unable to resume: " + ioe.getMessage());
+            exit(1);
+        }
+        if (isVerbose && checkpoint.isResumed()) {
+            outStream.println("  Resuming after tree: " + treeCount);
+        }
+        return selected.subList(treeCount, selected.size());
     }
 
+    /**
+     * Gets the format of a tree file, exiting if it is not a NEXUS or Newick file
+     * @param treeFileName
+     * @return the format
+     */
+    private FormatType getTreeFileType(String treeFileName) throws IOException {
+        FormatType format;
+        try (Reader reader = new FileReader(treeFileName)) {
+            format = getTreeFileType(reader);
+        }
+        if (format != FormatType.NEXUS && format != FormatType.NEWICK) {
+            errorStream.println("Unrecognised tree format in file, " + treeFileName);
+            exit(1);
+        }
+        return format;
+    }
 
+    /**
+     * Selects trees from a tree source using the burn-in, thinning, tree names and shard in the settings,
+     * exiting if a named tree is not found or no trees are selected.
+     * @param source
+     * @param format
+     * @return the indices of the selected trees
+     */
+    private List<Integer> selectTrees(TreeSource source, FormatType format) {
+        List<String> treeNames = settings.getTreeNames();
+        if (treeNames != null) {
+            if (format != FormatType.NEXUS) {
+                errorStream.println("Trees can only be selected by name in NEXUS files");
+                exit(1);
+            }
+            for (String name : treeNames) {
+                if (source.getTreeIndex(name) == -1) {
+                    errorStream.println("Tree, " + name + ", not found in tree file");
+                    exit(1);
+                }
+            }
+        }
+
+        List<Integer> selected = source.select(settings.getBurnin(), settings.getThin(), treeNames);
+        if (selected.isEmpty()) {
+            errorStream.println("No trees selected from the " + source.getTreeCount() + " in the tree file");
+            exit(1);
+        }
+
+        if (isVerbose) {
+            outStream.println("   Trees in file: " + source.getTreeCount());
+            outStream.println("  Trees selected: " + selected.size());
+        }
+
+        if (settings.isSharded()) {
+            // contiguous blocks so the shard outputs can be joined in order (see Gather)
+            int treeCount = selected.size();
+            int first = (int)((long)(settings.getShardIndex() - 1) * treeCount / settings.getShardCount());
+            int last = (int)((long)settings.getShardIndex() * treeCount / settings.getShardCount());
+            if (first == last) {
+                errorStream.println("No trees in shard " + settings.getShardIndex() + "/" + settings.getShardCount() +
+                        " of the " + treeCount + " selected");
+                exit(1);
+            }
+            selected = selected.subList(first, last);
+
+            if (isVerbose) {
+                outStream.println("  Trees in shard: " + selected.size());
+            }
+        }
+        return selected;
+    }
 
-    private FormatType getTreeFileType(Reader reader) throws IOException {
+    final FormatType getTreeFileType(Reader reader) throws IOException {
 //        String line = bufferedReader.readLine();
 //        while (line != null && line.length() == 0) {
 //            line = bufferedReader.readLine();
@@ -287,22 +714,36 @@ abstract class Command {
 
         for (Node tip : tree.getExternalNodes()) {
             Taxon taxon = tree.getTaxon(tip);
-            String index = taxon.getName();
-            if (indexHeader > 0) { // index header indexed from 1
-                // if an index header field has been specified then split it out (otherwise use the entire name)
-                String[] headers = taxon.getName().split(headerDelimiter);
-                if (indexHeader > headers.length) {
-                    errorStream.println("Tip name, " + taxon.getName() + ", doesn't have enough fields (index-header = " + indexHeader + ")");
-                    System.exit(1);
-                }
-                index = headers[indexHeader - 1];
-            }
-            taxonMap.put(taxon, index);
+            taxonMap.put(taxon, getTaxonIndex(taxon.getName()));
         }
 
         return taxonMap;
     }
 
+    final Map<Taxon, String> getTaxonMap(List<String> taxonNames) {
+        Map<Taxon, String> taxonMap = new HashMap<>();
+
+        for (String name : taxonNames) {
+            taxonMap.put(taxonRegistry.getTaxon(name), getTaxonIndex(name));
+        }
+
+        return taxonMap;
+    }
+
+    private String getTaxonIndex(String name) {
+        String index = name;
+        if (indexHeader > 0) { // index header indexed from 1
+            // if an index header field has been specified then split it out (otherwise use the entire name)
+            String[] headers = name.split(headerDelimiter);
+            if (indexHeader > headers.length) {
+                errorStream.println("Tip name, " + name + ", doesn't have enough fields (index-header = " + indexHeader + ")");
+                exit(1);
+            }
+            index = headers[indexHeader - 1];
+        }
+        return index;
+    }
+
 
     final Map<String, Node> getTipMap(RootedTree tree) {
         Map<String, Node> tipMap = new HashMap<>();
@@ -315,7 +756,7 @@ abstract class Command {
                 String[] headers = taxon.getName().split(headerDelimiter);
                 if (indexHeader > headers.length) {
                     errorStream.println("Tip name, " + taxon.getName() + ", doesn't have enough fields (index-header = " + indexHeader + ")");
-                    System.exit(1);
+                    exit(1);
                 }
                 index = headers[indexHeader - 1];
             }
@@ -399,7 +840,7 @@ abstract class Command {
                       String[] columnNames,
                       boolean ignoreMissing) {
 
-        for (Node tip : tree.getExternalNodes()) {
+        new TreeExecutor(tree, settings.getThreads()).forEach(tree.getExternalNodes(), tip -> {
             String key = taxonMap.get(tree.getTaxon(tip));
             String value = null;
             int i = 0;
@@ -411,18 +852,18 @@ abstract class Command {
             if (value != null) {
                 tip.setAttribute(annotationName, value);
             }
-        }
+        });
     }
 
     String getTipAnnotation(String tipIndex, String columnName, boolean ignoreMissing) {
-        CSVRecord record = metadata.get(tipIndex);
+        MetadataRecord record = metadata.get(tipIndex);
         if (record != null) {
             if (!record.get(columnName).isEmpty()) {
                 return record.get(columnName);
             }
         } else if (!ignoreMissing) {
             errorStream.println("Tip index, " + tipIndex + ", not found in metadata table");
-            System.exit(1);
+            exit(1);
         }
 
         return null;
@@ -440,6 +881,42 @@ abstract class Command {
         return count;
     }
 
+    /**
+     * The mean of the distances (sums of branch lengths) from a node to each of the tips it subtends.
+     * @param tree
+     * @param node
+     * @return the mean distance
+     */
+    static double getAverageTipDistance(RootedTree tree, Node node) {
+        return getTotalTipDistance(tree, node, 0.0) / countTips(tree, node);
+    }
+
+    private static double getTotalTipDistance(RootedTree tree, Node node, double distance) {
+        if (tree.isExternal(node)) {
+            return distance;
+        }
+
+        double total = 0.0;
+        for (Node child : tree.getChildren(node)) {
+            total += getTotalTipDistance(tree, child, distance + tree.getLength(child));
+        }
+        return total;
+    }
+
+    /**
+     * @param tree
+     * @return the sum of all the branch lengths in the tree
+     */
+    static double getTotalLength(RootedTree tree) {
+        double length = 0.0;
+        for (Node node : tree.getNodes()) {
+            if (!tree.isRoot(node)) {
+                length += tree.getLength(node);
+            }
+        }
+        return length;
+    }
+
     static int countTips(RootedTree tree, Node node, String attributeName, Object value) {
         if (tree.isExternal(node)) {
             return value.equals(node.getAttribute(attributeName)) ? 1 : 0;
@@ -452,16 +929,27 @@ abstract class Command {
         return count;
     }
 
-    static Set<Node> collectTips(RootedTree tree, Node node) {
-        if (tree.isExternal(node)) {
-            return Collections.singleton(node);
-        }
+    /**
+     * Collects the tips subtended by a node. Use TipIndex.collectTips where the tips are to be combined
+     * as sets.
+     * @param tree
+     * @param node
+     * @return the tips in tree order
+     */
+    static List<Node> collectTips(RootedTree tree, Node node) {
+        List<Node> tips = new ArrayList<>();
+        collectTips(tree, node, tips);
+        return tips;
+    }
 
-        Set<Node> tips = new HashSet<>();
-        for (Node child : tree.getChildren(node)) {
-            tips.addAll(collectTips(tree, child));
+    private static void collectTips(RootedTree tree, Node node, List<Node> tips) {
+        if (tree.isExternal(node)) {
+            tips.add(node);
+        } else {
+            for (Node child : tree.getChildren(node)) {
+                collectTips(tree, child, tips);
+            }
         }
-        return tips;
     }
 
     /**
@@ -491,25 +979,78 @@ abstract class Command {
     }
 
     /**
-     * collects all the values for a given attribute in a map with a list of tips nodes for each
+     * Returns a well mixed 64-bit hash of a taxon name (FNV-1a followed by a SplitMix64 finalizer) for
+     * use in clade hashing.
+     * @param name
+     * @return
+     */
+    static long getTipHash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * A 64-bit hash of a set of tip names - of the names in sorted order so it doesn't depend on the order
+     * they are given in. Unlike a sum of tip hashes, different sets only share a fingerprint by a collision
+     * of the hash itself.
+     * @param tipNames
+     * @return the fingerprint
+     */
+    static long getCladeFingerprint(Collection<String> tipNames) {
+        String[] names = tipNames.toArray(new String[0]);
+        Arrays.sort(names);
+        long hash = 0xcbf29ce484222325L;
+        for (String name : names) {
+            for (int i = 0; i < name.length(); i++) {
+                hash ^= name.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            // a separator so the names can't run into each other ('\uffff' is not a character)
+            hash ^= 0xffff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * SplitMix64 finalizer - spreads the bits of a 64-bit value
+     * @param value
+     * @return
+     */
+    static long mix(long value) {
+        value ^= (value >>> 30);
+        value *= 0xbf58476d1ce4e5b9L;
+        value ^= (value >>> 27);
+        value *= 0x94d049bb133111ebL;
+        value ^= (value >>> 31);
+        return value;
+    }
+
+    /**
+     * collects all the values for a given attribute in a map with the set of tips for each (as indices in
+     * the order of tree.getExternalNodes(), i.e., as numbered by TipIndex)
      * @param tree
      * @param attributeName
      */
-    static Map<Object, Set<Node>> collectTipAttributeValues(RootedTree tree, String attributeName) {
-        Map<Object, Set<Node>> attributeValues = new TreeMap<>();
+    static Map<Object, CompressedBitSet> collectTipAttributeValues(RootedTree tree, String attributeName) {
+        Map<Object, CompressedBitSet> attributeValues = new TreeMap<>();
+        int index = 0;
         for (Node tip : tree.getExternalNodes()) {
             Object value = tip.getAttribute(attributeName);
             if (value != null) {
-                Set<Node> tips = attributeValues.getOrDefault(value, new HashSet<>());
-                tips.add(tip);
-                attributeValues.put(value, tips);
+                attributeValues.computeIfAbsent(value, k -> new CompressedBitSet()).add(index);
             }
+            index += 1;
         }
         return attributeValues;
     }
 
     static Map<Object, Integer> getTipAttributes(RootedTree tree, Node node, String attributeName) {
-        Set<Node> tips = collectTips(tree, node);
+        List<Node> tips = collectTips(tree, node);
         Map<Object, Integer> attributeCounts = new HashMap<>();
         for (Node tip: tips) {
             String lineage = (String)tip.getAttribute(attributeName);
@@ -528,7 +1069,7 @@ abstract class Command {
     }
 
     static String getMostCommonAttribute(RootedTree tree, Node node, String attributeName) {
-        Set<Node> tips = collectTips(tree, node);
+        List<Node> tips = collectTips(tree, node);
         Map<String, Integer> lineageCounts = new HashMap<>();
         for (Node tip: tips) {
             String lineage = (String)tip.getAttribute(attributeName);
@@ -563,59 +1104,143 @@ abstract class Command {
         return strings;
     }
 
-    protected Map<String, CSVRecord> readCSV(String fileName, String indexColumn) {
-        Map<String, CSVRecord> csv = new HashMap<>();
+    protected Map<String, MetadataRecord> readCSV(String fileName, String indexColumn) {
+        Map<String, MetadataRecord> csv = new HashMap<>();
+        headerRecord = null;
+
+        @SuppressWarnings("unchecked")
+        List<MetadataRecord> records = (List<MetadataRecord>) MemoryCache.get(MemoryCache.RECORDS, fileName);
+        String cachePath = settings.getCachePath();
+        if (records == null && cachePath != null) {
+            records = MetadataCache.read(fileName, cachePath);
+            if (records != null && isVerbose) {
+                outStream.println("Read cached metadata for: " + fileName);
+            }
+        }
+
+        if (records != null) {
+            for (MetadataRecord record : records) {
+                indexRecord(csv, record, indexColumn);
+            }
+            MemoryCache.put(MemoryCache.RECORDS, fileName, records);
+            return csv;
+        }
+
+        // the records are indexed as they are parsed - a list of them is only kept if they are to be cached
+        records = (cachePath != null || MemoryCache.isEnabled() ? new ArrayList<>() : null);
+        MetadataRecord.Header header = null;
         try {
-            Reader in = new FileReader(fileName);
+            Reader in = Progress.openReader(fileName);
             CSVParser parser = CSVFormat.RFC4180.withFirstRecordAsHeader().parse(in);
-            if (indexColumn != null) {
-                // a particular column is used to index - check it is there for the first record
-                // and use it to key the records
-
-                boolean first = true;
-                for (CSVRecord record : parser) {
-                    if (first) {
-                        headerRecord = record;
-                        if (record.get(indexColumn) == null) {
-                            errorStream.println("Index column, " + indexColumn + " not found in metadata table");
-                            System.exit(1);
-                        }
-                        first = false;
-                    }
-                    String key = record.get(indexColumn);
-                    if (!key.isEmpty()) {
-                        if (csv.containsKey(key)) {
-                            errorStream.println("Duplicate index value, " + key + " in metadata table");
-//                        System.exit(1);
-                        }
-                        csv.put(key, record);
-                    }
+            header = new MetadataRecord.Header(parser.getHeaderNames());
+            for (CSVRecord csvRecord : parser) {
+                String[] values = new String[csvRecord.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = csvRecord.get(i);
                 }
-            } else {
-                // key the records against the first column
-                boolean first = true;
-                for (CSVRecord record : parser) {
-                    if (first) {
-                        headerRecord = record;
-                        first = false;
-                    }
-                    String key = record.get(0);
-                    if (!key.isEmpty()) {
-                        if (csv.containsKey(key)) {
-                            errorStream.println("Duplicate index value, " + key + " in metadata table");
-//                        System.exit(1);
-                        }
-                        csv.put(key, record);
-                    }
+                MetadataRecord record = new MetadataRecord(header, values);
+                if (records != null) {
+                    records.add(record);
                 }
+                indexRecord(csv, record, indexColumn);
             }
+            in.close();
         } catch (IOException e) {
             errorStream.println("Error reading metadata file: " + e.getMessage());
-            System.exit(1);
+            exit(1);
+        }
+
+        if (cachePath != null) {
+            try {
+                if (!MetadataCache.write(fileName, cachePath, header, records)) {
+                    errorStream.println("Unable to write metadata cache for: " + fileName);
+                }
+                CacheDirectory.prune(cachePath, settings.getCacheSize());
+            } catch (IOException ioe) {
+                errorStream.println("Unable to prune cache directory: " + ioe.getMessage());
+            }
+        }
+        if (records != null) {
+            MemoryCache.put(MemoryCache.RECORDS, fileName, records);
         }
         return csv;
     }
 
+    /**
+     * Adds a record to a metadata table keyed by the index column (or the first column if this is null). The
+     * first record is kept as headerRecord.
+     * @param csv
+     * @param record
+     * @param indexColumn
+     */
+    private void indexRecord(Map<String, MetadataRecord> csv, MetadataRecord record, String indexColumn) {
+        if (headerRecord == null) {
+            headerRecord = record;
+            // a particular column is used to index - check it is there for the first record
+            if (indexColumn != null && !record.getHeader().contains(indexColumn)) {
+                errorStream.println("Index column, " + indexColumn + " not found in metadata table");
+                exit(1);
+            }
+        }
+        String key = (indexColumn != null ? record.get(indexColumn) : record.get(0));
+        if (!key.isEmpty()) {
+            if (csv.containsKey(key)) {
+                errorStream.println("Duplicate index value, " + key + " in metadata table");
+//                System.exit(1);
+            }
+            csv.put(key, record);
+        }
+    }
+
+    /**
+     * Writes the output files of the command (the tree files and the files written by createOutputWriter) into
+     * a single zip archive instead of separately.
+     * @param archiveFileName
+     */
+    protected void openArchive(String archiveFileName) {
+        try {
+            outputArchive = new OutputArchive(archiveFileName);
+        } catch (IOException ioe) {
+            errorStream.println("Error creating archive file: " + ioe.getMessage());
+            exit(1);
+        }
+        if (isVerbose) {
+            outStream.println("Writing output files to archive: " + archiveFileName);
+        }
+    }
+
+    /**
+     * Finishes the archive (if there is one) once any files still being written are done
+     */
+    protected void closeArchive() {
+        finishWriting();
+        if (outputArchive != null) {
+            try {
+                outputArchive.close();
+            } catch (IOException ioe) {
+                errorStream.println("Error writing archive file: " + ioe.getMessage());
+                exit(1);
+            }
+            if (isVerbose) {
+                outStream.println("Files written to archive: " + outputArchive.getEntryCount());
+                outStream.println();
+            }
+            outputArchive = null;
+        }
+    }
+
+    /**
+     * Creates a writer for an output file - in the archive (named by the file name without its path) if one is open
+     * @param fileName
+     * @return the writer
+     */
+    Writer createOutputWriter(String fileName) throws IOException {
+        if (outputArchive != null) {
+            return outputArchive.createWriter(new File(fileName).getName());
+        }
+        return new BufferedWriter(new FileWriter(fileName));
+    }
+
     /**
      * Writes a tree
      * @param tree
@@ -632,27 +1257,43 @@ abstract class Command {
      */
     void writeTreeFile(List<RootedTree> trees, String fileName, FormatType format) {
         try {
-            FileWriter writer = new FileWriter(fileName);
-
-            TreeExporter exporter;
-
-            switch (format) {
-                case NEXUS:
-                    exporter = new NexusExporter(writer);
-                    break;
-                case NEWICK:
-                    exporter = new NewickExporter(writer);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unknown format: " + format);
-            }
-
-            exporter.exportTrees(trees);
-            exporter.close();
+            exportTrees(trees, createOutputWriter(fileName), format);
+            Progress.addFileWritten();
         } catch (IOException e) {
             errorStream.println("Error writing tree file: " + e.getMessage());
-            System.exit(1);
+            exit(1);
+        }
+    }
+
+    /**
+     * Writes a tree file on the pool of output writers (see OutputWriterPool) - finishWriting must be called
+     * once all the files have been submitted. The tree shouldn't be changed after it is submitted.
+     * @param tree
+     * @param fileName
+     */
+    void writeTreeFileAsync(RootedTree tree, String fileName, FormatType format) {
+        getOutputWriters().submit(fileName, writer -> exportTrees(Collections.singletonList(tree), writer, format));
+    }
+
+    private static void exportTrees(List<RootedTree> trees, Writer writer, FormatType format) throws IOException {
+        TreeExporter exporter;
+
+        switch (format) {
+            case NEXUS:
+                exporter = new NexusExporter(writer);
+                break;
+            case NEWICK:
+                exporter = new NewickExporter(writer);
+                break;
+            case AUSPICE:
+                exporter = new AuspiceExporter(writer);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
         }
+
+        exporter.exportTrees(trees);
+        exporter.close();
     }
 
     /**
@@ -660,7 +1301,7 @@ abstract class Command {
      * @param records
      * @param fileName
      */
-    void writeMetadataFile(List<CSVRecord> records, String fileName) {
+    void writeMetadataFile(List<MetadataRecord> records, String fileName) {
         writeCSVFile(records, fileName);
     }
 
@@ -669,14 +1310,14 @@ abstract class Command {
      * @param records
      * @param fileName
      */
-    private static void writeCSVFile(List<CSVRecord> records, String fileName) {
+    private static void writeCSVFile(List<MetadataRecord> records, String fileName) {
         try {
             PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)));
 
-            List<String> headerNames = records.get(0).getParser().getHeaderNames();
+            List<String> headerNames = records.get(0).getHeaderNames();
             writer.println(String.join(",", headerNames));
 
-            for (CSVRecord record : records) {
+            for (MetadataRecord record : records) {
                 boolean first = true;
                 for (String value : record) {
                     if (first) {
@@ -693,7 +1334,7 @@ abstract class Command {
             writer.close();
         } catch (IOException e) {
             errorStream.println("Error writing metadata file: " + e.getMessage());
-            System.exit(1);
+            exit(1);
         }
     }
 
@@ -713,9 +1354,68 @@ abstract class Command {
             writer.close();
         } catch (IOException e) {
             errorStream.println("Error writing text file: " + e.getMessage());
-            System.exit(1);
+            exit(1);
+        }
+
+    }
+
+    /**
+     * Writes a text output file (into the archive if one is open)
+     * @param lines
+     * @param fileName
+     */
+    void writeOutputTextFile(List<String> lines, String fileName) {
+        try {
+            PrintWriter writer = new PrintWriter(createOutputWriter(fileName));
+
+            for (String line : lines) {
+                writer.println(line);
+            }
+
+            writer.close();
+            Progress.addFileWritten();
+        } catch (IOException e) {
+            errorStream.println("Error writing text file: " + e.getMessage());
+            exit(1);
         }
+    }
 
+    /**
+     * Writes a text output file on the pool of output writers
+     * @param lines
+     * @param fileName
+     */
+    void writeOutputTextFileAsync(List<String> lines, String fileName) {
+        getOutputWriters().submit(fileName, writer -> {
+            PrintWriter printWriter = new PrintWriter(writer);
+            for (String line : lines) {
+                printWriter.println(line);
+            }
+            printWriter.flush();
+        });
+    }
+
+    /**
+     * Waits for the files submitted to the output writers to be written. Exits if any of them failed.
+     */
+    protected void finishWriting() {
+        if (outputWriters != null) {
+            List<String> errors = outputWriters.finish();
+            outputWriters = null;
+            if (!errors.isEmpty()) {
+                for (String error : errors) {
+                    errorStream.println("Error writing file: " + error);
+                }
+                exit(1);
+            }
+        }
+    }
+
+    private OutputWriterPool getOutputWriters() {
+        if (outputWriters == null) {
+            outputWriters = new OutputWriterPool(settings.getWriters(), this::createOutputWriter);
+        }
+        return outputWriters;
     }
 
     /**
@@ -763,7 +1463,7 @@ abstract class Command {
                     if (isVerbose) {
                         outStream.println("Writing subtree file: " + fileName);
                     }
-                    writeTreeFile(subtree, fileName, outputFormat);
+                    writeTreeFileAsync(subtree, fileName, outputFormat);
                     wasSplit = true;
                 }
             }
@@ -786,7 +1486,7 @@ abstract class Command {
 
         if (!Files.isDirectory(file)) {
             errorStream.println("Output path is not a directory: " + outputPath);
-            System.exit(1);
+            exit(1);
         }
 
         return outputPath.endsWith("/") ? outputPath : outputPath + "/";
@@ -801,25 +1501,83 @@ abstract class Command {
         }
 
         errorStream.println("No file found with an appropriate extension for filename stem: " + filenameStem);
-        System.exit(1);
+        exit(1);
 
         return null;
     }
 
-    protected String getUniqueHexCode() {
-        return getUniqueHexCode(this.existingCodes);
+    /**
+     * Reads a registry of clade fingerprints and the codes assigned to them in previous runs. If the file
+     * doesn't exist yet then the registry starts empty.
+     * @param fileName
+     */
+    protected void readCodeRegistry(String fileName) {
+        if (!Files.exists(Paths.get(fileName))) {
+            return;
+        }
+
+        try {
+            Reader in = new FileReader(fileName);
+            CSVParser parser = CSVFormat.RFC4180.withFirstRecordAsHeader().parse(in);
+            for (CSVRecord record : parser) {
+                String code = record.get("code");
+                cladeCodes.put(Long.parseUnsignedLong(record.get("fingerprint"), 16), code);
+                existingCodes.add(code);
+            }
+            in.close();
+        } catch (IOException | NumberFormatException e) {
+            errorStream.println("Error reading code registry file: " + e.getMessage());
+            exit(1);
+        }
+
+        if (isVerbose) {
+            outStream.println("Read code registry: " + fileName);
+            outStream.println("             Codes: " + cladeCodes.size());
+            outStream.println();
+        }
     }
 
-    protected String getUniqueHexCode(Set<String> existingCodes) {
-        SecureRandom random = new SecureRandom();
-        String code = String.format("%06x", random.nextInt(0xFFFFFF));
-        while (existingCodes.contains(code)) {
-            code = String.format("%06x", random.nextInt(0xFFFFFF));
+    /**
+     * Writes the registry of clade fingerprints and codes so they can be reused in subsequent runs.
+     * @param fileName
+     */
+    protected void writeCodeRegistry(String fileName) {
+        List<String> lines = new ArrayList<>();
+        lines.add("fingerprint,code");
+        for (Map.Entry<Long, String> entry : cladeCodes.entrySet()) {
+            lines.add(String.format("%016x", entry.getKey()) + "," + entry.getValue());
         }
-        existingCodes.add(code);
-        return code;
+        writeTextFile(lines, fileName);
     }
 
+    /**
+     * Returns a hex code for a clade (6 digits unless set otherwise) that is derived from a fingerprint of
+     * its tip names so the same clade gets the same code across runs. Codes are looked up in the registry
+     * first and if a derived code is already in use by another clade, it is rehashed with an incrementing salt.
+     * Which of two new clades with the same derived code gets the salted one depends on the order they are
+     * named in, so only the codes kept in the registry are stable when the other clades change.
+     * @param tipNames
+     * @return
+     */
+    protected synchronized String getCladeCode(Collection<String> tipNames) {
+        long fingerprint = getCladeFingerprint(tipNames);
+
+        String code = cladeCodes.get(fingerprint);
+        if (code == null) {
+            int width = settings.getIdWidth();
+            String format = "%0" + width + "x";
+            long mask = width < 16 ? (1L << (width * 4)) - 1 : -1L;
+            long salt = 0;
+            code = String.format(format, mix(fingerprint) & mask);
+            while (existingCodes.contains(code)) {
+                salt += 1;
+                code = String.format(format, mix(fingerprint + salt * 0x9e3779b97f4a7c15L) & mask);
+            }
+            existingCodes.add(code);
+            cladeCodes.put(fingerprint, code);
+        }
+        return code;
+    }
 
     public static class Pair {
         public Pair(Node node, int count) {
@@ -832,5 +1590,8 @@ abstract class Command {
     }
 
     private final Set<String> existingCodes = new HashSet<>();
+    private OutputArchive outputArchive = null;
+    private OutputWriterPool outputWriters = null;
+    private final Map<Long, String> cladeCodes = new LinkedHashMap<>();
 
 }
@@ -0,0 +1,21 @@
+package network.artic.clusterfunk.commands;
+
+/**
+ * Thrown by a command that can't continue, after it has reported the reason on the error stream. The commands
+ * throw this rather than calling System.exit so that several can be run in one process (i.e., by watch) and a
+ * failing one doesn't stop the others. ClusterFunk.main exits with the status.
+ */
+public final class CommandFailedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    CommandFailedException(int status) {
+        super("exit status " + status);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    private final int status;
+}
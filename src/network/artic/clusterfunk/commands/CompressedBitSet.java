@@ -0,0 +1,666 @@
+package network.artic.clusterfunk.commands;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative integers in the style of a Roaring bitmap. The integers are split into chunks
+ * of 65536 by their high 16 bits and each chunk is stored either as a sorted array of the low 16 bits (when sparse)
+ * or as a plain 65536 bit bitmap (when dense). This is used for sets of tips (by their index in a TipIndex) and
+ * other small integer codes where a HashSet of boxed objects would be large and slow to combine.
+ *
+ * The set operations return new sets and don't modify their arguments. Not thread safe.
+ */
+final class CompressedBitSet {
+    private final static int ARRAY_LIMIT = 4096;
+    private final static int BITMAP_WORDS = 1 << 10;
+
+    CompressedBitSet() {
+        this(4);
+    }
+
+    private CompressedBitSet(int capacity) {
+        keys = new char[capacity];
+        containers = new Container[capacity];
+    }
+
+    /**
+     * Creates a set containing a range of integers
+     * @param from the first integer (inclusive)
+     * @param to the last integer (exclusive)
+     * @return the set
+     */
+    static CompressedBitSet range(int from, int to) {
+        CompressedBitSet set = new CompressedBitSet();
+        for (int i = from; i < to; i++) {
+            set.add(i);
+        }
+        return set;
+    }
+
+    /**
+     * Adds an integer to the set
+     * @param value must be non-negative
+     * @return true if it was not already in the set
+     */
+    boolean add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative values can't be stored: " + value);
+        }
+        char key = (char)(value >>> 16);
+        int i = findKey(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, key, new ArrayContainer());
+        }
+        Container container = containers[i];
+        int before = container.cardinality();
+        containers[i] = container.add((char)value);
+        return containers[i].cardinality() > before;
+    }
+
+    /**
+     * Removes an integer from the set
+     * @param value
+     * @return true if it was in the set
+     */
+    boolean remove(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int i = findKey((char)(value >>> 16));
+        if (i < 0 || !containers[i].contains((char)value)) {
+            return false;
+        }
+        Container container = containers[i].remove((char)value);
+        if (container.cardinality() == 0) {
+            removeContainer(i);
+        } else {
+            containers[i] = container;
+        }
+        return true;
+    }
+
+    boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int i = findKey((char)(value >>> 16));
+        return i >= 0 && containers[i].contains((char)value);
+    }
+
+    int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the smallest integer in the set
+     */
+    int first() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return (keys[0] << 16) | containers[0].first();
+    }
+
+    /**
+     * Returns the intersection of two sets
+     */
+    static CompressedBitSet and(CompressedBitSet a, CompressedBitSet b) {
+        CompressedBitSet result = new CompressedBitSet(Math.max(1, Math.min(a.size, b.size)));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                result.appendContainer(a.keys[i], a.containers[i].and(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the union of two sets
+     */
+    static CompressedBitSet or(CompressedBitSet a, CompressedBitSet b) {
+        CompressedBitSet result = new CompressedBitSet(Math.max(1, a.size + b.size));
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.appendContainer(a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (i == a.size || a.keys[i] > b.keys[j]) {
+                result.appendContainer(b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.appendContainer(a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the integers in the first set that are not in the second
+     */
+    static CompressedBitSet andNot(CompressedBitSet a, CompressedBitSet b) {
+        CompressedBitSet result = new CompressedBitSet(Math.max(1, a.size));
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < b.size && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            if (j < b.size && b.keys[j] == a.keys[i]) {
+                result.appendContainer(a.keys[i], a.containers[i].andNot(b.containers[j]));
+            } else {
+                result.appendContainer(a.keys[i], a.containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the two sets have any integers in common
+     */
+    static boolean intersects(CompressedBitSet a, CompressedBitSet b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                if (a.containers[i].and(b.containers[j]).cardinality() > 0) {
+                    return true;
+                }
+                i++;
+                j++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calls the action for each integer in the set in ascending order
+     * @param action
+     */
+    void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /**
+     * @return an iterator over the integers in ascending order
+     */
+    PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            @Override
+            public boolean hasNext() {
+                return position < chunk.length || index < size;
+            }
+
+            @Override
+            public int nextInt() {
+                if (position == chunk.length) {
+                    if (index == size) {
+                        throw new NoSuchElementException();
+                    }
+                    // unpack a chunk at a time so bitmap chunks aren't scanned for each value
+                    int[] values = new int[containers[index].cardinality()];
+                    int[] count = {0};
+                    containers[index].forEach(keys[index] << 16, value -> values[count[0]++] = value);
+                    chunk = values;
+                    position = 0;
+                    index += 1;
+                }
+                return chunk[position++];
+            }
+
+            int[] chunk = new int[0];
+            int index = 0;
+            int position = 0;
+        };
+    }
+
+    int[] toArray() {
+        int[] values = new int[cardinality()];
+        int[] count = {0};
+        forEach(value -> values[count[0]++] = value);
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CompressedBitSet)) {
+            return false;
+        }
+        CompressedBitSet other = (CompressedBitSet)o;
+        if (size != other.size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (keys[i] != other.keys[i] || !containers[i].equals(other.containers[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int[] hash = {1};
+        forEach(value -> hash[0] = 31 * hash[0] + value);
+        return hash[0];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        forEach(value -> {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(value);
+        });
+        return sb.append("}").toString();
+    }
+
+    private int findKey(char key) {
+        // the last chunk is the common case when adding in order
+        if (size > 0 && keys[size - 1] == key) {
+            return size - 1;
+        }
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertContainer(int i, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        size += 1;
+    }
+
+    private void removeContainer(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+        size -= 1;
+        containers[size] = null;
+    }
+
+    private void appendContainer(char key, Container container) {
+        if (container.cardinality() > 0) {
+            insertContainer(size, key, container.optimize());
+        }
+    }
+
+    /**
+     * The low 16 bits of the integers in one chunk
+     */
+    private static abstract class Container {
+        abstract boolean contains(char value);
+        abstract Container add(char value);
+        abstract Container remove(char value);
+        abstract int cardinality();
+        abstract char first();
+        abstract char get(int position);
+        abstract Container and(Container other);
+        abstract Container or(Container other);
+        abstract Container andNot(Container other);
+        abstract Container copy();
+        abstract void forEach(int high, IntConsumer action);
+
+        /**
+         * Converts to the more compact representation for the current cardinality
+         */
+        abstract Container optimize();
+    }
+
+    private final static class ArrayContainer extends Container {
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        Container add(char value) {
+            int i = (cardinality > 0 && values[cardinality - 1] < value) ? -cardinality - 1 :
+                    Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_LIMIT) {
+                return toBitmap().add(value);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, cardinality * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality += 1;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+                cardinality -= 1;
+            }
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        char first() {
+            return values[0];
+        }
+
+        @Override
+        char get(int position) {
+            return values[position];
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[Math.min(cardinality, other.cardinality())];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i])) {
+                    result[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer array = (ArrayContainer)other;
+            char[] result = new char[cardinality + array.cardinality];
+            int i = 0;
+            int j = 0;
+            int count = 0;
+            while (i < cardinality || j < array.cardinality) {
+                if (j == array.cardinality || (i < cardinality && values[i] < array.values[j])) {
+                    result[count++] = values[i++];
+                } else if (i == cardinality || values[i] > array.values[j]) {
+                    result[count++] = array.values[j++];
+                } else {
+                    result[count++] = values[i++];
+                    j++;
+                }
+            }
+            if (count > ARRAY_LIMIT) {
+                return new ArrayContainer(result, count).toBitmap();
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            char[] result = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    result[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(1, cardinality)), cardinality);
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < cardinality; i++) {
+                action.accept(high | values[i]);
+            }
+        }
+
+        @Override
+        Container optimize() {
+            return this;
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.words[values[i] >>> 6] |= 1L << values[i];
+            }
+            bitmap.cardinality = cardinality;
+            return bitmap;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ArrayContainer) || ((ArrayContainer)o).cardinality != cardinality) {
+                return false;
+            }
+            for (int i = 0; i < cardinality; i++) {
+                if (((ArrayContainer)o).values[i] != values[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return cardinality;
+        }
+
+        private char[] values;
+        private int cardinality;
+    }
+
+    private final static class BitmapContainer extends Container {
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0) {
+                words[value >>> 6] |= bit;
+                cardinality += 1;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) != 0) {
+                words[value >>> 6] &= ~bit;
+                cardinality -= 1;
+            }
+            return cardinality > ARRAY_LIMIT ? this : toArray();
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        char first() {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                if (words[i] != 0) {
+                    return (char)((i << 6) + Long.numberOfTrailingZeros(words[i]));
+                }
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        char get(int position) {
+            int count = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                int bits = Long.bitCount(words[i]);
+                if (count + bits > position) {
+                    long word = words[i];
+                    for (int k = count; k < position; k++) {
+                        word &= word - 1;
+                    }
+                    return (char)((i << 6) + Long.numberOfTrailingZeros(word));
+                }
+                count += bits;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            BitmapContainer result = new BitmapContainer();
+            long[] otherWords = ((BitmapContainer)other).words;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                result.words[i] = words[i] & otherWords[i];
+                result.cardinality += Long.bitCount(result.words[i]);
+            }
+            return result;
+        }
+
+        @Override
+        Container or(Container other) {
+            BitmapContainer result = (BitmapContainer)copy();
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer)other;
+                for (int i = 0; i < array.cardinality(); i++) {
+                    result.add(array.get(i));
+                }
+            } else {
+                long[] otherWords = ((BitmapContainer)other).words;
+                result.cardinality = 0;
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    result.words[i] |= otherWords[i];
+                    result.cardinality += Long.bitCount(result.words[i]);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Container andNot(Container other) {
+            BitmapContainer result = (BitmapContainer)copy();
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer)other;
+                for (int i = 0; i < array.cardinality(); i++) {
+                    char value = array.get(i);
+                    long bit = 1L << value;
+                    if ((result.words[value >>> 6] & bit) != 0) {
+                        result.words[value >>> 6] &= ~bit;
+                        result.cardinality -= 1;
+                    }
+                }
+            } else {
+                long[] otherWords = ((BitmapContainer)other).words;
+                result.cardinality = 0;
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    result.words[i] &= ~otherWords[i];
+                    result.cardinality += Long.bitCount(result.words[i]);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            BitmapContainer copy = new BitmapContainer();
+            System.arraycopy(words, 0, copy.words, 0, BITMAP_WORDS);
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(high | (i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        Container optimize() {
+            return cardinality > ARRAY_LIMIT ? this : toArray();
+        }
+
+        ArrayContainer toArray() {
+            char[] values = new char[Math.max(1, cardinality)];
+            int[] count = {0};
+            forEach(0, value -> values[count[0]++] = (char)value);
+            return new ArrayContainer(values, cardinality);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BitmapContainer && Arrays.equals(((BitmapContainer)o).words, words);
+        }
+
+        @Override
+        public int hashCode() {
+            return cardinality;
+        }
+
+        private final long[] words = new long[BITMAP_WORDS];
+        private int cardinality = 0;
+    }
+
+    private char[] keys;
+    private Container[] containers;
+    private int size = 0;
+}
@@ -26,9 +26,10 @@ public class Conquer extends Command {
     public Conquer(String inputPath,
                    String outputFileName,
                    FormatType outputFormat,
+                   Settings settings,
                    boolean isVerbose) {
 
-        super(isVerbose);
+        super(settings, isVerbose);
 
         String path = checkOutputPath(inputPath);
 
@@ -41,7 +42,7 @@ public class Conquer extends Command {
             }
         } catch (IOException e) {
             errorStream.println("Error reading metadata file: " + e.getMessage());
-            System.exit(1);
+            exit(1);
         }
 
         if (isVerbose) {
@@ -72,7 +73,7 @@ public class Conquer extends Command {
             if (subtree.parentSubtree == null) {
                 if (rootTreeName != null) {
                     errorStream.println("Subtrees are not fully connected: " + rootTreeName + " and " + key + " both have no location" );
-                    System.exit(1);
+                    exit(1);
 
                 }
                 rootTreeName = key;
@@ -81,7 +82,7 @@ public class Conquer extends Command {
 
         if (rootTreeName == null) {
             errorStream.println("Cannot find a root subtree (circularity)" );
-            System.exit(1);
+            exit(1);
         }
 
         if (isVerbose) {
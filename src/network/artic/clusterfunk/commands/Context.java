@@ -9,8 +9,6 @@ import network.artic.clusterfunk.FormatType;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
 
 /**
@@ -29,6 +27,7 @@ public class Context extends Command {
                    String outputFileStem,
                    FormatType outputFormat,
                    boolean outputTaxa,
+                   String archiveFileName,
                    String indexColumn,
                    int indexHeader,
                    String headerDelimiter,
@@ -39,9 +38,10 @@ public class Context extends Command {
                    String collapseBy,
                    int tipBudget,
                    boolean ignoreMissing,
+                   Settings settings,
                    boolean isVerbose) {
 
-        super(metadataFileName, taxaFileName, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, taxaFileName, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         List<String> targetTaxaList = (targetTaxa != null ? Arrays.asList(targetTaxa) : Collections.emptyList());
 
@@ -60,67 +60,87 @@ public class Context extends Command {
         String path = checkOutputPath(outputPath);
 
         if (!ignoreMissing && taxa != null) {
+            Set<String> treeTaxa = new HashSet<>(taxonMap.values());
                 for (String key : taxa) {
-                    if (!taxonMap.containsValue(key)) {
+                    if (!treeTaxa.contains(key)) {
                         errorStream.println("Taxon, " + key + ", not found in tree");
-                        System.exit(1);
+                        exit(1);
                     }
                 }
 
             for (String key : targetTaxaList) {
-                if (!taxonMap.containsValue(key)) {
+                if (!treeTaxa.contains(key)) {
                     errorStream.println("Taxon, " + key + ", not found in tree");
-                    System.exit(1);
+                    exit(1);
                 }
             }
         }
 
-        Set<Node> targetTips = new HashSet<>();
+        Set<String> targetTaxaSet = new HashSet<>(targetTaxaList);
+        TipIndex tipIndex = new TipIndex(tree);
+        CompressedBitSet targetTips = new CompressedBitSet();
 
-        for (Node tip : tree.getExternalNodes()) {
-            Taxon taxon = tree.getTaxon(tip);
-            String index = taxonMap.get(taxon);
-            if ((taxa != null && taxa.contains(index)) || targetTaxaList.contains(index)) {
-                targetTips.add(tip);
+        for (int i = 0; i < tipIndex.getTipCount(); i++) {
+            String index = taxonMap.get(tipIndex.getTaxon(i));
+            if ((taxa != null && taxa.contains(index)) || targetTaxaSet.contains(index)) {
+                targetTips.add(i);
             }
         }
 
-        Map<Node, Subtree> subtreeMap = new HashMap<>();
+        // subtrees are kept in the order they are found (pre-order) so they, and the collapsed nodes in them,
+        // are numbered and written in the same order each run
+        Map<Node, Subtree> subtreeMap = new LinkedHashMap<>();
 
         if (!mrca) {
-            annotateContext(tree, targetTips, maxParentLevel);
+            annotateContext(tree, tipIndex, targetTips, maxParentLevel);
         } else {
-            Node node = RootedTreeUtils.getCommonAncestorNode(tree, targetTips);
+            Set<Node> tips = tipIndex.getTips(targetTips);
+            // a succinct tree finds the common ancestor from the first and last tips without visiting the others
+            Node node = tree instanceof SuccinctRootedTree ?
+                    ((SuccinctRootedTree)tree).getCommonAncestor(tips) :
+                    RootedTreeUtils.getCommonAncestorNode(tree, tips);
             node.setAttribute("include", true);
         }
 
         collectSubtrees(tree, tree.getRootNode(), false, subtreeMap);
 
+        // the content sets of collapsed nodes are kept within the memory budget
+        contentStore = new SpillStore(settings.getMemoryBudget(), settings.getSpillScratchPath());
+
         for (Node node : subtreeMap.keySet()) {
             collapseSubtrees(tree, node, 0, maxChildLevel, tipBudget);
         }
 
-        Map<String, Set<String>> collapsedNodeMap = new HashMap<>();
+        Map<String, Set<String>> collapsedNodeMap = new LinkedHashMap<>();
 
-        createSubtrees(tree, subtreeMap, maxSiblingCount, collapseBy, collapsedNodeMap);
+        if (archiveFileName != null) {
+            openArchive(archiveFileName);
+        }
 
-        writeSubtrees(subtreeMap, path, outputFileStem, outputFormat, outputTaxa);
+        createSubtrees(tree, subtreeMap, maxSiblingCount, collapseBy, collapsedNodeMap, path, outputFileStem, outputFormat, outputTaxa);
 
         writeCollapsedNodes(collapsedNodeMap, path, outputFileStem);
-    }
 
-    private void annotateContext(RootedTree tree, Set<Node> targetTips, int maxParentLevel) {
-        for (Node tip : tree.getExternalNodes()) {
-            if (targetTips.contains(tip)) {
-                Node node = tip;
-                int parentLevel = 0;
-                do {
-                    node = tree.getParent(node);
-                    parentLevel += 1;
-                    node.setAttribute("include", true);
-                } while (maxParentLevel > 0 && parentLevel < maxParentLevel && !tree.isRoot(node));
-            }
+        finishWriting();
+        closeArchive();
+
+        if (isVerbose && contentStore.getSpilledSize() > 0) {
+            outStream.println("Collapsed node content spilled to disk: " + contentStore.getSpilledSize() + " bytes");
+            outStream.println();
         }
+        contentStore.close();
+    }
+
+    private void annotateContext(RootedTree tree, TipIndex tipIndex, CompressedBitSet targetTips, int maxParentLevel) {
+        targetTips.forEach(i -> {
+            Node node = tipIndex.getTip(i);
+            int parentLevel = 0;
+            do {
+                node = tree.getParent(node);
+                parentLevel += 1;
+                node.setAttribute("include", true);
+            } while (maxParentLevel > 0 && parentLevel < maxParentLevel && !tree.isRoot(node));
+        });
     }
 
     /**
@@ -152,7 +172,7 @@ public class Context extends Command {
                     content.addAll(collectContent(tree, child));
                 }
                 // collapse the node
-                node.setAttribute("content", content);
+                node.setAttribute("content", contentStore.store(content));
             } else {
                 for (Node child : tree.getChildren(node)) {
                     if (child.getAttribute("include") == Boolean.TRUE) {
@@ -167,9 +187,11 @@ public class Context extends Command {
     }
 
     /**
-     * When ever a change in the value of a given attribute occurs at a node, writes out a subtree from that node
+     * Creates each subtree and passes it to the output writers straight away so only a few are held in memory
+     * at a time
      */
-    void createSubtrees(RootedTree tree, Map<Node, Subtree> subtreeMap, int maxPolytomySize, String collapseBy, Map<String, Set<String>> collapsedNodeMap) {
+    void createSubtrees(RootedTree tree, Map<Node, Subtree> subtreeMap, int maxPolytomySize, String collapseBy, Map<String, Set<String>> collapsedNodeMap,
+                        String outputPath, String outputFileStem, FormatType outputFormat, boolean outputTaxa) {
 
         for (Node key : subtreeMap.keySet()) {
             Subtree subtree = subtreeMap.get(key);
@@ -177,6 +199,9 @@ public class Context extends Command {
             SimpleRootedTree newTree = new SimpleRootedTree();
             createNodes(tree, subtree.root, newTree, maxPolytomySize, collapseBy, collapsedNodeMap);
             subtree.tree = newTree;
+
+            writeSubtree(subtree, outputPath, outputFileStem, outputFormat, outputTaxa);
+            subtree.tree = null;
         }
 
     }
@@ -202,7 +227,7 @@ public class Context extends Command {
             Map<String, Set<String>> collapseByValues = new HashMap<>();
             if (collapseBy != null) {
                 for (Node child : tree.getChildren(node)) {
-                    if (tree.isExternal(child) && tree.getLength(child) < ZERO_BRANCH_THRESHOLD) {
+                    if (tree.isExternal(child) && isZeroBranch(tree, child)) {
                         String collapseByValue = (String)child.getAttribute(collapseBy);
                         if (collapseByValue != null) {
                             Set<String> contents = collapseByValues.getOrDefault(collapseByValue, new HashSet<>());
@@ -229,7 +254,7 @@ public class Context extends Command {
                     if (!alreadyCollapsed.contains(collapseByValue)) {
                         Set<String> contents = collapseByValues.get(collapseByValue);
                         if (contents != null && contents.size() > 1 && contents.contains(tree.getTaxon(child).getName())) {
-                            contentSet = contents;
+                            contentSet = contentStore.store(contents);
                             collapsedLabel += "|" + collapseByValue + "-" + contentSet.size();
                             alreadyCollapsed.add(collapseByValue);
                         }
@@ -242,7 +267,7 @@ public class Context extends Command {
                 if (!hide) {
                     if (subtree != null) {
                         // is the root of a subtree - replace with a tip labelled as the subtree
-                        Node newChild = newTree.createExternalNode(Taxon.getTaxon(subtree));
+                        Node newChild = newTree.createExternalNode(taxonRegistry.getTaxon(subtree));
                         children.add(newChild);
                         newTree.setHeight(newChild, tree.getHeight(child));
                     } else if (contentSet != null) {
@@ -251,7 +276,7 @@ public class Context extends Command {
                         } else {
                             // this child has been collapsed so replace it with a content set
                             collapsedNodeMap.put(collapsedLabel, contentSet);
-                            Node newChild = newTree.createExternalNode(Taxon.getTaxon(collapsedLabel));
+                            Node newChild = newTree.createExternalNode(taxonRegistry.getTaxon(collapsedLabel));
                             children.add(newChild);
                             newTree.setHeight(newChild, tree.getHeight(child));
                         }
@@ -267,8 +292,8 @@ public class Context extends Command {
             
             if (collapsedContentSet.size() > 0) {
                 String label = "collapsed_" + (collapsedNodeMap.size() + 1);
-                collapsedNodeMap.put(label, collapsedContentSet);
-                Node newChild = newTree.createExternalNode(Taxon.getTaxon(label));
+                collapsedNodeMap.put(label, contentStore.store(collapsedContentSet));
+                Node newChild = newTree.createExternalNode(taxonRegistry.getTaxon(label));
                 children.add(newChild);
                 newTree.setHeight(newChild, tree.getHeight(node));
             }
@@ -286,31 +311,33 @@ public class Context extends Command {
     }
 
     /**
-     * Write all the subtrees...
+     * A branch is zero length if it has no substitutions when the lengths are in SNPs (see
+     * Settings.setGenomeLength), otherwise if it is shorter than a small fraction of one substitution.
      */
-    void writeSubtrees(Map<Node, Subtree> subtreeMap, String outputPath, String outputFileStem, FormatType outputFormat,
-                       boolean outputTaxa) {
-
-
-        for (Node key : subtreeMap.keySet()) {
-            Subtree subtree = subtreeMap.get(key);
+    private boolean isZeroBranch(RootedTree tree, Node node) {
+        return settings.isSnpLengths() ? getSnps(tree, node) == 0 : tree.getLength(node) < ZERO_BRANCH_THRESHOLD;
+    }
 
-            String fileName = outputPath + outputFileStem + subtree.name + "." + outputFormat.name().toLowerCase();
-            if (isVerbose) {
-                outStream.println("Writing subtree file: " + fileName);
-            }
+    /**
+     * Write a subtree...
+     */
+    void writeSubtree(Subtree subtree, String outputPath, String outputFileStem, FormatType outputFormat,
+                      boolean outputTaxa) {
+        String fileName = outputPath + outputFileStem + subtree.name + "." + outputFormat.name().toLowerCase();
+        if (isVerbose) {
+            outStream.println("Writing subtree file: " + fileName);
+        }
 
-            writeTreeFile(subtree.tree, fileName, outputFormat);
+        writeTreeFileAsync(subtree.tree, fileName, outputFormat);
 
-            if (outputTaxa) {
-                List<String> taxa = new ArrayList<>();
+        if (outputTaxa) {
+            List<String> taxa = new ArrayList<>();
 
-                for (Taxon taxon : subtree.tree.getTaxa()) {
-                    taxa.add(taxon.getName());
-                }
-                String metadataFileName = outputPath + outputFileStem + subtree.name + ".csv";
-                writeTextFile(taxa, metadataFileName);
+            for (Taxon taxon : subtree.tree.getTaxa()) {
+                taxa.add(taxon.getName());
             }
+            String metadataFileName = outputPath + outputFileStem + subtree.name + ".csv";
+            writeOutputTextFileAsync(taxa, metadataFileName);
         }
     }
 
@@ -322,7 +349,7 @@ public class Context extends Command {
 
         String fileName = outputPath + outputFileStem + "collapsed_nodes.csv";
         try {
-            PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)));
+            PrintWriter writer = new PrintWriter(createOutputWriter(fileName));
 
             writer.println("name,count,content");
 
@@ -340,7 +367,7 @@ public class Context extends Command {
             writer.close();
         } catch (IOException e) {
             errorStream.println("Error writing metadata file: " + e.getMessage());
-            System.exit(1);
+            exit(1);
         }
 
     }
@@ -355,5 +382,7 @@ public class Context extends Command {
         String name;
         SimpleRootedTree tree;
     }
+
+    private SpillStore contentStore;
 }
 
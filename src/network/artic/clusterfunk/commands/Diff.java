@@ -0,0 +1,377 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import network.artic.clusterfunk.FormatType;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Compares a tree against a reference tree and reports the tips added or removed, the clades that have
+ * changed or moved and the branch lengths that have changed. Clades are matched between the trees using
+ * an order independent hash of the shared tips that they contain so the whole comparison is linear in the
+ * size of the trees.
+ *
+ * A matched clade has moved if the tip set of its parent clade and that of its parent in the reference don't
+ * contain one another. Adding a tip to (or removing one from) a clade only changes that clade, so the siblings
+ * of a tip that has moved into it are not reported as moved. The shared tips are ranked in pre-order in each
+ * tree so every clade is a contiguous range of ranks and containment is tested with the smallest and largest
+ * ranks of its tips in the other tree.
+ */
+public class Diff extends Command {
+    private final static double LENGTH_TOLERANCE = 1.0E-6;
+
+    private final static String[] REPORT_HEADER = { "change", "name", "tip_count", "length", "reference_length" };
+
+    public Diff(String treeFileName,
+                String referenceFileName,
+                String outputFileName,
+                FormatType outputFormat,
+                String reportFileName,
+                Settings settings,
+                boolean isVerbose) {
+
+        super(settings, isVerbose);
+
+        if (outputFormat != FormatType.NEXUS && outputFormat != FormatType.AUSPICE) {
+            errorStream.println("Tree annotations are only compatible with NEXUS or AUSPICE output format");
+            exit(1);
+        }
+
+        RootedTree tree = readTree(treeFileName);
+        RootedTree referenceTree = readTree(referenceFileName);
+
+        Set<Taxon> referenceTaxa = referenceTree.getTaxa();
+
+        // only the tips in both trees are hashed so that clades can be matched regardless of added tips
+        Map<Taxon, Long> tipHashes = new HashMap<>();
+        List<Taxon> addedTaxa = new ArrayList<>();
+        for (Node tip : tree.getExternalNodes()) {
+            Taxon taxon = tree.getTaxon(tip);
+            if (referenceTaxa.contains(taxon)) {
+                tipHashes.put(taxon, getTipHash(taxon.getName()));
+            } else {
+                addedTaxa.add(taxon);
+            }
+        }
+
+        List<Taxon> removedTaxa = new ArrayList<>();
+        for (Taxon taxon : referenceTaxa) {
+            if (!tipHashes.containsKey(taxon)) {
+                removedTaxa.add(taxon);
+            }
+        }
+
+        List<Node> postOrder = getPostOrder(tree);
+        List<Node> referencePostOrder = getPostOrder(referenceTree);
+
+        Map<Node, Long> cladeHashes = hashClades(tree, postOrder, tipHashes);
+        Map<Node, Long> referenceCladeHashes = hashClades(referenceTree, referencePostOrder, tipHashes);
+
+        Map<Taxon, Integer> tipRanks = rankTips(tree, postOrder, tipHashes);
+        Map<Taxon, Integer> referenceTipRanks = rankTips(referenceTree, referencePostOrder, tipHashes);
+
+        Map<Node, Clade> clades = rankClades(tree, postOrder, tipRanks, referenceTipRanks);
+        Map<Node, Clade> referenceClades = rankClades(referenceTree, referencePostOrder, referenceTipRanks, tipRanks);
+
+        Map<Node, Node> parentClades = findParentClades(tree, postOrder, cladeHashes);
+        Map<Node, Node> referenceParentClades = findParentClades(referenceTree, referencePostOrder, referenceCladeHashes);
+
+        // index the reference clades by hash - in post-order so the deepest node is kept where the
+        // restricted tip sets of a node and its parent are the same
+        Map<Long, Node> referenceCladeMap = new HashMap<>();
+        for (Node node : referencePostOrder) {
+            long hash = referenceCladeHashes.get(node);
+            if (hash != 0L) {
+                referenceCladeMap.putIfAbsent(hash, node);
+            }
+        }
+
+        List<Object[]> report = new ArrayList<>();
+
+        for (Taxon taxon : addedTaxa) {
+            report.add(new Object[] { "tip_added", taxon.getName(), 1, "", "" });
+        }
+        for (Taxon taxon : removedTaxa) {
+            report.add(new Object[] { "tip_removed", taxon.getName(), 1, "", "" });
+        }
+
+        Set<Long> matchedHashes = new HashSet<>();
+        int[] counts = new int[4]; // matched, unmatched, moved, length changed
+        for (Node node : postOrder) {
+            diffClade(tree, node, cladeHashes, clades, parentClades,
+                    referenceTree, referenceClades, referenceParentClades,
+                    referenceCladeMap, matchedHashes, report, counts);
+        }
+
+        int removedCount = 0;
+        for (Node node : referenceTree.getInternalNodes()) {
+            long hash = referenceCladeHashes.get(node);
+            if (hash != 0L && !matchedHashes.contains(hash) && node.equals(referenceCladeMap.get(hash))) {
+                report.add(new Object[] { "clade_removed", getCladeName(hash), referenceClades.get(node).tipCount, "",
+                        referenceTree.getLength(node) });
+                removedCount += 1;
+            }
+        }
+
+        if (isVerbose) {
+            outStream.println("       Tips added: " + addedTaxa.size());
+            outStream.println("     Tips removed: " + removedTaxa.size());
+            outStream.println("   Clades matched: " + counts[0]);
+            outStream.println("     Clades added: " + counts[1]);
+            outStream.println("   Clades removed: " + removedCount);
+            outStream.println("      Nodes moved: " + counts[2]);
+            outStream.println("  Lengths changed: " + counts[3]);
+            outStream.println();
+        }
+
+        if (reportFileName != null) {
+            if (isVerbose) {
+                outStream.println("Writing difference report, " + reportFileName);
+                outStream.println();
+            }
+            writeReport(report, reportFileName);
+        }
+
+        if (outputFileName != null) {
+            if (isVerbose) {
+                outStream.println("Writing tree file, " + outputFileName + ", in " + outputFormat.name().toLowerCase() + " format");
+                outStream.println();
+            }
+
+            writeTreeFile(tree, outputFileName, outputFormat);
+        }
+    }
+
+    /**
+     * Writes the report as a CSV file (so names containing commas or quotes are quoted)
+     * @param report
+     * @param fileName
+     */
+    private void writeReport(List<Object[]> report, String fileName) {
+        try (CSVPrinter printer = new CSVPrinter(Files.newBufferedWriter(Paths.get(fileName)),
+                CSVFormat.RFC4180.withHeader(REPORT_HEADER).withRecordSeparator(System.lineSeparator()))) {
+            for (Object[] record : report) {
+                printer.printRecord(record);
+            }
+        } catch (IOException e) {
+            errorStream.println("Error writing difference report: " + e.getMessage());
+            exit(1);
+        }
+    }
+
+    /**
+     * Lists the nodes of the tree in post-order, with the children in order before their parent. This is done
+     * with a stack rather than by recursion so very deep (ladder-like) trees don't overflow the call stack.
+     * @param tree
+     * @return the nodes in post-order
+     */
+    private static List<Node> getPostOrder(RootedTree tree) {
+        // a pre-order that takes the children last to first, reversed
+        List<Node> nodes = new ArrayList<>();
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(tree.getRootNode());
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            nodes.add(node);
+            if (!tree.isExternal(node)) {
+                for (Node child : tree.getChildren(node)) {
+                    stack.push(child);
+                }
+            }
+        }
+        Collections.reverse(nodes);
+        return nodes;
+    }
+
+    /**
+     * Computes an order independent hash of the tip set of every clade. The hash of a clade is the sum of the
+     * hashes of its tips so is the same for the same set of tips regardless of the topology within the clade.
+     * Tips not in the tipHashes map contribute nothing so clades can be compared on a restricted set of tips.
+     * @param tree
+     * @param postOrder the nodes of the tree in post-order
+     * @param tipHashes
+     * @return the hash of each node
+     */
+    private static Map<Node, Long> hashClades(RootedTree tree, List<Node> postOrder, Map<Taxon, Long> tipHashes) {
+        Map<Node, Long> cladeHashes = new HashMap<>();
+        for (Node node : postOrder) {
+            long hash = 0L;
+            if (tree.isExternal(node)) {
+                Long tipHash = tipHashes.get(tree.getTaxon(node));
+                if (tipHash != null) {
+                    hash = tipHash;
+                }
+            } else {
+                for (Node child : tree.getChildren(node)) {
+                    hash += cladeHashes.get(child);
+                }
+            }
+            cladeHashes.put(node, hash);
+        }
+        return cladeHashes;
+    }
+
+    /**
+     * Numbers the tips that are in both trees from left to right (the order they are in the post-order)
+     * @param tree
+     * @param postOrder the nodes of the tree in post-order
+     * @param tipHashes the tips in both trees
+     * @return the rank of each shared tip
+     */
+    private static Map<Taxon, Integer> rankTips(RootedTree tree, List<Node> postOrder, Map<Taxon, Long> tipHashes) {
+        Map<Taxon, Integer> tipRanks = new HashMap<>();
+        for (Node node : postOrder) {
+            if (tree.isExternal(node)) {
+                Taxon taxon = tree.getTaxon(node);
+                if (tipHashes.containsKey(taxon)) {
+                    tipRanks.put(taxon, tipRanks.size());
+                }
+            }
+        }
+        return tipRanks;
+    }
+
+    /**
+     * Finds the tip count and the range of ranks of the shared tips of each clade, in its own tree and in the
+     * other tree.
+     */
+    private static Map<Node, Clade> rankClades(RootedTree tree, List<Node> postOrder, Map<Taxon, Integer> tipRanks,
+                                               Map<Taxon, Integer> otherTipRanks) {
+        Map<Node, Clade> clades = new HashMap<>();
+        for (Node node : postOrder) {
+            Clade clade = new Clade();
+            if (tree.isExternal(node)) {
+                clade.tipCount = 1;
+                Taxon taxon = tree.getTaxon(node);
+                Integer rank = tipRanks.get(taxon);
+                if (rank != null) {
+                    clade.first = clade.last = rank;
+                    clade.otherFirst = clade.otherLast = otherTipRanks.get(taxon);
+                }
+            } else {
+                for (Node child : tree.getChildren(node)) {
+                    Clade childClade = clades.get(child);
+                    clade.tipCount += childClade.tipCount;
+                    clade.first = Math.min(clade.first, childClade.first);
+                    clade.last = Math.max(clade.last, childClade.last);
+                    clade.otherFirst = Math.min(clade.otherFirst, childClade.otherFirst);
+                    clade.otherLast = Math.max(clade.otherLast, childClade.otherLast);
+                }
+            }
+            clades.put(node, clade);
+        }
+        return clades;
+    }
+
+    /**
+     * Finds the parent clade of every node - the closest ancestor with a different restricted tip set (or the
+     * root if there is none). The post-order is gone through backwards so each node's parent is done first and
+     * a node with the same tip set as its parent has the same parent clade.
+     * @param tree
+     * @param postOrder the nodes of the tree in post-order
+     * @param cladeHashes
+     * @return the parent clade of each node
+     */
+    private static Map<Node, Node> findParentClades(RootedTree tree, List<Node> postOrder, Map<Node, Long> cladeHashes) {
+        Map<Node, Node> parentClades = new HashMap<>();
+        for (int i = postOrder.size() - 1; i >= 0; i--) {
+            Node node = postOrder.get(i);
+            Node parent = tree.getParent(node);
+            if (parent == null) {
+                parentClades.put(node, node);
+            } else if (cladeHashes.get(parent).longValue() != cladeHashes.get(node).longValue()) {
+                parentClades.put(node, parent);
+            } else {
+                parentClades.put(node, parentClades.get(parent));
+            }
+        }
+        return parentClades;
+    }
+
+    /**
+     * Matches a node of the tree against the reference, annotating the node and adding any changes to the
+     * report. The nodes are given in post-order.
+     */
+    private void diffClade(RootedTree tree, Node node, Map<Node, Long> cladeHashes, Map<Node, Clade> clades,
+                           Map<Node, Node> parentClades, RootedTree referenceTree, Map<Node, Clade> referenceClades,
+                           Map<Node, Node> referenceParentClades, Map<Long, Node> referenceCladeMap,
+                           Set<Long> matchedHashes, List<Object[]> report, int[] counts) {
+        int tipCount = clades.get(node).tipCount;
+
+        long hash = cladeHashes.get(node);
+        Node referenceNode = (hash != 0L ? referenceCladeMap.get(hash) : null);
+        if (referenceNode != null && !tree.isExternal(node)) {
+            for (Node child : tree.getChildren(node)) {
+                if (cladeHashes.get(child) == hash) {
+                    // only adds new tips to a child clade so is a new clade
+                    referenceNode = null;
+                    break;
+                }
+            }
+        }
+        String name = (tree.isExternal(node) ? tree.getTaxon(node).getName() : getCladeName(hash));
+
+        if (referenceNode == null) {
+            node.setAttribute("diff", "added");
+            if (!tree.isExternal(node)) {
+                report.add(new Object[] { "clade_added", name, tipCount, tree.getLength(node), "" });
+                counts[1] += 1;
+            }
+            return;
+        }
+
+        matchedHashes.add(hash);
+        counts[0] += 1;
+
+        Clade parent = clades.get(parentClades.get(node));
+        Clade referenceParent = referenceClades.get(referenceParentClades.get(referenceNode));
+        if (!parent.contains(referenceParent) && !referenceParent.contains(parent)) {
+            node.setAttribute("diff", "moved");
+            report.add(new Object[] { "moved", name, tipCount, "", "" });
+            counts[2] += 1;
+        } else {
+            node.setAttribute("diff", "matched");
+        }
+
+        if (!tree.isRoot(node) && !referenceTree.isRoot(referenceNode)) {
+            double length = tree.getLength(node);
+            double referenceLength = referenceTree.getLength(referenceNode);
+            if (Math.abs(length - referenceLength) > LENGTH_TOLERANCE * Math.max(Math.abs(length), Math.abs(referenceLength))) {
+                node.setAttribute("diff_length", length - referenceLength);
+                report.add(new Object[] { "length_changed", name, tipCount, length, referenceLength });
+                counts[3] += 1;
+            }
+        }
+    }
+
+    private static String getCladeName(long hash) {
+        return String.format("%016x", hash);
+    }
+
+    /**
+     * The tip count of a clade and the ranks of the first and last of its shared tips in its own tree (between
+     * which all its shared tips lie) and in the other tree.
+     */
+    private static final class Clade {
+        /**
+         * @return true if all the shared tips of the other tree's clade are in this one
+         */
+        boolean contains(Clade other) {
+            return other.otherFirst >= first && other.otherLast <= last;
+        }
+
+        int tipCount = 0;
+        int first = Integer.MAX_VALUE;
+        int last = Integer.MIN_VALUE;
+        int otherFirst = Integer.MAX_VALUE;
+        int otherLast = Integer.MIN_VALUE;
+    }
+
+}
@@ -8,8 +8,6 @@ import network.artic.clusterfunk.FormatType;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
 
 /**
@@ -21,18 +19,21 @@ public class Divide extends Command {
                   String outputPath,
                   String outputFileStem,
                   FormatType outputFormat,
+                  String archiveFileName,
                   int maxSubtreeCount,
                   int minSubtreeSize,
                   boolean requireOutgroup,
+                  Settings settings,
                   boolean isVerbose) {
 
-        super(isVerbose);
+        super(settings, isVerbose);
 
         String path = checkOutputPath(outputPath);
 
         RootedTree tree = readTree(treeFileName);
 
-        Map<Node, Subtree> subtreeMap = new HashMap<>();
+        // in the order the subtrees are found so the roots file lists them in the same order each run
+        Map<Node, Subtree> subtreeMap = new LinkedHashMap<>();
 
         if (maxSubtreeCount > 1) {
 
@@ -52,7 +53,7 @@ public class Divide extends Command {
 
                 if (subtreeMap.size() == 1) {
                     errorStream.println("Failed to divide tree with specified options.");
-                    System.exit(1);
+                    exit(1);
                 }
 
                 if (isVerbose) {
@@ -67,7 +68,7 @@ public class Divide extends Command {
             collectSubtrees(tree, tree.getRootNode(), minSubtreeSize, subtreeMap, requireOutgroup);
         } else {
             errorStream.println("Specify one or other of max-size and max-count");
-            System.exit(1);
+            exit(1);
         }
 
         if (isVerbose) {
@@ -75,11 +76,16 @@ public class Divide extends Command {
             outStream.println("Dividing into " + subtreeMap.keySet().size() + " subtrees");
         }
 
-        createSubtrees(tree, subtreeMap);
+        if (archiveFileName != null) {
+            openArchive(archiveFileName);
+        }
 
-        writeSubtrees(subtreeMap, path, outputFileStem, outputFormat);
+        createSubtrees(tree, subtreeMap, path, outputFileStem, outputFormat);
 
         writeSubtreeRoots(subtreeMap, path, outputFileStem);
+
+        finishWriting();
+        closeArchive();
     }
 
     /**
@@ -133,7 +139,11 @@ public class Divide extends Command {
     }
 
 
-    void createSubtrees(RootedTree tree, Map<Node, Subtree> subtreeMap) {
+    /**
+     * Creates each subtree and passes it to the output writers straight away so only a few are held in memory
+     * at a time
+     */
+    void createSubtrees(RootedTree tree, Map<Node, Subtree> subtreeMap, String outputPath, String outputFileStem, FormatType outputFormat) {
 
         for (Node key : subtreeMap.keySet()) {
             Subtree subtree = subtreeMap.get(key);
@@ -145,6 +155,9 @@ public class Divide extends Command {
             SimpleRootedTree newTree = new SimpleRootedTree();
             createNodes(tree, subtree.root, subtreeMap, newTree);
             subtree.tree = newTree;
+
+            writeSubtree(subtree, outputPath, outputFileStem, outputFormat);
+            subtree.tree = null;
         }
     }
 
@@ -220,20 +233,14 @@ public class Divide extends Command {
     }
 
     /**
-     * Write all the subtrees...
+     * Write a subtree...
      */
-    void writeSubtrees(Map<Node, Subtree> subtreeMap, String outputPath, String outputFileStem, FormatType outputFormat) {
-
-
-        for (Node key : subtreeMap.keySet()) {
-            Subtree subtree = subtreeMap.get(key);
-
-            String fileName = outputPath + outputFileStem + subtree.name + "." + outputFormat.name().toLowerCase();
-            if (isVerbose) {
-                outStream.println("Writing subtree file: " + fileName + ", " + subtree.count + " tips");
-            }
-            writeTreeFile(subtree.tree, fileName, outputFormat);
+    void writeSubtree(Subtree subtree, String outputPath, String outputFileStem, FormatType outputFormat) {
+        String fileName = outputPath + outputFileStem + subtree.name + "." + outputFormat.name().toLowerCase();
+        if (isVerbose) {
+            outStream.println("Writing subtree file: " + fileName + ", " + subtree.count + " tips");
         }
+        writeTreeFileAsync(subtree.tree, fileName, outputFormat);
     }
 
     /**
@@ -247,7 +254,7 @@ public class Divide extends Command {
         }
 
         try {
-            PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)));
+            PrintWriter writer = new PrintWriter(createOutputWriter(fileName));
 
             writer.println("name,count,root_representitive,root_length");
 
@@ -265,7 +272,7 @@ public class Divide extends Command {
             writer.close();
         } catch (IOException e) {
             errorStream.println("Error writing metadata file: " + e.getMessage());
-            System.exit(1);
+            exit(1);
         }
 
     }
@@ -24,9 +24,10 @@ public class Extract extends Command {
                    int indexHeader,
                    String headerDelimiter,
                    boolean ignoreMissing,
+                   Settings settings,
                    boolean isVerbose) {
 
-        super(null, taxaFileName, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(null, taxaFileName, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         if (indexColumn == null) {
             indexColumn = "name";
@@ -44,7 +45,7 @@ public class Extract extends Command {
                 for (String key : targetTaxaList) {
                     if (!taxonMap.containsValue(key)) {
                         errorStream.println("Taxon, " + key + ", not found in tree");
-                        System.exit(1);
+                        exit(1);
                     }
                 }
             }
@@ -74,7 +75,7 @@ public class Extract extends Command {
                 writer.close();
             } catch (IOException ioe) {
                 errorStream.println("Error opening output file: " + ioe.getMessage());
-                System.exit(1);
+                exit(1);
             }
         }
     }
@@ -0,0 +1,140 @@
+package network.artic.clusterfunk.commands;
+
+import network.artic.clusterfunk.FormatType;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Joins the outputs of the shards of a run (see --shard) in order. Tree files keep the header of the first
+ * and the tree statements of all of them are copied in order, without being parsed. Tables keep the header
+ * line of the first and the rows of all of them. The headers must all be the same.
+ */
+public class Gather extends Command {
+    public Gather(String[] inputFileNames,
+                  String outputFileName,
+                  Settings settings,
+                  boolean isVerbose) {
+
+        super(settings, isVerbose);
+
+        FormatType format = null;
+        try (Reader reader = new FileReader(inputFileNames[0])) {
+            format = getTreeFileType(reader);
+        } catch (IOException ioe) {
+            errorStream.println("Error reading input file: " + ioe.getMessage());
+            exit(1);
+        }
+
+        if (isVerbose) {
+            outStream.println("Gathering " + inputFileNames.length + " " + (format != null ? "tree files" : "tables") +
+                    " into: " + outputFileName);
+        }
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName), 1 << 16)) {
+            if (format != null) {
+                gatherTrees(inputFileNames, format, out);
+            } else {
+                gatherTables(inputFileNames, out);
+            }
+        } catch (IOException ioe) {
+            errorStream.println("Error writing output file: " + ioe.getMessage());
+            exit(1);
+        }
+
+        if (isVerbose) {
+            outStream.println();
+        }
+    }
+
+    /**
+     * Writes the header of the first file, the tree statements of each file (and what is between them) and
+     * then the end of the last file.
+     */
+    private void gatherTrees(String[] inputFileNames, FormatType format, OutputStream out) throws IOException {
+        byte[] header = null;
+        byte[] separator = null;
+        int treeCount = 0;
+
+        for (int i = 0; i < inputFileNames.length; i++) {
+            String fileName = inputFileNames[i];
+            try (TreeSource source = new TreeSource(fileName, format, settings.getCachePath())) {
+                int count = source.getTreeCount();
+                if (count == 0) {
+                    errorStream.println("No trees in input file, " + fileName);
+                    exit(1);
+                }
+
+                byte[] fileHeader = source.readBytes(0, source.getStart(0));
+                if (header == null) {
+                    header = fileHeader;
+                    out.write(header);
+                } else {
+                    if (!Arrays.equals(header, fileHeader)) {
+                        errorStream.println("The header of input file, " + fileName + ", is not the same as the first");
+                        exit(1);
+                    }
+                    out.write(separator);
+                }
+                if (separator == null) {
+                    // the text between two trees (e.g., a newline and indent)
+                    separator = count > 1 ? source.readBytes(source.getEnd(0), source.getStart(1)) : NEWLINE;
+                }
+
+                source.copyBytes(source.getStart(0), source.getEnd(count - 1), out);
+                if (i == inputFileNames.length - 1) {
+                    source.copyBytes(source.getEnd(count - 1), source.getLength(), out);
+                }
+
+                treeCount += count;
+                if (isVerbose) {
+                    outStream.println("  " + fileName + ": " + count + " trees");
+                }
+            }
+        }
+
+        if (isVerbose) {
+            outStream.println("Total trees: " + treeCount);
+        }
+    }
+
+    /**
+     * Writes the header line of the first file and the other lines of each file.
+     */
+    private void gatherTables(String[] inputFileNames, OutputStream out) throws IOException {
+        byte[] header = null;
+        byte[] buffer = new byte[1 << 16];
+
+        for (String fileName : inputFileNames) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(fileName), 1 << 16)) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) != -1) {
+                    line.write(b);
+                    if (b == '\n') {
+                        break;
+                    }
+                }
+                byte[] fileHeader = line.toByteArray();
+                if (header == null) {
+                    header = fileHeader;
+                    out.write(header);
+                } else if (!Arrays.equals(header, fileHeader)) {
+                    errorStream.println("The header of input file, " + fileName + ", is not the same as the first");
+                    exit(1);
+                }
+
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            }
+
+            if (isVerbose) {
+                outStream.println("  " + fileName);
+            }
+        }
+    }
+
+    private final static byte[] NEWLINE = {'\n'};
+}
@@ -2,7 +2,6 @@ package network.artic.clusterfunk.commands;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
-import jebl.evolution.trees.MutableRootedTree;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
 
@@ -27,9 +26,10 @@ public class Insert extends Command {
                   String headerDelimiter,
                   boolean uniqueOnly,
                   boolean ignoreMissing,
+                  Settings settings,
                   boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
@@ -59,7 +59,7 @@ public class Insert extends Command {
                 } else {
                     if (!ignoreMissing) {
                         errorStream.println("Destination taxon, " + destination + ", not found in tree");
-                        System.exit(1);
+                        exit(1);
                     } else if (isVerbose) {
                         outStream.println("Destination taxon, " + destination + ", not found in tree");
                     }
@@ -67,7 +67,7 @@ public class Insert extends Command {
             }
         }
 
-        MutableRootedTree outTree = new MutableRootedTree(tree);
+        LinkedRootedTree outTree = new LinkedRootedTree(tree);
 
         insertTips(outTree, outTree.getRootNode(), 0, insertionMap);
 
@@ -88,7 +88,7 @@ public class Insert extends Command {
         writeTreeFile(outTree, outputFileName, outputFormat);
     }
 
-    private void insertTips(MutableRootedTree tree, Node node, int depth,
+    private void insertTips(LinkedRootedTree tree, Node node, int depth,
                             Map<Taxon, List<String>> insertionMap) {
         if (!tree.isExternal(node)) {
             for (Node child: tree.getChildren(node)) {
@@ -102,7 +102,7 @@ public class Insert extends Command {
                 List<Taxon> taxaToInsert = new ArrayList<>();
 
                 for (String insertion : insertions) {
-                    taxaToInsert.add(Taxon.getTaxon(insertion));
+                    taxaToInsert.add(taxonRegistry.getTaxon(insertion));
                 }
 
                 if (!taxaToInsert.isEmpty()) {
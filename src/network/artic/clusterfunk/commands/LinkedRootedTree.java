@@ -0,0 +1,682 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.graphs.Edge;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.util.AttributableHelper;
+
+import java.util.*;
+
+/**
+ * A mutable rooted tree that behaves like jebl's MutableRootedTree but keeps the children of each node as a
+ * doubly linked list of siblings. MutableRootedTree copies a node's list of children every time a child is
+ * added or removed so building or collapsing a polytomy of n children takes O(n^2) - with the large
+ * polytomies formed by collapsing zero length branches this dominates the run time. Here adding and removing
+ * a child is O(1) and moving all the children of one node to another (i.e., collapsing a branch) only has to
+ * update the children's parent links.
+ *
+ * The methods otherwise keep the behaviour of MutableRootedTree (including that copying a tree doesn't copy
+ * the attributes, that createInternalNode makes the new node the root and that removed nodes stay in the
+ * node sets) so the commands give the same output.
+ */
+final class LinkedRootedTree implements RootedTree {
+
+    /**
+     * Copies the topology and branch lengths of a tree (but not the attributes - as MutableRootedTree)
+     * @param tree
+     */
+    LinkedRootedTree(RootedTree tree) {
+        rootNode = copyNode(tree, tree.getRootNode());
+    }
+
+    /**
+     * Copies a subtree iteratively in post-order so the nodes are created in the same order as MutableRootedTree
+     */
+    private LinkedNode copyNode(RootedTree tree, Node root) {
+        Deque<Node> stack = new ArrayDeque<>();
+        Deque<Iterator<Node>> iterators = new ArrayDeque<>();
+        Deque<List<LinkedNode>> childLists = new ArrayDeque<>();
+
+        LinkedNode copy = null;
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.peek();
+            if (tree.isExternal(node)) {
+                copy = (LinkedNode)createExternalNode(tree.getTaxon(node));
+            } else {
+                if (iterators.size() < stack.size()) {
+                    iterators.push(tree.getChildren(node).iterator());
+                    childLists.push(new ArrayList<>());
+                }
+                Iterator<Node> iterator = iterators.peek();
+                if (iterator.hasNext()) {
+                    stack.push(iterator.next());
+                    continue;
+                }
+                iterators.pop();
+                copy = createInternalNode(childLists.pop());
+            }
+            stack.pop();
+            if (!stack.isEmpty()) {
+                setLength(copy, tree.getLength(node));
+                childLists.peek().add(copy);
+            }
+        }
+        return copy;
+    }
+
+    // the mutation methods of MutableRootedTree
+
+    /**
+     * Creates a new tip (not connected to the tree)
+     * @param taxon
+     * @return the new node
+     */
+    Node createExternalNode(Taxon taxon) {
+        LinkedNode node = new LinkedNode(taxon);
+        externalNodes.put(taxon, node);
+        return node;
+    }
+
+    /**
+     * Creates a new internal node with the given children (which are removed from any current parent). As
+     * with MutableRootedTree the new node becomes the root.
+     * @param children
+     * @return the new node
+     */
+    LinkedNode createInternalNode(List<? extends Node> children) {
+        LinkedNode node = new LinkedNode(null);
+        for (Node child : children) {
+            node.append((LinkedNode)child);
+        }
+        internalNodes.add(node);
+        rootNode = node;
+        return node;
+    }
+
+    /**
+     * Adds a node as the last child of parent (removing it from any current parent).
+     * @param child
+     * @param parent
+     */
+    void addChild(Node child, Node parent) {
+        ((LinkedNode)parent).append((LinkedNode)child);
+    }
+
+    /**
+     * Removes a child from a parent. Does nothing if the node isn't a child of the parent.
+     * @param child
+     * @param parent
+     */
+    void removeChild(Node child, Node parent) {
+        LinkedNode c = (LinkedNode)child;
+        if (c.parent == parent) {
+            c.unlink();
+        }
+    }
+
+    /**
+     * Moves all the children of a node to the end of another's children. The list of siblings is spliced in
+     * one go so this is O(number of children) rather than O(number of children x size of polytomy).
+     * @param from
+     * @param to
+     */
+    void moveChildren(Node from, Node to) {
+        LinkedNode source = (LinkedNode)from;
+        LinkedNode destination = (LinkedNode)to;
+        if (source == destination || source.firstChild == null) {
+            return;
+        }
+        for (LinkedNode child = source.firstChild; child != null; child = child.nextSibling) {
+            child.parent = destination;
+        }
+        if (destination.lastChild == null) {
+            destination.firstChild = source.firstChild;
+        } else {
+            destination.lastChild.nextSibling = source.firstChild;
+            source.firstChild.previousSibling = destination.lastChild;
+        }
+        destination.lastChild = source.lastChild;
+        destination.childCount += source.childCount;
+
+        source.firstChild = null;
+        source.lastChild = null;
+        source.childCount = 0;
+    }
+
+    /**
+     * Collapses the branch above an internal node - the node is removed and its children are added to the end
+     * of its parent's children.
+     * @param node
+     */
+    void collapseNode(Node node) {
+        LinkedNode n = (LinkedNode)node;
+        LinkedNode parent = n.parent;
+        if (parent == null) {
+            throw new IllegalArgumentException("Can't collapse the root node");
+        }
+        n.unlink();
+        moveChildren(n, parent);
+        internalNodes.remove(n);
+    }
+
+    void setRoot(Node root) {
+        rootNode = (LinkedNode)root;
+    }
+
+    void setHeight(Node node, double height) {
+        lengthsKnown = false;
+        heightsKnown = true;
+        hasLengths = true;
+        hasHeights = true;
+        ((LinkedNode)node).height = height;
+    }
+
+    void setLength(Node node, double length) {
+        heightsKnown = false;
+        lengthsKnown = true;
+        hasLengths = true;
+        hasHeights = true;
+        ((LinkedNode)node).length = length;
+    }
+
+    /**
+     * Heights are calculated from the lengths in the same way as MutableRootedTree (i.e., relative to the
+     * highest of all the tips created, connected or not).
+     */
+    private void calculateNodeHeights() {
+        if (!lengthsKnown) {
+            throw new IllegalArgumentException("Can't calculate node heights because branch lengths not known");
+        }
+
+        // negative branch lengths are treated as zero
+        Deque<LinkedNode> stack = new ArrayDeque<>();
+        rootNode.height = Math.max(rootNode.length, 0.0);
+        stack.push(rootNode);
+        while (!stack.isEmpty()) {
+            LinkedNode node = stack.pop();
+            for (LinkedNode child = node.firstChild; child != null; child = child.nextSibling) {
+                child.height = node.height + Math.max(child.length, 0.0);
+                stack.push(child);
+            }
+        }
+
+        double maxHeight = 0.0;
+        for (LinkedNode node : externalNodes.values()) {
+            if (node.height > maxHeight) {
+                maxHeight = node.height;
+            }
+        }
+        for (LinkedNode node : internalNodes) {
+            node.height = maxHeight - node.height;
+        }
+        for (LinkedNode node : externalNodes.values()) {
+            node.height = maxHeight - node.height;
+        }
+        heightsKnown = true;
+    }
+
+    private void calculateBranchLengths() {
+        if (!heightsKnown) {
+            throw new IllegalArgumentException("Can't calculate branch lengths because node heights not known");
+        }
+
+        // nodes with negative heights are given a length of 1 (as MutableRootedTree)
+        Deque<LinkedNode> stack = new ArrayDeque<>();
+        rootNode.length = rootNode.height >= 0.0 ? 0.0 : 1.0;
+        stack.push(rootNode);
+        while (!stack.isEmpty()) {
+            LinkedNode node = stack.pop();
+            for (LinkedNode child = node.firstChild; child != null; child = child.nextSibling) {
+                child.length = child.height >= 0.0 ? node.height - child.height : 1.0;
+                stack.push(child);
+            }
+        }
+        lengthsKnown = true;
+    }
+
+    // RootedTree implementation
+
+    @Override
+    public List<Node> getChildren(Node node) {
+        LinkedNode n = (LinkedNode)node;
+        List<Node> children = new ArrayList<>(n.childCount);
+        for (LinkedNode child = n.firstChild; child != null; child = child.nextSibling) {
+            children.add(child);
+        }
+        return children;
+    }
+
+    @Override
+    public int getExternalNodeCount(Node node) {
+        int count = 0;
+        Deque<LinkedNode> stack = new ArrayDeque<>();
+        stack.push((LinkedNode)node);
+        while (!stack.isEmpty()) {
+            LinkedNode n = stack.pop();
+            if (n.firstChild == null) {
+                count++;
+            }
+            for (LinkedNode child = n.firstChild; child != null; child = child.nextSibling) {
+                stack.push(child);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public List<Node> getExternalNodes(Node node) {
+        // pushing the children last to first gives the tips in left to right order
+        List<Node> tips = new ArrayList<>();
+        Deque<LinkedNode> stack = new ArrayDeque<>();
+        stack.push((LinkedNode)node);
+        while (!stack.isEmpty()) {
+            LinkedNode n = stack.pop();
+            if (n.firstChild == null) {
+                tips.add(n);
+            }
+            for (LinkedNode child = n.lastChild; child != null; child = child.previousSibling) {
+                stack.push(child);
+            }
+        }
+        return tips;
+    }
+
+    @Override
+    public boolean hasHeights() {
+        return hasHeights;
+    }
+
+    @Override
+    public boolean isHeightsKnown() {
+        return heightsKnown;
+    }
+
+    @Override
+    public double getHeight(Node node) {
+        if (!hasHeights) {
+            throw new IllegalArgumentException("This tree has no node heights");
+        }
+        if (!heightsKnown) {
+            calculateNodeHeights();
+        }
+        return ((LinkedNode)node).height;
+    }
+
+    @Override
+    public boolean hasLengths() {
+        return hasLengths;
+    }
+
+    @Override
+    public boolean isLengthsKnown() {
+        return lengthsKnown;
+    }
+
+    @Override
+    public double getLength(Node node) {
+        if (!hasLengths) {
+            throw new IllegalArgumentException("This tree has no branch lengths");
+        }
+        if (!lengthsKnown) {
+            calculateBranchLengths();
+        }
+        return ((LinkedNode)node).length;
+    }
+
+    @Override
+    public Node getParent(Node node) {
+        return ((LinkedNode)node).parent;
+    }
+
+    @Override
+    public Node getRootNode() {
+        return rootNode;
+    }
+
+    @Override
+    public boolean conceptuallyUnrooted() {
+        return false;
+    }
+
+    @Override
+    public boolean isRoot(Node node) {
+        return node == rootNode;
+    }
+
+    @Override
+    public Set<Node> getExternalNodes() {
+        return new LinkedHashSet<>(externalNodes.values());
+    }
+
+    @Override
+    public Set<Node> getInternalNodes() {
+        return new LinkedHashSet<>(internalNodes);
+    }
+
+    @Override
+    public Set<Edge> getExternalEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (LinkedNode node : externalNodes.values()) {
+            edges.add(node.getEdge());
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Edge> getInternalEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (LinkedNode node : internalNodes) {
+            if (node != rootNode) {
+                edges.add(node.getEdge());
+            }
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Taxon> getTaxa() {
+        return new LinkedHashSet<>(externalNodes.keySet());
+    }
+
+    @Override
+    public Taxon getTaxon(Node node) {
+        return ((LinkedNode)node).taxon;
+    }
+
+    @Override
+    public boolean isExternal(Node node) {
+        return ((LinkedNode)node).firstChild == null;
+    }
+
+    @Override
+    public Node getNode(Taxon taxon) {
+        return externalNodes.get(taxon);
+    }
+
+    @Override
+    public void renameTaxa(Taxon from, Taxon to) {
+        LinkedNode node = externalNodes.remove(from);
+        if (node != null) {
+            node.taxon = to;
+            externalNodes.put(to, node);
+        }
+    }
+
+    @Override
+    public List<Edge> getEdges(Node node) {
+        List<Edge> edges = new ArrayList<>();
+        for (Node adjacent : getAdjacencies(node)) {
+            edges.add(((LinkedNode)adjacent).parent == node ? ((LinkedNode)adjacent).getEdge() : ((LinkedNode)node).getEdge());
+        }
+        return edges;
+    }
+
+    @Override
+    public List<Node> getAdjacencies(Node node) {
+        return ((LinkedNode)node).getAdjacencies();
+    }
+
+    @Override
+    public Edge getEdge(Node node1, Node node2) throws NoEdgeException {
+        LinkedNode n1 = (LinkedNode)node1;
+        LinkedNode n2 = (LinkedNode)node2;
+        if (n1.parent == n2) {
+            return n1.getEdge();
+        }
+        if (n2.parent == n1) {
+            return n2.getEdge();
+        }
+        throw new NoEdgeException();
+    }
+
+    @Override
+    public double getEdgeLength(Node node1, Node node2) throws NoEdgeException {
+        LinkedNode n1 = (LinkedNode)node1;
+        LinkedNode n2 = (LinkedNode)node2;
+        if (n1.parent == n2) {
+            return getLength(n1);
+        }
+        if (n2.parent == n1) {
+            return getLength(n2);
+        }
+        throw new NoEdgeException();
+    }
+
+    @Override
+    public Node[] getNodes(Edge edge) {
+        LinkedNode node = ((LinkedEdge)edge).node;
+        return new Node[] { node.parent, node };
+    }
+
+    @Override
+    public Set<Node> getNodes() {
+        Set<Node> nodes = new LinkedHashSet<>(internalNodes);
+        nodes.addAll(externalNodes.values());
+        return nodes;
+    }
+
+    @Override
+    public Set<Edge> getEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (Node node : getNodes()) {
+            if (node != rootNode) {
+                edges.add(((LinkedNode)node).getEdge());
+            }
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Node> getNodes(int degree) {
+        Set<Node> nodes = new LinkedHashSet<>();
+        for (Node node : getNodes()) {
+            if (node.getDegree() == degree) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (helper == null) {
+            helper = new AttributableHelper();
+        }
+        helper.setAttribute(name, value);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return helper == null ? null : helper.getAttribute(name);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        if (helper != null) {
+            helper.removeAttribute(name);
+        }
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        return helper == null ? Collections.emptySet() : helper.getAttributeNames();
+    }
+
+    @Override
+    public Map<String, Object> getAttributeMap() {
+        return helper == null ? Collections.emptyMap() : helper.getAttributeMap();
+    }
+
+    /**
+     * A node with links to its parent, first and last children and previous and next siblings.
+     */
+    private static final class LinkedNode implements Node {
+        LinkedNode(Taxon taxon) {
+            this.taxon = taxon;
+        }
+
+        /**
+         * Adds a node to the end of this node's children
+         */
+        void append(LinkedNode child) {
+            if (child.parent != null) {
+                child.unlink();
+            }
+            child.parent = this;
+            child.previousSibling = lastChild;
+            child.nextSibling = null;
+            if (lastChild == null) {
+                firstChild = child;
+            } else {
+                lastChild.nextSibling = child;
+            }
+            lastChild = child;
+            childCount++;
+        }
+
+        /**
+         * Removes this node from its parent's children
+         */
+        void unlink() {
+            if (previousSibling == null) {
+                parent.firstChild = nextSibling;
+            } else {
+                previousSibling.nextSibling = nextSibling;
+            }
+            if (nextSibling == null) {
+                parent.lastChild = previousSibling;
+            } else {
+                nextSibling.previousSibling = previousSibling;
+            }
+            parent.childCount--;
+            parent = null;
+            previousSibling = null;
+            nextSibling = null;
+        }
+
+        List<Node> getAdjacencies() {
+            List<Node> adjacencies = new ArrayList<>(childCount + 1);
+            if (parent != null) {
+                adjacencies.add(parent);
+            }
+            for (LinkedNode child = firstChild; child != null; child = child.nextSibling) {
+                adjacencies.add(child);
+            }
+            return adjacencies;
+        }
+
+        Edge getEdge() {
+            if (edge == null) {
+                edge = new LinkedEdge(this);
+            }
+            return edge;
+        }
+
+        @Override
+        public int getDegree() {
+            return childCount + (parent == null ? 0 : 1);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            if (helper == null) {
+                helper = new AttributableHelper();
+            }
+            helper.setAttribute(name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return helper == null ? null : helper.getAttribute(name);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            if (helper != null) {
+                helper.removeAttribute(name);
+            }
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return helper == null ? Collections.emptySet() : helper.getAttributeNames();
+        }
+
+        @Override
+        public Map<String, Object> getAttributeMap() {
+            return helper == null ? Collections.emptyMap() : helper.getAttributeMap();
+        }
+
+        Taxon taxon;
+        LinkedNode parent = null;
+        LinkedNode firstChild = null;
+        LinkedNode lastChild = null;
+        LinkedNode previousSibling = null;
+        LinkedNode nextSibling = null;
+        int childCount = 0;
+        double height = 0.0;
+        double length = 0.0;
+        private LinkedEdge edge = null;
+        private AttributableHelper helper = null;
+    }
+
+    /**
+     * The edge above a node.
+     */
+    private static final class LinkedEdge implements Edge {
+        LinkedEdge(LinkedNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public double getLength() {
+            return node.length;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            if (helper == null) {
+                helper = new AttributableHelper();
+            }
+            helper.setAttribute(name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return helper == null ? null : helper.getAttribute(name);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            if (helper != null) {
+                helper.removeAttribute(name);
+            }
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return helper == null ? Collections.emptySet() : helper.getAttributeNames();
+        }
+
+        @Override
+        public Map<String, Object> getAttributeMap() {
+            return helper == null ? Collections.emptyMap() : helper.getAttributeMap();
+        }
+
+        final LinkedNode node;
+        private AttributableHelper helper = null;
+    }
+
+    private LinkedNode rootNode;
+    private final Set<LinkedNode> internalNodes = new LinkedHashSet<>();
+    private final Map<Taxon, LinkedNode> externalNodes = new LinkedHashMap<>();
+
+    private boolean heightsKnown = false;
+    private boolean lengthsKnown = false;
+    private boolean hasHeights = false;
+    private boolean hasLengths = false;
+
+    private AttributableHelper helper = null;
+}
@@ -0,0 +1,105 @@
+package network.artic.clusterfunk.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds what has been read from input files in memory for later commands run in the same process (i.e., by
+ * watch) - the records of metadata tables, the content hashes of tree files and the bytes of their cache
+ * snapshots. Trees are not held themselves as the commands modify them; rebuilding one from a snapshot held
+ * here is much quicker than parsing the tree file. An entry is only used while its file has the same size and
+ * modification time. Entries are held by soft references so are dropped if memory runs short.
+ *
+ * Only used once setEnabled(true) has been called. As the entries are shared by everything run in the process
+ * this is a setting of the process rather than of each command (see Settings).
+ */
+public final class MemoryCache {
+
+    final static String RECORDS = "records";
+    final static String CONTENT_HASH = "hash";
+    final static String SNAPSHOT = "snapshot";
+
+    private MemoryCache() {
+    }
+
+    /**
+     * Sets whether what is read from input files is held in memory. Turning it off drops what is held.
+     * @param isEnabled
+     */
+    public static void setEnabled(boolean isEnabled) {
+        MemoryCache.isEnabled = isEnabled;
+        if (!isEnabled) {
+            entries.clear();
+        }
+    }
+
+    static boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * @param kind what is held (RECORDS, CONTENT_HASH or SNAPSHOT)
+     * @param fileName
+     * @return the value or null if it is not held or the file has changed
+     */
+    static Object get(String kind, String fileName) {
+        if (!isEnabled) {
+            return null;
+        }
+        try {
+            File file = new File(fileName);
+            Entry entry = entries.get(kind + ":" + file.getCanonicalPath());
+            if (entry == null) {
+                return null;
+            }
+            // snapshots are named by the content hash of their tree file so never change (but are touched when used)
+            if (!kind.equals(SNAPSHOT) && (entry.size != file.length() || entry.lastModified != getLastModified(file))) {
+                return null;
+            }
+            return entry.value.get();
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * @param kind what is held (RECORDS, CONTENT_HASH or SNAPSHOT)
+     * @param fileName
+     * @param value
+     */
+    static void put(String kind, String fileName, Object value) {
+        if (!isEnabled) {
+            return;
+        }
+        try {
+            File file = new File(fileName);
+            entries.put(kind + ":" + file.getCanonicalPath(), new Entry(file.length(), getLastModified(file), value));
+        } catch (IOException ioe) {
+            // just not held
+        }
+    }
+
+    private static long getLastModified(File file) throws IOException {
+        return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+    }
+
+    private static final class Entry {
+        Entry(long size, long lastModified, Object value) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.value = new SoftReference<>(value);
+        }
+
+        final long size;
+        final long lastModified;
+        final SoftReference<Object> value;
+    }
+
+    private static volatile boolean isEnabled = false;
+    private final static Map<String, Entry> entries = new ConcurrentHashMap<>();
+}
@@ -1,7 +1,5 @@
 package network.artic.clusterfunk.commands;
 
-import org.apache.commons.csv.CSVRecord;
-
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
@@ -21,20 +19,21 @@ public class Merge extends Command {
                  String[] addColumns,
                  boolean overwriteExisting,
                  boolean extractMatches,
+                 Settings settings,
                  boolean isVerbose) {
 
-        super(isVerbose);
+        super(settings, isVerbose);
 
-        Map<String, CSVRecord> metadata1 = readCSV(metadataFileName1, null);
-        List<String> headerNames1 = headerRecord.getParser().getHeaderNames();
-        Map<String, CSVRecord> metadata2 = readCSV(metadataFileName2, indexColumn);
-        List<String> headerNames2 = headerRecord.getParser().getHeaderNames();
+        Map<String, MetadataRecord> metadata1 = readCSV(metadataFileName1, null);
+        List<String> headerNames1 = headerRecord.getHeaderNames();
+        Map<String, MetadataRecord> metadata2 = readCSV(metadataFileName2, indexColumn);
+        List<String> headerNames2 = headerRecord.getHeaderNames();
 
         indexColumn = (indexColumn == null ? headerNames2.get(0) : indexColumn);
 
         if (!headerNames1.contains(indexColumn)) {
             errorStream.println("Metadata file, " + metadataFileName1 + ", does not contain index column, " + indexColumn);
-            System.exit(1);
+            exit(1);
         }
 
         if (isVerbose) {
@@ -68,9 +67,9 @@ public class Merge extends Command {
                 writer.println(String.join(",", headerNames));
 
                 for (String key : metadata1.keySet()) {
-                    CSVRecord record1 = metadata1.get(key);
+                    MetadataRecord record1 = metadata1.get(key);
                     String index = record1.get(indexColumn);
-                    CSVRecord record2 = metadata2.get(index);
+                    MetadataRecord record2 = metadata2.get(index);
                     if (record2 != null) {
                         rowCount += 1;
                     }
@@ -98,7 +97,7 @@ public class Merge extends Command {
                 writer.close();
             } catch (IOException e) {
                 errorStream.println("Error writing metadata file: " + e.getMessage());
-                System.exit(1);
+                exit(1);
             }
 
             if (isVerbose) {
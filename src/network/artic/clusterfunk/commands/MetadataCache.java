@@ -0,0 +1,252 @@
+package network.artic.clusterfunk.commands;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A binary cache of parsed CSV tables. The first time a table is read the records are written to the cache
+ * directory in a column-wise binary form (integer columns as longs, repetitive columns as a dictionary and
+ * codes, others as strings). Later reads memory map this instead of parsing the CSV. The cache file records
+ * the path, size and modification time of the CSV file and is ignored (and replaced) if any of these change -
+ * the CSV file itself is not read to check it.
+ */
+final class MetadataCache {
+    private final static long MAGIC = 0x4a4346435356_0001L; // "JCFCSV" version 1
+
+    private final static byte STRING_COLUMN = 0;
+    private final static byte DICTIONARY_COLUMN = 1;
+    private final static byte LONG_COLUMN = 2;
+
+    private MetadataCache() {
+    }
+
+    /**
+     * Reads the records for a CSV file from the cache
+     * @param fileName the CSV file
+     * @param cachePath the cache directory
+     * @return the records or null if they are not cached (or the cache is out of date)
+     */
+    static List<MetadataRecord> read(String fileName, String cachePath) {
+        try {
+            File csvFile = new File(fileName);
+            Path cacheFile = getCacheFile(csvFile, cachePath);
+            if (!Files.exists(cacheFile)) {
+                return null;
+            }
+
+            try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                if (buffer.getLong() != MAGIC ||
+                        !getString(buffer).equals(csvFile.getCanonicalPath()) ||
+                        buffer.getLong() != csvFile.length() ||
+                        buffer.getLong() != csvFile.lastModified()) {
+                    return null;
+                }
+
+                int headerCount = buffer.getInt();
+                List<String> headerNames = new ArrayList<>();
+                for (int i = 0; i < headerCount; i++) {
+                    headerNames.add(getString(buffer));
+                }
+                int rowCount = buffer.getInt();
+
+                int[] sizes = new int[rowCount];
+                int maxSize = 0;
+                for (int row = 0; row < rowCount; row++) {
+                    sizes[row] = buffer.getInt();
+                    maxSize = Math.max(maxSize, sizes[row]);
+                }
+
+                String[][] values = new String[rowCount][];
+                for (int row = 0; row < rowCount; row++) {
+                    values[row] = new String[sizes[row]];
+                }
+
+                for (int column = 0; column < maxSize; column++) {
+                    byte type = buffer.get();
+                    String[] dictionary = null;
+                    if (type == DICTIONARY_COLUMN) {
+                        dictionary = new String[buffer.getInt()];
+                        for (int i = 0; i < dictionary.length; i++) {
+                            dictionary[i] = getString(buffer);
+                        }
+                    }
+                    for (int row = 0; row < rowCount; row++) {
+                        if (column < sizes[row]) {
+                            switch (type) {
+                                case STRING_COLUMN:
+                                    values[row][column] = getString(buffer);
+                                    break;
+                                case DICTIONARY_COLUMN:
+                                    values[row][column] = dictionary[buffer.getInt()];
+                                    break;
+                                case LONG_COLUMN:
+                                    values[row][column] = Long.toString(buffer.getLong());
+                                    break;
+                                default:
+                                    return null;
+                            }
+                        }
+                    }
+                }
+
+                MetadataRecord.Header header = new MetadataRecord.Header(headerNames);
+                List<MetadataRecord> records = new ArrayList<>();
+                for (int row = 0; row < rowCount; row++) {
+                    records.add(new MetadataRecord(header, values[row]));
+                }
+                CacheDirectory.touch(cacheFile);
+                return records;
+            }
+        } catch (Exception e) {
+            // a corrupt or unreadable cache file is treated as missing
+            return null;
+        }
+    }
+
+    /**
+     * Writes the records of a CSV file to the cache
+     * @param fileName the CSV file
+     * @param cachePath the cache directory
+     * @param header the column names
+     * @param records the records in the order they were read
+     * @return true if the cache file was written
+     */
+    static boolean write(String fileName, String cachePath, MetadataRecord.Header header, List<MetadataRecord> records) {
+        try {
+            File csvFile = new File(fileName);
+            Path cacheFile = getCacheFile(csvFile, cachePath);
+            Files.createDirectories(cacheFile.getParent());
+
+            List<String> headerNames = header.getNames();
+
+            int maxSize = headerNames.size();
+            for (MetadataRecord record : records) {
+                maxSize = Math.max(maxSize, record.size());
+            }
+
+            Path tmpFile = Files.createTempFile(cacheFile.getParent(), "csv", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeLong(MAGIC);
+                putString(out, csvFile.getCanonicalPath());
+                out.writeLong(csvFile.length());
+                out.writeLong(csvFile.lastModified());
+
+                out.writeInt(headerNames.size());
+                for (String name : headerNames) {
+                    putString(out, name);
+                }
+                out.writeInt(records.size());
+
+                for (MetadataRecord record : records) {
+                    out.writeInt(record.size());
+                }
+
+                for (int column = 0; column < maxSize; column++) {
+                    writeColumn(out, records, column);
+                }
+            }
+            Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the name of the CSV file a cache file was made from
+     * @param cacheFile
+     * @return the file name
+     */
+    static String getSource(Path cacheFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readLong() != MAGIC) {
+                throw new IOException("Not a metadata cache file");
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Writes a column choosing the most compact type that gives back exactly the same strings.
+     */
+    private static void writeColumn(DataOutputStream out, List<MetadataRecord> records, int column) throws IOException {
+        boolean isLong = true;
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (MetadataRecord record : records) {
+            if (column < record.size()) {
+                String value = record.get(column);
+                if (isLong && !isLong(value)) {
+                    isLong = false;
+                }
+                if (dictionary.size() <= records.size() / 4) {
+                    dictionary.putIfAbsent(value, dictionary.size());
+                }
+            }
+        }
+
+        if (isLong) {
+            out.writeByte(LONG_COLUMN);
+            for (MetadataRecord record : records) {
+                if (column < record.size()) {
+                    out.writeLong(Long.parseLong(record.get(column)));
+                }
+            }
+        } else if (dictionary.size() <= records.size() / 4) {
+            out.writeByte(DICTIONARY_COLUMN);
+            out.writeInt(dictionary.size());
+            for (String value : dictionary.keySet()) {
+                putString(out, value);
+            }
+            for (MetadataRecord record : records) {
+                if (column < record.size()) {
+                    out.writeInt(dictionary.get(record.get(column)));
+                }
+            }
+        } else {
+            out.writeByte(STRING_COLUMN);
+            for (MetadataRecord record : records) {
+                if (column < record.size()) {
+                    putString(out, record.get(column));
+                }
+            }
+        }
+    }
+
+    private static boolean isLong(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            return false;
+        }
+        try {
+            return Long.toString(Long.parseLong(value)).equals(value);
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    private static Path getCacheFile(File csvFile, String cachePath) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(csvFile.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+        return Paths.get(cachePath, String.format("csv-%08x", crc.getValue()) + CacheDirectory.METADATA_SUFFIX);
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
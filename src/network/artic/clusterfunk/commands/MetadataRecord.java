@@ -0,0 +1,84 @@
+package network.artic.clusterfunk.commands;
+
+import java.util.*;
+
+/**
+ * A row of a metadata table. Holds the values of the row and the column names of the table (shared by all its
+ * rows). Values are looked up by column name or index in the same way as commons-csv's CSVRecord (which can't
+ * be created outside of that library) so the rows can be made either by parsing the CSV file or from the
+ * metadata cache.
+ */
+final class MetadataRecord implements Iterable<String> {
+
+    /**
+     * The column names of a table
+     */
+    static final class Header {
+        Header(List<String> names) {
+            this.names = Collections.unmodifiableList(new ArrayList<>(names));
+            indices = new HashMap<>(names.size() * 2);
+            for (int i = 0; i < names.size(); i++) {
+                // as commons-csv, the last of a repeated name is used
+                indices.put(names.get(i), i);
+            }
+        }
+
+        List<String> getNames() {
+            return names;
+        }
+
+        boolean contains(String name) {
+            return indices.containsKey(name);
+        }
+
+        private final List<String> names;
+        private final Map<String, Integer> indices;
+    }
+
+    MetadataRecord(Header header, String[] values) {
+        this.header = header;
+        this.values = values;
+    }
+
+    /**
+     * @param name a column name
+     * @return the value in that column
+     * @throws IllegalArgumentException if the column doesn't exist or this row is too short to have it
+     */
+    String get(String name) {
+        Integer index = header.indices.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException(String.format("Mapping for %s not found, expected one of %s",
+                    name, header.names));
+        }
+        if (index >= values.length) {
+            throw new IllegalArgumentException(String.format(
+                    "Index for header '%s' is %d but the record only has %d values!", name, index, values.length));
+        }
+        return values[index];
+    }
+
+    String get(int index) {
+        return values[index];
+    }
+
+    int size() {
+        return values.length;
+    }
+
+    Header getHeader() {
+        return header;
+    }
+
+    List<String> getHeaderNames() {
+        return header.names;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return Arrays.asList(values).iterator();
+    }
+
+    private final Header header;
+    private final String[] values;
+}
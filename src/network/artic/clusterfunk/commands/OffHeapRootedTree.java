@@ -0,0 +1,819 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.graphs.Edge;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A read-only (in topology) rooted tree that keeps its nodes, branch lengths, heights and node attributes
+ * outside of the Java heap. Nodes are numbered in pre-order and stored as columns of ints and doubles in
+ * memory mapped scratch files (or direct buffers) so the garbage collector doesn't have much to scan. Node
+ * objects are light-weight views that just hold an index - they are created on demand, in pages, but only
+ * once per node as jebl compares nodes by identity. The taxa are kept on the heap (as jebl interns them).
+ *
+ * The tree is copied from one that has been parsed by jebl so the heap still has to hold each tree while it
+ * is read - what is saved is the heap the trees take up after that (all of them for a multi-tree file).
+ *
+ * Attributes are stored by column: numerical attributes as raw doubles and everything else as an index
+ * into a dictionary. Immutable values (strings, numbers, booleans and enums) are shared in the dictionary
+ * so repeated values like countries or lineages take 4 bytes a node. Other values (such as arrays or sets)
+ * are kept as they are, one dictionary entry a node, so each node gets back the object it was given.
+ * Edge attributes are kept in the same way, by the index of the node at the child end.
+ *
+ * Commands that change the topology copy this into a MutableRootedTree as they would any other tree.
+ */
+final class OffHeapRootedTree implements RootedTree {
+    private final static long ABSENT = 0x7ff80000deadbeefL; // a NaN that marks a missing double attribute
+    private final static int PAGE_BITS = 12; // node views are cached in pages of 4096
+
+    OffHeapRootedTree(RootedTree tree, String scratchPath) {
+        this.scratchPath = scratchPath;
+
+        nodeCount = tree.getNodes().size();
+        tipCount = tree.getExternalNodes().size();
+
+        parents = allocate(nodeCount, 4).asIntBuffer();
+        firstChildren = allocate(nodeCount, 4).asIntBuffer();
+        nextSiblings = allocate(nodeCount, 4).asIntBuffer();
+        subtreeSizes = allocate(nodeCount, 4).asIntBuffer();
+        tipCounts = allocate(nodeCount, 4).asIntBuffer();
+        taxonIndices = allocate(nodeCount, 4).asIntBuffer();
+        heights = allocate(nodeCount, 8).asDoubleBuffer();
+        lengths = allocate(nodeCount, 8).asDoubleBuffer();
+
+        taxa = new Taxon[tipCount];
+        nodePages = new OffHeapNode[(nodeCount >>> PAGE_BITS) + 1][];
+
+        hasHeights = tree.hasHeights();
+        hasLengths = tree.hasLengths();
+        heightsKnown = tree.isHeightsKnown();
+        lengthsKnown = tree.isLengthsKnown();
+        conceptuallyUnrooted = tree.conceptuallyUnrooted();
+
+        int[] counters = new int[2]; // next node index, next taxon index
+        List<Node> preOrder = new ArrayList<>(nodeCount);
+        externalOrder = allocate(tipCount, 4).asIntBuffer();
+        internalOrder = allocate(nodeCount - tipCount, 4).asIntBuffer();
+        int[] postOrderCount = new int[1];
+        copyNodes(tree, tree.getRootNode(), -1, counters, preOrder, postOrderCount);
+
+        // keep the iteration order of the original tree's node sets so results don't depend on the storage -
+        // the tips have been put in pre-order and the internal nodes in post-order (the order of a tree that
+        // has been read from a file) so these are only looked up by node if the tree has some other order
+        if (!isOrder(tree.getExternalNodes(), preOrder, externalOrder)) {
+            setOrder(tree.getExternalNodes(), preOrder, externalOrder);
+        }
+        if (!isOrder(tree.getInternalNodes(), preOrder, internalOrder)) {
+            setOrder(tree.getInternalNodes(), preOrder, internalOrder);
+        }
+
+        for (Map.Entry<String, Object> e : tree.getAttributeMap().entrySet()) {
+            treeAttributes.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Copies the nodes in pre-order, returning the index of the node. The tips are added to externalOrder in
+     * pre-order and the internal nodes to internalOrder in post-order.
+     */
+    private int copyNodes(RootedTree tree, Node node, int parent, int[] counters, List<Node> preOrder, int[] postOrderCount) {
+        int index = counters[0];
+        counters[0] += 1;
+        preOrder.add(node);
+
+        parents.put(index, parent);
+        firstChildren.put(index, -1);
+        nextSiblings.put(index, -1);
+        heights.put(index, hasHeights ? tree.getHeight(node) : 0.0);
+        lengths.put(index, hasLengths && !tree.isRoot(node) ? tree.getLength(node) : 0.0);
+
+        if (tree.isExternal(node)) {
+            taxa[counters[1]] = tree.getTaxon(node);
+            taxonIndices.put(index, counters[1]);
+            externalOrder.put(counters[1], index);
+            counters[1] += 1;
+            tipCounts.put(index, 1);
+        } else {
+            taxonIndices.put(index, -1);
+            int count = 0;
+            int previous = -1;
+            for (Node child : tree.getChildren(node)) {
+                int childIndex = copyNodes(tree, child, index, counters, preOrder, postOrderCount);
+                if (previous == -1) {
+                    firstChildren.put(index, childIndex);
+                } else {
+                    nextSiblings.put(previous, childIndex);
+                }
+                previous = childIndex;
+                count += tipCounts.get(childIndex);
+            }
+            tipCounts.put(index, count);
+            internalOrder.put(postOrderCount[0], index);
+            postOrderCount[0] += 1;
+        }
+        subtreeSizes.put(index, counters[0] - index);
+
+        for (Map.Entry<String, Object> e : node.getAttributeMap().entrySet()) {
+            setAttribute(columns, index, e.getKey(), e.getValue());
+        }
+        if (parent != -1) {
+            try {
+                Edge edge = tree.getEdge(tree.getParent(node), node);
+                for (Map.Entry<String, Object> e : edge.getAttributeMap().entrySet()) {
+                    setAttribute(edgeColumns, index, e.getKey(), e.getValue());
+                }
+            } catch (NoEdgeException nee) {
+                // a child always has an edge to its parent
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * @return true if a node set iterates in the order of the node indices given
+     */
+    private static boolean isOrder(Set<Node> nodeSet, List<Node> preOrder, IntBuffer order) {
+        int i = 0;
+        for (Node node : nodeSet) {
+            if (i >= order.limit() || node != preOrder.get(order.get(i))) {
+                return false;
+            }
+            i++;
+        }
+        return i == order.limit();
+    }
+
+    private void setOrder(Set<Node> nodeSet, List<Node> preOrder, IntBuffer order) {
+        Map<Node, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < nodeCount; i++) {
+            indices.put(preOrder.get(i), i);
+        }
+        int i = 0;
+        for (Node node : nodeSet) {
+            order.put(i, indices.get(node));
+            i++;
+        }
+    }
+
+    /**
+     * Allocates a zeroed buffer for count values of the given width in bytes. These are memory mapped from
+     * a scratch file (deleted straight away so it disappears when the buffer does) as mapped files don't
+     * count against either the heap or the direct memory limit.
+     */
+    private ByteBuffer allocate(int count, int width) {
+        long size = (long)count * width;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Tree too large for off-heap storage column");
+        }
+        try {
+            File file = File.createTempFile("jclusterfunk", ".scratch", scratchPath != null ? new File(scratchPath) : null);
+            ByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(Math.max(size, 1));
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, 1));
+            }
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            return buffer.order(ByteOrder.nativeOrder());
+        } catch (IOException ioe) {
+            // fall back to direct memory if no scratch file can be created
+            return ByteBuffer.allocateDirect((int)Math.max(size, 1)).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private Node node(int index) {
+        if (index < 0) {
+            return null;
+        }
+        OffHeapNode[] page = nodePages[index >>> PAGE_BITS];
+        OffHeapNode node = page != null ? page[index & ((1 << PAGE_BITS) - 1)] : null;
+        if (node == null) {
+            // nodes may be requested from several threads so make sure only one is ever created
+            synchronized (nodePages) {
+                page = nodePages[index >>> PAGE_BITS];
+                if (page == null) {
+                    page = new OffHeapNode[1 << PAGE_BITS];
+                    nodePages[index >>> PAGE_BITS] = page;
+                }
+                node = page[index & ((1 << PAGE_BITS) - 1)];
+                if (node == null) {
+                    node = new OffHeapNode(index);
+                    page[index & ((1 << PAGE_BITS) - 1)] = node;
+                }
+            }
+        }
+        return node;
+    }
+
+    private int index(Node node) {
+        OffHeapNode n = (OffHeapNode)node;
+        if (n.tree() != this) {
+            throw new IllegalArgumentException("Node is not in this tree");
+        }
+        return n.index;
+    }
+
+    // RootedTree implementation
+
+    @Override
+    public List<Node> getChildren(Node node) {
+        List<Node> children = new ArrayList<>();
+        int child = firstChildren.get(index(node));
+        while (child != -1) {
+            children.add(node(child));
+            child = nextSiblings.get(child);
+        }
+        return children;
+    }
+
+    @Override
+    public int getExternalNodeCount(Node node) {
+        return tipCounts.get(index(node));
+    }
+
+    @Override
+    public List<Node> getExternalNodes(Node node) {
+        // nodes are in pre-order so a subtree is a contiguous block of indices
+        int index = index(node);
+        int end = index + subtreeSizes.get(index);
+        List<Node> tips = new ArrayList<>();
+        for (int i = index; i < end; i++) {
+            if (taxonIndices.get(i) != -1) {
+                tips.add(node(i));
+            }
+        }
+        return tips;
+    }
+
+    @Override
+    public boolean hasHeights() {
+        return hasHeights;
+    }
+
+    @Override
+    public boolean isHeightsKnown() {
+        return heightsKnown;
+    }
+
+    @Override
+    public double getHeight(Node node) {
+        return heights.get(index(node));
+    }
+
+    @Override
+    public boolean hasLengths() {
+        return hasLengths;
+    }
+
+    @Override
+    public boolean isLengthsKnown() {
+        return lengthsKnown;
+    }
+
+    @Override
+    public double getLength(Node node) {
+        return lengths.get(index(node));
+    }
+
+    @Override
+    public Node getParent(Node node) {
+        return node(parents.get(index(node)));
+    }
+
+    @Override
+    public Node getRootNode() {
+        return node(0);
+    }
+
+    @Override
+    public boolean conceptuallyUnrooted() {
+        return conceptuallyUnrooted;
+    }
+
+    @Override
+    public boolean isRoot(Node node) {
+        return index(node) == 0;
+    }
+
+    @Override
+    public Set<Node> getExternalNodes() {
+        return new NodeSet(true);
+    }
+
+    @Override
+    public Set<Node> getInternalNodes() {
+        return new NodeSet(false);
+    }
+
+    @Override
+    public Set<Edge> getExternalEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (Node node : getExternalNodes()) {
+            edges.add(new OffHeapEdge(index(node)));
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Edge> getInternalEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (Node node : getInternalNodes()) {
+            if (!isRoot(node)) {
+                edges.add(new OffHeapEdge(index(node)));
+            }
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Taxon> getTaxa() {
+        return new LinkedHashSet<>(Arrays.asList(taxa));
+    }
+
+    @Override
+    public Taxon getTaxon(Node node) {
+        int taxonIndex = taxonIndices.get(index(node));
+        return taxonIndex == -1 ? null : taxa[taxonIndex];
+    }
+
+    @Override
+    public boolean isExternal(Node node) {
+        return taxonIndices.get(index(node)) != -1;
+    }
+
+    @Override
+    public Node getNode(Taxon taxon) {
+        if (taxonNodeMap == null) {
+            // only built if required
+            taxonNodeMap = new HashMap<>();
+            for (int i = 0; i < nodeCount; i++) {
+                int taxonIndex = taxonIndices.get(i);
+                if (taxonIndex != -1) {
+                    taxonNodeMap.put(taxa[taxonIndex], i);
+                }
+            }
+        }
+        Integer index = taxonNodeMap.get(taxon);
+        return index == null ? null : node(index);
+    }
+
+    @Override
+    public void renameTaxa(Taxon from, Taxon to) {
+        for (int i = 0; i < taxa.length; i++) {
+            if (taxa[i].equals(from)) {
+                taxa[i] = to;
+                if (taxonNodeMap != null) {
+                    Integer index = taxonNodeMap.remove(from);
+                    taxonNodeMap.put(to, index);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public List<Edge> getEdges(Node node) {
+        List<Edge> edges = new ArrayList<>();
+        int index = index(node);
+        if (index != 0) {
+            edges.add(new OffHeapEdge(index));
+        }
+        int child = firstChildren.get(index);
+        while (child != -1) {
+            edges.add(new OffHeapEdge(child));
+            child = nextSiblings.get(child);
+        }
+        return edges;
+    }
+
+    @Override
+    public List<Node> getAdjacencies(Node node) {
+        List<Node> adjacencies = new ArrayList<>();
+        Node parent = getParent(node);
+        if (parent != null) {
+            adjacencies.add(parent);
+        }
+        adjacencies.addAll(getChildren(node));
+        return adjacencies;
+    }
+
+    @Override
+    public Edge getEdge(Node node1, Node node2) throws NoEdgeException {
+        int index1 = index(node1);
+        int index2 = index(node2);
+        if (parents.get(index1) == index2) {
+            return new OffHeapEdge(index1);
+        }
+        if (parents.get(index2) == index1) {
+            return new OffHeapEdge(index2);
+        }
+        throw new NoEdgeException();
+    }
+
+    @Override
+    public double getEdgeLength(Node node1, Node node2) throws NoEdgeException {
+        return getEdge(node1, node2).getLength();
+    }
+
+    @Override
+    public Node[] getNodes(Edge edge) {
+        int index = ((OffHeapEdge)edge).index;
+        return new Node[] { node(parents.get(index)), node(index) };
+    }
+
+    @Override
+    public Set<Node> getNodes() {
+        Set<Node> nodes = new LinkedHashSet<>(getInternalNodes());
+        nodes.addAll(getExternalNodes());
+        return nodes;
+    }
+
+    @Override
+    public Set<Edge> getEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (Node node : getNodes()) {
+            if (!isRoot(node)) {
+                edges.add(new OffHeapEdge(index(node)));
+            }
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Node> getNodes(int degree) {
+        Set<Node> nodes = new LinkedHashSet<>();
+        for (Node node : getNodes()) {
+            if (node.getDegree() == degree) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    // tree attributes are few so are kept on the heap
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        treeAttributes.put(name, value);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return treeAttributes.get(name);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        treeAttributes.remove(name);
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        return treeAttributes.keySet();
+    }
+
+    @Override
+    public Map<String, Object> getAttributeMap() {
+        return treeAttributes;
+    }
+
+    // node and edge attribute columns - synchronized as columns are shared between nodes which may be in
+    // different threads
+
+    private synchronized void setAttribute(Map<String, AttributeColumn> columns, int index, String name, Object value) {
+        AttributeColumn column = columns.get(name);
+        if (column == null) {
+            if (value == null) {
+                return;
+            }
+            column = new AttributeColumn(value instanceof Double);
+            columns.put(name, column);
+        }
+        column.set(index, value);
+    }
+
+    private synchronized Object getAttribute(Map<String, AttributeColumn> columns, int index, String name) {
+        AttributeColumn column = columns.get(name);
+        return column == null ? null : column.get(index);
+    }
+
+    private synchronized void removeAttribute(Map<String, AttributeColumn> columns, int index, String name) {
+        AttributeColumn column = columns.get(name);
+        if (column != null) {
+            column.remove(index);
+        }
+    }
+
+    private synchronized Map<String, Object> getAttributeMap(Map<String, AttributeColumn> columns, int index) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for (Map.Entry<String, AttributeColumn> e : columns.entrySet()) {
+            Object value = e.getValue().get(index);
+            if (value != null) {
+                attributes.put(e.getKey(), value);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * @return true if equal values can share a dictionary entry (they can't be changed after being set)
+     */
+    private static boolean isImmutable(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean ||
+                value instanceof Character || value instanceof Enum;
+    }
+
+    /**
+     * A column of values for one attribute. Starts out as raw doubles if the first value is a double and
+     * switches to dictionary indices if any other type of value is set. Immutable values are looked up in
+     * the dictionary, others are given an entry of their own (reused if the node's value is set again).
+     */
+    private final class AttributeColumn {
+        AttributeColumn(boolean isDouble) {
+            if (isDouble) {
+                doubles = allocate(nodeCount, 8).asLongBuffer();
+                for (int i = 0; i < nodeCount; i++) {
+                    doubles.put(i, ABSENT);
+                }
+            } else {
+                codes = allocate(nodeCount, 4).asIntBuffer();
+            }
+        }
+
+        void set(int index, Object value) {
+            if (value == null) {
+                remove(index);
+                return;
+            }
+            if (doubles != null) {
+                if (value instanceof Double) {
+                    doubles.put(index, Double.doubleToRawLongBits((Double)value));
+                    return;
+                }
+                convertToDictionary();
+            }
+            if (!isImmutable(value)) {
+                int code = codes.get(index);
+                if (code != 0 && owned.get(code - 1)) {
+                    dictionary.set(code - 1, value);
+                } else {
+                    dictionary.add(value);
+                    owned.set(dictionary.size() - 1);
+                    codes.put(index, dictionary.size());
+                }
+                return;
+            }
+            Integer code = dictionaryIndex.get(value);
+            if (code == null) {
+                dictionary.add(value);
+                code = dictionary.size();
+                dictionaryIndex.put(value, code);
+            }
+            codes.put(index, code);
+        }
+
+        Object get(int index) {
+            if (doubles != null) {
+                long bits = doubles.get(index);
+                return bits == ABSENT ? null : Double.longBitsToDouble(bits);
+            }
+            int code = codes.get(index);
+            return code == 0 ? null : dictionary.get(code - 1);
+        }
+
+        void remove(int index) {
+            if (doubles != null) {
+                doubles.put(index, ABSENT);
+            } else {
+                int code = codes.get(index);
+                if (code != 0 && owned.get(code - 1)) {
+                    // an entry of this node's own so let the value go
+                    dictionary.set(code - 1, null);
+                    owned.clear(code - 1);
+                }
+                codes.put(index, 0);
+            }
+        }
+
+        private void convertToDictionary() {
+            LongBuffer values = doubles;
+            doubles = null;
+            codes = allocate(nodeCount, 4).asIntBuffer();
+            for (int i = 0; i < nodeCount; i++) {
+                long bits = values.get(i);
+                if (bits != ABSENT) {
+                    set(i, Double.longBitsToDouble(bits));
+                }
+            }
+        }
+
+        LongBuffer doubles = null;
+        IntBuffer codes = null;
+        final List<Object> dictionary = new ArrayList<>();
+        final Map<Object, Integer> dictionaryIndex = new HashMap<>();
+        // the dictionary entries that belong to a single node
+        final BitSet owned = new BitSet();
+    }
+
+    /**
+     * A light-weight node that is just an index into the tree's columns.
+     */
+    private final class OffHeapNode implements Node {
+        OffHeapNode(int index) {
+            this.index = index;
+        }
+
+        OffHeapRootedTree tree() {
+            return OffHeapRootedTree.this;
+        }
+
+        @Override
+        public int getDegree() {
+            int degree = (parents.get(index) == -1 ? 0 : 1);
+            int child = firstChildren.get(index);
+            while (child != -1) {
+                degree += 1;
+                child = nextSiblings.get(child);
+            }
+            return degree;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            OffHeapRootedTree.this.setAttribute(columns, index, name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return OffHeapRootedTree.this.getAttribute(columns, index, name);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            OffHeapRootedTree.this.removeAttribute(columns, index, name);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return OffHeapRootedTree.this.getAttributeMap(columns, index).keySet();
+        }
+
+        @Override
+        public Map<String, Object> getAttributeMap() {
+            return OffHeapRootedTree.this.getAttributeMap(columns, index);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof OffHeapNode && ((OffHeapNode)o).index == index && ((OffHeapNode)o).tree() == tree();
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        final int index;
+    }
+
+    /**
+     * An edge is identified by the index of the node at its child end.
+     */
+    private final class OffHeapEdge implements Edge {
+        OffHeapEdge(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public double getLength() {
+            return lengths.get(index);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            OffHeapRootedTree.this.setAttribute(edgeColumns, index, name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return OffHeapRootedTree.this.getAttribute(edgeColumns, index, name);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            OffHeapRootedTree.this.removeAttribute(edgeColumns, index, name);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return OffHeapRootedTree.this.getAttributeMap(edgeColumns, index).keySet();
+        }
+
+        @Override
+        public Map<String, Object> getAttributeMap() {
+            return OffHeapRootedTree.this.getAttributeMap(edgeColumns, index);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof OffHeapEdge && ((OffHeapEdge)o).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        final int index;
+    }
+
+    /**
+     * A read-only view of the external or internal nodes (in the original tree's order) without creating a set of nodes.
+     */
+    private final class NodeSet extends AbstractSet<Node> {
+        NodeSet(boolean external) {
+            this.external = external;
+            this.order = external ? externalOrder : internalOrder;
+        }
+
+        @Override
+        public Iterator<Node> iterator() {
+            return new Iterator<Node>() {
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size();
+                }
+
+                @Override
+                public Node next() {
+                    if (next >= size()) {
+                        throw new NoSuchElementException();
+                    }
+                    Node node = node(order.get(next));
+                    next++;
+                    return node;
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof OffHeapNode && ((OffHeapNode)o).tree() == OffHeapRootedTree.this &&
+                    isExternal((Node)o) == external;
+        }
+
+        @Override
+        public int size() {
+            return external ? tipCount : nodeCount - tipCount;
+        }
+
+        private final boolean external;
+        private final IntBuffer order;
+    }
+
+    private final String scratchPath;
+
+    private final int nodeCount;
+    private final int tipCount;
+
+    private final IntBuffer parents;
+    private final IntBuffer firstChildren;
+    private final IntBuffer nextSiblings;
+    private final IntBuffer subtreeSizes;
+    private final IntBuffer tipCounts;
+    private final IntBuffer taxonIndices;
+    private final IntBuffer externalOrder;
+    private final IntBuffer internalOrder;
+    private final DoubleBuffer heights;
+    private final DoubleBuffer lengths;
+
+    private final Taxon[] taxa;
+    private final OffHeapNode[][] nodePages;
+    private Map<Taxon, Integer> taxonNodeMap = null;
+
+    private final boolean hasHeights;
+    private final boolean hasLengths;
+    private final boolean heightsKnown;
+    private final boolean lengthsKnown;
+    private final boolean conceptuallyUnrooted;
+
+    private final Map<String, AttributeColumn> columns = new LinkedHashMap<>();
+    private final Map<String, AttributeColumn> edgeColumns = new LinkedHashMap<>();
+    private final Map<String, Object> treeAttributes = new LinkedHashMap<>();
+}
@@ -0,0 +1,64 @@
+package network.artic.clusterfunk.commands;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A zip archive that the output files of a command are written into rather than as separate files (for commands
+ * such as context and divide which can write tens of thousands of small files). Each file is written into memory
+ * and added to the archive as a whole when its writer is closed so files can be written from more than one thread.
+ * The zip's central directory is the index so a single file can be read back by name without reading the rest
+ * (see Unpack).
+ */
+final class OutputArchive implements Closeable {
+
+    /**
+     * @param archiveFileName the zip file to create
+     */
+    OutputArchive(String archiveFileName) throws IOException {
+        out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFileName), 1 << 16));
+    }
+
+    /**
+     * Creates a writer for a file in the archive. The file is added when the writer is closed.
+     * @param name the name of the file in the archive
+     * @return the writer
+     */
+    Writer createWriter(String name) {
+        return new StringWriter() {
+            @Override
+            public void close() throws IOException {
+                if (!isClosed) {
+                    isClosed = true;
+                    addEntry(name, toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            private boolean isClosed = false;
+        };
+    }
+
+    /**
+     * @return the number of files in the archive
+     */
+    synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    private synchronized void addEntry(String name, byte[] bytes) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+        entryCount++;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private final ZipOutputStream out;
+    private int entryCount = 0;
+}
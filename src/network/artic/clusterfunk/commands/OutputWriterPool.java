@@ -0,0 +1,127 @@
+package network.artic.clusterfunk.commands;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats and writes output files (such as the subtrees of context, divide and split) on a pool of writer threads
+ * so the command can go on building the next file while earlier ones are written. The number of files waiting or
+ * being written is bounded by the number of writers - submitting blocks until one finishes - so only a few of
+ * the subtrees are held in memory at a time. Virtual threads are used where the JVM has them (Java 21 and later),
+ * otherwise a fixed pool of platform threads.
+ *
+ * Errors are collected rather than stopping the other writers and are returned by finish(). With one writer the
+ * files are written in the calling thread as they are submitted.
+ */
+final class OutputWriterPool {
+
+    interface WriteAction {
+        /**
+         * Writes the content of a file. The writer is closed afterwards.
+         * @param writer
+         */
+        void write(Writer writer) throws IOException;
+    }
+
+    interface WriterFactory {
+        Writer createWriter(String fileName) throws IOException;
+    }
+
+    /**
+     * @param writerCount the maximum number of files being written at once
+     * @param writerFactory creates the writer for each file
+     */
+    OutputWriterPool(int writerCount, WriterFactory writerFactory) {
+        this.writerFactory = writerFactory;
+        this.permits = new Semaphore(Math.max(writerCount, 1));
+        this.writerCount = Math.max(writerCount, 1);
+        this.executor = (this.writerCount > 1 ? createExecutor(this.writerCount) : null);
+    }
+
+    /**
+     * Submits a file to be written, waiting if all the writers are busy
+     * @param fileName
+     * @param action
+     */
+    void submit(String fileName, WriteAction action) {
+        if (executor == null) {
+            write(fileName, action);
+            return;
+        }
+
+        permits.acquireUninterruptibly();
+        try {
+            executor.execute(() -> {
+                try {
+                    write(fileName, action);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException re) {
+            permits.release();
+            throw re;
+        }
+    }
+
+    /**
+     * Waits for all the submitted files to be written and stops the writers
+     * @return the errors (empty if all the files were written)
+     */
+    List<String> finish() {
+        if (executor != null) {
+            // all the permits are only free once every file has been written
+            permits.acquireUninterruptibly(writerCount);
+            permits.release(writerCount);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (errors) {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    private void write(String fileName, WriteAction action) {
+        try (Writer writer = writerFactory.createWriter(fileName)) {
+            action.write(writer);
+            Progress.addFileWritten();
+        } catch (IOException | RuntimeException e) {
+            synchronized (errors) {
+                errors.add(fileName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Uses Executors.newVirtualThreadPerTaskExecutor if this JVM has it (the semaphore provides the bound)
+     */
+    private static ExecutorService createExecutor(int writerCount) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            return Executors.newFixedThreadPool(writerCount, runnable -> {
+                Thread thread = new Thread(runnable, "output-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private final WriterFactory writerFactory;
+    private final int writerCount;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final List<String> errors = new ArrayList<>();
+}
@@ -8,7 +8,6 @@ import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.MutableRootedTree;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
-import org.apache.commons.csv.CSVRecord;
 
 import java.util.*;
 
@@ -28,9 +27,10 @@ public class Place extends Command {
                  String headerDelimiter,
                  boolean uniqueOnly,
                  boolean ignoreMissing,
+                 Settings settings,
                  boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
@@ -39,7 +39,7 @@ public class Place extends Command {
         List<Branch> branches = new ArrayList<>();
 
         for (String name : metadata.keySet()) {
-            CSVRecord record = metadata.get(name);
+            MetadataRecord record = metadata.get(name);
             if (!tipMap.containsKey(name)) {
                 branches.add(new Branch(name, record.get("differences"), record.get("ambiguities")));
             } else {
@@ -103,7 +103,7 @@ public class Place extends Command {
 
             if (branch == null) {
                 errorStream.println("Tip, " + tipName + ", not found in substitutions list");
-                System.exit(1);
+                exit(1);
             }
 
             substitutions = branch.substitutions;
@@ -0,0 +1,202 @@
+package network.artic.clusterfunk.commands;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reports the progress of a command on stderr at a fixed interval - the bytes of input parsed (with the rate and
+ * an estimate of the time left to read them), the tree nodes visited, the trees processed and the files written.
+ * The commands just add to counters as they go (LongAdders so threads don't contend) and a timer thread samples
+ * them, so nothing is printed or timed in the loops themselves.
+ */
+public final class Progress {
+    private final static long MB = 1024 * 1024;
+
+    private Progress() {
+    }
+
+    /**
+     * Starts reporting (and resets the counters)
+     * @param interval the time between reports in milliseconds
+     */
+    public static synchronized void start(long interval) {
+        stop();
+        bytesRead.reset();
+        totalBytes.reset();
+        nodesVisited.reset();
+        treesProcessed.reset();
+        filesWritten.reset();
+
+        reporter = new Reporter(System.err);
+        timer = new Timer("progress", true);
+        timer.scheduleAtFixedRate(reporter, interval, interval);
+    }
+
+    /**
+     * Stops reporting, printing a last report if any have been printed.
+     */
+    public static synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            if (reporter.reportCount > 0) {
+                reporter.run();
+            }
+            timer = null;
+            reporter = null;
+        }
+    }
+
+    static void addBytesToRead(long bytes) {
+        totalBytes.add(bytes);
+    }
+
+    static void addNodesVisited(long nodes) {
+        nodesVisited.add(nodes);
+    }
+
+    static void addTreeProcessed() {
+        treesProcessed.increment();
+    }
+
+    static void addFileWritten() {
+        filesWritten.increment();
+    }
+
+    /**
+     * Opens an input file so the bytes read from it are counted (and its size is added to the total to be read)
+     * @param fileName
+     * @return the reader
+     */
+    static Reader openReader(String fileName) throws IOException {
+        File file = new File(fileName);
+        addBytesToRead(file.length());
+        return new InputStreamReader(new CountingInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * Counts the bytes read through it. Readers read in blocks so this is called once per block.
+     */
+    static final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                bytesRead.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                bytesRead.add(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = super.skip(n);
+            bytesRead.add(count);
+            return count;
+        }
+    }
+
+    private static final class Reporter extends TimerTask {
+        Reporter(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public synchronized void run() {
+            long time = System.currentTimeMillis();
+            double seconds = Math.max(time - lastTime, 1) / 1000.0;
+
+            long bytes = bytesRead.sum();
+            long total = totalBytes.sum();
+            long nodes = nodesVisited.sum();
+            long trees = treesProcessed.sum();
+            long files = filesWritten.sum();
+
+            List<String> parts = new ArrayList<>();
+            if (bytes > 0) {
+                StringBuilder sb = new StringBuilder("read ").append(formatSize(bytes));
+                if (total > bytes) {
+                    sb.append(" of ").append(formatSize(total));
+                }
+                if (bytes > lastBytes) {
+                    double rate = (bytes - lastBytes) / seconds;
+                    sb.append(" (").append(formatSize((long) rate)).append("/s");
+                    if (total > bytes) {
+                        sb.append(", ETA ").append(formatTime((long) ((total - bytes) / rate)));
+                    }
+                    sb.append(")");
+                }
+                parts.add(sb.toString());
+            }
+            if (nodes > 0) {
+                parts.add(nodes + " nodes visited" + formatRate(nodes - lastNodes, seconds));
+            }
+            if (trees > 0) {
+                parts.add(trees + " trees processed" + formatRate(trees - lastTrees, seconds));
+            }
+            if (files > 0) {
+                parts.add(files + " files written" + formatRate(files - lastFiles, seconds));
+            }
+            out.println("[" + formatTime((time - startTime) / 1000) + "] " +
+                    (parts.isEmpty() ? "working" : String.join(", ", parts)));
+
+            lastTime = time;
+            lastBytes = bytes;
+            lastNodes = nodes;
+            lastTrees = trees;
+            lastFiles = files;
+            reportCount++;
+        }
+
+        private static String formatRate(long count, double seconds) {
+            return count > 0 ? String.format(" (%.1f/s)", count / seconds) : "";
+        }
+
+        private static String formatSize(long bytes) {
+            if (bytes >= 10 * 1024 * MB) {
+                return (bytes / (1024 * MB)) + " GB";
+            }
+            if (bytes >= MB) {
+                return (bytes / MB) + " MB";
+            }
+            return ((bytes + 1023) / 1024) + " KB";
+        }
+
+        private static String formatTime(long seconds) {
+            return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+        }
+
+        private final PrintStream out;
+        private final long startTime = System.currentTimeMillis();
+        private long lastTime = startTime;
+        private long lastBytes = 0;
+        private long lastNodes = 0;
+        private long lastTrees = 0;
+        private long lastFiles = 0;
+        private int reportCount = 0;
+    }
+
+    private final static LongAdder bytesRead = new LongAdder();
+    private final static LongAdder totalBytes = new LongAdder();
+    private final static LongAdder nodesVisited = new LongAdder();
+    private final static LongAdder treesProcessed = new LongAdder();
+    private final static LongAdder filesWritten = new LongAdder();
+
+    private static Timer timer = null;
+    private static Reporter reporter = null;
+}
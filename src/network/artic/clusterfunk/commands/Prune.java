@@ -1,11 +1,9 @@
 package network.artic.clusterfunk.commands;
 
-import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedSubtree;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
-import org.apache.commons.csv.CSVRecord;
 
 import java.util.*;
 
@@ -25,9 +23,10 @@ public class Prune extends Command {
                  String headerDelimiter,
                  boolean keepTaxa,
                  boolean ignoreMissing,
+                 Settings settings,
                  boolean isVerbose) {
 
-        super(metadataFileName, taxaFileName, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, taxaFileName, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         List<String> targetTaxaList = new ArrayList<>(targetTaxa != null ? Arrays.asList(targetTaxa) : Collections.emptyList());
         if (taxa != null) {
@@ -43,25 +42,29 @@ public class Prune extends Command {
         Map<Taxon, String> taxonMap = getTaxonMap(tree);
 
         if (!ignoreMissing) {
+            Set<String> treeTaxa = new HashSet<>(taxonMap.values());
             for (String key : targetTaxaList) {
-                if (!taxonMap.containsValue(key)) {
+                if (!treeTaxa.contains(key)) {
                     errorStream.println("Taxon, " + key + ", not found in tree");
-                    System.exit(1);
+                    exit(1);
                 }
             }
         }
 
-        // subtree option in JEBL requires the taxa that are to be included
-        Set<Taxon> includedTaxa = new HashSet<>();
+        Set<String> targetTaxaSet = new HashSet<>(targetTaxaList);
+        TipIndex tipIndex = new TipIndex(tree);
+        CompressedBitSet includedTips = new CompressedBitSet();
 
-        for (Node tip : tree.getExternalNodes()) {
-            Taxon taxon = tree.getTaxon(tip);
-            String index = taxonMap.get(taxon);
-            if (targetTaxaList.contains(index) == keepTaxa) {
-                includedTaxa.add(taxon);
+        for (int i = 0; i < tipIndex.getTipCount(); i++) {
+            String index = taxonMap.get(tipIndex.getTaxon(i));
+            if (targetTaxaSet.contains(index) == keepTaxa) {
+                includedTips.add(i);
             }
         }
 
+        // subtree option in JEBL requires the taxa that are to be included
+        Set<Taxon> includedTaxa = tipIndex.getTaxa(includedTips);
+
         if (isVerbose) {
             outStream.println("   Number of taxa pruned: " + (tree.getExternalNodes().size() - includedTaxa.size()) );
             outStream.println("Number of taxa remaining: " + includedTaxa.size());
@@ -70,7 +73,7 @@ public class Prune extends Command {
 
         if (includedTaxa.size() < 2) {
             errorStream.println("At least 2 taxa must remain in the tree");
-            System.exit(1);
+            exit(1);
         }
 
         RootedTree outTree = new RootedSubtree(tree, includedTaxa);
@@ -83,7 +86,7 @@ public class Prune extends Command {
         writeTreeFile(outTree, outputFileName, outputFormat);
 
         if (outputMetadataFileName != null) {
-            List<CSVRecord> metadataRows = new ArrayList<>();
+            List<MetadataRecord> metadataRows = new ArrayList<>();
             for (Taxon taxon : includedTaxa) {
                 metadataRows.add(metadata.get(taxonMap.get(taxon)));
             }
@@ -4,12 +4,12 @@ import jebl.evolution.graphs.Node;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 /**
- * Reconstructs annotation values at internal nodes using parsimony.
+ * Reconstructs annotation values at internal nodes using parsimony. The equally parsimonious states of each
+ * internal node are given in the sorted order of the values (as an attribute named with a _states suffix) and
+ * ties are broken by taking the first of them.
  */
 public class Reconstruct extends Command {
 
@@ -20,19 +20,27 @@ public class Reconstruct extends Command {
                        String reconstructedStateAttributeName,
                        String rootState,
                        boolean deltran,
+                       Settings settings,
                        boolean isVerbose) {
 
-        super(isVerbose);
+        super(settings, isVerbose);
 
-        if (outputFormat != FormatType.NEXUS) {
-            errorStream.println("Annotations are only compatible with NEXUS output format");
-            System.exit(1);
+        if (outputFormat != FormatType.NEXUS && outputFormat != FormatType.AUSPICE) {
+            errorStream.println("Annotations are only compatible with NEXUS or AUSPICE output format");
+            exit(1);
         }
 
         RootedTree tree = readTree(treeFileName);
 
         Set<Object> attributeValues = collectTipAttributeValues(tree, tipStateAttibuteName).keySet();
 
+        // the state sets are held as bit sets of codes for these values (with a code for tips with no value)
+        stateValues = new ArrayList<>(attributeValues);
+        stateValues.add(null);
+        for (int i = 0; i < stateValues.size(); i++) {
+            stateCodes.put(stateValues.get(i), i);
+        }
+
     //        List<Object> keys = new ArrayList<>(attributeValues.keySet());
     //        keys.sort((o1, o2) -> (o1.toString().length() == o2.toString().length() ?
     //                o1.toString().compareTo(o2.toString()) :
@@ -71,37 +79,48 @@ public class Reconstruct extends Command {
      * @param tipAttributeName
      */
     private void parsimonyReconstruction(RootedTree tree, String tipAttributeName, String nodeAttributeName, Object parentState, boolean deltran) {
-        fitchParsimony(tree, tree.getRootNode(), tipAttributeName, nodeAttributeName);
+        fitchParsimony(tree, tipAttributeName, nodeAttributeName);
         parsimonyReconstruction(tree, tree.getRootNode(), nodeAttributeName, parentState, deltran);
     }
 
     /**
-     * recursive version
+     * The Fitch pass - post-order so independent subtrees are done in parallel
      * @param tree
+     * @param tipAttributeName
+     * @param nodeAttributeName
+     */
+    private void fitchParsimony(RootedTree tree, String tipAttributeName, String nodeAttributeName) {
+        new TreeExecutor(tree, settings.getThreads()).postOrder((Node node, List<CompressedBitSet> childSets) -> fitchParsimony(node, childSets, tipAttributeName, nodeAttributeName));
+    }
+
+    /**
+     * Visits a node given the state sets of its children
      * @param node
+     * @param childSets
      * @param tipAttributeName
      * @return
      */
-    private Set<Object> fitchParsimony(RootedTree tree, Node node, String tipAttributeName, String nodeAttributeName) {
-        if (tree.isExternal(node)) {
+    private CompressedBitSet fitchParsimony(Node node, List<CompressedBitSet> childSets, String tipAttributeName, String nodeAttributeName) {
+        if (childSets.isEmpty()) {
             Object value = node.getAttribute(tipAttributeName);
-            return Collections.singleton(value);
+            CompressedBitSet states = new CompressedBitSet();
+            states.add(stateCodes.get(value));
+            return states;
         }
 
-        Set<Object> union = null;
-        Set<Object> intersection = null;
-        for (Node child : tree.getChildren(node)) {
-            Set<Object> childSet = fitchParsimony(tree, child, tipAttributeName, nodeAttributeName);
+        CompressedBitSet union = null;
+        CompressedBitSet intersection = null;
+        for (CompressedBitSet childSet : childSets) {
             if (union == null) {
-                union = new HashSet<>(childSet);
-                intersection = new HashSet<>(childSet);
+                union = childSet;
+                intersection = childSet;
             } else {
-                union.addAll(childSet);
-                intersection.retainAll(childSet);
+                union = CompressedBitSet.or(union, childSet);
+                intersection = CompressedBitSet.and(intersection, childSet);
             }
         }
 
-        if (intersection.size() > 0) {
+        if (!intersection.isEmpty()) {
             node.setAttribute(nodeAttributeName + "_states", intersection);
         } else {
             node.setAttribute(nodeAttributeName + "_states", union);
@@ -119,13 +138,14 @@ public class Reconstruct extends Command {
      */
     private void parsimonyReconstruction(RootedTree tree, Node node, String nodeAttributeName, Object parentState, boolean deltran) {
         if (!tree.isExternal(node)) {
-            Set<Object> states = (Set<Object>)node.getAttribute(nodeAttributeName + "_states");
+            Set<Object> states = getStates((CompressedBitSet)node.getAttribute(nodeAttributeName + "_states"));
+            node.setAttribute(nodeAttributeName + "_states", states);
 
             Object nodeState = null;
             if (parentState != null && states.contains(parentState)) {
                 nodeState = parentState;
             } else {
-                nodeState = states.stream().findFirst();
+                nodeState = states.stream().findFirst().orElse(null);
             }
 
             if (deltran) {
@@ -141,6 +161,17 @@ public class Reconstruct extends Command {
         }
     }
 
+    /**
+     * Decodes a set of state codes
+     * @param stateSet
+     * @return the state values in code order
+     */
+    private Set<Object> getStates(CompressedBitSet stateSet) {
+        Set<Object> states = new LinkedHashSet<>();
+        stateSet.forEach(code -> states.add(stateValues.get(code)));
+        return states;
+    }
+
     /**
      * Finds the MRCA for a set of tip nodes and then recursively annotates the subtree
      * @param tree
@@ -181,6 +212,6 @@ public class Reconstruct extends Command {
         return isMonophyletic;
     }
 
-
+    private List<Object> stateValues;
+    private final Map<Object, Integer> stateCodes = new HashMap<>();
 }
-
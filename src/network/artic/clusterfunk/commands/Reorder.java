@@ -18,9 +18,10 @@ public class Reorder extends Command {
                    String headerDelimiter,
                    OrderType orderType,
                    String[] sortColumns,
+                   Settings settings,
                    boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
@@ -25,13 +25,14 @@ public class Reroot extends Command {
            RootType rootType,
            double rootLocation,
            String[] outgroups,
+           Settings settings,
            boolean isVerbose) {
 
-        super(null, null, null, indexHeader, headerDelimiter, isVerbose);
+        super(null, null, null, indexHeader, headerDelimiter, settings, isVerbose);
 
         if (rootLocation < 0.0 || rootLocation > 1.0) {
             errorStream.println("root-location option should be between 0.0 and 1.0 ");
-            System.exit(1);
+            exit(1);
         }
 
         RootedTree tree = readTree(treeFileName);
@@ -51,10 +52,10 @@ public class Reroot extends Command {
 
                 Set<Node> outgroupTips = new HashSet<>();
                 for (String outgroup : outgroups) {
-                    Node tip = tree.getNode(Taxon.getTaxon(outgroup));
+                    Node tip = tree.getNode(taxonRegistry.getTaxon(outgroup));
                     if (tip == null) {
                         errorStream.println("Outgroup, " + outgroup + ", not found in the tree");
-                        System.exit(1);
+                        exit(1);
                     }
                     outgroupTips.add(tip);
                 }
@@ -2,7 +2,6 @@ package network.artic.clusterfunk.commands;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
-import jebl.evolution.trees.MutableRootedTree;
 import jebl.evolution.trees.RootedTree;
 import network.artic.clusterfunk.FormatType;
 
@@ -53,18 +52,28 @@ public class Sample extends Command {
                   int minCollapse,
                   int minClump,
                   int maxSoft,
+                  String codeRegistryFileName,
                   boolean ignoreMissing,
+                  Settings settings,
                   boolean isVerbose) {
 
-                super(metadataFileName, protectTaxa, indexColumn, indexHeader, headerDelimiter, isVerbose);
+                super(metadataFileName, protectTaxa, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         String path = checkOutputPath(outputPath);
 
+        if (codeRegistryFileName != null) {
+            readCodeRegistry(codeRegistryFileName);
+        }
+
         RootedTree tree = readTree(treeFileName);
-        MutableRootedTree sampledTree = new MutableRootedTree(tree);
+        LinkedRootedTree sampledTree = new LinkedRootedTree(tree);
 
         if (isVerbose) {
-            outStream.println("Collapsing branches shorter than " + ZERO_BRANCH_THRESHOLD);
+            if (settings.isSnpLengths()) {
+                outStream.println("Collapsing branches with no substitutions");
+            } else {
+                outStream.println("Collapsing branches shorter than " + ZERO_BRANCH_THRESHOLD);
+            }
             outStream.println();
         }
 
@@ -165,6 +174,14 @@ public class Sample extends Command {
 
         writeSubtreeRoots(subtreeMap, subtreeFileName);
 
+        if (codeRegistryFileName != null) {
+            if (isVerbose) {
+                outStream.println("Writing code registry file, " + codeRegistryFileName);
+                outStream.println();
+            }
+            writeCodeRegistry(codeRegistryFileName);
+        }
+
 //        if (outputMetadataFileName != null) {
 //            List<CSVRecord> metadataRows = new ArrayList<>();
 //            for (Taxon taxon : includedTaxa) {
@@ -196,7 +213,7 @@ public class Sample extends Command {
      * @param attributeName
      * @return
      */
-    private void clumpByAttribute(MutableRootedTree tree, Node node, String attributeName,
+    private void clumpByAttribute(LinkedRootedTree tree, Node node, String attributeName,
                                   int maxSoftClumpSize, int minClumpSize, Map<String, Subtree> subtrees) {
         if (!tree.isExternal(node)) {
             // recurse down tree
@@ -219,8 +236,8 @@ public class Sample extends Command {
             for (String value : clumps.keySet()) {
                 List<Node> externalNodes = clumps.get(value);
                 if (externalNodes.size() >= minClumpSize) {
-                    String name = getUniqueHexCode();
                     List<String> tips = externalNodes.stream().map(node1 -> tree.getTaxon(node1).getName()).collect(Collectors.toList());
+                    String name = getCladeCode(tips);
 
                     double minLength = Double.MAX_VALUE;
                     double maxLength = 0.0;
@@ -240,7 +257,7 @@ public class Sample extends Command {
                     Node clump;
                     if (externalNodes.size() > maxSoftClumpSize) {
                         // Either replace the clumped tips with a single tip (if larger than the threshold)
-                        clump = tree.createExternalNode(Taxon.getTaxon(taxonName));
+                        clump = tree.createExternalNode(taxonRegistry.getTaxon(taxonName));
                     } else {
                         // or replace with an internal node flagged as 'clumped'
 
@@ -267,13 +284,12 @@ public class Sample extends Command {
         }
     }
 
-    private void clusterByAttribute(MutableRootedTree tree, Node node, String attributeName,
+    private void clusterByAttribute(LinkedRootedTree tree, Node node, String attributeName,
                                         int maxSoftCollapseSize, int minCollapseSize, Map<String, Subtree> subtrees) {
         if (!tree.isExternal(node)) {
             Set<Object> attributes = getTipAttributes(tree, node, attributeName).keySet();
             if (attributes.size() == 1) {
                 String value = (String)attributes.iterator().next();
-                String name = getUniqueHexCode();
                 List<Node> externalNodes = tree.getExternalNodes(node);
 
                 double minDivergence = Double.MAX_VALUE;
@@ -288,6 +304,7 @@ public class Sample extends Command {
                     }
                 }
                 List<String> tips = externalNodes.stream().map(node1 -> tree.getTaxon(node1).getName()).collect(Collectors.toList());
+                String name = getCladeCode(tips);
                 String taxonName = name + "|" + value + "|" + tips.size();
 
                     node.setAttribute("!collapse", new Object[] {CollapseType.COLLAPSED, maxDivergence, minDivergence, tips.size()});
@@ -298,7 +315,7 @@ public class Sample extends Command {
                 if (externalNodes.size() > maxSoftCollapseSize) {
                     Node parent = tree.getParent(node);
                     tree.removeChild(node, parent);
-                    Node tip = tree.createExternalNode(Taxon.getTaxon(taxonName));
+                    Node tip = tree.createExternalNode(taxonRegistry.getTaxon(taxonName));
                     tree.addChild(tip, parent);
                     tree.setLength(tip, minDivergence);
                 }
@@ -314,23 +331,22 @@ public class Sample extends Command {
     }
 
     /**
+     * Collapses the internal branches shorter than minBranchLength - or with no substitutions when the lengths
+     * are in SNPs (see Settings.setGenomeLength).
      * @param tree
      * @param node
      * @param minBranchLength
      * @return
      */
-    private void collapsePolytomies(MutableRootedTree tree, Node node, double minBranchLength) {
+    private void collapsePolytomies(LinkedRootedTree tree, Node node, double minBranchLength) {
         if (!tree.isExternal(node)) {
             for (Node child : tree.getChildren(node)) {
                 collapsePolytomies(tree, child, minBranchLength);
             }
 
-            if (!tree.isRoot(node) && tree.getLength(node) < minBranchLength) {
-                Node parent = tree.getParent(node);
-                tree.removeChild(node, parent);
-                for (Node tip : tree.getChildren(node)) {
-                    tree.addChild(tip, parent);
-                }
+            boolean isZero = settings.isSnpLengths() ? getSnps(tree, node) == 0 : tree.getLength(node) < minBranchLength;
+            if (!tree.isRoot(node) && isZero) {
+                tree.collapseNode(node);
             }
 
         }
@@ -367,7 +383,7 @@ public class Sample extends Command {
             writer.close();
         } catch (IOException e) {
             errorStream.println("Error writing metadata file: " + e.getMessage());
-            System.exit(1);
+            exit(1);
         }
 
     }
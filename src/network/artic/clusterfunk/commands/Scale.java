@@ -1,9 +1,7 @@
 package network.artic.clusterfunk.commands;
 
 import jebl.evolution.graphs.Node;
-import jebl.evolution.trees.MutableRootedTree;
 import jebl.evolution.trees.RootedTree;
-import jebl.evolution.trees.RootedTreeUtils;
 import network.artic.clusterfunk.FormatType;
 
 /**
@@ -17,18 +15,19 @@ public class Scale extends Command {
                  double branchThreshold,
                  boolean scaleRootHeight,
                  double rootHeight,
+                 Settings settings,
                  boolean isVerbose) {
 
-        super(isVerbose);
+        super(settings, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
         if (scaleRootHeight) {
             if (rootHeight <= 0.0) {
                 errorStream.println("Root height should be > 0.0");
-                System.exit(1);
+                exit(1);
             }
-            double tipDistance = RootedTreeUtils.getAverageTipDistance(tree, tree.getRootNode());
+            double tipDistance = getAverageTipDistance(tree, tree.getRootNode());
             scaleFactor = rootHeight / tipDistance;
             if (isVerbose) {
                 outStream.println("Scaling root height to: " + rootHeight);
@@ -36,13 +35,13 @@ public class Scale extends Command {
         }
         if (scaleFactor <= 0.0) {
             errorStream.println("Scale factor should be > 0.0");
-            System.exit(1);
+            exit(1);
         }
         if (isVerbose) {
             outStream.println("Scaling all branch lengths by: " + scaleFactor);
         }
 
-        MutableRootedTree outTree = new MutableRootedTree(tree);
+        LinkedRootedTree outTree = new LinkedRootedTree(tree);
 
         for (Node node : outTree.getNodes()) {
             outTree.setLength(node, outTree.getLength(node) * scaleFactor);
@@ -53,12 +52,8 @@ public class Scale extends Command {
         if (branchThreshold >= 0.0) {
             for (Node node : outTree.getInternalNodes()) {
                 if (outTree.getLength(node) <= branchThreshold) {
-                    Node parent = outTree.getParent(node);
-                    if (parent != null) {
-                        outTree.removeChild(node, parent);
-                        for (Node child : outTree.getChildren(node)) {
-                            outTree.addChild(child, parent);
-                        }
+                    if (!outTree.isRoot(node)) {
+                        outTree.collapseNode(node);
                         collapseCount += 1;
                     }
 
@@ -0,0 +1,237 @@
+package network.artic.clusterfunk.commands;
+
+import network.artic.clusterfunk.StorageType;
+
+import java.util.List;
+
+/**
+ * Settings that apply to all commands (rather than being specific to one). An instance is made for each command
+ * from its command line and passed to the command's constructor.
+ */
+public final class Settings {
+    public final static long DEFAULT_CACHE_SIZE = 8L * 1024 * 1024 * 1024;
+    public final static int DEFAULT_WRITERS = 4;
+    public final static int DEFAULT_CHECKPOINT_INTERVAL = 60;
+    public final static int DEFAULT_GENOME_LENGTH = 29903;
+
+    /**
+     * Creates the default settings
+     */
+    public Settings() {
+    }
+
+    /**
+     * Sets how trees are stored once they have been read.
+     * @param storageType
+     * @param scratchPath a directory for memory mapped scratch files (null for the system temporary directory)
+     */
+    public void setTreeStorage(StorageType storageType, String scratchPath) {
+        this.treeStorage = storageType;
+        this.treeScratchPath = scratchPath;
+    }
+
+    /**
+     * Sets the number of threads used for passes over large trees.
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * Sets the number of output files that commands writing many files write at once.
+     * @param writers
+     */
+    public void setWriters(int writers) {
+        this.writers = Math.max(writers, 1);
+    }
+
+    /**
+     * Sets a directory in which to cache parsed input files (null for no caching).
+     * @param cachePath
+     */
+    public void setCachePath(String cachePath) {
+        this.cachePath = cachePath;
+    }
+
+    /**
+     * Sets the maximum total size of the cache directory - the least recently used entries are removed
+     * to keep within this.
+     * @param cacheSize the size in bytes
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Sets a memory budget for large intermediate structures. Above this they are spilled to scratch files.
+     * @param memoryBudget the budget in bytes (0 for no limit)
+     * @param scratchPath a directory for the scratch files (null for the system temporary directory)
+     */
+    public void setMemoryBudget(long memoryBudget, String scratchPath) {
+        this.memoryBudget = memoryBudget;
+        this.spillScratchPath = scratchPath;
+    }
+
+    /**
+     * Sets the width of generated codes.
+     * @param idWidth the number of hex digits
+     */
+    public void setIdWidth(int idWidth) {
+        if (idWidth < 1 || idWidth > 16) {
+            throw new IllegalArgumentException("Code width must be between 1 and 16 hex digits");
+        }
+        this.idWidth = idWidth;
+    }
+
+    /**
+     * Sets which trees of a multi-tree file are processed.
+     * @param burnin the number of trees to skip at the start
+     * @param thin process every thin'th tree after the burn-in
+     * @param treeNames the names of the trees to process (null for all)
+     */
+    public void setTreeSelection(int burnin, int thin, List<String> treeNames) {
+        if (burnin < 0 || thin < 1) {
+            throw new IllegalArgumentException("Burn-in must be >= 0 and thinning >= 1");
+        }
+        this.burnin = burnin;
+        this.thin = thin;
+        this.treeNames = treeNames;
+    }
+
+    /**
+     * Sets whether commands that process the trees of a file one at a time write checkpoints to resume from.
+     * @param checkpointInterval the time between checkpoints in milliseconds (0 for no checkpoints)
+     * @param isResume resume from the last checkpoint if there is one
+     */
+    public void setCheckpoints(long checkpointInterval, boolean isResume) {
+        this.checkpointInterval = Math.max(checkpointInterval, 0);
+        this.isResume = isResume;
+    }
+
+    /**
+     * Sets the shard of a multi-tree file to process - the trees selected are divided into contiguous blocks
+     * and only one is processed, so a file can be processed by several independent runs (see Gather).
+     * @param shardIndex the block to process, from 1
+     * @param shardCount the number of blocks
+     */
+    public void setShard(int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 1 || shardIndex > shardCount) {
+            throw new IllegalArgumentException("Shard must be i/N with 1 <= i <= N");
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Sets whether branch lengths are compared as whole numbers of substitutions (SNPs). Each length (in
+     * substitutions per site) is multiplied by the genome length and rounded, and zero length branches are then
+     * those with no substitutions rather than those shorter than a threshold. The lengths themselves are not
+     * changed except in a succinct tree, which stores its depths as whole numbers of substitutions.
+     * @param genomeLength the number of sites in the genome
+     */
+    public void setGenomeLength(int genomeLength) {
+        if (genomeLength < 1) {
+            throw new IllegalArgumentException("Genome length must be >= 1");
+        }
+        this.genomeLength = genomeLength;
+    }
+
+    StorageType getTreeStorage() {
+        return treeStorage;
+    }
+
+    String getTreeScratchPath() {
+        return treeScratchPath;
+    }
+
+    String getSpillScratchPath() {
+        return spillScratchPath;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    int getWriters() {
+        return writers;
+    }
+
+    String getCachePath() {
+        return cachePath;
+    }
+
+    long getCacheSize() {
+        return cacheSize;
+    }
+
+    long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    int getIdWidth() {
+        return idWidth;
+    }
+
+    int getBurnin() {
+        return burnin;
+    }
+
+    int getThin() {
+        return thin;
+    }
+
+    List<String> getTreeNames() {
+        return treeNames;
+    }
+
+    long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    boolean isResume() {
+        return isResume;
+    }
+
+    int getShardIndex() {
+        return shardIndex;
+    }
+
+    int getShardCount() {
+        return shardCount;
+    }
+
+    boolean isSharded() {
+        return shardCount > 1;
+    }
+
+    int getGenomeLength() {
+        return genomeLength;
+    }
+
+    boolean isSnpLengths() {
+        return genomeLength > 0;
+    }
+
+    boolean isTreeSelection() {
+        return burnin > 0 || thin > 1 || treeNames != null;
+    }
+
+    private StorageType treeStorage = StorageType.HEAP;
+    private String treeScratchPath = null;
+    private int threads = 1;
+    private int writers = DEFAULT_WRITERS;
+    private String cachePath = null;
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+    private long memoryBudget = 0;
+    private String spillScratchPath = null;
+    private int idWidth = 6;
+    private int burnin = 0;
+    private int thin = 1;
+    private List<String> treeNames = null;
+    private long checkpointInterval = 0;
+    private boolean isResume = false;
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private int genomeLength = 0;
+}
@@ -0,0 +1,156 @@
+package network.artic.clusterfunk.commands;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Holds sets of taxon names (such as the contents of collapsed nodes) within a memory budget. Sets are kept as
+ * they are until the estimated size of those held reaches the budget, after that they are written to a temporary
+ * file and a read-only view that reads them back when iterated is returned in their place. The views are only
+ * valid until the store is closed. Spilled sets may be read while others are being stored (i.e., by the
+ * output writers).
+ */
+final class SpillStore implements Closeable {
+    // rough heap cost of a set entry on top of the characters of the string
+    private final static int ENTRY_OVERHEAD = 64;
+
+    /**
+     * @param memoryBudget the budget in bytes (0 for no limit)
+     * @param scratchPath the directory for the spill file (null for the system temporary directory)
+     */
+    SpillStore(long memoryBudget, String scratchPath) {
+        this.memoryBudget = memoryBudget;
+        this.scratchPath = scratchPath;
+    }
+
+    /**
+     * Stores a set of strings, spilling it to disk if the budget has been reached
+     * @param content the set - this shouldn't be modified after it is stored
+     * @return the set or a view of the spilled set
+     */
+    synchronized Set<String> store(Set<String> content) {
+        if (content instanceof SpilledSet) {
+            return content;
+        }
+
+        long size = 0;
+        for (String value : content) {
+            size += ENTRY_OVERHEAD + value.length() * 2L;
+        }
+
+        if (memoryBudget <= 0 || heldSize + size <= memoryBudget) {
+            heldSize += size;
+            return content;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (String value : content) {
+                byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(valueBytes.length);
+                out.write(valueBytes);
+            }
+            out.flush();
+
+            RandomAccessFile file = getSpillFile();
+            long offset = file.length();
+            file.seek(offset);
+            file.write(bytes.toByteArray());
+            spilledSize += bytes.size();
+
+            return new SpilledSet(offset, bytes.size(), content.size());
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write spill file: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * @return the number of bytes written to disk
+     */
+    long getSpilledSize() {
+        return spilledSize;
+    }
+
+    @Override
+    public void close() {
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+                Files.deleteIfExists(spillPath);
+            } catch (IOException ioe) {
+                // just a temporary file
+            }
+            spillFile = null;
+        }
+    }
+
+    private RandomAccessFile getSpillFile() throws IOException {
+        if (spillFile == null) {
+            Path directory = Paths.get(scratchPath != null ? scratchPath : System.getProperty("java.io.tmpdir"));
+            Files.createDirectories(directory);
+            spillPath = Files.createTempFile(directory, "spill", ".tmp");
+            spillPath.toFile().deleteOnExit();
+            spillFile = new RandomAccessFile(spillPath.toFile(), "rw");
+        }
+        return spillFile;
+    }
+
+    private synchronized List<String> read(long offset, int length, int count) {
+        try {
+            byte[] bytes = new byte[length];
+            spillFile.seek(offset);
+            spillFile.readFully(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            List<String> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] valueBytes = new byte[in.readInt()];
+                in.readFully(valueBytes);
+                values.add(new String(valueBytes, StandardCharsets.UTF_8));
+            }
+            return values;
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read spill file: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * A set that has been written to the spill file. It keeps the iteration order of the original set.
+     */
+    private final class SpilledSet extends AbstractSet<String> {
+        SpilledSet(long offset, int length, int count) {
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return read(offset, length, count).iterator();
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        private final long offset;
+        private final int length;
+        private final int count;
+    }
+
+    private final long memoryBudget;
+    private final String scratchPath;
+    private long heldSize = 0;
+    private long spilledSize = 0;
+    private Path spillPath = null;
+    private RandomAccessFile spillFile = null;
+}
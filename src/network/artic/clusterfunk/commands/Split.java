@@ -8,7 +8,6 @@ import network.artic.clusterfunk.FormatType;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Split the tree into subtrees defined by annotations of the tips or the nodes.
@@ -21,13 +20,15 @@ public class Split extends Command {
                  String outputFileStem,
                  FormatType outputFormat,
                  String outputMetadataFileName,
+                 String archiveFileName,
                  String indexColumn,
                  int indexHeader,
                  String headerDelimiter,
                  String attributeName,
+                 Settings settings,
                  boolean isVerbose) {
 
-        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(metadataFileName, null, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         String path = checkOutputPath(outputPath);
 
@@ -35,7 +36,7 @@ public class Split extends Command {
 
         Map<Taxon, String> taxonMap = getTaxonMap(tree);
 
-        Map<Object, Set<Node>> attributeValues = collectTipAttributeValues(tree, attributeName);
+        Map<Object, CompressedBitSet> attributeValues = collectTipAttributeValues(tree, attributeName);
 
         List<Object> keys = new ArrayList<>(attributeValues.keySet());
         keys.sort((o1, o2) -> {
@@ -60,10 +61,17 @@ public class Split extends Command {
 //            collapseSubtrees(tree, attributeName, value);
 //        }
 
+        if (archiveFileName != null) {
+            openArchive(archiveFileName);
+        }
+
         for (Object value: keys) {
             splitSubtrees(tree, attributeName, value, true, path, outputFileStem, true, outputFormat);
         }
 
+        finishWriting();
+        closeArchive();
+
     }
     
     /**
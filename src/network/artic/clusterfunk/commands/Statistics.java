@@ -18,9 +18,10 @@ public class Statistics extends Command {
     public Statistics(final String treeFileName,
                       final String outputFileName,
                       final String[] statistics,
+                      final Settings settings,
                       final boolean isVerbose) {
 
-        super(null, null, null, 0, null, isVerbose);
+        super(null, null, null, 0, null, settings, isVerbose);
 
         RootedTree tree = readTree(treeFileName);
 
@@ -74,9 +75,9 @@ public class Statistics extends Command {
         out.println("root height\t" + (tree.getHeight(tree.getRootNode())));
         out.println("max tip height\t" + (RootedTreeUtils.getMaxTipHeight(tree, tree.getRootNode())));
         out.println("min tip height\t" + (RootedTreeUtils.getMinTipHeight(tree, tree.getRootNode())));
-        out.println("root to tip distance\t" + (RootedTreeUtils.getAverageTipDistance(tree, tree.getRootNode())));
+        out.println("root to tip distance\t" + getAverageTipDistance(tree, tree.getRootNode()));
         out.println("max node count\t" + Utils.maxLevels(tree));
-        out.println("total length\t" + Utils.getLength(tree));
+        out.println("total length\t" + getTotalLength(tree));
     }
 
 
@@ -18,13 +18,14 @@ public class Subcluster extends Command {
                       String clusterPrefix,
                       String annotationName,
                       final int minLineageSize,
+                      Settings settings,
                       boolean isVerbose) {
 
-        super(isVerbose);
+        super(settings, isVerbose);
 
-        if (outputFormat != FormatType.NEXUS) {
-            errorStream.println("Annotations are only compatible with NEXUS output format");
-            System.exit(1);
+        if (outputFormat != FormatType.NEXUS && outputFormat != FormatType.AUSPICE) {
+            errorStream.println("Annotations are only compatible with NEXUS or AUSPICE output format");
+            exit(1);
         }
 
         RootedTree tree = readTree(treeFileName);
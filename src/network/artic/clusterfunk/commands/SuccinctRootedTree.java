@@ -0,0 +1,1420 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.graphs.Edge;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A read-only rooted tree for very large trees that keeps the topology as balanced parentheses - one bit for
+ * the opening and one for the closing of each node, in pre-order - with small rank and range-min-excess
+ * directories so parents, children, subtree sizes, tip counts and common ancestors are found without any
+ * per-node pointers. Nodes are numbered in pre-order (the rank of their opening bit) and node objects are
+ * light-weight views created on demand, once per node, as in OffHeapRootedTree.
+ *
+ * Branch lengths are quantized: each node's distance from the root is stored as a whole number of quanta
+ * in an int, which gives both its branch length and height. The quantum is a power of ten when all the
+ * lengths have few enough decimal places (as they do when read from a tree file), in which case the lengths
+ * are restored exactly, otherwise a power of two of about 2^-30 of the tree's depth. Given a genome length
+ * each branch's length as a whole number of substitutions is kept as well, in a byte for each node unless
+ * there are branches with more than 255 SNPs (then a short or an int), so the lengths written out are still
+ * those read.
+ *
+ * Taxon names are front-coded in pre-order (tips next to each other usually share a long prefix) in buckets
+ * of 16 and the Taxon objects are interned again when asked for. Node attributes are kept by column as in
+ * OffHeapRootedTree, with the dictionary codes only as wide as the dictionary needs.
+ *
+ * Used for commands that only read the tree (and annotate its nodes). Commands that change the topology copy
+ * this into a MutableRootedTree as they would any other tree.
+ */
+final class SuccinctRootedTree implements RootedTree {
+    private final static int BLOCK_BITS = 9; // rank and min-excess blocks of 512 bits (8 words)
+    private final static int BUCKET_SIZE = 16; // taxon names per front-coding bucket
+    private final static int MAX_DECIMALS = 18;
+    private final static long ABSENT = 0x7ff80000deadbeefL; // a NaN that marks a missing double attribute
+
+    SuccinctRootedTree(RootedTree tree) {
+        this(tree, 0);
+    }
+
+    /**
+     * @param tree
+     * @param genomeLength the number of sites to count the substitutions on each branch for (0 not to)
+     */
+    SuccinctRootedTree(RootedTree tree, int genomeLength) {
+        nodeCount = tree.getNodes().size();
+        tipCount = tree.getExternalNodes().size();
+
+        length = 2 * nodeCount;
+        // the bits past the end are set to 1 so the excess never drops to a searched for value there
+        words = new long[(length >>> 6) + 1];
+        Arrays.fill(words, -1L);
+
+        hasHeights = tree.hasHeights();
+        hasLengths = tree.hasLengths();
+        heightsKnown = tree.isHeightsKnown();
+        lengthsKnown = tree.isLengthsKnown();
+        conceptuallyUnrooted = tree.conceptuallyUnrooted();
+
+        double[] branchLengths = new double[nodeCount];
+        int[] parents = new int[nodeCount];
+        int[] postOrder = new int[nodeCount - tipCount];
+        List<Node> preOrder = new ArrayList<>(nodeCount);
+        encode(tree, branchLengths, parents, postOrder, preOrder);
+
+        buildDirectories();
+
+        depths = new int[nodeCount];
+        quantize(branchLengths, parents);
+        if (genomeLength > 0) {
+            countSnps(branchLengths, genomeLength);
+        }
+
+        // keep the iteration order of the original tree's node sets unless it is pre-order (or post-order for
+        // the internal nodes, as it is for trees that have been read from a file)
+        int[] preOrderTips = new int[tipCount];
+        int[] preOrderInternal = new int[nodeCount - tipCount];
+        int tipIndex = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (tree.isExternal(preOrder.get(i))) {
+                preOrderTips[tipIndex] = i;
+                tipIndex++;
+            } else {
+                preOrderInternal[i - tipIndex] = i;
+            }
+        }
+        Set<Node> internalNodes = tree.getInternalNodes();
+        externalOrder = isOrder(tree.getExternalNodes(), preOrder, preOrderTips) ? null :
+                getOrder(tree.getExternalNodes(), preOrder);
+        isPostOrder = isOrder(internalNodes, preOrder, postOrder);
+        internalOrder = isPostOrder || isOrder(internalNodes, preOrder, preOrderInternal) ? null :
+                getOrder(internalNodes, preOrder);
+
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        bucketOffsets = new int[(tipCount + BUCKET_SIZE - 1) / BUCKET_SIZE];
+        byte[] previous = new byte[0];
+        int tip = 0;
+        for (Node node : preOrder) {
+            if (tree.isExternal(node)) {
+                previous = encodeName(tip, tree.getTaxon(node).getName(), previous, names);
+                tip++;
+            }
+        }
+        taxonNames = names.toByteArray();
+
+        nodes = new SuccinctNode[nodeCount];
+
+        for (int i = 0; i < nodeCount; i++) {
+            for (Map.Entry<String, Object> e : preOrder.get(i).getAttributeMap().entrySet()) {
+                setNodeAttribute(i, e.getKey(), e.getValue());
+            }
+        }
+
+        for (Map.Entry<String, Object> e : tree.getAttributeMap().entrySet()) {
+            treeAttributes.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Writes the parentheses in pre-order (iteratively as the trees may be very deep), collecting the nodes
+     * with the index of their parents and their branch lengths (from the heights if there are no lengths),
+     * and the indices of the internal nodes in post-order.
+     */
+    private void encode(RootedTree tree, double[] branchLengths, int[] parents, int[] postOrder, List<Node> preOrder) {
+        Deque<Iterator<Node>> stack = new ArrayDeque<>();
+        Deque<Integer> parentIndices = new ArrayDeque<>();
+        int position = 0;
+        int closed = 0;
+
+        Node node = tree.getRootNode();
+        while (node != null) {
+            int index = preOrder.size();
+            int parent = parentIndices.isEmpty() ? -1 : parentIndices.peek();
+            double length = 0.0;
+            if (parent != -1) {
+                if (hasLengths) {
+                    length = tree.getLength(node);
+                } else if (hasHeights) {
+                    length = tree.getHeight(preOrder.get(parent)) - tree.getHeight(node);
+                }
+            }
+            branchLengths[index] = length;
+            parents[index] = parent;
+            preOrder.add(node);
+            position++; // an opening bit (already set)
+
+            if (tree.isExternal(node)) {
+                clear(position); // the closing bit
+                position++;
+            } else {
+                stack.push(tree.getChildren(node).iterator());
+                parentIndices.push(index);
+            }
+
+            node = null;
+            while (node == null && !stack.isEmpty()) {
+                if (stack.peek().hasNext()) {
+                    node = stack.peek().next();
+                } else {
+                    stack.pop();
+                    postOrder[closed] = parentIndices.pop();
+                    closed++;
+                    clear(position);
+                    position++;
+                }
+            }
+        }
+    }
+
+    private void buildDirectories() {
+        int blockCount = (words.length >>> 3) + 1;
+        blockRanks = new int[blockCount + 1];
+        blockTipRanks = new int[blockCount + 1];
+        wordMins = new byte[words.length];
+
+        int size = 1;
+        while (size < blockCount) {
+            size <<= 1;
+        }
+        treeSize = size;
+        blockMins = new int[2 * size];
+        Arrays.fill(blockMins, Integer.MAX_VALUE);
+
+        int rank = 0;
+        int tipRank = 0;
+        int excess = 0;
+        for (int w = 0; w < words.length; w++) {
+            int block = w >>> 3;
+            if ((w & 7) == 0) {
+                blockRanks[block] = rank;
+                blockTipRanks[block] = tipRank;
+                blockMins[size + block] = excess;
+            }
+
+            // the min excess within the word relative to its start (including both ends)
+            int relative = 0;
+            int min = 0;
+            for (int i = 0; i < 64; i++) {
+                relative += ((words[w] >>> i) & 1) != 0 ? 1 : -1;
+                min = Math.min(min, relative);
+            }
+            wordMins[w] = (byte)min;
+
+            blockMins[size + block] = Math.min(blockMins[size + block], excess + min);
+
+            rank += Long.bitCount(words[w]);
+            tipRank += Long.bitCount(tipPatterns(w));
+            excess += relative;
+        }
+        for (int b = (words.length + 7) >>> 3; b <= blockCount; b++) {
+            blockRanks[b] = rank;
+            blockTipRanks[b] = tipRank;
+        }
+
+        for (int i = size - 1; i > 0; i--) {
+            blockMins[i] = Math.min(blockMins[2 * i], blockMins[2 * i + 1]);
+        }
+    }
+
+    /**
+     * Stores the distance of each node from the root in whole quanta. The smallest power of ten that
+     * represents every branch length exactly is used if the distances fit in an int.
+     */
+    private void quantize(double[] branchLengths, int[] parents) {
+        int decimals = 0;
+        double scale = 1.0;
+        for (int i = 1; i < nodeCount && decimals <= MAX_DECIMALS; i++) {
+            while (decimals <= MAX_DECIMALS && Math.round(branchLengths[i] * scale) / scale != branchLengths[i]) {
+                decimals++;
+                scale *= 10.0;
+            }
+        }
+
+        if (decimals <= MAX_DECIMALS && accumulate(branchLengths, parents, scale)) {
+            decimalScale = scale;
+            quantum = 1.0 / scale;
+            return;
+        }
+
+        double maxDepth = 0.0;
+        double[] distances = new double[nodeCount];
+        for (int i = 1; i < nodeCount; i++) {
+            distances[i] = distances[parents[i]] + branchLengths[i];
+            maxDepth = Math.max(maxDepth, Math.abs(distances[i]));
+        }
+        int exponent = maxDepth > 0.0 ? Math.getExponent(maxDepth) - 29 : 0;
+        while (!accumulate(branchLengths, parents, Math.scalb(1.0, -exponent))) {
+            exponent++;
+        }
+        decimalScale = 0.0;
+        quantum = Math.scalb(1.0, exponent);
+    }
+
+    /**
+     * Sums the branch lengths in quanta down the tree, returning false if a distance doesn't fit in an int.
+     */
+    private boolean accumulate(double[] branchLengths, int[] parents, double scale) {
+        long maxDepth = nodeCount > 1 ? Long.MIN_VALUE : 0;
+        for (int i = 1; i < nodeCount; i++) {
+            long depth = depths[parents[i]] + Math.round(branchLengths[i] * scale);
+            if (Math.abs(depth) > Integer.MAX_VALUE) {
+                return false;
+            }
+            depths[i] = (int)depth;
+            // in pre-order a node is a tip if the next node is not its child
+            if (i + 1 == nodeCount || parents[i + 1] != i) {
+                maxDepth = Math.max(maxDepth, depth);
+            }
+        }
+        maxTipDepth = (int)maxDepth;
+        return true;
+    }
+
+    /**
+     * Stores the length of each branch as a whole number of substitutions in the narrowest array they fit in
+     */
+    private void countSnps(double[] branchLengths, int genomeLength) {
+        int[] counts = new int[nodeCount];
+        int minCount = 0;
+        int maxCount = 0;
+        for (int i = 1; i < nodeCount; i++) {
+            long count = Math.round(branchLengths[i] * genomeLength);
+            if (Math.abs(count) > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("A branch is too long to count substitutions in an int");
+            }
+            counts[i] = (int)count;
+            minCount = Math.min(minCount, counts[i]);
+            maxCount = Math.max(maxCount, counts[i]);
+        }
+
+        if (minCount >= 0 && maxCount <= 0xff) {
+            byteSnps = new byte[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                byteSnps[i] = (byte)counts[i];
+            }
+        } else if (minCount >= 0 && maxCount <= 0xffff) {
+            shortSnps = new short[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                shortSnps[i] = (short)counts[i];
+            }
+        } else {
+            intSnps = counts;
+        }
+    }
+
+    /**
+     * Converts a number of quanta back to a double - dividing by a power of ten gives the same double as
+     * was parsed from the decimal
+     */
+    private double toDouble(long quanta) {
+        return decimalScale > 0.0 ? quanta / decimalScale : quanta * quantum;
+    }
+
+    /**
+     * @return true if a node set iterates in the order of the node indices given
+     */
+    private static boolean isOrder(Set<Node> nodeSet, List<Node> preOrder, int[] indices) {
+        int i = 0;
+        for (Node node : nodeSet) {
+            if (i >= indices.length || node != preOrder.get(indices[i])) {
+                return false;
+            }
+            i++;
+        }
+        return i == indices.length;
+    }
+
+    private int[] getOrder(Set<Node> nodeSet, List<Node> preOrder) {
+        Map<Node, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < nodeCount; i++) {
+            indices.put(preOrder.get(i), i);
+        }
+        int[] order = new int[nodeSet.size()];
+        int i = 0;
+        for (Node node : nodeSet) {
+            order[i] = indices.get(node);
+            i++;
+        }
+        return order;
+    }
+
+    // front-coded taxon names
+
+    /**
+     * Appends a name as the length of the prefix it shares with the previous name in the bucket and the rest
+     * of its bytes. The first name of each bucket is stored whole.
+     */
+    private byte[] encodeName(int tip, String name, byte[] previous, ByteArrayOutputStream out) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        maxNameLength = Math.max(maxNameLength, bytes.length);
+        int prefix = 0;
+        if (tip % BUCKET_SIZE == 0) {
+            bucketOffsets[tip / BUCKET_SIZE] = out.size();
+        } else {
+            int max = Math.min(bytes.length, previous.length);
+            while (prefix < max && bytes[prefix] == previous[prefix]) {
+                prefix++;
+            }
+        }
+        writeVarInt(prefix, out);
+        writeVarInt(bytes.length - prefix, out);
+        out.write(bytes, prefix, bytes.length - prefix);
+        return bytes;
+    }
+
+    private String getTaxonName(int tip) {
+        // each name is decoded over the previous one as the shared prefix is never longer than it
+        byte[] name = new byte[maxNameLength];
+        int length = 0;
+        int[] offset = { bucketOffsets[tip / BUCKET_SIZE] };
+        for (int i = 0; i <= tip % BUCKET_SIZE; i++) {
+            int prefix = readVarInt(offset);
+            int suffix = readVarInt(offset);
+            System.arraycopy(taxonNames, offset[0], name, prefix, suffix);
+            offset[0] += suffix;
+            length = prefix + suffix;
+        }
+        return new String(name, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(int value, ByteArrayOutputStream out) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads a value, moving the offset past it
+     */
+    private int readVarInt(int[] offset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = taxonNames[offset[0]];
+            offset[0]++;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    // balanced parentheses
+
+    private boolean bit(int position) {
+        return ((words[position >>> 6] >>> (position & 63)) & 1) != 0;
+    }
+
+    private void clear(int position) {
+        words[position >>> 6] &= ~(1L << (position & 63));
+    }
+
+    /**
+     * The bits of a word that are a 1 followed by a 0 - the opening of a tip
+     */
+    private long tipPatterns(int w) {
+        long next = w + 1 < words.length ? words[w + 1] : -1L;
+        return words[w] & ~((words[w] >>> 1) | (next << 63));
+    }
+
+    /**
+     * @return the number of opening bits before position (i.e., the index of the node that opens there)
+     */
+    private int rank(int position) {
+        int w = position >>> 6;
+        int rank = blockRanks[position >>> BLOCK_BITS];
+        for (int i = (w >>> 3) << 3; i < w; i++) {
+            rank += Long.bitCount(words[i]);
+        }
+        if ((position & 63) != 0) {
+            rank += Long.bitCount(words[w] & ((1L << (position & 63)) - 1));
+        }
+        return rank;
+    }
+
+    /**
+     * @return the number of tips that open before position
+     */
+    private int tipRank(int position) {
+        int w = position >>> 6;
+        int rank = blockTipRanks[position >>> BLOCK_BITS];
+        for (int i = (w >>> 3) << 3; i < w; i++) {
+            rank += Long.bitCount(tipPatterns(i));
+        }
+        if ((position & 63) != 0) {
+            rank += Long.bitCount(tipPatterns(w) & ((1L << (position & 63)) - 1));
+        }
+        return rank;
+    }
+
+    /**
+     * @return the position of the opening bit of the node with the given pre-order index
+     */
+    private int select(int index) {
+        // binary search for the last block with fewer opening bits than index + 1
+        int low = 0;
+        int high = blockRanks.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockRanks[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int remaining = index - blockRanks[low];
+        int w = low << 3;
+        int count;
+        while ((count = Long.bitCount(words[w])) <= remaining) {
+            remaining -= count;
+            w++;
+        }
+        long word = words[w];
+        for (int i = 0; i < remaining; i++) {
+            word &= word - 1;
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * @return the number of opening minus closing bits before position
+     */
+    private int excess(int position) {
+        return 2 * rank(position) - position;
+    }
+
+    private int findOpen(int position) {
+        int excess = excess(position);
+        return backward(position, excess, excess - 1);
+    }
+
+    private int findClose(int position) {
+        int excess = excess(position);
+        return forward(position + 1, excess + 1, excess) - 1;
+    }
+
+    /**
+     * @return the opening position of the ancestor of the node at position whose excess is target
+     */
+    private int ancestor(int position, int target) {
+        int excess = excess(position);
+        return excess == target ? position : backward(position, excess, target);
+    }
+
+    /**
+     * Finds the first position after from where the excess is target (which is below the excess at from).
+     * Scans the rest of the word and block then uses the block min tree to skip blocks that don't reach it.
+     */
+    private int forward(int from, int excess, int target) {
+        int position = from;
+        int end = ((from >>> 6) + 1) << 6;
+        while (position < end) {
+            excess += bit(position) ? 1 : -1;
+            position++;
+            if (excess == target) {
+                return position;
+            }
+        }
+
+        int block = from >>> BLOCK_BITS;
+        int w = end >>> 6;
+        while (true) {
+            while (w < words.length && (w >>> 3) == block) {
+                if (excess + wordMins[w] <= target) {
+                    position = w << 6;
+                    for (int i = 0; i < 64; i++) {
+                        excess += bit(position) ? 1 : -1;
+                        position++;
+                        if (excess == target) {
+                            return position;
+                        }
+                    }
+                    throw new IllegalStateException("Bad balanced parentheses");
+                }
+                excess += 2 * Long.bitCount(words[w]) - 64;
+                w++;
+            }
+            block = nextBlock(block, target);
+            if (block < 0) {
+                throw new IllegalStateException("Bad balanced parentheses");
+            }
+            w = block << 3;
+            excess = excess(w << 6);
+        }
+    }
+
+    /**
+     * Finds the last position before from where the excess is target (which is below the excess at from).
+     */
+    private int backward(int from, int excess, int target) {
+        int position = from;
+        int start = (from >>> 6) << 6;
+        while (position > start) {
+            position--;
+            excess -= bit(position) ? 1 : -1;
+            if (excess == target) {
+                return position;
+            }
+        }
+        if (start == 0) {
+            throw new IllegalStateException("Bad balanced parentheses");
+        }
+
+        int block = (start - 1) >>> BLOCK_BITS;
+        int w = (start >>> 6) - 1;
+        while (true) {
+            while (w >= 0 && (w >>> 3) == block) {
+                int wordStart = excess - (2 * Long.bitCount(words[w]) - 64);
+                if (wordStart + wordMins[w] <= target) {
+                    position = (w << 6) + 64;
+                    for (int i = 0; i < 64; i++) {
+                        position--;
+                        excess -= bit(position) ? 1 : -1;
+                        if (excess == target) {
+                            return position;
+                        }
+                    }
+                    throw new IllegalStateException("Bad balanced parentheses");
+                }
+                excess = wordStart;
+                w--;
+            }
+            block = previousBlock(block, target);
+            if (block < 0) {
+                throw new IllegalStateException("Bad balanced parentheses");
+            }
+            w = (block << 3) + 7;
+            excess = excess((block + 1) << BLOCK_BITS);
+        }
+    }
+
+    private int nextBlock(int block, int target) {
+        int i = treeSize + block;
+        while (i > 1) {
+            if ((i & 1) == 0 && blockMins[i + 1] <= target) {
+                i = i + 1;
+                while (i < treeSize) {
+                    i = blockMins[2 * i] <= target ? 2 * i : 2 * i + 1;
+                }
+                return i - treeSize;
+            }
+            i >>>= 1;
+        }
+        return -1;
+    }
+
+    private int previousBlock(int block, int target) {
+        int i = treeSize + block;
+        while (i > 1) {
+            if ((i & 1) == 1 && blockMins[i - 1] <= target) {
+                i = i - 1;
+                while (i < treeSize) {
+                    i = blockMins[2 * i + 1] <= target ? 2 * i + 1 : 2 * i;
+                }
+                return i - treeSize;
+            }
+            i >>>= 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the minimum excess at the positions from to to (inclusive)
+     */
+    private int minExcess(int from, int to) {
+        int position = from;
+        int excess = excess(from);
+        int min = excess;
+        while (position < to && (position & 63) != 0) {
+            excess += bit(position) ? 1 : -1;
+            position++;
+            min = Math.min(min, excess);
+        }
+        while (position + 64 <= to && (position & ((1 << BLOCK_BITS) - 1)) != 0) {
+            int w = position >>> 6;
+            min = Math.min(min, excess + wordMins[w]);
+            excess += 2 * Long.bitCount(words[w]) - 64;
+            position += 64;
+        }
+        int lastBlock = (to >>> BLOCK_BITS) - 1;
+        int firstBlock = position >>> BLOCK_BITS;
+        if (firstBlock <= lastBlock) {
+            // whole blocks from the min tree
+            int l = treeSize + firstBlock;
+            int r = treeSize + lastBlock + 1;
+            while (l < r) {
+                if ((l & 1) == 1) {
+                    min = Math.min(min, blockMins[l++]);
+                }
+                if ((r & 1) == 1) {
+                    min = Math.min(min, blockMins[--r]);
+                }
+                l >>>= 1;
+                r >>>= 1;
+            }
+            position = (lastBlock + 1) << BLOCK_BITS;
+            excess = excess(position);
+        }
+        while (position + 64 <= to) {
+            int w = position >>> 6;
+            min = Math.min(min, excess + wordMins[w]);
+            excess += 2 * Long.bitCount(words[w]) - 64;
+            position += 64;
+        }
+        while (position < to) {
+            excess += bit(position) ? 1 : -1;
+            position++;
+            min = Math.min(min, excess);
+        }
+        return min;
+    }
+
+    /**
+     * @return the opening position of the last common ancestor of the nodes opening at the two positions
+     */
+    private int commonAncestor(int position1, int position2) {
+        int from = Math.min(position1, position2);
+        int to = Math.max(position1, position2);
+        if (from == to) {
+            return from;
+        }
+        // the shallowest excess between them is at the end of the child of the common ancestor that has the first
+        return ancestor(from, minExcess(from + 1, to) - 1);
+    }
+
+    // navigation by pre-order index
+
+    private int parent(int index) {
+        if (index == 0) {
+            return -1;
+        }
+        int position = position(index);
+        return rank(ancestor(position, excess(position) - 1));
+    }
+
+    private int position(int index) {
+        SuccinctNode node = nodes[index];
+        return node != null ? node.position : select(index);
+    }
+
+    private Node node(int index) {
+        if (index < 0) {
+            return null;
+        }
+        SuccinctNode node = nodes[index];
+        if (node == null) {
+            // nodes may be requested from several threads so make sure only one is ever created
+            synchronized (nodes) {
+                node = nodes[index];
+                if (node == null) {
+                    node = new SuccinctNode(index, select(index));
+                    nodes[index] = node;
+                }
+            }
+        }
+        return node;
+    }
+
+    private Node nodeAt(int position) {
+        int index = rank(position);
+        SuccinctNode node = nodes[index];
+        if (node == null) {
+            synchronized (nodes) {
+                node = nodes[index];
+                if (node == null) {
+                    node = new SuccinctNode(index, position);
+                    nodes[index] = node;
+                }
+            }
+        }
+        return node;
+    }
+
+    private SuccinctNode succinctNode(Node node) {
+        SuccinctNode n = (SuccinctNode)node;
+        if (n.tree() != this) {
+            throw new IllegalArgumentException("Node is not in this tree");
+        }
+        return n;
+    }
+
+    /**
+     * Gets the last common ancestor of a set of nodes - that of the first and last in pre-order.
+     * @param nodes
+     * @return the common ancestor
+     */
+    Node getCommonAncestor(Collection<Node> nodes) {
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (Node node : nodes) {
+            int position = succinctNode(node).position;
+            first = Math.min(first, position);
+            last = Math.max(last, position);
+        }
+        return last == -1 ? null : nodeAt(commonAncestor(first, last));
+    }
+
+    // RootedTree implementation
+
+    @Override
+    public List<Node> getChildren(Node node) {
+        List<Node> children = new ArrayList<>();
+        int position = succinctNode(node).position + 1;
+        while (bit(position)) {
+            children.add(nodeAt(position));
+            position = findClose(position) + 1;
+        }
+        return children;
+    }
+
+    @Override
+    public int getExternalNodeCount(Node node) {
+        int position = succinctNode(node).position;
+        return tipRank(findClose(position)) - tipRank(position);
+    }
+
+    @Override
+    public List<Node> getExternalNodes(Node node) {
+        // the tips of a subtree are the tip patterns between its opening and closing bits
+        int position = succinctNode(node).position;
+        int close = findClose(position);
+        List<Node> tips = new ArrayList<>();
+        for (int w = position >>> 6; w <= close >>> 6; w++) {
+            long patterns = tipPatterns(w);
+            while (patterns != 0) {
+                int p = (w << 6) + Long.numberOfTrailingZeros(patterns);
+                if (p >= position && p < close) {
+                    tips.add(nodeAt(p));
+                }
+                patterns &= patterns - 1;
+            }
+        }
+        return tips;
+    }
+
+    @Override
+    public boolean hasHeights() {
+        return hasHeights;
+    }
+
+    @Override
+    public boolean isHeightsKnown() {
+        return heightsKnown;
+    }
+
+    @Override
+    public double getHeight(Node node) {
+        return hasHeights ? toDouble((long)maxTipDepth - depths[succinctNode(node).index]) : 0.0;
+    }
+
+    @Override
+    public boolean hasLengths() {
+        return hasLengths;
+    }
+
+    @Override
+    public boolean isLengthsKnown() {
+        return lengthsKnown;
+    }
+
+    @Override
+    public double getLength(Node node) {
+        return hasLengths ? getBranchLength(succinctNode(node).index) : 0.0;
+    }
+
+    /**
+     * @return true if the tree was built with a genome length so has the substitutions on each branch
+     */
+    boolean hasSnps() {
+        return byteSnps != null || shortSnps != null || intSnps != null;
+    }
+
+    /**
+     * Gets the length of a node's branch as a whole number of substitutions (see hasSnps)
+     * @param node
+     * @return the number of substitutions
+     */
+    int getBranchSnps(Node node) {
+        int index = succinctNode(node).index;
+        if (byteSnps != null) {
+            return byteSnps[index] & 0xff;
+        }
+        if (shortSnps != null) {
+            return shortSnps[index] & 0xffff;
+        }
+        return intSnps[index];
+    }
+
+    private double getBranchLength(int index) {
+        int parent = parent(index);
+        return parent == -1 ? 0.0 : toDouble((long)depths[index] - depths[parent]);
+    }
+
+    @Override
+    public Node getParent(Node node) {
+        SuccinctNode n = succinctNode(node);
+        if (n.index == 0) {
+            return null;
+        }
+        return nodeAt(ancestor(n.position, excess(n.position) - 1));
+    }
+
+    @Override
+    public Node getRootNode() {
+        return node(0);
+    }
+
+    @Override
+    public boolean conceptuallyUnrooted() {
+        return conceptuallyUnrooted;
+    }
+
+    @Override
+    public boolean isRoot(Node node) {
+        return succinctNode(node).index == 0;
+    }
+
+    @Override
+    public Set<Node> getExternalNodes() {
+        return new NodeSet(true);
+    }
+
+    @Override
+    public Set<Node> getInternalNodes() {
+        return new NodeSet(false);
+    }
+
+    @Override
+    public Set<Edge> getExternalEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (Node node : getExternalNodes()) {
+            edges.add(new SuccinctEdge(succinctNode(node).index));
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Edge> getInternalEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (Node node : getInternalNodes()) {
+            if (!isRoot(node)) {
+                edges.add(new SuccinctEdge(succinctNode(node).index));
+            }
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Taxon> getTaxa() {
+        Set<Taxon> taxa = new LinkedHashSet<>();
+        for (int i = 0; i < tipCount; i++) {
+            taxa.add(Taxon.getTaxon(getTaxonName(i)));
+        }
+        return taxa;
+    }
+
+    @Override
+    public Taxon getTaxon(Node node) {
+        int position = succinctNode(node).position;
+        return bit(position + 1) ? null : Taxon.getTaxon(getTaxonName(tipRank(position)));
+    }
+
+    @Override
+    public boolean isExternal(Node node) {
+        return !bit(succinctNode(node).position + 1);
+    }
+
+    @Override
+    public Node getNode(Taxon taxon) {
+        if (taxonNodeMap == null) {
+            // only built if required
+            Map<String, Integer> map = new HashMap<>();
+            for (Node node : new NodeSet(true)) {
+                map.put(getTaxon(node).getName(), succinctNode(node).index);
+            }
+            taxonNodeMap = map;
+        }
+        Integer index = taxonNodeMap.get(taxon.getName());
+        return index == null ? null : node(index);
+    }
+
+    @Override
+    public void renameTaxa(Taxon from, Taxon to) {
+        throw new UnsupportedOperationException("Succinct trees are read-only");
+    }
+
+    @Override
+    public List<Edge> getEdges(Node node) {
+        List<Edge> edges = new ArrayList<>();
+        if (!isRoot(node)) {
+            edges.add(new SuccinctEdge(succinctNode(node).index));
+        }
+        for (Node child : getChildren(node)) {
+            edges.add(new SuccinctEdge(succinctNode(child).index));
+        }
+        return edges;
+    }
+
+    @Override
+    public List<Node> getAdjacencies(Node node) {
+        List<Node> adjacencies = new ArrayList<>();
+        Node parent = getParent(node);
+        if (parent != null) {
+            adjacencies.add(parent);
+        }
+        adjacencies.addAll(getChildren(node));
+        return adjacencies;
+    }
+
+    @Override
+    public Edge getEdge(Node node1, Node node2) throws NoEdgeException {
+        if (getParent(node1) == node2) {
+            return new SuccinctEdge(succinctNode(node1).index);
+        }
+        if (getParent(node2) == node1) {
+            return new SuccinctEdge(succinctNode(node2).index);
+        }
+        throw new NoEdgeException();
+    }
+
+    @Override
+    public double getEdgeLength(Node node1, Node node2) throws NoEdgeException {
+        return getEdge(node1, node2).getLength();
+    }
+
+    @Override
+    public Node[] getNodes(Edge edge) {
+        int index = ((SuccinctEdge)edge).index;
+        return new Node[] { node(parent(index)), node(index) };
+    }
+
+    @Override
+    public Set<Node> getNodes() {
+        Set<Node> nodes = new LinkedHashSet<>(getInternalNodes());
+        nodes.addAll(getExternalNodes());
+        return nodes;
+    }
+
+    @Override
+    public Set<Edge> getEdges() {
+        Set<Edge> edges = new LinkedHashSet<>();
+        for (Node node : getNodes()) {
+            if (!isRoot(node)) {
+                edges.add(new SuccinctEdge(succinctNode(node).index));
+            }
+        }
+        return edges;
+    }
+
+    @Override
+    public Set<Node> getNodes(int degree) {
+        Set<Node> nodes = new LinkedHashSet<>();
+        for (Node node : getNodes()) {
+            if (node.getDegree() == degree) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    // tree attributes are few so are kept as they are
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        treeAttributes.put(name, value);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return treeAttributes.get(name);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        treeAttributes.remove(name);
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        return treeAttributes.keySet();
+    }
+
+    @Override
+    public Map<String, Object> getAttributeMap() {
+        return treeAttributes;
+    }
+
+    // node attribute columns - synchronized as columns are shared between nodes which may be in different threads
+
+    private synchronized void setNodeAttribute(int index, String name, Object value) {
+        AttributeColumn column = columns.get(name);
+        if (column == null) {
+            column = new AttributeColumn(value instanceof Double);
+            columns.put(name, column);
+        }
+        column.set(index, value);
+    }
+
+    private synchronized Object getNodeAttribute(int index, String name) {
+        AttributeColumn column = columns.get(name);
+        return column == null ? null : column.get(index);
+    }
+
+    private synchronized void removeNodeAttribute(int index, String name) {
+        AttributeColumn column = columns.get(name);
+        if (column != null) {
+            column.remove(index);
+        }
+    }
+
+    private synchronized Map<String, Object> getNodeAttributeMap(int index) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for (Map.Entry<String, AttributeColumn> e : columns.entrySet()) {
+            Object value = e.getValue().get(index);
+            if (value != null) {
+                attributes.put(e.getKey(), value);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * A column of values for one attribute. Starts out as raw doubles if the first value is a double and
+     * switches to dictionary codes if any other type of value is set. The codes start as bytes and are
+     * widened to shorts and then ints as the dictionary grows.
+     */
+    private final class AttributeColumn {
+        AttributeColumn(boolean isDouble) {
+            if (isDouble) {
+                doubles = new long[nodeCount];
+                Arrays.fill(doubles, ABSENT);
+            } else {
+                byteCodes = new byte[nodeCount];
+            }
+        }
+
+        void set(int index, Object value) {
+            if (value == null) {
+                remove(index);
+                return;
+            }
+            if (doubles != null) {
+                if (value instanceof Double) {
+                    doubles[index] = Double.doubleToRawLongBits((Double)value);
+                    return;
+                }
+                convertToDictionary();
+            }
+            Integer code = dictionaryIndex.get(value);
+            if (code == null) {
+                dictionary.add(value);
+                code = dictionary.size();
+                dictionaryIndex.put(value, code);
+                widen(code);
+            }
+            setCode(index, code);
+        }
+
+        Object get(int index) {
+            if (doubles != null) {
+                long bits = doubles[index];
+                return bits == ABSENT ? null : Double.longBitsToDouble(bits);
+            }
+            int code = getCode(index);
+            return code == 0 ? null : dictionary.get(code - 1);
+        }
+
+        void remove(int index) {
+            if (doubles != null) {
+                doubles[index] = ABSENT;
+            } else {
+                setCode(index, 0);
+            }
+        }
+
+        private int getCode(int index) {
+            if (byteCodes != null) {
+                return byteCodes[index] & 0xff;
+            }
+            if (shortCodes != null) {
+                return shortCodes[index] & 0xffff;
+            }
+            return intCodes[index];
+        }
+
+        private void setCode(int index, int code) {
+            if (byteCodes != null) {
+                byteCodes[index] = (byte)code;
+            } else if (shortCodes != null) {
+                shortCodes[index] = (short)code;
+            } else {
+                intCodes[index] = code;
+            }
+        }
+
+        private void widen(int code) {
+            if (byteCodes != null && code > 0xff) {
+                shortCodes = new short[nodeCount];
+                for (int i = 0; i < nodeCount; i++) {
+                    shortCodes[i] = (short)(byteCodes[i] & 0xff);
+                }
+                byteCodes = null;
+            }
+            if (shortCodes != null && code > 0xffff) {
+                intCodes = new int[nodeCount];
+                for (int i = 0; i < nodeCount; i++) {
+                    intCodes[i] = shortCodes[i] & 0xffff;
+                }
+                shortCodes = null;
+            }
+        }
+
+        private void convertToDictionary() {
+            long[] values = doubles;
+            doubles = null;
+            byteCodes = new byte[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                if (values[i] != ABSENT) {
+                    set(i, Double.longBitsToDouble(values[i]));
+                }
+            }
+        }
+
+        long[] doubles = null;
+        byte[] byteCodes = null;
+        short[] shortCodes = null;
+        int[] intCodes = null;
+        final List<Object> dictionary = new ArrayList<>();
+        final Map<Object, Integer> dictionaryIndex = new HashMap<>();
+    }
+
+    /**
+     * A light-weight node that holds its pre-order index and the position of its opening bit.
+     */
+    private final class SuccinctNode implements Node {
+        SuccinctNode(int index, int position) {
+            this.index = index;
+            this.position = position;
+        }
+
+        SuccinctRootedTree tree() {
+            return SuccinctRootedTree.this;
+        }
+
+        @Override
+        public int getDegree() {
+            return getChildren(this).size() + (index == 0 ? 0 : 1);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            setNodeAttribute(index, name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return getNodeAttribute(index, name);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            removeNodeAttribute(index, name);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return getNodeAttributeMap(index).keySet();
+        }
+
+        @Override
+        public Map<String, Object> getAttributeMap() {
+            return getNodeAttributeMap(index);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SuccinctNode && ((SuccinctNode)o).index == index && ((SuccinctNode)o).tree() == tree();
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        final int index;
+        final int position;
+    }
+
+    /**
+     * An edge is identified by the index of the node at its child end.
+     */
+    private final class SuccinctEdge implements Edge {
+        SuccinctEdge(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public double getLength() {
+            return getBranchLength(index);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            throw new UnsupportedOperationException("Edge attributes are not supported in succinct trees");
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Map<String, Object> getAttributeMap() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SuccinctEdge && ((SuccinctEdge)o).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        final int index;
+    }
+
+    /**
+     * A read-only view of the external or internal nodes without creating a set of nodes. They are found by
+     * scanning the bits for the opening of tips (a 1 followed by a 0) and the opening (two 1s) or closing
+     * (two 0s) of internal nodes unless the original tree had some other order.
+     */
+    private final class NodeSet extends AbstractSet<Node> {
+        NodeSet(boolean external) {
+            this.external = external;
+            this.order = external ? externalOrder : internalOrder;
+        }
+
+        @Override
+        public Iterator<Node> iterator() {
+            return new Iterator<Node>() {
+                private int next = 0;
+                private int w = 0;
+                private long patterns = order == null ? patterns(0) : 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size();
+                }
+
+                @Override
+                public Node next() {
+                    if (next >= size()) {
+                        throw new NoSuchElementException();
+                    }
+                    next++;
+                    if (order != null) {
+                        return node(order[next - 1]);
+                    }
+                    while (patterns == 0) {
+                        w++;
+                        patterns = patterns(w);
+                    }
+                    int position = (w << 6) + Long.numberOfTrailingZeros(patterns);
+                    patterns &= patterns - 1;
+                    return nodeAt(!external && isPostOrder ? findOpen(position) : position);
+                }
+
+                private long patterns(int w) {
+                    if (external) {
+                        return tipPatterns(w);
+                    }
+                    if (isPostOrder) {
+                        // closing bits that follow a closing bit (the padding past the end is all 1s)
+                        long previous = w > 0 ? words[w - 1] : -1L;
+                        return ~words[w] & ~((words[w] << 1) | (previous >>> 63));
+                    }
+                    long next = w + 1 < words.length ? words[w + 1] : 0L;
+                    long opens = words[w] & ((words[w] >>> 1) | (next << 63));
+                    // ignore the padding past the end
+                    int end = length - (w << 6);
+                    return end >= 64 ? opens : end <= 0 ? 0L : opens & ((1L << end) - 1);
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof SuccinctNode && ((SuccinctNode)o).tree() == SuccinctRootedTree.this &&
+                    isExternal((Node)o) == external;
+        }
+
+        @Override
+        public int size() {
+            return external ? tipCount : nodeCount - tipCount;
+        }
+
+        private final boolean external;
+        private final int[] order;
+    }
+
+    private final int nodeCount;
+    private final int tipCount;
+
+    // the balanced parentheses and their directories
+    private final int length;
+    private final long[] words;
+    private int[] blockRanks;
+    private int[] blockTipRanks;
+    private byte[] wordMins;
+    private int[] blockMins;
+    private int treeSize;
+
+    // distances from the root in quanta
+    private final int[] depths;
+    private int maxTipDepth;
+    private double decimalScale;
+    private double quantum;
+
+    // the number of substitutions on each branch if given a genome length (only one of these is used)
+    private byte[] byteSnps = null;
+    private short[] shortSnps = null;
+    private int[] intSnps = null;
+
+    private final int[] bucketOffsets;
+    private final byte[] taxonNames;
+    private int maxNameLength = 0;
+
+    private final int[] externalOrder;
+    private final int[] internalOrder;
+    private final boolean isPostOrder;
+
+    private final SuccinctNode[] nodes;
+    private Map<String, Integer> taxonNodeMap = null;
+
+    private final boolean hasHeights;
+    private final boolean hasLengths;
+    private final boolean heightsKnown;
+    private final boolean lengthsKnown;
+    private final boolean conceptuallyUnrooted;
+
+    private final Map<String, AttributeColumn> columns = new LinkedHashMap<>();
+    private final Map<String, Object> treeAttributes = new LinkedHashMap<>();
+}
@@ -1,16 +1,14 @@
 package network.artic.clusterfunk.commands;
 
-import jebl.evolution.graphs.Node;
-import jebl.evolution.taxa.MissingTaxonException;
 import jebl.evolution.taxa.Taxon;
-import jebl.evolution.trees.RootedTree;
-import jebl.evolution.trees.RootedTreeUtils;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -26,9 +24,10 @@ public class TMRCA extends Command {
                  String headerDelimiter,
                  boolean isStem,
                  boolean ignoreMissing,
+                 Settings settings,
                  boolean isVerbose) {
 
-        super(null, taxaFileName, indexColumn, indexHeader, headerDelimiter, isVerbose);
+        super(null, taxaFileName, indexColumn, indexHeader, headerDelimiter, settings, isVerbose);
 
         if (isVerbose) {
             outStream.println("Finding TMRCAs in trees for taxon set" );
@@ -37,28 +36,35 @@ public class TMRCA extends Command {
 
         final Set<Taxon> taxonSet = new HashSet<>();
         for (String taxonName : taxa) {
-            taxonSet.add(Taxon.getTaxon(taxonName));
+            taxonSet.add(taxonRegistry.getTaxon(taxonName));
         }
 
         if (targetTaxa != null) {
             for (String taxonName : targetTaxa) {
-                taxonSet.add(Taxon.getTaxon(taxonName));
+                taxonSet.add(taxonRegistry.getTaxon(taxonName));
             }
         }
 
+        Checkpoint checkpoint = openCheckpoint(outputFileName);
+        if (checkpoint != null && checkpoint.isComplete()) {
+            return;
+        }
+
         PrintWriter tmpWriter = null;
         if (outputFileName != null) {
             try {
-                tmpWriter = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFileName)));
+                tmpWriter = new PrintWriter(checkpoint != null ?
+                        checkpoint.openOutput(outputFileName) :
+                        Files.newBufferedWriter(Paths.get(outputFileName)));
             } catch (IOException ioe) {
                 errorStream.println("Error opening output file: " + ioe.getMessage());
-                System.exit(1);
+                exit(1);
             }
         }
 
         final PrintWriter outputMetadataWriter = tmpWriter;
 
-        if (outputMetadataWriter != null) {
+        if (outputMetadataWriter != null && (checkpoint == null || !checkpoint.isResumed())) {
             outputMetadataWriter.print("tree");
             outputMetadataWriter.print("\t");
             outputMetadataWriter.print("tmrca");
@@ -66,44 +72,59 @@ public class TMRCA extends Command {
 
         }
 
-        processTrees(treeFileName, tree -> {
-            double tmrca = 0;
+        // the taxa as ids in the tree file - these are found once for the file rather than for each tree
+        final List<Taxon> taxonList = new ArrayList<>(taxonSet);
+        final int[][] taxonIds = new int[1][];
+
+        processTipTrees(treeFileName, checkpoint, reader -> {
+            if (taxonIds[0] == null) {
+                // after the first tree is read all the taxa in the file have an id
+                taxonIds[0] = new int[taxonList.size()];
+                for (int i = 0; i < taxonList.size(); i++) {
+                    taxonIds[0][i] = reader.getTaxonId(taxonList.get(i).getName());
+                }
+            }
 
-            try {
-                Set<Node> tips = RootedTreeUtils.getTipsForTaxa(tree, taxonSet);
-                tmrca = findTMRCA(tree, tips, isStem);
-            } catch (MissingTaxonException mte) {
-                errorStream.println("Tip missing: " + mte.getMessage());
-                System.exit(1);
+            int mrca = reader.getCommonAncestor(taxonIds[0]);
+            if (mrca == -1) {
+                for (int i = 0; i < taxonList.size(); i++) {
+                    if (reader.getTipNode(taxonIds[0][i]) == -1) {
+                        errorStream.println("Tip missing: Taxon, " + taxonList.get(i).getName() + ", is missing.");
+                        exit(1);
+                    }
+                }
             }
 
+            double tmrca = findTMRCA(reader, mrca, isStem);
+
             if (outputMetadataWriter != null) {
-                        outputMetadataWriter.print(tree.getAttribute("name"));
+                        outputMetadataWriter.print(reader.getTreeName());
                         outputMetadataWriter.print("\t");
                         outputMetadataWriter.print(tmrca);
                         outputMetadataWriter.println();
             }
-
-            return null;
         });
 
         if (outputMetadataWriter != null) {
             outputMetadataWriter.close();
         }
 
+        if (checkpoint != null) {
+            completeCheckpoint(checkpoint);
+        }
     }
 
     /**
-     * When ever a change in the value of a given attribute occurs at a node, creates a new cluster number and annotates
-     * descendents with that cluster number.
-     * @param tree
+     * Gets the height of the MRCA (or of its parent if isStem)
+     * @param reader
+     * @param mrca
+     * @param isStem
      */
-    double findTMRCA(RootedTree tree, Set<Node> tips, boolean isStem) {
-        Node mrca = RootedTreeUtils.getCommonAncestorNode(tree, tips);
-        if (isStem && tree.getParent(mrca) != null) {
-            return tree.getHeight(tree.getParent(mrca));
+    double findTMRCA(TipTreeReader reader, int mrca, boolean isStem) {
+        if (isStem && reader.getParent(mrca) != -1) {
+            return reader.getHeight(reader.getParent(mrca));
         }
-        return tree.getHeight(mrca);
+        return reader.getHeight(mrca);
     }
 
 }
@@ -0,0 +1,37 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.taxa.Taxon;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The taxa used by a command. jebl's Taxon.getTaxon interns every name in a process-wide map behind a
+ * single lock (which it also periodically sweeps of collected taxa) so looking up or creating the labels
+ * of new tips there is a point of contention for parallel work. A registry keeps the taxa it has given
+ * out in a concurrent map so, after the first time a name is seen, the lookup doesn't touch the global
+ * map. The registry holds the only strong references to the taxa it creates (jebl holds them weakly) so
+ * they are released with the registry and the trees that use them.
+ *
+ * The name of each taxon is used as its key so the name string is not held twice.
+ */
+final class TaxonRegistry {
+
+    /**
+     * Gets the taxon with a name, creating it if need be
+     * @param name
+     * @return the taxon
+     */
+    Taxon getTaxon(String name) {
+        Taxon taxon = taxa.get(name);
+        if (taxon == null) {
+            Taxon newTaxon = Taxon.getTaxon(name);
+            taxon = taxa.putIfAbsent(newTaxon.getName(), newTaxon);
+            if (taxon == null) {
+                taxon = newTaxon;
+            }
+        }
+        return taxon;
+    }
+
+    private final ConcurrentHashMap<String, Taxon> taxa = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,149 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+
+import java.util.*;
+
+/**
+ * Numbers the tips of a tree (in the order of getExternalNodes()) so that sets of tips and taxa can be held as
+ * CompressedBitSets rather than HashSets of nodes. The index is only valid while the tips of the tree are
+ * unchanged.
+ */
+final class TipIndex {
+
+    TipIndex(RootedTree tree) {
+        this.tree = tree;
+        Set<Node> externalNodes = tree.getExternalNodes();
+        tips = externalNodes.toArray(new Node[0]);
+        indexMap = new HashMap<>(tips.length * 2);
+        for (int i = 0; i < tips.length; i++) {
+            indexMap.put(tips[i], i);
+        }
+    }
+
+    int getTipCount() {
+        return tips.length;
+    }
+
+    /**
+     * @param tip
+     * @return the index of the tip or -1 if it is not a tip of this tree
+     */
+    int getIndex(Node tip) {
+        Integer index = indexMap.get(tip);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @param taxon
+     * @return the index of the taxon's tip or -1 if it is not in this tree
+     */
+    int getIndex(Taxon taxon) {
+        Node tip = tree.getNode(taxon);
+        return tip != null ? getIndex(tip) : -1;
+    }
+
+    Node getTip(int index) {
+        return tips[index];
+    }
+
+    Taxon getTaxon(int index) {
+        return tree.getTaxon(tips[index]);
+    }
+
+    /**
+     * Collects the tips subtended by a node
+     * @param node
+     * @return the set of tip indices
+     */
+    CompressedBitSet collectTips(Node node) {
+        CompressedBitSet tipSet = new CompressedBitSet();
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            if (tree.isExternal(n)) {
+                tipSet.add(getIndex(n));
+            } else {
+                for (Node child : tree.getChildren(n)) {
+                    stack.push(child);
+                }
+            }
+        }
+        return tipSet;
+    }
+
+    /**
+     * @param tipSet
+     * @return a read-only view of a set of tip indices as the tip nodes
+     */
+    Set<Node> getTips(CompressedBitSet tipSet) {
+        return new AbstractSet<Node>() {
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Node && tipSet.contains(getIndex((Node)o));
+            }
+
+            @Override
+            public Iterator<Node> iterator() {
+                PrimitiveIterator.OfInt iterator = tipSet.iterator();
+                return new Iterator<Node>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Node next() {
+                        return getTip(iterator.nextInt());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return tipSet.cardinality();
+            }
+        };
+    }
+
+    /**
+     * @param tipSet
+     * @return a read-only view of a set of tip indices as their taxa
+     */
+    Set<Taxon> getTaxa(CompressedBitSet tipSet) {
+        return new AbstractSet<Taxon>() {
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Taxon && tipSet.contains(getIndex((Taxon)o));
+            }
+
+            @Override
+            public Iterator<Taxon> iterator() {
+                PrimitiveIterator.OfInt iterator = tipSet.iterator();
+                return new Iterator<Taxon>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Taxon next() {
+                        return getTaxon(iterator.nextInt());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return tipSet.cardinality();
+            }
+        };
+    }
+
+    private final RootedTree tree;
+    private final Node[] tips;
+    private final Map<Node, Integer> indexMap;
+}
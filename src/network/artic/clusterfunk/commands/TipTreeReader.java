@@ -0,0 +1,496 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.io.ImportException;
+import network.artic.clusterfunk.FormatType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Reads the trees of a TreeSource one at a time into int and double arrays, for commands that only need the
+ * topology and node heights of many trees (such as a posterior sample) rather than full jebl trees with
+ * attributes. Taxa are given dense ids once per file (in the order of the NEXUS translate table if there is
+ * one) and a numerical translate key is turned into a taxon id by an array lookup, so finding the tip of a
+ * taxon in each tree needs no string lookups. The arrays are reused for each tree.
+ *
+ * Nodes are numbered in pre-order (so a node's parent always has a lower number) with the root as 0. Heights
+ * are calculated from the branch lengths in the same way as jebl's trees so give the same values.
+ */
+final class TipTreeReader {
+
+    TipTreeReader(TreeSource source) throws IOException, ImportException {
+        this.source = source;
+        this.format = source.getFormat();
+        if (format == FormatType.NEXUS) {
+            readTranslateTable(source.getHeader());
+        }
+    }
+
+    /**
+     * @param taxonName
+     * @return the id of the taxon or -1 if it hasn't been seen in the file
+     */
+    int getTaxonId(String taxonName) {
+        Integer id = taxonIds.get(taxonName);
+        return id != null ? id : -1;
+    }
+
+    String getTaxonName(int taxonId) {
+        return taxonNames.get(taxonId);
+    }
+
+    /**
+     * Reads a tree, replacing the current one
+     * @param index the index of the tree in the source
+     */
+    void read(int index) throws IOException, ImportException {
+        treeName = source.getTreeName(index);
+        parse(source.getStatement(index));
+    }
+
+    /**
+     * @return the name of the current tree (null for Newick trees)
+     */
+    String getTreeName() {
+        return treeName;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @param node
+     * @return the parent node or -1 for the root
+     */
+    int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * @param taxonId
+     * @return the tip node for the taxon in the current tree or -1 if it is not in this tree
+     */
+    int getTipNode(int taxonId) {
+        if (taxonId < 0 || taxonId >= tipGenerations.length || tipGenerations[taxonId] != generation) {
+            return -1;
+        }
+        return tipNodes[taxonId];
+    }
+
+    /**
+     * Finds the most recent common ancestor of a set of taxa in the current tree
+     * @param taxonIds distinct taxon ids
+     * @return the node or -1 if any of the taxa are not in this tree
+     */
+    int getCommonAncestor(int[] taxonIds) {
+        if (counts.length < nodeCount) {
+            counts = new int[parents.length];
+        }
+        Arrays.fill(counts, 0, nodeCount, 0);
+        for (int taxonId : taxonIds) {
+            int tip = getTipNode(taxonId);
+            if (tip == -1) {
+                return -1;
+            }
+            counts[tip] = 1;
+        }
+        // children have higher numbers than their parents so this sums the counts up the tree
+        for (int node = nodeCount - 1; node > 0; node--) {
+            counts[parents[node]] += counts[node];
+        }
+        // the nodes containing all the taxa are a path from the root so the last is the MRCA
+        int mrca = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (counts[node] == taxonIds.length) {
+                mrca = node;
+            }
+        }
+        return mrca;
+    }
+
+    /**
+     * @param node
+     * @return the height of the node above the highest tip
+     */
+    double getHeight(int node) {
+        if (!heightsKnown) {
+            calculateHeights();
+        }
+        return heights[node];
+    }
+
+    /**
+     * As jebl: the distance from the root (ignoring negative branch lengths) subtracted from that of the
+     * furthest tip.
+     */
+    private void calculateHeights() {
+        if (heights.length < nodeCount) {
+            heights = new double[parents.length];
+        }
+        double maxHeight = 0.0;
+        heights[0] = 0.0;
+        for (int node = 1; node < nodeCount; node++) {
+            double height = heights[parents[node]];
+            if (lengths[node] > 0.0) {
+                height += lengths[node];
+            }
+            heights[node] = height;
+            if (taxa[node] != -1 && height > maxHeight) {
+                maxHeight = height;
+            }
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            heights[node] = maxHeight - heights[node];
+        }
+        heightsKnown = true;
+    }
+
+    /**
+     * Parses a Newick tree (or the Newick part of a NEXUS tree statement). Comments (including attributes),
+     * internal node labels and the root's length are skipped.
+     */
+    private void parse(byte[] statement) throws ImportException {
+        generation++;
+        nodeCount = 0;
+        heightsKnown = false;
+        int stackSize = 0;
+        int last = -1;
+
+        int i = 0;
+        if (format == FormatType.NEXUS) {
+            i = skipTo(statement, 0, '=') + 1;
+        }
+
+        while (true) {
+            i = skipWhitespaceAndComments(statement, i);
+            if (i >= statement.length) {
+                throw new ImportException("Unexpected end of tree" + (treeName != null ? ", " + treeName : ""));
+            }
+            byte c = statement[i];
+            if (c == ';') {
+                break;
+            } else if (c == '(') {
+                last = addNode(stackSize > 0 ? stack[stackSize - 1] : -1, -1);
+                if (stackSize == stack.length) {
+                    stack = Arrays.copyOf(stack, stackSize * 2);
+                }
+                stack[stackSize] = last;
+                stackSize++;
+                i++;
+            } else if (c == ',') {
+                i++;
+            } else if (c == ')') {
+                if (stackSize == 0) {
+                    throw new ImportException("Unbalanced brackets in tree" + (treeName != null ? ", " + treeName : ""));
+                }
+                stackSize--;
+                last = stack[stackSize];
+                i++;
+                i = skipWhitespaceAndComments(statement, i);
+                if (i < statement.length && !isPunctuation(statement[i])) {
+                    // an internal node label
+                    i = readLabel(statement, i, false);
+                }
+            } else if (c == ':') {
+                // the length may come after comments (e.g., BEAST's per-branch [&rate=...]) or spaces
+                int start = skipWhitespaceAndComments(statement, i + 1);
+                if (start >= statement.length) {
+                    throw new ImportException("Unexpected end of tree" + (treeName != null ? ", " + treeName : ""));
+                }
+                int end = readLabel(statement, start, false);
+                if (last > 0) {
+                    try {
+                        lengths[last] = Double.parseDouble(new String(statement, start, end - start, StandardCharsets.US_ASCII).trim());
+                    } catch (NumberFormatException nfe) {
+                        throw new ImportException("Bad branch length in tree" + (treeName != null ? ", " + treeName : ""));
+                    }
+                }
+                i = end;
+            } else {
+                int end = readLabel(statement, i, true);
+                last = addNode(stackSize > 0 ? stack[stackSize - 1] : -1, labelTaxonId);
+                if (tipGenerations.length <= labelTaxonId) {
+                    int length = Math.max(labelTaxonId + 1, tipGenerations.length * 2);
+                    tipGenerations = Arrays.copyOf(tipGenerations, length);
+                    tipNodes = Arrays.copyOf(tipNodes, length);
+                }
+                tipGenerations[labelTaxonId] = generation;
+                tipNodes[labelTaxonId] = last;
+                i = end;
+            }
+        }
+
+        if (stackSize != 0 || nodeCount == 0) {
+            throw new ImportException("Unbalanced brackets in tree" + (treeName != null ? ", " + treeName : ""));
+        }
+    }
+
+    private int addNode(int parent, int taxonId) {
+        if (nodeCount == parents.length) {
+            int length = parents.length * 2;
+            parents = Arrays.copyOf(parents, length);
+            lengths = Arrays.copyOf(lengths, length);
+            taxa = Arrays.copyOf(taxa, length);
+        }
+        parents[nodeCount] = parent;
+        lengths[nodeCount] = 0.0;
+        taxa[nodeCount] = taxonId;
+        nodeCount++;
+        return nodeCount - 1;
+    }
+
+    /**
+     * Reads a label (quoted or not) or a branch length. If isTip the taxon id of the label is put in labelTaxonId.
+     * @return the position after the label
+     */
+    private int readLabel(byte[] s, int i, boolean isTip) throws ImportException {
+        if (s[i] == '\'' || s[i] == '"') {
+            byte quote = s[i];
+            StringBuilder label = new StringBuilder();
+            int start = i + 1;
+            i++;
+            while (true) {
+                if (i >= s.length) {
+                    throw new ImportException("Unterminated quoted label in tree" + (treeName != null ? ", " + treeName : ""));
+                }
+                if (s[i] == quote) {
+                    label.append(new String(s, start, i - start, StandardCharsets.UTF_8));
+                    if (i + 1 < s.length && s[i + 1] == quote) {
+                        // doubled quote
+                        label.append((char)quote);
+                        i += 2;
+                        start = i;
+                        continue;
+                    }
+                    i++;
+                    break;
+                }
+                i++;
+            }
+            if (isTip) {
+                labelTaxonId = getLabelTaxonId(label.toString());
+            }
+            return i;
+        }
+
+        int start = i;
+        int key = 0;
+        // as isIntegerKey()
+        boolean isNumber = !(s[i] == '0' && i + 1 < s.length && s[i + 1] >= '0' && s[i + 1] <= '9');
+        while (i < s.length && !isPunctuation(s[i]) && !isWhitespace(s[i])) {
+            if (s[i] >= '0' && s[i] <= '9' && key < 10000000) {
+                key = key * 10 + (s[i] - '0');
+            } else {
+                isNumber = false;
+            }
+            i++;
+        }
+        if (isTip) {
+            if (i == start) {
+                throw new ImportException("Missing tip label in tree" + (treeName != null ? ", " + treeName : ""));
+            }
+            if (isNumber && key < keyIds.length && keyIds[key] != -1) {
+                labelTaxonId = keyIds[key];
+            } else {
+                labelTaxonId = getLabelTaxonId(new String(s, start, i - start, StandardCharsets.UTF_8));
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Gets the taxon id for a label - a translate table key or otherwise a taxon name (given a new id if not seen)
+     */
+    private int getLabelTaxonId(String label) {
+        Integer id = translateKeys.get(label);
+        if (id == null) {
+            id = taxonIds.get(label);
+        }
+        if (id == null) {
+            id = addTaxon(label);
+        }
+        return id;
+    }
+
+    private int addTaxon(String name) {
+        Integer id = taxonIds.get(name);
+        if (id == null) {
+            id = taxonNames.size();
+            taxonNames.add(name);
+            taxonIds.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Reads the translate table from the NEXUS header (if it has one) and gives the taxa ids in its order
+     */
+    private void readTranslateTable(String header) throws ImportException {
+        List<String> tokens = tokenize(header);
+        int i = 0;
+        while (i < tokens.size() && !(tokens.get(i).equalsIgnoreCase("translate") && (i == 0 || tokens.get(i - 1).equals(";")))) {
+            i++;
+        }
+        if (i == tokens.size()) {
+            return;
+        }
+        i++;
+
+        int maxKey = -1;
+        while (i < tokens.size() && !tokens.get(i).equals(";")) {
+            if (i + 1 >= tokens.size() || tokens.get(i).equals(",") || tokens.get(i + 1).equals(",") || tokens.get(i + 1).equals(";")) {
+                throw new ImportException("Bad translate table in NEXUS file");
+            }
+            String key = tokens.get(i);
+            translateKeys.put(key, addTaxon(tokens.get(i + 1)));
+            if (isIntegerKey(key)) {
+                maxKey = Math.max(maxKey, Integer.parseInt(key));
+            }
+            i += 2;
+            if (i < tokens.size() && tokens.get(i).equals(",")) {
+                i++;
+            }
+        }
+
+        keyIds = new int[maxKey + 1];
+        Arrays.fill(keyIds, -1);
+        for (Map.Entry<String, Integer> entry : translateKeys.entrySet()) {
+            if (isIntegerKey(entry.getKey())) {
+                keyIds[Integer.parseInt(entry.getKey())] = entry.getValue();
+            }
+        }
+    }
+
+    /**
+     * A key that can be looked up by its value - no leading zeros so the value gives back the same string
+     */
+    private static boolean isIntegerKey(String key) {
+        return key.matches("0|[1-9][0-9]{0,7}");
+    }
+
+    /**
+     * Splits NEXUS text into words, quoted strings (unquoted), ',' and ';' skipping comments
+     */
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '[') {
+                int depth = 0;
+                do {
+                    if (text.charAt(i) == '[') {
+                        depth++;
+                    } else if (text.charAt(i) == ']') {
+                        depth--;
+                    }
+                    i++;
+                } while (depth > 0 && i < text.length());
+            } else if (c == '\'' || c == '"') {
+                i++;
+                while (i < text.length()) {
+                    if (text.charAt(i) == c) {
+                        if (i + 1 < text.length() && text.charAt(i + 1) == c) {
+                            token.append(c);
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    token.append(text.charAt(i));
+                    i++;
+                }
+                i++;
+                tokens.add(token.toString());
+                token.setLength(0);
+            } else if (c == ',' || c == ';' || Character.isWhitespace(c)) {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+                if (!Character.isWhitespace(c)) {
+                    tokens.add(String.valueOf(c));
+                }
+                i++;
+            } else {
+                token.append(c);
+                i++;
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private static int skipTo(byte[] s, int i, char target) throws ImportException {
+        while (i < s.length) {
+            if (s[i] == '[') {
+                i = skipWhitespaceAndComments(s, i);
+                continue;
+            }
+            if (s[i] == '\'') {
+                i++;
+                while (i < s.length && s[i] != '\'') {
+                    i++;
+                }
+            } else if (s[i] == target) {
+                return i;
+            }
+            i++;
+        }
+        throw new ImportException("Missing '" + target + "' in tree statement");
+    }
+
+    private static int skipWhitespaceAndComments(byte[] s, int i) {
+        while (i < s.length) {
+            if (s[i] == '[') {
+                while (i < s.length && s[i] != ']') {
+                    i++;
+                }
+                i++;
+            } else if (isWhitespace(s[i])) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static boolean isPunctuation(byte b) {
+        return b == '(' || b == ')' || b == ',' || b == ':' || b == ';' || b == '[';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    private final TreeSource source;
+    private final FormatType format;
+
+    private final List<String> taxonNames = new ArrayList<>();
+    private final Map<String, Integer> taxonIds = new HashMap<>();
+    private final Map<String, Integer> translateKeys = new HashMap<>();
+    private int[] keyIds = new int[0];
+
+    private String treeName = null;
+    private int nodeCount = 0;
+    private int[] parents = new int[1024];
+    private double[] lengths = new double[1024];
+    private int[] taxa = new int[1024];
+    private double[] heights = new double[0];
+    private boolean heightsKnown = false;
+    private int[] counts = new int[0];
+    private int[] stack = new int[256];
+
+    // the tip node of each taxon, valid if the taxon's generation is that of the current tree
+    private int generation = 0;
+    private int[] tipGenerations = new int[0];
+    private int[] tipNodes = new int[0];
+
+    private int labelTaxonId;
+}
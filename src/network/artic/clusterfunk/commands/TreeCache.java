@@ -0,0 +1,472 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.graphs.Edge;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.SimpleRootedTree;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A content addressed cache of parsed tree files. The first time a tree file is read the trees are written to
+ * the cache directory as a binary snapshot (topology, branch lengths, taxa and node, branch and tree attributes)
+ * named by the SHA-256 of the file's contents. Any later read of a file with the same contents, by any command
+ * and from any path, loads the snapshot instead of parsing the file. The taxa of the first tree are stored at
+ * the start so a list of taxa can be read without building the trees.
+ *
+ * Trees are rebuilt in the same order as the importers build them so node order and attribute order are the
+ * same as parsing the file.
+ *
+ * Commands that only use the first tree of a file keep a separate snapshot of just that tree so they don't parse
+ * the whole file to make one. Either snapshot can give the first tree.
+ */
+final class TreeCache {
+    private final static long MAGIC = 0x4a43465452454500L | 1L; // "JCFTREE" version 1
+
+    private final static byte NULL_VALUE = 0;
+    private final static byte STRING_VALUE = 1;
+    private final static byte DOUBLE_VALUE = 2;
+    private final static byte INTEGER_VALUE = 3;
+    private final static byte LONG_VALUE = 4;
+    private final static byte BOOLEAN_VALUE = 5;
+    private final static byte FLOAT_VALUE = 6;
+    private final static byte ARRAY_VALUE = 7;
+
+    private TreeCache() {
+    }
+
+    /**
+     * Gets the content hash of a file
+     * @param fileName
+     * @return the hash as a hex string
+     */
+    static String getContentHash(String fileName) throws IOException {
+        String contentHash = (String) MemoryCache.get(MemoryCache.CONTENT_HASH, fileName);
+        if (contentHash == null) {
+            contentHash = calculateContentHash(fileName);
+            MemoryCache.put(MemoryCache.CONTENT_HASH, fileName, contentHash);
+        }
+        return contentHash;
+    }
+
+    private static String calculateContentHash(String fileName) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16), digest)) {
+                byte[] bytes = new byte[1 << 16];
+                while (in.read(bytes) != -1) {
+                    // just reading to digest
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static Path getSnapshotFile(String cachePath, String contentHash) {
+        return Paths.get(cachePath, "tree-" + contentHash + CacheDirectory.TREE_SUFFIX);
+    }
+
+    static Path getFirstTreeSnapshotFile(String cachePath, String contentHash) {
+        return Paths.get(cachePath, "tree-" + contentHash + "-first" + CacheDirectory.TREE_SUFFIX);
+    }
+
+    /**
+     * Reads the trees from a snapshot
+     * @param snapshotFile
+     * @param taxonRegistry the registry to create the taxa in
+     * @return the trees or null if the snapshot doesn't exist or can't be read
+     */
+    static List<RootedTree> readTrees(Path snapshotFile, TaxonRegistry taxonRegistry) {
+        if (!Files.exists(snapshotFile)) {
+            return null;
+        }
+        try (DataInputStream in = openSnapshot(snapshotFile)) {
+            readHeader(in);
+            skipTaxa(in);
+            List<RootedTree> trees = new ArrayList<>();
+            while (in.readBoolean()) {
+                trees.add(readTree(in, taxonRegistry));
+            }
+            CacheDirectory.touch(snapshotFile);
+            return trees;
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads just the first tree from a snapshot
+     * @param snapshotFile
+     * @param taxonRegistry the registry to create the taxa in
+     * @return the tree or null if the snapshot doesn't exist or can't be read
+     */
+    static RootedTree readFirstTree(Path snapshotFile, TaxonRegistry taxonRegistry) {
+        if (!Files.exists(snapshotFile)) {
+            return null;
+        }
+        try (DataInputStream in = openSnapshot(snapshotFile)) {
+            readHeader(in);
+            skipTaxa(in);
+            if (!in.readBoolean()) {
+                return null;
+            }
+            RootedTree tree = readTree(in, taxonRegistry);
+            CacheDirectory.touch(snapshotFile);
+            return tree;
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the names of the taxa in the first tree of a snapshot without building the trees
+     * @param snapshotFile
+     * @return the taxon names or null if the snapshot doesn't exist or can't be read
+     */
+    static List<String> readTaxa(Path snapshotFile) {
+        if (!Files.exists(snapshotFile)) {
+            return null;
+        }
+        try (DataInputStream in = openSnapshot(snapshotFile)) {
+            readHeader(in);
+            int count = in.readInt();
+            List<String> names = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                names.add(readString(in));
+            }
+            CacheDirectory.touch(snapshotFile);
+            return names;
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens a snapshot, from memory if it is being held there (see MemoryCache)
+     */
+    private static DataInputStream openSnapshot(Path snapshotFile) throws IOException {
+        if (MemoryCache.isEnabled()) {
+            byte[] bytes = (byte[]) MemoryCache.get(MemoryCache.SNAPSHOT, snapshotFile.toString());
+            if (bytes == null) {
+                bytes = Files.readAllBytes(snapshotFile);
+                MemoryCache.put(MemoryCache.SNAPSHOT, snapshotFile.toString(), bytes);
+            }
+            return new DataInputStream(new ByteArrayInputStream(bytes));
+        }
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile), 1 << 16));
+    }
+
+    /**
+     * Gets the name of the file a snapshot was first made from
+     * @param snapshotFile
+     * @return the file name
+     */
+    static String getSource(Path snapshotFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            return readHeader(in);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the trees in a file as they are read so they don't all have to be held at once.
+     * Written to a temporary file and moved into place on close so a partial snapshot is never read.
+     */
+    static final class SnapshotWriter implements Closeable {
+        SnapshotWriter(Path snapshotFile, String sourceFileName) throws IOException {
+            this.snapshotFile = snapshotFile;
+            Files.createDirectories(snapshotFile.getParent());
+            tmpFile = Files.createTempFile(snapshotFile.getParent(), "tree", ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), 1 << 16));
+            out.writeLong(MAGIC);
+            writeString(out, new File(sourceFileName).getCanonicalPath());
+        }
+
+        /**
+         * Adds a tree to the snapshot. If this fails the snapshot is abandoned.
+         * @param tree
+         * @return true if the snapshot is still being written
+         */
+        boolean add(RootedTree tree) {
+            if (out == null) {
+                return false;
+            }
+            try {
+                if (treeCount == 0) {
+                    writeTaxa(tree);
+                }
+                out.writeBoolean(true);
+                writeTree(out, tree);
+                treeCount += 1;
+                return true;
+            } catch (IOException ioe) {
+                abandon();
+                return false;
+            }
+        }
+
+        /**
+         * Finishes the snapshot and moves it into place
+         */
+        @Override
+        public void close() throws IOException {
+            if (out == null) {
+                throw new IOException("Snapshot abandoned");
+            }
+            try {
+                if (treeCount == 0) {
+                    out.writeInt(0);
+                }
+                out.writeBoolean(false);
+                out.close();
+                out = null;
+                Files.move(tmpFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ioe) {
+                abandon();
+                throw ioe;
+            }
+        }
+
+        /**
+         * Stops writing and removes the partial snapshot
+         */
+        void abandon() {
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException ignored) {
+                // nothing more to do
+            }
+        }
+
+        private void writeTaxa(RootedTree tree) throws IOException {
+            out.writeInt(tree.getExternalNodes().size());
+            for (Node tip : tree.getExternalNodes()) {
+                writeString(out, tree.getTaxon(tip).getName());
+            }
+        }
+
+        private final Path snapshotFile;
+        private final Path tmpFile;
+        private DataOutputStream out;
+        private int treeCount = 0;
+    }
+
+    private static String readHeader(DataInputStream in) throws IOException {
+        if (in.readLong() != MAGIC) {
+            throw new IOException("Not a tree snapshot");
+        }
+        return readString(in);
+    }
+
+    private static void skipTaxa(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            in.skipBytes(length);
+        }
+    }
+
+    private static void writeTree(DataOutputStream out, RootedTree tree) throws IOException {
+        out.writeBoolean(tree.conceptuallyUnrooted());
+        out.writeBoolean(tree.hasLengths());
+        writeAttributes(out, tree.getAttributeMap());
+        writeNode(out, tree, tree.getRootNode());
+    }
+
+    /**
+     * Writes the nodes in pre-order
+     * recursive version
+     */
+    private static void writeNode(DataOutputStream out, RootedTree tree, Node node) throws IOException {
+        if (tree.isExternal(node)) {
+            out.writeInt(-1);
+            writeString(out, tree.getTaxon(node).getName());
+        } else {
+            List<Node> children = tree.getChildren(node);
+            out.writeInt(children.size());
+            for (Node child : children) {
+                writeNode(out, tree, child);
+            }
+        }
+        out.writeDouble(tree.hasLengths() && !tree.isRoot(node) ? tree.getLength(node) : 0.0);
+        writeAttributes(out, node.getAttributeMap());
+
+        Edge edge = tree.isRoot(node) ? null : getParentEdge(tree, node);
+        writeAttributes(out, edge != null ? edge.getAttributeMap() : Collections.emptyMap());
+    }
+
+    private static RootedTree readTree(DataInputStream in, TaxonRegistry taxonRegistry) throws IOException {
+        SimpleRootedTree tree = new SimpleRootedTree();
+        boolean conceptuallyUnrooted = in.readBoolean();
+        boolean hasLengths = in.readBoolean();
+        Map<String, Object> treeAttributes = readAttributes(in);
+
+        Node root = readNode(in, tree, taxonRegistry, hasLengths, true);
+
+        for (Map.Entry<String, Object> entry : treeAttributes.entrySet()) {
+            tree.setAttribute(entry.getKey(), entry.getValue());
+        }
+        tree.setConceptuallyUnrooted(conceptuallyUnrooted);
+        return tree;
+    }
+
+    /**
+     * Recreates the nodes children first, as the importers do, so the node sets are in the same order
+     * recursive version
+     */
+    private static Node readNode(DataInputStream in, SimpleRootedTree tree, TaxonRegistry taxonRegistry, boolean hasLengths, boolean isRoot) throws IOException {
+        int childCount = in.readInt();
+        Node node;
+        if (childCount == -1) {
+            node = tree.createExternalNode(taxonRegistry.getTaxon(readString(in)));
+        } else {
+            List<Node> children = new ArrayList<>(childCount);
+            for (int i = 0; i < childCount; i++) {
+                children.add(readNode(in, tree, taxonRegistry, hasLengths, false));
+            }
+            node = tree.createInternalNode(children);
+        }
+
+        double length = in.readDouble();
+        Map<String, Object> attributes = readAttributes(in);
+        Map<String, Object> edgeAttributes = readAttributes(in);
+
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            node.setAttribute(entry.getKey(), entry.getValue());
+        }
+        if (!isRoot) {
+            if (hasLengths) {
+                tree.setLength(node, length);
+            }
+            Edge edge = tree.getParentEdge(node);
+            for (Map.Entry<String, Object> entry : edgeAttributes.entrySet()) {
+                edge.setAttribute(entry.getKey(), entry.getValue());
+            }
+        }
+        return node;
+    }
+
+    private static Edge getParentEdge(RootedTree tree, Node node) {
+        if (tree instanceof SimpleRootedTree) {
+            return ((SimpleRootedTree)tree).getParentEdge(node);
+        }
+        try {
+            return tree.getEdge(node, tree.getParent(node));
+        } catch (RootedTree.NoEdgeException nee) {
+            return null;
+        }
+    }
+
+    private static void writeAttributes(DataOutputStream out, Map<String, Object> attributes) throws IOException {
+        out.writeInt(attributes.size());
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, Object> readAttributes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            attributes.put(name, readValue(in));
+        }
+        return attributes;
+    }
+
+    /**
+     * Writes an attribute value - only the types the importers create are supported, anything else
+     * fails the snapshot.
+     */
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_VALUE);
+        } else if (value instanceof String) {
+            out.writeByte(STRING_VALUE);
+            writeString(out, (String)value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble((Double)value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER_VALUE);
+            out.writeInt((Integer)value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_VALUE);
+            out.writeLong((Long)value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_VALUE);
+            out.writeBoolean((Boolean)value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT_VALUE);
+            out.writeFloat((Float)value);
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[])value;
+            out.writeByte(ARRAY_VALUE);
+            out.writeInt(array.length);
+            for (Object element : array) {
+                writeValue(out, element);
+            }
+        } else {
+            throw new IOException("Unsupported attribute type: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL_VALUE:
+                return null;
+            case STRING_VALUE:
+                return readString(in);
+            case DOUBLE_VALUE:
+                return in.readDouble();
+            case INTEGER_VALUE:
+                return in.readInt();
+            case LONG_VALUE:
+                return in.readLong();
+            case BOOLEAN_VALUE:
+                return in.readBoolean();
+            case FLOAT_VALUE:
+                return in.readFloat();
+            case ARRAY_VALUE:
+                Object[] array = new Object[in.readInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readValue(in);
+                }
+                return array;
+            default:
+                throw new IOException("Unknown attribute type in snapshot: " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
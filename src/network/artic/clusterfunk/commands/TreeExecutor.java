@@ -0,0 +1,259 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.trees.RootedTree;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * Runs post-order and pre-order passes over a tree on a ForkJoinPool. Subtrees with fewer than a cutoff
+ * number of tips are done sequentially by a single task, larger ones have their children done as separate
+ * tasks. The visitors are called with the children's results (or give the children's states) in the same
+ * order as the sequential recursion so the results are the same regardless of the number of threads - the
+ * visitors just have to only change the node they are given.
+ *
+ * With one thread everything is done in the calling thread.
+ */
+final class TreeExecutor {
+    final static int DEFAULT_CUTOFF = 4096;
+
+    interface PostOrderVisitor<T> {
+        /**
+         * Visit a node after its children
+         * @param node
+         * @param childResults the results for the children in order (empty for tips)
+         * @return the result for this node
+         */
+        T visit(Node node, List<T> childResults);
+    }
+
+    interface PreOrderVisitor<S> {
+        /**
+         * Visit a node before its children
+         * @param node
+         * @param state the state given for this node by its parent
+         * @param children the children of the node (empty for tips)
+         * @return the states for each child in order
+         */
+        List<S> visit(Node node, S state, List<Node> children);
+    }
+
+    TreeExecutor(RootedTree tree, int threadCount) {
+        this(tree, threadCount, DEFAULT_CUTOFF);
+    }
+
+    TreeExecutor(RootedTree tree, int threadCount, int cutoff) {
+        this.tree = tree;
+        this.threadCount = threadCount;
+        this.cutoff = cutoff;
+
+        if (threadCount > 1) {
+            // heights and lengths may be calculated lazily, do it now before the tree is shared
+            if (tree.hasHeights()) {
+                tree.getHeight(tree.getRootNode());
+            }
+            if (tree.hasLengths()) {
+                tree.getLength(tree.getRootNode());
+            }
+            findSpine(tree.getRootNode());
+        }
+    }
+
+    /**
+     * Finds the nodes with subtrees big enough to split.
+     * recursive version
+     * @param node
+     * @return the number of tips below the node
+     */
+    private int findSpine(Node node) {
+        if (tree.isExternal(node)) {
+            return 1;
+        }
+        int count = 0;
+        for (Node child : tree.getChildren(node)) {
+            count += findSpine(child);
+        }
+        if (count >= cutoff) {
+            spine.add(node);
+        }
+        return count;
+    }
+
+    <T> T postOrder(PostOrderVisitor<T> visitor) {
+        return postOrder(tree.getRootNode(), visitor);
+    }
+
+    <T> T postOrder(Node node, PostOrderVisitor<T> visitor) {
+        if (spine.isEmpty()) {
+            return postOrderSequential(node, visitor);
+        }
+        return getPool().invoke(new PostOrderTask<>(node, visitor));
+    }
+
+    <S> void preOrder(S state, PreOrderVisitor<S> visitor) {
+        preOrder(tree.getRootNode(), state, visitor);
+    }
+
+    <S> void preOrder(Node node, S state, PreOrderVisitor<S> visitor) {
+        if (spine.isEmpty()) {
+            preOrderSequential(node, state, visitor);
+        } else {
+            getPool().invoke(new PreOrderTask<>(node, state, visitor));
+        }
+    }
+
+    /**
+     * Calls the action for each of the nodes, splitting the list into blocks of the cutoff size
+     * @param nodes
+     * @param action
+     */
+    void forEach(Collection<Node> nodes, Consumer<Node> action) {
+        List<Node> list = new ArrayList<>(nodes);
+        Progress.addNodesVisited(list.size());
+        if (threadCount <= 1 || list.size() < cutoff * 2) {
+            list.forEach(action);
+        } else {
+            getPool().invoke(new ForEachTask(list, 0, list.size(), action));
+        }
+    }
+
+    /**
+     * recursive version
+     */
+    private <T> T postOrderSequential(Node node, PostOrderVisitor<T> visitor) {
+        Progress.addNodesVisited(1);
+        if (tree.isExternal(node)) {
+            return visitor.visit(node, Collections.emptyList());
+        }
+        List<T> childResults = new ArrayList<>();
+        for (Node child : tree.getChildren(node)) {
+            childResults.add(postOrderSequential(child, visitor));
+        }
+        return visitor.visit(node, childResults);
+    }
+
+    /**
+     * recursive version
+     */
+    private <S> void preOrderSequential(Node node, S state, PreOrderVisitor<S> visitor) {
+        Progress.addNodesVisited(1);
+        List<Node> children = tree.isExternal(node) ? Collections.emptyList() : tree.getChildren(node);
+        List<S> childStates = visitor.visit(node, state, children);
+        for (int i = 0; i < children.size(); i++) {
+            preOrderSequential(children.get(i), childStates.get(i), visitor);
+        }
+    }
+
+    private final class PostOrderTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        PostOrderTask(Node node, PostOrderVisitor<T> visitor) {
+            this.node = node;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected T compute() {
+            if (!spine.contains(node)) {
+                return postOrderSequential(node, visitor);
+            }
+            Progress.addNodesVisited(1);
+            List<PostOrderTask<T>> tasks = new ArrayList<>();
+            for (Node child : tree.getChildren(node)) {
+                tasks.add(new PostOrderTask<>(child, visitor));
+            }
+            invokeAll(tasks);
+            List<T> childResults = new ArrayList<>();
+            for (PostOrderTask<T> task : tasks) {
+                childResults.add(task.join());
+            }
+            return visitor.visit(node, childResults);
+        }
+
+        private final Node node;
+        private final PostOrderVisitor<T> visitor;
+    }
+
+    private final class PreOrderTask<S> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        PreOrderTask(Node node, S state, PreOrderVisitor<S> visitor) {
+            this.node = node;
+            this.state = state;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (!spine.contains(node)) {
+                preOrderSequential(node, state, visitor);
+                return;
+            }
+            Progress.addNodesVisited(1);
+            List<Node> children = tree.getChildren(node);
+            List<S> childStates = visitor.visit(node, state, children);
+            List<PreOrderTask<S>> tasks = new ArrayList<>();
+            for (int i = 0; i < children.size(); i++) {
+                tasks.add(new PreOrderTask<>(children.get(i), childStates.get(i), visitor));
+            }
+            invokeAll(tasks);
+        }
+
+        private final Node node;
+        private final S state;
+        private final PreOrderVisitor<S> visitor;
+    }
+
+    private final class ForEachTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        ForEachTask(List<Node> nodes, int from, int to, Consumer<Node> action) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= cutoff) {
+                for (int i = from; i < to; i++) {
+                    action.accept(nodes.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ForEachTask(nodes, from, middle, action), new ForEachTask(nodes, middle, to, action));
+        }
+
+        private final List<Node> nodes;
+        private final int from;
+        private final int to;
+        private final Consumer<Node> action;
+    }
+
+    private ForkJoinPool getPool() {
+        synchronized (TreeExecutor.class) {
+            if (pool == null || pool.getParallelism() != threadCount) {
+                if (pool != null) {
+                    // the thread count has changed since the pool was made so let the threads of the old
+                    // pool finish
+                    pool.shutdown();
+                }
+                pool = new ForkJoinPool(threadCount);
+            }
+            return pool;
+        }
+    }
+
+    private static ForkJoinPool pool = null;
+
+    private final RootedTree tree;
+    private final int threadCount;
+    private final int cutoff;
+    private final Set<Node> spine = new HashSet<>();
+}
@@ -0,0 +1,474 @@
+package network.artic.clusterfunk.commands;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.io.NewickImporter;
+import jebl.evolution.io.NexusImporter;
+import jebl.evolution.io.TreeImporter;
+import jebl.evolution.trees.RootedTree;
+import network.artic.clusterfunk.FormatType;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Lazy access to the trees in a NEXUS or Newick file. The file is scanned once (without parsing the trees)
+ * to find the byte range of each tree statement and, for NEXUS, the header before the first tree (the taxa
+ * and translate blocks). Trees can then be parsed individually by index or name, or a selection of them (for
+ * example, after a burn-in and thinned) streamed to an importer - the statements of the trees not selected
+ * are never passed to the importer so cost nothing to skip.
+ *
+ * If there is a cache directory the index is kept there, named by the file's path, size and modification
+ * time, so later commands on the same file don't have to scan it again.
+ */
+final class TreeSource implements Closeable {
+    private final static long MAGIC = 0x4a43464944580000L | 2L; // "JCFIDX" version 2
+    private final static int MAX_PREFIX = 4096;
+
+    /**
+     * @param treeFileName
+     * @param format the format of the file (NEXUS or NEWICK)
+     * @param cachePath the cache directory to keep the index in (null for none)
+     */
+    TreeSource(String treeFileName, FormatType format, String cachePath) throws IOException {
+        if (format != FormatType.NEXUS && format != FormatType.NEWICK) {
+            throw new IllegalArgumentException("Tree sources must be NEXUS or Newick");
+        }
+        this.format = format;
+        this.file = new RandomAccessFile(treeFileName, "r");
+
+        Path indexFile = getIndexFile(treeFileName, cachePath);
+        if (indexFile == null || !readIndex(indexFile)) {
+            buildIndex();
+            if (indexFile != null) {
+                writeIndex(indexFile, treeFileName);
+            }
+        }
+    }
+
+    int getTreeCount() {
+        return treeCount;
+    }
+
+    /**
+     * @param index
+     * @return the name given to the tree in a NEXUS file (null for Newick)
+     */
+    String getTreeName(int index) {
+        return names[index];
+    }
+
+    /**
+     * @param name
+     * @return the index of the tree with this name or -1 if not found
+     */
+    int getTreeIndex(String name) {
+        for (int i = 0; i < treeCount; i++) {
+            if (name.equals(names[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index
+     * @return the byte offset in the file of the start of the tree's statement
+     */
+    long getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * @param index
+     * @return the byte offset in the file of the end of the tree's statement
+     */
+    long getEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Selects trees by position and name
+     * @param burnin the number of trees to skip at the start
+     * @param thin take every thin'th tree after the burn-in
+     * @param treeNames the names of the trees to take (null for all)
+     * @return the indices of the selected trees in file order
+     */
+    List<Integer> select(int burnin, int thin, Collection<String> treeNames) {
+        Set<String> nameSet = treeNames != null ? new HashSet<>(treeNames) : null;
+        List<Integer> selected = new ArrayList<>();
+        for (int i = Math.max(burnin, 0); i < treeCount; i += Math.max(thin, 1)) {
+            if (nameSet == null || nameSet.contains(names[i])) {
+                selected.add(i);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return the format of the file
+     */
+    FormatType getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the NEXUS header (everything before the first tree statement) or an empty string for Newick
+     */
+    String getHeader() throws IOException {
+        return format == FormatType.NEXUS ? new String(readBytes(0, headerEnd), StandardCharsets.UTF_8) : "";
+    }
+
+    /**
+     * Reads the text of a tree statement without parsing it
+     * @param index
+     * @return the bytes of the statement (including the terminating ';')
+     */
+    byte[] getStatement(int index) throws IOException {
+        return readBytes(starts[index], ends[index]);
+    }
+
+    /**
+     * @return the length of the file in bytes
+     */
+    long getLength() throws IOException {
+        return file.length();
+    }
+
+    /**
+     * Copies a range of bytes of the file without parsing them
+     * @param start
+     * @param end
+     * @param out
+     */
+    void copyBytes(long start, long end, OutputStream out) throws IOException {
+        try (InputStream in = new SegmentInputStream(start, end)) {
+            byte[] buffer = new byte[1 << 16];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    byte[] readBytes(long start, long end) throws IOException {
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("Tree statement too long");
+        }
+        byte[] bytes = new byte[(int)(end - start)];
+        file.seek(start);
+        file.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Seeks to and parses a single tree
+     * @param index
+     * @return the tree
+     */
+    RootedTree getTree(int index) throws IOException, ImportException {
+        TreeImporter importer = getImporter(Collections.singletonList(index));
+        return (RootedTree)importer.importNextTree();
+    }
+
+    /**
+     * Gets an importer that will return just the selected trees
+     * @param selected the indices of the trees in the order they should be returned
+     * @return the importer
+     */
+    TreeImporter getImporter(List<Integer> selected) {
+        List<InputStream> streams = new ArrayList<>();
+        if (format == FormatType.NEXUS) {
+            streams.add(new SegmentInputStream(0, headerEnd));
+        }
+        for (int index : selected) {
+            streams.add(new SegmentInputStream(starts[index], ends[index]));
+            streams.add(new ByteArrayInputStream(NEWLINE));
+        }
+        if (format == FormatType.NEXUS) {
+            streams.add(new ByteArrayInputStream(NEXUS_FOOTER));
+        }
+
+        // the default charset as the importers are given FileReaders elsewhere
+        Reader reader = new InputStreamReader(new BufferedInputStream(
+                new SequenceInputStream(Collections.enumeration(streams)), 1 << 16));
+        return format == FormatType.NEXUS ? new NexusImporter(reader) : new NewickImporter(reader, false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Scans the file for the ends of statements (';' outside of quotes and comments). Any NEXUS statement
+     * starting 'tree' or 'utree' is a tree and in Newick every statement is.
+     */
+    private void buildIndex() throws IOException {
+        starts = new long[16];
+        ends = new long[16];
+        names = new String[16];
+        treeCount = 0;
+        headerEnd = -1;
+
+        Progress.addBytesToRead(file.length());
+        InputStream in = new BufferedInputStream(new Progress.CountingInputStream(new FileInputStream(file.getFD())), 1 << 16);
+        file.seek(0);
+
+        StringBuilder prefix = new StringBuilder();
+        long position = 0;
+        long statementStart = -1;
+        int commentDepth = 0;
+        int quote = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (commentDepth > 0) {
+                if (b == '[') {
+                    commentDepth++;
+                } else if (b == ']') {
+                    commentDepth--;
+                }
+            } else {
+                if (statementStart == -1 && !Character.isWhitespace(b)) {
+                    statementStart = position;
+                    prefix.setLength(0);
+                }
+                if (quote != 0) {
+                    // a doubled quote is an escaped quote which this handles as closing and reopening
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '\'' || b == '"') {
+                    quote = b;
+                } else if (b == '[') {
+                    commentDepth = 1;
+                } else if (b == ';') {
+                    addStatement(statementStart, position + 1, prefix);
+                    statementStart = -1;
+                }
+                if (commentDepth == 0 && b != ';' && prefix.length() < MAX_PREFIX) {
+                    prefix.append((char)b);
+                }
+            }
+            position++;
+        }
+
+        if (headerEnd == -1) {
+            headerEnd = position;
+        }
+    }
+
+    private void addStatement(long start, long end, StringBuilder prefix) {
+        String name = null;
+        if (format == FormatType.NEXUS) {
+            String statement = prefix.toString().trim();
+            int split = 0;
+            while (split < statement.length() && Character.isLetter(statement.charAt(split))) {
+                split++;
+            }
+            String keyword = statement.substring(0, split);
+            if (!keyword.equalsIgnoreCase("tree") && !keyword.equalsIgnoreCase("utree")) {
+                return;
+            }
+            name = parseName(statement.substring(split));
+        } else if (prefix.toString().trim().isEmpty()) {
+            return;
+        }
+
+        if (treeCount == 0) {
+            headerEnd = start;
+        }
+        if (treeCount == starts.length) {
+            starts = Arrays.copyOf(starts, treeCount * 2);
+            ends = Arrays.copyOf(ends, treeCount * 2);
+            names = Arrays.copyOf(names, treeCount * 2);
+        }
+        starts[treeCount] = start;
+        ends[treeCount] = end;
+        names[treeCount] = name;
+        treeCount++;
+    }
+
+    /**
+     * Parses the tree name from the rest of a tree statement: [*] name = ... Whitespace in quoted names is
+     * replaced with underscores as NexusImporter does.
+     */
+    private static String parseName(String rest) {
+        String text = rest.trim();
+        if (text.startsWith("*")) {
+            text = text.substring(1).trim();
+        }
+        if (text.startsWith("'")) {
+            StringBuilder name = new StringBuilder();
+            int i = 1;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (c == '\'') {
+                    if (i + 1 < text.length() && text.charAt(i + 1) == '\'') {
+                        name.append('\'');
+                        i += 2;
+                        continue;
+                    }
+                    break;
+                }
+                name.append(Character.isWhitespace(c) ? '_' : c);
+                i++;
+            }
+            return name.toString();
+        }
+        int end = 0;
+        while (end < text.length() && text.charAt(end) != '=' && !Character.isWhitespace(text.charAt(end))) {
+            end++;
+        }
+        return text.substring(0, end);
+    }
+
+    /**
+     * Gets the index file in the cache directory for a tree file
+     * @return the index file or null if there is no cache directory
+     */
+    private static Path getIndexFile(String treeFileName, String cachePath) throws IOException {
+        if (cachePath == null) {
+            return null;
+        }
+        File treeFile = new File(treeFileName);
+        String key = treeFile.getCanonicalPath() + "|" + treeFile.length() + "|" + treeFile.lastModified();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+                sb.append(String.format("%02x", b));
+            }
+            return Paths.get(cachePath, "index-" + sb.toString() + CacheDirectory.INDEX_SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private boolean readIndex(Path indexFile) {
+        if (!Files.exists(indexFile)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 1 << 16))) {
+            readHeader(in);
+            if (in.readByte() != format.ordinal()) {
+                return false;
+            }
+            headerEnd = in.readLong();
+            treeCount = in.readInt();
+            starts = new long[treeCount];
+            ends = new long[treeCount];
+            names = new String[treeCount];
+            for (int i = 0; i < treeCount; i++) {
+                starts[i] = in.readLong();
+                ends[i] = in.readLong();
+                names[i] = in.readBoolean() ? in.readUTF() : null;
+            }
+            CacheDirectory.touch(indexFile);
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it into place so a partial index is never read
+     */
+    private void writeIndex(Path indexFile, String treeFileName) {
+        Path tmpFile = null;
+        try {
+            Files.createDirectories(indexFile.getParent());
+            tmpFile = Files.createTempFile(indexFile.getParent(), "index", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), 1 << 16))) {
+                out.writeLong(MAGIC);
+                out.writeUTF(new File(treeFileName).getCanonicalPath());
+                out.writeByte(format.ordinal());
+                out.writeLong(headerEnd);
+                out.writeInt(treeCount);
+                for (int i = 0; i < treeCount; i++) {
+                    out.writeLong(starts[i]);
+                    out.writeLong(ends[i]);
+                    out.writeBoolean(names[i] != null);
+                    if (names[i] != null) {
+                        out.writeUTF(names[i]);
+                    }
+                }
+            }
+            Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            // the index is only a cache
+            try {
+                if (tmpFile != null) {
+                    Files.deleteIfExists(tmpFile);
+                }
+            } catch (IOException ignored) {
+                // nothing more to do
+            }
+        }
+    }
+
+    private static String readHeader(DataInputStream in) throws IOException {
+        if (in.readLong() != MAGIC) {
+            throw new IOException("Not a tree index");
+        }
+        return in.readUTF();
+    }
+
+    /**
+     * Gets the name of the file an index was made from
+     * @param indexFile
+     * @return the file name
+     */
+    static String getSource(Path indexFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            return readHeader(in);
+        }
+    }
+
+    /**
+     * Reads a range of bytes of the tree file. Only one of these is read at a time so they share the file.
+     */
+    private final class SegmentInputStream extends InputStream {
+        SegmentInputStream(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            file.seek(position);
+            int count = file.read(b, off, (int)Math.min(len, end - position));
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        private long position;
+        private final long end;
+    }
+
+    private final static byte[] NEWLINE = "\n".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] NEXUS_FOOTER = "end;\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final FormatType format;
+    private final RandomAccessFile file;
+
+    private long headerEnd;
+    private int treeCount;
+    private long[] starts;
+    private long[] ends;
+    private String[] names;
+}
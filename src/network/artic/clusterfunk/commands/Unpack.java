@@ -0,0 +1,73 @@
+package network.artic.clusterfunk.commands;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Lists or extracts the files in an archive written by a command with --archive. Named files are found
+ * through the archive's index so extracting a few files from a large archive doesn't read the rest.
+ */
+public class Unpack extends Command {
+    public Unpack(String archiveFileName,
+                  String[] entryNames,
+                  boolean list,
+                  String outputPath,
+                  Settings settings,
+                  boolean isVerbose) {
+
+        super(settings, isVerbose);
+
+        try (ZipFile archive = new ZipFile(archiveFileName)) {
+            if (list) {
+                for (ZipEntry entry : Collections.list(archive.entries())) {
+                    outStream.println(entry.getName() + "\t" + entry.getSize());
+                }
+                return;
+            }
+
+            String path = checkOutputPath(outputPath);
+
+            List<ZipEntry> entries = new ArrayList<>();
+            if (entryNames != null) {
+                for (String name : entryNames) {
+                    ZipEntry entry = archive.getEntry(name);
+                    if (entry == null) {
+                        errorStream.println("Entry, " + name + ", not found in archive");
+                        exit(1);
+                    }
+                    entries.add(entry);
+                }
+            } else {
+                entries.addAll(Collections.list(archive.entries()));
+            }
+
+            for (ZipEntry entry : entries) {
+                if (isVerbose) {
+                    outStream.println("Extracting: " + entry.getName());
+                }
+                try (InputStream in = archive.getInputStream(entry)) {
+                    // the names are written without paths but guard against one escaping the output path
+                    String fileName = Paths.get(entry.getName()).getFileName().toString();
+                    Files.copy(in, Paths.get(path + fileName), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            if (isVerbose) {
+                outStream.println();
+                outStream.println("Files extracted: " + entries.size());
+                outStream.println();
+            }
+        } catch (IOException ioe) {
+            errorStream.println("Error reading archive file: " + ioe.getMessage());
+            exit(1);
+        }
+    }
+}